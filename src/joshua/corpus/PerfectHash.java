@@ -0,0 +1,188 @@
+package joshua.corpus;
+
+import java.util.Arrays;
+
+/**
+ * An immutable map from strings to ints, built on a perfect hash function: every key is assigned a
+ * slot of its own, so a lookup hashes the query once, computes its slot, and does a single string
+ * comparison, without probing. The map is read-only once built and can be shared across threads
+ * without locking.
+ *
+ * The hash function is constructed with the "hash, displace" method (Belazzougui, Botelho, and
+ * Dietzfelbinger, 2009). Keys are first distributed into small buckets. Buckets are then placed,
+ * largest first, by searching for a displacement that moves all the keys of the bucket into free
+ * slots; the displacement of each bucket is all that has to be stored. If some bucket cannot be
+ * placed (which only happens for pathological hash values), the hash is reseeded and the table
+ * rebuilt.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+final class PerfectHash {
+
+  /* Returned by {@link #get(String)} for keys that are not in the map. */
+  public static final int NOT_FOUND = Integer.MIN_VALUE;
+
+  /* The average number of keys per bucket. */
+  private static final int BUCKET_SIZE = 4;
+
+  /* The fraction of slots that are occupied. */
+  private static final double LOAD_FACTOR = 0.8;
+
+  /* The number of values of d0 (see slot()). */
+  private static final int NUM_D0 = 8;
+
+  private long seed;
+  private final int numBuckets;
+  private final int numSlots;
+
+  /* The displacement of each bucket, encoded as d1 * NUM_D0 + d0 (see slot()). */
+  private final long[] displacements;
+
+  private final String[] keys;
+  private final int[] values;
+
+  /**
+   * Builds the map from keys[i] to values[i].
+   *
+   * @throws IllegalArgumentException if a key occurs more than once
+   */
+  public PerfectHash(String[] keys, int[] values) {
+    if (keys.length != values.length)
+      throw new IllegalArgumentException("Must provide a value for every key");
+
+    this.numBuckets = Math.max(1, keys.length / BUCKET_SIZE);
+    this.numSlots = Math.max(1, (int) Math.ceil(keys.length / LOAD_FACTOR));
+    this.displacements = new long[numBuckets];
+    this.keys = new String[numSlots];
+    this.values = new int[numSlots];
+
+    seed = 0x9E3779B97F4A7C15L;
+    while (!build(keys, values)) {
+      seed = mix(seed + 1);
+      Arrays.fill(this.keys, null);
+    }
+  }
+
+  /**
+   * Returns the value of the key, or {@link #NOT_FOUND}.
+   */
+  public int get(String key) {
+    long hash = hash(key, seed);
+    int slot = slot(hash, displacements[bucket(hash)]);
+    return key.equals(keys[slot]) ? values[slot] : NOT_FOUND;
+  }
+
+  private boolean build(String[] keys, int[] values) {
+    int n = keys.length;
+    long[] hashes = new long[n];
+
+    // Sort the keys by bucket (with a counting sort), recording where each bucket starts.
+    int[] bucketStart = new int[numBuckets + 1];
+    for (int i = 0; i < n; i++) {
+      hashes[i] = hash(keys[i], seed);
+      bucketStart[bucket(hashes[i]) + 1]++;
+    }
+    for (int b = 0; b < numBuckets; b++)
+      bucketStart[b + 1] += bucketStart[b];
+    int[] members = new int[n];
+    int[] fill = Arrays.copyOf(bucketStart, numBuckets);
+    for (int i = 0; i < n; i++)
+      members[fill[bucket(hashes[i])]++] = i;
+
+    // Order the buckets from largest to smallest, again with a counting sort.
+    int maxSize = 0;
+    for (int b = 0; b < numBuckets; b++)
+      maxSize = Math.max(maxSize, bucketStart[b + 1] - bucketStart[b]);
+    int[] sizeStart = new int[maxSize + 2];
+    for (int b = 0; b < numBuckets; b++)
+      sizeStart[maxSize - (bucketStart[b + 1] - bucketStart[b]) + 1]++;
+    for (int s = 0; s <= maxSize; s++)
+      sizeStart[s + 1] += sizeStart[s];
+    int[] order = new int[numBuckets];
+    for (int b = 0; b < numBuckets; b++)
+      order[sizeStart[maxSize - (bucketStart[b + 1] - bucketStart[b])]++] = b;
+
+    boolean[] taken = new boolean[numSlots];
+    int[] slots = new int[maxSize];
+    for (int b : order) {
+      int start = bucketStart[b];
+      int size = bucketStart[b + 1] - start;
+      if (size == 0)
+        break;
+
+      // Keys with the same hash can never be separated.
+      for (int i = start; i < start + size; i++)
+        for (int j = i + 1; j < start + size; j++)
+          if (hashes[members[i]] == hashes[members[j]]) {
+            if (keys[members[i]].equals(keys[members[j]]))
+              throw new IllegalArgumentException("Duplicate key '" + keys[members[i]] + "'");
+            return false;
+          }
+
+      boolean placed = false;
+      for (long d = 0; d < (long) NUM_D0 * numSlots && !placed; d++) {
+        placed = true;
+        for (int i = 0; i < size && placed; i++) {
+          slots[i] = slot(hashes[members[start + i]], d);
+          if (taken[slots[i]])
+            placed = false;
+          for (int j = 0; j < i && placed; j++)
+            if (slots[j] == slots[i])
+              placed = false;
+        }
+        if (placed) {
+          displacements[b] = d;
+          for (int i = 0; i < size; i++) {
+            taken[slots[i]] = true;
+            this.keys[slots[i]] = keys[members[start + i]];
+            this.values[slots[i]] = values[members[start + i]];
+          }
+        }
+      }
+      if (!placed)
+        return false;
+    }
+    return true;
+  }
+
+  /* The bucket is taken from a remix of the hash, so that it is independent of the slot. */
+  private int bucket(long hash) {
+    return (int) (((hash * 0x9E3779B97F4A7C15L) >>> 1) % numBuckets);
+  }
+
+  /*
+   * The slot of a key under the given displacement d, which encodes a pair (d0, d1). Varying d0
+   * changes the relative positions of the keys of a bucket, and varying d1 shifts them; trying
+   * every d1 visits every slot, so a bucket with a single key can always be placed while any slot
+   * is free.
+   */
+  private int slot(long hash, long d) {
+    long f1 = (hash & 0x7fffffffL) % numSlots;
+    long f2 = ((hash >>> 32) & 0x7fffffffL) % numSlots;
+    long d0 = d % NUM_D0;
+    long d1 = d / NUM_D0;
+    return (int) ((f1 + d0 * f2 + d1) % numSlots);
+  }
+
+  /*
+   * A seeded 64-bit FNV-1a hash over the characters of the string, finished with the MurmurHash3
+   * mixing function.
+   */
+  private static long hash(String key, long seed) {
+    long h = 0xcbf29ce484222325L ^ seed;
+    for (int i = 0; i < key.length(); i++) {
+      h ^= key.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return mix(h);
+  }
+
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -1,19 +1,22 @@
 package joshua.corpus;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import joshua.decoder.ff.lm.NGramLanguageModel;
@@ -24,6 +27,11 @@ import joshua.util.MurmurHash;
  * Static singular vocabulary class. Supports vocabulary freezing and (de-)serialization into a
  * vocabulary file.
  * 
+ * The vocabulary is shared by all decoding threads, so lookups take no locks: words that were known
+ * when the vocabulary was frozen (or read from a file) are found in an immutable {@link PerfectHash},
+ * words added since in a concurrent map, and ids are mapped back to words through an array whose
+ * filled part is never modified. Only the addition of a new word is serialized.
+ * 
  * @author Juri Ganitkevitch
  */
 
@@ -33,11 +41,20 @@ public class Vocabulary {
 
   private static ArrayList<NGramLanguageModel> lms;
 
-  private static TreeMap<Long, Integer> hashToId;
-  private static ArrayList<String> idToString;
-  private static TreeMap<Long, String> hashToString;
+  /* The words known when the vocabulary was last frozen or read (null if neither happened). */
+  private static volatile PerfectHash frozen;
+
+  /* Words added since. */
+  private static volatile ConcurrentHashMap<String, Integer> added;
+
+  /*
+   * The word of each id. Slots below size are never changed; a new word is written to the slot at
+   * size before size is incremented, and the array is copied when full.
+   */
+  private static volatile String[] idToString;
+  private static volatile int size;
 
-  private static final Integer lock = new Integer(0);
+  private static final Object lock = new Object();
 
   private static final int UNKNOWN_ID;
   private static final String UNKNOWN_WORD;
@@ -62,8 +79,8 @@ public class Vocabulary {
       lms.add(lm);
       // Notify it of all the existing words.
       boolean collision = false;
-      for (int i = idToString.size() - 1; i > 0; i--)
-        collision = collision || lm.registerWord(idToString.get(i), i);
+      for (int i = size - 1; i > 0; i--)
+        collision = collision || lm.registerWord(idToString[i], i);
       return collision;
     }
   }
@@ -72,28 +89,55 @@ public class Vocabulary {
    * Reads a vocabulary from file. This deletes any additions to the vocabulary made prior to
    * reading the file.
    * 
+   * The file is memory-mapped and decoded in a single pass, and the words it contains are loaded
+   * directly into a frozen table.
+   * 
    * @param file_name
    * @return Returns true if vocabulary was read without mismatches or collisions.
    * @throws IOException
    */
   public static boolean read(String file_name) throws IOException {
     synchronized (lock) {
-      File vocab_file = new File(file_name);
-      DataInputStream vocab_stream =
-          new DataInputStream(new BufferedInputStream(new FileInputStream(vocab_file)));
-      int size = vocab_stream.readInt();
-      logger.info("Reading vocabulary: " + size + " tokens.");
+      RandomAccessFile raf = new RandomAccessFile(new File(file_name), "r");
+      ByteBuffer vocab_buffer;
+      try {
+        FileChannel channel = raf.getChannel();
+        vocab_buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        raf.close();
+      }
+
+      int num_words = vocab_buffer.getInt();
+      logger.info("Reading vocabulary: " + num_words + " tokens.");
+      String[] words = new String[num_words];
+      int num_read = 0;
+      boolean consistent = true;
+      for (int i = 0; i < num_words; i++) {
+        int id = vocab_buffer.getInt();
+        String token = readUTF(vocab_buffer);
+        if (id != i + 1) {
+          consistent = false;
+          break;
+        }
+        words[num_read++] = token;
+      }
+
       clear();
-      for (int i = 0; i < size; i++) {
-        int id = vocab_stream.readInt();
-        String token = vocab_stream.readUTF();
-        if (id != Math.abs(id(token))) {
-          vocab_stream.close();
-          return false;
+      if (consistent) {
+        try {
+          load(words);
+          return true;
+        } catch (IllegalArgumentException e) {
+          // A word occurs twice.
         }
       }
-      vocab_stream.close();
-      return (size + 1 == idToString.size());
+
+      // Add the words one by one, stopping where the ids don't match (as before).
+      clear();
+      for (int i = 0; i < num_read; i++)
+        if (i + 1 != Math.abs(id(words[i])))
+          return false;
+      return false;
     }
   }
 
@@ -102,74 +146,114 @@ public class Vocabulary {
       File vocab_file = new File(file_name);
       DataOutputStream vocab_stream =
           new DataOutputStream(new BufferedOutputStream(new FileOutputStream(vocab_file)));
-      vocab_stream.writeInt(idToString.size() - 1);
-      logger.info("Writing vocabulary: " + (idToString.size() - 1) + " tokens.");
-      for (int i = 1; i < idToString.size(); i++) {
+      vocab_stream.writeInt(size - 1);
+      logger.info("Writing vocabulary: " + (size - 1) + " tokens.");
+      for (int i = 1; i < size; i++) {
         vocab_stream.writeInt(i);
-        vocab_stream.writeUTF(idToString.get(i));
+        vocab_stream.writeUTF(idToString[i]);
       }
       vocab_stream.close();
     }
   }
 
+  /**
+   * Renumbers the words in the order of their (MurmurHash) hashes and moves them into a perfectly
+   * hashed, read-only table. Words can still be added afterwards.
+   */
   public static void freeze() {
     synchronized (lock) {
-      int current_id = 1;
-
-      TreeMap<Long, Integer> hash_to_id = new TreeMap<Long, Integer>();
-      ArrayList<String> id_to_string = new ArrayList<String>(idToString.size() + 1);
-      id_to_string.add(UNKNOWN_ID, UNKNOWN_WORD);
-
-      Map.Entry<Long, Integer> walker = hashToId.firstEntry();
-      while (walker != null) {
-        String word = hashToString.get(walker.getKey());
-        hash_to_id.put(walker.getKey(), (walker.getValue() < 0 ? -current_id : current_id));
-        id_to_string.add(current_id, word);
-        current_id++;
-        walker = hashToId.higherEntry(walker.getKey());
+      final String[] words = Arrays.copyOfRange(idToString, 1, size);
+      final long[] hashes = new long[words.length];
+      Integer[] order = new Integer[words.length];
+      for (int i = 0; i < words.length; i++) {
+        hashes[i] = hash(words[i]);
+        order[i] = i;
       }
-      idToString = id_to_string;
-      hashToId = hash_to_id;
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          if (hashes[a] != hashes[b])
+            return (hashes[a] < hashes[b]) ? -1 : 1;
+          return words[a].compareTo(words[b]);
+        }
+      });
+
+      String[] sorted = new String[words.length];
+      for (int i = 0; i < words.length; i++)
+        sorted[i] = words[order[i]];
+      clear();
+      load(sorted);
     }
   }
 
+  /*
+   * Replaces the (cleared) vocabulary with the given words, numbered from 1 in order, and notifies
+   * the language models. Throws an IllegalArgumentException, before changing anything, if a word
+   * occurs twice.
+   */
+  private static void load(String[] words) {
+    int[] ids = new int[words.length];
+    for (int i = 0; i < words.length; i++)
+      ids[i] = (i + 1) * (nt(words[i]) ? -1 : 1);
+    PerfectHash table = new PerfectHash(words, ids);
+
+    String[] id_to_string = new String[Math.max(2 * (words.length + 1), 16)];
+    id_to_string[UNKNOWN_ID] = UNKNOWN_WORD;
+    System.arraycopy(words, 0, id_to_string, 1, words.length);
+
+    for (NGramLanguageModel lm : lms)
+      for (int i = 0; i < words.length; i++)
+        lm.registerWord(words[i], i + 1);
+
+    added = new ConcurrentHashMap<String, Integer>();
+    idToString = id_to_string;
+    frozen = table;
+    size = words.length + 1;
+  }
+
   public static int id(String token) {
+    PerfectHash table = frozen;
+    if (table != null) {
+      int id = table.get(token);
+      if (id != PerfectHash.NOT_FOUND)
+        return id;
+    }
+    Integer id = added.get(token);
+    if (id != null)
+      return id;
+
     synchronized (lock) {
-      long hash = 0;
-      try {
-        hash = MurmurHash.hash64(token);
-      } catch (UnsupportedEncodingException e) {
-        e.printStackTrace();
-      }
-      String hash_word = hashToString.get(hash);
-      if (hash_word != null) {
-        if (!token.equals(hash_word)) {
-          logger.warning("MurmurHash for the following symbols collides: '" + hash_word + "', '"
-              + token + "'");
-        }
-        return hashToId.get(hash);
-      } else {
-        int id = idToString.size() * (nt(token) ? -1 : 1);
+      // Check again, in case the vocabulary changed while we waited for the lock.
+      table = frozen;
+      int frozen_id = (table != null) ? table.get(token) : PerfectHash.NOT_FOUND;
+      if (frozen_id != PerfectHash.NOT_FOUND)
+        return frozen_id;
+      id = added.get(token);
+      if (id != null)
+        return id;
 
-        // register this (token,id) mapping with each language
-        // model, so that they can map it to their own private
-        // vocabularies
-        for (NGramLanguageModel lm : lms)
-          lm.registerWord(token, Math.abs(id));
+      id = size * (nt(token) ? -1 : 1);
 
-        idToString.add(token);
-        hashToString.put(hash, token);
-        hashToId.put(hash, id);
-        return id;
+      // register this (token,id) mapping with each language
+      // model, so that they can map it to their own private
+      // vocabularies
+      for (NGramLanguageModel lm : lms)
+        lm.registerWord(token, Math.abs(id));
+
+      String[] id_to_string = idToString;
+      if (size == id_to_string.length) {
+        id_to_string = Arrays.copyOf(id_to_string, 2 * size);
+        idToString = id_to_string;
       }
+      id_to_string[size] = token;
+      size = size + 1;
+      added.put(token, id);
+      return id;
     }
   }
 
   public static boolean hasId(int id) {
-    synchronized (lock) {
-      id = Math.abs(id);
-      return (id < idToString.size());
-    }
+    id = Math.abs(id);
+    return (id < size);
   }
 
   public static int[] addAll(String sentence) {
@@ -185,7 +269,9 @@ public class Vocabulary {
 
   public static String word(int id) {
     id = Math.abs(id);
-    return idToString.get(id);
+    if (id >= size)
+      throw new IndexOutOfBoundsException("Index: " + id + ", Size: " + size);
+    return idToString[id];
   }
 
   public static String getWords(int[] ids) {
@@ -214,9 +300,12 @@ public class Vocabulary {
   public static List<Integer> getNonterminalIndices()
   {
     List<Integer> result = new ArrayList<Integer>();
-    for(int i = 0; i < idToString.size(); i++)
+    // Read the size first: the array is always at least that large.
+    int num_words = size;
+    String[] words = idToString;
+    for(int i = 0; i < num_words; i++)
     {
-      String word = idToString.get(i);
+      String word = words[i];
       if(isNonterminal(word)){  
         result.add(i);
       }
@@ -246,9 +335,7 @@ public class Vocabulary {
   }
 
   public static int size() {
-    synchronized (lock) {
-      return idToString.size();
-    }
+    return size;
   }
 
   public static int getTargetNonterminalIndex(int id) {
@@ -256,11 +343,44 @@ public class Vocabulary {
   }
 
   private static void clear() {
-    hashToId = new TreeMap<Long, Integer>();
-    hashToString = new TreeMap<Long, String>();
-    idToString = new ArrayList<String>();
+    frozen = null;
+    added = new ConcurrentHashMap<String, Integer>();
+    idToString = new String[16];
+    idToString[UNKNOWN_ID] = UNKNOWN_WORD;
+    size = 1;
+  }
+
+  private static long hash(String token) {
+    try {
+      return MurmurHash.hash64(token);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
 
-    idToString.add(UNKNOWN_ID, UNKNOWN_WORD);
+  /*
+   * Decodes a string written by DataOutput.writeUTF(): a two-byte length followed by the string in
+   * modified UTF-8.
+   */
+  private static String readUTF(ByteBuffer buffer) throws UTFDataFormatException {
+    int length = buffer.getShort() & 0xffff;
+    char[] chars = new char[length];
+    int num_chars = 0;
+    int end = buffer.position() + length;
+    while (buffer.position() < end) {
+      int c = buffer.get() & 0xff;
+      if (c < 0x80) {
+        chars[num_chars++] = (char) c;
+      } else if ((c & 0xe0) == 0xc0) {
+        chars[num_chars++] = (char) (((c & 0x1f) << 6) | (buffer.get() & 0x3f));
+      } else if ((c & 0xf0) == 0xe0) {
+        int c2 = buffer.get() & 0x3f;
+        chars[num_chars++] = (char) (((c & 0x0f) << 12) | (c2 << 6) | (buffer.get() & 0x3f));
+      } else {
+        throw new UTFDataFormatException("malformed input around byte " + buffer.position());
+      }
+    }
+    return new String(chars, 0, num_chars);
   }
 
   /**
@@ -308,6 +428,7 @@ public class Vocabulary {
   }
 
   public static Iterator<String> wordIterator() {
-    return idToString.iterator();
+    int num_words = size;
+    return Arrays.asList(idToString).subList(0, num_words).iterator();
   }
 }
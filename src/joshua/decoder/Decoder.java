@@ -10,6 +10,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import joshua.corpus.Vocabulary;
@@ -31,12 +36,14 @@ import joshua.decoder.ff.lm.LanguageModelFF;
 import joshua.decoder.ff.lm.NGramLanguageModel;
 import joshua.decoder.ff.lm.berkeley_lm.LMGrammarBerkeley;
 import joshua.decoder.ff.lm.kenlm.jni.KenLM;
+import joshua.decoder.ff.lm.mapped_lm.MappedLanguageModel;
 import joshua.decoder.ff.phrase.DistortionFF;
 import joshua.decoder.ff.similarity.EdgePhraseSimilarityFF;
 import joshua.decoder.ff.tm.Grammar;
 import joshua.decoder.ff.tm.hash_based.MemoryBasedBatchGrammar;
 import joshua.decoder.ff.tm.packed.PackedGrammar;
 import joshua.decoder.io.TranslationRequest;
+import joshua.decoder.metrics.DecoderMetrics;
 import joshua.decoder.phrase.PhraseTable;
 import joshua.decoder.segment_file.Sentence;
 import joshua.util.FileUtility;
@@ -50,16 +57,23 @@ import joshua.util.io.LineReader;
  * decodeAll(TranslationRequest), which returns a set of Translation objects wrapped in an iterable
  * Translations object. It is important that we support multithreading both (a) across the sentences
  * within a request and (b) across requests, in a round-robin fashion. This is done by maintaining a
- * fixed sized concurrent thread pool. When a new request comes in, a RequestHandler thread is
- * launched. This object reads iterates over the request's sentences, obtaining a thread from the
- * thread pool, and using that thread to decode the sentence. If a decoding thread is not available,
- * it will block until one is in a fair (FIFO) manner. This maintains fairness across requests so
- * long as each request only requests thread when it has a sentence ready.
+ * fixed sized pool of DecoderThread objects. When a new request comes in, a RequestHandler is
+ * scheduled. This object reads iterates over the request's sentences, obtaining a DecoderThread from
+ * the pool, and using it to decode the sentence. If a DecoderThread is not available, it will block
+ * until one is in a fair (FIFO) manner. This maintains fairness across requests so long as each
+ * request only requests thread when it has a sentence ready.
  * 
- * A decoding thread is handled by DecoderThread and launched from DecoderThreadRunner. The purpose
- * of the runner is to record where to place the translated sentence when it is done (i.e., which
- * Translations object). Translations itself is an iterator whose next() call blocks until the next
- * translation is available.
+ * No threads are created per sentence or per request. Sentences are translated by DecoderTasks run
+ * on a fixed pool of worker threads, one per DecoderThread; since a task is only submitted once its
+ * DecoderThread has been obtained, the workers' queue never holds more than that many tasks.
+ * Request handlers, which spend most of their time waiting for input or for a DecoderThread, run on
+ * a separate pool of reused (optionally virtual) threads. The purpose of a DecoderTask is to record
+ * where to place the translated sentence when it is done (i.e., which Translations object).
+ * Translations itself is an iterator whose next() call blocks until the next translation is
+ * available.
+ * 
+ * The scheduler exposes the number of sentences waiting for a decoder, the number of busy decoders,
+ * and the mean time sentences have waited (see {@link #getQueueDepth()}).
  * 
  * @author Matt Post <post@cs.jhu.edu>
  * @author Zhifei Li, <zhifei.work@gmail.com>
@@ -83,7 +97,11 @@ public class Decoder {
   /* A sorted list of the feature names (so they can be output in the order they were read in) */
   public static ArrayList<String> feature_names = new ArrayList<String>();
 
-  /* The feature weights. */
+  /*
+   * The feature weights the model was loaded with. These must not be modified once the decoder is
+   * initialized, since they are shared by all threads; sentences can be translated with other
+   * weights via decodeAll(TranslationRequest, FeatureVector).
+   */
   public static FeatureVector weights;
 
   /** Logger for this class. */
@@ -92,6 +110,20 @@ public class Decoder {
   public static int VERBOSE = 0;
 
   private BlockingQueue<DecoderThread> threadPool = null;
+
+  /* Runs DecoderTasks (one per busy DecoderThread). */
+  private ExecutorService workers = null;
+
+  /* Runs RequestHandlers. */
+  private ExecutorService requestHandlers = null;
+
+  /* Scheduling statistics. */
+  private final AtomicInteger numWaiting = new AtomicInteger();
+  private final AtomicLong numScheduled = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+
+  /* Totals over the translated sentences, which also passes each one on to the metrics sinks. */
+  private final DecoderMetrics metrics = new DecoderMetrics(this);
   
   public static boolean usingNonlocalFeatures = false;
 
@@ -133,6 +165,46 @@ public class Decoder {
     this.grammars = new ArrayList<Grammar>();
     this.threadPool = new ArrayBlockingQueue<DecoderThread>(
         this.joshuaConfiguration.num_parallel_decoders, true);
+    this.workers = Executors.newFixedThreadPool(joshuaConfiguration.num_parallel_decoders,
+        new DaemonThreadFactory("decoder-worker"));
+    this.requestHandlers = newHandlerPool(joshuaConfiguration, "request-handler");
+  }
+
+  /**
+   * Creates an executor for tasks that mostly block (handling requests or connections). This uses
+   * virtual threads if requested (-virtual-threads) and supported by the JVM (Java 21 and later),
+   * and otherwise a pool of reused daemon threads.
+   */
+  public static ExecutorService newHandlerPool(JoshuaConfiguration joshuaConfiguration, String name) {
+    if (joshuaConfiguration.virtual_threads) {
+      try {
+        // Looked up reflectively, so that the decoder still builds and runs on older JVMs.
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+            .invoke(null);
+      } catch (Exception e) {
+        logger.warning("Virtual threads are not supported by this JVM; using platform threads");
+      }
+    }
+    return Executors.newCachedThreadPool(new DaemonThreadFactory(name));
+  }
+
+  /**
+   * Names pool threads and marks them as daemons, so that idle pools don't keep the JVM alive.
+   */
+  private static class DaemonThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    DaemonThreadFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
   }
 
   /**
@@ -151,32 +223,36 @@ public class Decoder {
 
   /**
    * This class is responsible for getting sentences from the TranslationRequest and procuring a
-   * DecoderThreadRunner to translate it. Each call to decodeAll(TranslationRequest) launches a
-   * thread that will read the request's sentences, obtain a DecoderThread to translate them, and
-   * then place the Translation in the appropriate place.
+   * DecoderTask to translate it. Each call to decodeAll(TranslationRequest) schedules a handler
+   * that will read the request's sentences, obtain a DecoderThread to translate them, and then
+   * place the Translation in the appropriate place.
    * 
    * @author Matt Post <post@cs.jhu.edu>
    * 
    */
-  private class RequestHandler extends Thread {
+  private class RequestHandler implements Runnable {
     /* Source of sentences to translate. */
     private final TranslationRequest request;
 
     /* Where to put translated sentences. */
     private final Translations response;
 
-    RequestHandler(TranslationRequest request, Translations response) {
+    /* The weights to translate the request with. */
+    private final FeatureVector weights;
+
+    RequestHandler(TranslationRequest request, Translations response, FeatureVector weights) {
       this.request = request;
       this.response = response;
+      this.weights = weights;
     }
 
     @Override
     public void run() {
       /*
-       * Repeatedly get an input sentence, wait for a DecoderThread, and then start a new thread to
-       * translate the sentence. We start a new thread (via DecoderRunnerThread) as opposed to
-       * blocking, so that the RequestHandler can go on to the next sentence in this request, which
-       * allows parallelization across the sentences of the request.
+       * Repeatedly get an input sentence, wait for a DecoderThread, and then hand the sentence to a
+       * worker to translate. We hand it off as opposed to blocking, so that the RequestHandler can
+       * go on to the next sentence in this request, which allows parallelization across the
+       * sentences of the request.
        */
       for (;;) {
         Sentence sentence = request.next();
@@ -184,10 +260,21 @@ public class Decoder {
           response.finish();
           break;
         }
+        sentence.getMetrics().queued();
 
-        // This will block until a DecoderThread becomes available.
-        DecoderThread thread = Decoder.this.getThread();
-        new DecoderThreadRunner(thread, sentence, response).start();
+        DecoderThread thread;
+        try {
+          // This will block while the reorder buffer is full.
+          response.reserve(sentence.id());
+
+          // This will block until a DecoderThread becomes available.
+          thread = Decoder.this.getThread();
+        } catch (InterruptedException e) {
+          // Stop taking sentences, and leave the interrupt for whoever is shutting us down
+          Thread.currentThread().interrupt();
+          return;
+        }
+        workers.execute(new DecoderTask(thread, sentence, weights, response));
       }
     }
   }
@@ -197,22 +284,57 @@ public class Decoder {
    * a fair fashion (i.e,. FIFO across requests).
    * 
    * @return a thread that can be used for decoding.
+   * @throws InterruptedException if interrupted while waiting, in which case the wait is not
+   *           counted in the scheduling statistics.
    */
-  public DecoderThread getThread() {
+  public DecoderThread getThread() throws InterruptedException {
+    long start = System.nanoTime();
+    numWaiting.incrementAndGet();
+    DecoderThread thread;
     try {
-      return threadPool.take();
-    } catch (InterruptedException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      thread = threadPool.take();
+    } finally {
+      numWaiting.decrementAndGet();
     }
-    return null;
+    numScheduled.incrementAndGet();
+    totalWaitNanos.addAndGet(System.nanoTime() - start);
+    return thread;
+  }
+
+  /**
+   * The number of sentences that are ready to be translated but are waiting for a decoder.
+   */
+  public int getQueueDepth() {
+    return numWaiting.get();
+  }
+
+  /**
+   * The number of decoders that are currently translating a sentence.
+   */
+  public int getBusyDecoders() {
+    return joshuaConfiguration.num_parallel_decoders - threadPool.size();
+  }
+
+  /**
+   * The mean time, in milliseconds, that sentences have waited for a decoder.
+   */
+  public double getMeanWaitTime() {
+    long scheduled = numScheduled.get();
+    return (scheduled == 0) ? 0.0 : totalWaitNanos.get() / 1000000.0 / scheduled;
+  }
+
+  /**
+   * The metrics of the sentences translated so far (see {@link DecoderMetrics}).
+   */
+  public DecoderMetrics getMetrics() {
+    return metrics;
   }
 
   /**
    * This class handles running a DecoderThread (which takes care of the actual translation of an
-   * input Sentence, returning a Translation object when its done). This is done in a thread so as
-   * not to tie up the RequestHandler that launched it, freeing it to go on to the next sentence in
-   * the TranslationRequest, in turn permitting parallelization across the sentences of a request.
+   * input Sentence, returning a Translation object when its done). This is done on a worker thread
+   * so as not to tie up the RequestHandler that launched it, freeing it to go on to the next sentence
+   * in the TranslationRequest, in turn permitting parallelization across the sentences of a request.
    * 
    * When the decoder thread is finshed, the Translation object is placed in the correct place in
    * the corresponding Translations object that was returned to the caller of
@@ -220,27 +342,30 @@ public class Decoder {
    * 
    * @author Matt Post <post@cs.jhu.edu>
    */
-  private class DecoderThreadRunner extends Thread {
+  private class DecoderTask implements Runnable {
 
     private final DecoderThread decoderThread;
     private final Sentence sentence;
+    private final FeatureVector weights;
     private final Translations translations;
 
-    DecoderThreadRunner(DecoderThread thread, Sentence sentence, Translations translations) {
+    DecoderTask(DecoderThread thread, Sentence sentence, FeatureVector weights,
+        Translations translations) {
       this.decoderThread = thread;
       this.sentence = sentence;
+      this.weights = weights;
       this.translations = translations;
     }
 
     @Override
     public void run() {
       /*
-       * Use the thread to translate the sentence. Then record the translation with the
-       * corresponding Translations object, and return the thread to the pool.
+       * Use the thread to translate the sentence, which records the translation with the
+       * corresponding Translations object as soon as its output starts, and then return the thread
+       * to the pool.
        */
       try {
-        Translation translation = decoderThread.translate(this.sentence);
-        translations.record(translation);
+        decoderThread.translate(this.sentence, this.weights, translations);
 
         /*
          * This is crucial! It's what makes the thread available for the next sentence to be
@@ -262,16 +387,39 @@ public class Decoder {
 
   /**
    * This function is the main entry point into the decoder. It translates all the sentences in a
-   * (possibly boundless) set of input sentences. Each request launches its own thread to read the
-   * sentences of the request.
+   * (possibly boundless) set of input sentences. Each request is read by its own RequestHandler.
    * 
    * @param request
    * @return an iterable set of Translation objects
    */
   public Translations decodeAll(TranslationRequest request) {
-    Translations translations = new Translations(request);
+    return decodeAll(request, Decoder.weights);
+  }
+
+  /**
+   * Translates all the sentences of a request with the given weights instead of the ones the
+   * decoder was loaded with. The grammars, language models, and feature functions are shared
+   * with all other requests, so requests with different weights (e.g., different tunings of the
+   * same model) can be decoded at the same time. The weights are copied, so the caller is free to
+   * modify them afterwards. Features the given weights leave out keep the decoder's weights.
+   * 
+   * Costs that are cached with the rules or used only for pruning (the estimated costs that the
+   * rules are sorted by, and future cost estimates) still reflect the decoder's weights, so search
+   * errors may differ from those of a decoder loaded with these weights; the model costs of the
+   * hypotheses do not.
+   * 
+   * @param request
+   * @param weights
+   * @return an iterable set of Translation objects
+   */
+  public Translations decodeAll(TranslationRequest request, FeatureVector weights) {
+    int capacity = joshuaConfiguration.reorder_buffer;
+    if (capacity > 0)
+      capacity = Math.max(capacity, joshuaConfiguration.num_parallel_decoders);
+    Translations translations = new Translations(request, capacity,
+        joshuaConfiguration.output_unordered);
 
-    new RequestHandler(request, translations).start();
+    requestHandlers.execute(new RequestHandler(request, translations, requestWeights(weights)));
 
     return translations;
   }
@@ -283,11 +431,24 @@ public class Decoder {
    * @return The translated sentence
    */
   public Translation decode(Sentence sentence) {
-    // Get a thread.
+    return decode(sentence, Decoder.weights);
+  }
+
+  /**
+   * Decodes a single sentence with the given weights (see
+   * {@link #decodeAll(TranslationRequest, FeatureVector)}).
+   * 
+   * @param sentence
+   * @param weights
+   * @return The translated sentence
+   */
+  public Translation decode(Sentence sentence, FeatureVector weights) {
+    weights = requestWeights(weights);
 
+    // Get a thread.
     try {
       DecoderThread thread = threadPool.take();
-      Translation translation = thread.translate(sentence);
+      Translation translation = thread.translate(sentence, weights);
       threadPool.put(thread);
 
       return translation;
@@ -299,6 +460,41 @@ public class Decoder {
     return null;
   }
 
+  /**
+   * Returns a private copy of the given weights for decoding a request, with the weights that the
+   * decoder adds to its own (see PhraseModelFF) filled in. Features that the request has no weight
+   * for take the decoder's weight: the feature functions look up the weights of all the features
+   * they compute, and would fail partway through decoding otherwise.
+   */
+  private FeatureVector requestWeights(FeatureVector requested) {
+    if (requested == Decoder.weights)
+      return requested;
+
+    FeatureVector weights = requested.clone();
+    for (String feature : Decoder.weights.keySet())
+      if (!weights.containsKey(feature))
+        weights.put(feature, Decoder.weights.get(feature));
+    for (FeatureFunction feature : featureFunctions)
+      if (feature instanceof PhraseModelFF)
+        weights.put(feature.getName(), 1.0f);
+    weights.put("BLEU", 0.0f);
+    return weights;
+  }
+
+  /**
+   * The grammars the decoder loaded, in the order they are handed to the chart.
+   */
+  public List<Grammar> getGrammars() {
+    return grammars;
+  }
+
+  /**
+   * The feature functions the decoder scores hypotheses with.
+   */
+  public List<FeatureFunction> getFeatureFunctions() {
+    return featureFunctions;
+  }
+
   public void cleanUp() {
     for (DecoderThread thread : threadPool) {
       try {
@@ -308,6 +504,19 @@ public class Decoder {
         e.printStackTrace();
       }
     }
+
+    // Report the caches while the workers that own them are still alive
+    for (FeatureFunction feature : featureFunctions) {
+      if (feature instanceof LanguageModelFF && ((LanguageModelFF) feature).isCaching()) {
+        LanguageModelFF lm = (LanguageModelFF) feature;
+        logger.info(String.format("%s cache: %d hits, %d misses", lm.getName(),
+            lm.getCacheHits(), lm.getCacheMisses()));
+      }
+    }
+
+    workers.shutdown();
+    requestHandlers.shutdown();
+    metrics.unregisterMBean();
   }
 
   public static void writeConfigFile(double[] newWeights, String template, String outputFile,
@@ -407,8 +616,8 @@ public class Decoder {
         weights.put(pair[0], Float.parseFloat(pair[1]));
       }
       
-      if (! weights.containsKey("BLEU"))
-        Decoder.weights.put("BLEU", 0.0f);
+      // BLEU is only weighted when rescoring the forest (see KBestExtractor#withBLEUWeight).
+      Decoder.weights.put("BLEU", 0.0f);
 
       int num_dense = 0;
       for (String feature: feature_names)
@@ -443,10 +652,15 @@ public class Decoder {
             (System.currentTimeMillis() - pre_sort_time) / 1000));
       }
 
+      for (String sink : joshuaConfiguration.metrics_sinks)
+        metrics.addSink(DecoderMetrics.createSink(sink, joshuaConfiguration));
+      if (joshuaConfiguration.metrics_jmx)
+        metrics.registerMBean();
+
       // Create the threads
       for (int i = 0; i < joshuaConfiguration.num_parallel_decoders; i++) {
         this.threadPool.put(new DecoderThread(this.grammars, Decoder.weights,
-            this.featureFunctions, joshuaConfiguration));
+            this.featureFunctions, joshuaConfiguration, metrics));
       }
 
     } catch (IOException e) {
@@ -486,12 +700,18 @@ public class Decoder {
         Vocabulary.registerLanguageModel(lm);
         Vocabulary.id(joshuaConfiguration.default_non_terminal);
 
+      } else if (lm_type.equals("mapped")) {
+        MappedLanguageModel lm = new MappedLanguageModel(lm_order, lm_file, minimizing);
+        this.languageModels.add(lm);
+        Vocabulary.registerLanguageModel(lm);
+        Vocabulary.id(joshuaConfiguration.default_non_terminal);
+
       } else if (lm_type.equals("none")) {
         ; // do nothing
 
       } else {
         logger.warning("WARNING: using built-in language model; you probably didn't intend this");
-        logger.warning("  Valid lm types are 'kenlm', 'berkeleylm', 'none'");
+        logger.warning("  Valid lm types are 'kenlm', 'berkeleylm', 'mapped', 'none'");
       }
     }
 
@@ -501,7 +721,8 @@ public class Decoder {
       if (lm instanceof KenLM && lm.isMinimizing()) {
         this.featureFunctions.add(new KenLMFF(weights, String.format("lm_%d", i), (KenLM) lm));
       } else {
-        this.featureFunctions.add(new LanguageModelFF(weights, String.format("lm_%d", i), lm));
+        this.featureFunctions.add(new LanguageModelFF(weights, String.format("lm_%d", i), lm,
+            joshuaConfiguration.lm_cache_size));
       }
     }
   }
@@ -14,6 +14,8 @@ import joshua.decoder.hypergraph.ForestWalker;
 import joshua.decoder.hypergraph.GrammarBuilderWalkerFunction;
 import joshua.decoder.hypergraph.HyperGraph;
 import joshua.decoder.hypergraph.KBestExtractor;
+import joshua.decoder.metrics.MetricsSink;
+import joshua.decoder.metrics.SentenceMetrics;
 import joshua.decoder.phrase.Stacks;
 import joshua.decoder.segment_file.Sentence;
 import joshua.corpus.Vocabulary;
@@ -40,6 +42,12 @@ public class DecoderThread extends Thread {
   private final List<Grammar> allGrammars;
   private final List<FeatureFunction> featureFunctions;
 
+  /* The weights sentences are translated with unless others are given */
+  private final FeatureVector weights;
+
+  /* Where the metrics of each translated sentence are sent (may be null) */
+  private final MetricsSink metricsSink;
+
   private static final Logger logger = Logger.getLogger(DecoderThread.class.getName());
 
   // ===============================================================
@@ -47,9 +55,20 @@ public class DecoderThread extends Thread {
   // ===============================================================
   public DecoderThread(List<Grammar> grammars, FeatureVector weights,
       List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration) throws IOException {
+    this(grammars, weights, featureFunctions, joshuaConfiguration, null);
+  }
+
+  /**
+   * As above, with a sink that receives the metrics of each sentence once it is translated.
+   */
+  public DecoderThread(List<Grammar> grammars, FeatureVector weights,
+      List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration,
+      MetricsSink metricsSink) throws IOException {
 
     this.joshuaConfiguration = joshuaConfiguration;
     this.allGrammars = grammars;
+    this.weights = weights;
+    this.metricsSink = metricsSink;
 
     this.featureFunctions = new ArrayList<FeatureFunction>();
     for (FeatureFunction ff : featureFunctions) {
@@ -76,6 +95,42 @@ public class DecoderThread extends Thread {
    * @param sentence The sentence to be translated.
    */
   public Translation translate(Sentence sentence) {
+    return translate(sentence, this.weights);
+  }
+
+  /**
+   * Translate a sentence with the given weights. These may differ from sentence to sentence, but
+   * must not be modified while the sentence is being translated.
+   * 
+   * @param sentence The sentence to be translated.
+   * @param weights The weights to score hypotheses with.
+   */
+  public Translation translate(Sentence sentence, FeatureVector weights) {
+    return translate(sentence, weights, null);
+  }
+
+  /**
+   * As above, but records the translation with the given Translations as soon as its output
+   * starts, instead of returning it only once its k-best list is complete.
+   * 
+   * @param sentence The sentence to be translated.
+   * @param weights The weights to score hypotheses with.
+   * @param translations Where to record the translation (may be null).
+   */
+  public Translation translate(Sentence sentence, FeatureVector weights, Translations translations) {
+    SentenceMetrics metrics = sentence.getMetrics();
+    metrics.started();
+    long startTime = System.nanoTime();
+
+    Translation translation = decode(sentence, weights, translations);
+
+    metrics.totalNanos = System.nanoTime() - startTime;
+    if (metricsSink != null)
+      metricsSink.record(metrics);
+    return translation;
+  }
+
+  private Translation decode(Sentence sentence, FeatureVector weights, Translations translations) {
 
     logger.info(String.format("Translating sentence #%d [thread %d]: '%s'", sentence.id(), getId(),
         sentence.source()));
@@ -86,7 +141,8 @@ public class DecoderThread extends Thread {
     // skip blank sentences
     if (sentence.isEmpty()) {
       logger.info("translation of sentence " + sentence.id() + " took 0 seconds [" + getId() + "]");
-      return new Translation(sentence, null, null, featureFunctions, joshuaConfiguration);
+      return new Translation(sentence, null, null, featureFunctions, joshuaConfiguration,
+          translations);
     }
     
     long startTime = System.currentTimeMillis();
@@ -110,18 +166,22 @@ public class DecoderThread extends Thread {
     try {
 
       if (joshuaConfiguration.phrase_based) {
-        Stacks stacks = new Stacks(sentence, this.featureFunctions, grammars, joshuaConfiguration);
+        Stacks stacks = new Stacks(sentence, this.featureFunctions, weights, grammars,
+            joshuaConfiguration);
         
+        long searchStart = System.nanoTime();
         hypergraph = stacks.search();
-        kBestExtractor = new KBestExtractor(sentence, featureFunctions, Decoder.weights, false,
+        sentence.getMetrics().chartNanos = System.nanoTime() - searchStart;
+        sentence.getMetrics().failed = (hypergraph == null);
+        kBestExtractor = new KBestExtractor(sentence, featureFunctions, weights, false,
             joshuaConfiguration);
       } else {
         /* Seeding: the chart only sees the grammars, not the factories */
-        Chart chart = new Chart(sentence, this.featureFunctions, grammars,
+        Chart chart = new Chart(sentence, this.featureFunctions, weights, grammars,
             joshuaConfiguration.goal_symbol, joshuaConfiguration);
 
         hypergraph = chart.expand();
-        kBestExtractor = new KBestExtractor(sentence, featureFunctions, Decoder.weights, false,
+        kBestExtractor = new KBestExtractor(sentence, featureFunctions, weights, false,
             joshuaConfiguration);
       }
       
@@ -133,12 +193,11 @@ public class DecoderThread extends Thread {
     float seconds = (System.currentTimeMillis() - startTime) / 1000.0f;
     logger.info(String.format("translation of sentence %d took %.3f seconds [thread %d]",
         sentence.id(), seconds, getId()));
-    logger.info(String.format("Memory used after sentence %d is %.1f MB", sentence.id(), (Runtime
-        .getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1000000.0));
 
     /* Return the translation unless we're doing synchronous parsing. */
     if (!joshuaConfiguration.parse || hypergraph == null) {
-      return new Translation(sentence, hypergraph, kBestExtractor, featureFunctions, joshuaConfiguration);
+      return new Translation(sentence, hypergraph, kBestExtractor, featureFunctions,
+          joshuaConfiguration, translations);
     }
 
     /*****************************************************************************************/
@@ -157,7 +216,8 @@ public class DecoderThread extends Thread {
     /* Step 2. Create a new chart and parse with the instantiated grammar. */
     Grammar[] newGrammarArray = new Grammar[] { newGrammar };
     Sentence targetSentence = new Sentence(sentence.target(), sentence.id(), joshuaConfiguration);
-    Chart chart = new Chart(targetSentence, featureFunctions, newGrammarArray, "GOAL",joshuaConfiguration);
+    Chart chart = new Chart(targetSentence, featureFunctions, weights, newGrammarArray, "GOAL",
+        joshuaConfiguration);
     int goalSymbol = GrammarBuilderWalkerFunction.goalSymbol(hypergraph);
     String goalSymbolString = Vocabulary.word(goalSymbol);
     logger.info(String.format("Sentence %d: goal symbol is %s (%d).", sentence.id(),
@@ -171,10 +231,9 @@ public class DecoderThread extends Thread {
         sentence.id(), (secondParseTime - sortTime) / 1000));
     logger.info(String.format("Sentence %d total time: %d seconds.\n", sentence.id(),
         (secondParseTime - startTime) / 1000));
-    logger.info(String.format("Memory used after sentence %d is %.1f MB", sentence.id(), (Runtime
-        .getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1000000.0));
 
-    return new Translation(sentence, englishParse, chart.kBestExtractor, featureFunctions, joshuaConfiguration); // or do something else
+    return new Translation(sentence, englishParse, chart.kBestExtractor, featureFunctions,
+        joshuaConfiguration, translations); // or do something else
   }
 
   private Grammar getGrammarFromHyperGraph(String goal, HyperGraph hg) {
@@ -26,6 +26,14 @@ public class JoshuaConfiguration {
   // List of language models to load
   public ArrayList<String> lms = new ArrayList<String>();
 
+  /*
+   * The number of language model scores each decoding thread caches (-lm-cache-size), for each
+   * language model that is not KenLM with state minimization. The same n-grams are scored many
+   * times while decoding. The cache is kept across sentences and cleared when it fills up. 0
+   * disables the cache.
+   */
+  public int lm_cache_size = 0;
+
   // List of grammar files to read
   public ArrayList<String> tms = new ArrayList<String>();
 
@@ -79,6 +87,21 @@ public class JoshuaConfiguration {
   /* The cube pruning pop limit. Set to 0 for exhaustive pruning. */
   public int pop_limit = 100;
 
+  /*
+   * How the hypotheses of each cell are enumerated (-search-strategy). "cube-pruning" scores every
+   * candidate with all features as it enters the heap. "cube-growing" lets candidates in with a
+   * cheap estimate (the rule's estimated cost plus the inside scores of its tail nodes) and only
+   * scores them fully when they reach the top of the heap, so far fewer are scored.
+   */
+  public String search_strategy = "cube-pruning";
+
+  /*
+   * A per-cell beam (-cell-beam): a cell stops taking hypotheses once the next candidate's
+   * estimate is more than this much below that of the best one. Together with a pop limit of 0,
+   * this makes the work done in a cell depend on how ambiguous it is. Set to 0 to disable.
+   */
+  public float cell_beam = 0.0f;
+
   /* Maximum sentence length. Sentences longer than this are truncated. */
   public int maxlen = 200;
 
@@ -116,8 +139,54 @@ public class JoshuaConfiguration {
   /* The number of decoding threads to use (-threads). */
   public int num_parallel_decoders = 1;
 
+  /*
+   * The most sentences of a request that may be translated but not yet output (-reorder-buffer).
+   * Translations finish out of order, and are held until they can be output; when the buffer is
+   * full, no new sentences are started until the oldest one is done. It is never smaller than the
+   * number of decoding threads. Set to 0 for no limit.
+   */
+  public int reorder_buffer = 1000;
+
+  /*
+   * Output translations as soon as they are done, instead of in the order of the input
+   * (-output-unordered). The output format is then made to start with the sentence id, if it does
+   * not already include it.
+   */
+  public boolean output_unordered = false;
+
+  /*
+   * The number of threads used to expand the cells of a single chart (-chart-threads). Cells
+   * spanning the same number of words are independent of each other, so values above 1 fill each
+   * diagonal of the chart in parallel. The workers are those of the pool of this size, which is
+   * shared across all decoding threads (see joshua.util.ForkJoinPools).
+   */
+  public int chart_threads = 1;
+
+  /*
+   * The number of threads used to format the k-best list of a sentence (-kbest-threads). The
+   * derivations are extracted in order, and then formatted (which, for large values of top-n,
+   * takes most of the time) in parallel in batches. The workers are those of the pool of this size,
+   * which is shared across all decoding threads (see joshua.util.ForkJoinPools).
+   */
+  public int kbest_threads = 1;
+
+  /*
+   * Which files of a packed grammar are read into physical memory when it is loaded
+   * (-packed-grammar-prefault). Packed grammars are memory-mapped read-only and never copied onto
+   * the heap, so decoders on the same host share a single copy in the OS page cache; prefaulting
+   * only trades a slower start for not paging the grammar in during the first sentences. One of
+   * "none" (pages are read on first access), "features" (the rule features and alignments), or
+   * "all" (also the source and target tries).
+   */
+  public String packed_grammar_prefault = "features";
+
   // disk hg
   public String hypergraphFilePattern = "";
+  /*
+   * The format of the dumped hypergraphs (-dump-hypergraph-format): "text", or "binary" for the
+   * compact format that can be memory-mapped with joshua.decoder.hypergraph.MappedHyperGraph.
+   */
+  public String hypergraphFileFormat = "text";
 
   // hypergraph visualization
   public boolean visualize_hypergraph = false;
@@ -146,6 +215,40 @@ public class JoshuaConfiguration {
   /* If set, Joshua will start a (multi-threaded, per "threads") TCP/IP server on this port. */
   public int server_port = 0;
 
+  /*
+   * The maximum number of connections the TCP/IP server handles at once (-server-threads). Further
+   * connections are not accepted until one finishes, and wait in the operating system's backlog.
+   */
+  public int server_threads = 32;
+
+  /*
+   * Whether to handle requests and connections on virtual threads (-virtual-threads), which are
+   * cheap enough to create per connection. Only available on Java 21 and later; ignored otherwise.
+   */
+  public boolean virtual_threads = false;
+
+  /*
+   * Where to send the metrics of each translated sentence, in addition to the decoder's totals
+   * (-metrics-sink, repeatable). Each names a MetricsSink class, either in joshua.decoder.metrics
+   * (e.g., TraceSink) or fully qualified.
+   */
+  public ArrayList<String> metrics_sinks = new ArrayList<String>();
+
+  /* Whether to register the decoder's metrics with the platform MBean server (-metrics-jmx). */
+  public boolean metrics_jmx = false;
+
+  /*
+   * If set, the decoder serves its metrics as text on this port (-metrics-port): each connection
+   * is sent the current metrics and closed.
+   */
+  public int metrics_port = 0;
+
+  /*
+   * If set, TraceSink only logs sentences that took longer than this many milliseconds
+   * (-metrics-slow-ms), along with their source.
+   */
+  public float metrics_slow_ms = 0.0f;
+
   /*
    * Whether to do forest rescoring. If set to true, the references are expected on STDIN along with
    * the input sentences in the following format:
@@ -202,6 +305,7 @@ public class JoshuaConfiguration {
     logger.info("\n\t...done");
     StatefulFF.resetGlobalStateIndex();
     lms = new ArrayList<String>();
+    lm_cache_size = 0;
     tms = new ArrayList<String>();
     weights_file = "";
     default_non_terminal = "[X]";
@@ -214,13 +318,21 @@ public class JoshuaConfiguration {
     true_oovs_only = false;
     filter_grammar = false;
     pop_limit = 100;
+    search_strategy = "cube-pruning";
+    cell_beam = 0.0f;
     maxlen = 200;
     use_unique_nbest = false;
     include_align_index = false;
     topN = 1;
     outputFormat = "%i ||| %s ||| %f ||| %c";
     num_parallel_decoders = 1;
+    reorder_buffer = 1000;
+    output_unordered = false;
+    chart_threads = 1;
+    kbest_threads = 1;
+    packed_grammar_prefault = "features";
     hypergraphFilePattern = "";
+    hypergraphFileFormat = "text";
     visualize_hypergraph = false;
     useGoogleLinearCorpusGain = false;
     linearCorpusGainThetas = null;
@@ -230,6 +342,12 @@ public class JoshuaConfiguration {
     features = new ArrayList<String>();
     weights = new ArrayList<String>();
     server_port = 0;
+    server_threads = 32;
+    virtual_threads = false;
+    metrics_sinks = new ArrayList<String>();
+    metrics_jmx = false;
+    metrics_port = 0;
+    metrics_slow_ms = 0.0f;
     
     reordering_limit = 8;
     num_translation_options = 20;
@@ -304,6 +422,13 @@ public class JoshuaConfiguration {
           if (parameter.equals(normalize_key("lm"))) {
             lms.add(fds[1]);
 
+          } else if (parameter.equals(normalize_key("lm-cache-size"))) {
+            lm_cache_size = Integer.parseInt(fds[1]);
+            if (lm_cache_size < 0) {
+              throw new IllegalArgumentException("lm-cache-size must not be negative");
+            }
+            logger.finest(String.format("lm-cache-size: %s", lm_cache_size));
+
           } else if (parameter.equals(normalize_key("tm"))) {
             tms.add(fds[1]);
             
@@ -319,6 +444,14 @@ public class JoshuaConfiguration {
             logger
                 .finest(String.format("  hypergraph dump file format: %s", hypergraphFilePattern));
 
+          } else if (parameter.equals(normalize_key("dump-hypergraph-format"))) {
+            hypergraphFileFormat = fds[1].trim();
+            if (!hypergraphFileFormat.equals("text") && !hypergraphFileFormat.equals("binary")) {
+              throw new IllegalArgumentException(
+                  "dump-hypergraph-format must be one of 'text' or 'binary'");
+            }
+            logger.finest(String.format("dump-hypergraph-format: %s", hypergraphFileFormat));
+
           } else if (parameter.equals(normalize_key("oov-list"))) {
             String[] oovs = fds[1].trim().split("\\s+");
             if (oovs.length % 2 != 0) {
@@ -394,6 +527,40 @@ public class JoshuaConfiguration {
             }
             logger.finest(String.format("num_parallel_decoders: %s", num_parallel_decoders));
 
+          } else if (parameter.equals(normalize_key("reorder-buffer"))) {
+            reorder_buffer = Integer.parseInt(fds[1]);
+            if (reorder_buffer < 0) {
+              throw new IllegalArgumentException("reorder-buffer must not be negative");
+            }
+            logger.finest(String.format("reorder-buffer: %s", reorder_buffer));
+
+          } else if (parameter.equals(normalize_key("output-unordered"))) {
+            output_unordered = Boolean.parseBoolean(fds[1]);
+            logger.finest(String.format("output-unordered: %s", output_unordered));
+
+          } else if (parameter.equals(normalize_key("chart-threads"))) {
+            chart_threads = Integer.parseInt(fds[1]);
+            if (chart_threads <= 0) {
+              throw new IllegalArgumentException("Must specify a positive number for chart-threads");
+            }
+            logger.finest(String.format("chart-threads: %s", chart_threads));
+
+          } else if (parameter.equals(normalize_key("kbest-threads"))) {
+            kbest_threads = Integer.parseInt(fds[1]);
+            if (kbest_threads <= 0) {
+              throw new IllegalArgumentException("Must specify a positive number for kbest-threads");
+            }
+            logger.finest(String.format("kbest-threads: %s", kbest_threads));
+
+          } else if (parameter.equals(normalize_key("packed-grammar-prefault"))) {
+            packed_grammar_prefault = fds[1];
+            if (!packed_grammar_prefault.equals("none") && !packed_grammar_prefault.equals("features")
+                && !packed_grammar_prefault.equals("all")) {
+              throw new IllegalArgumentException(
+                  "packed-grammar-prefault must be one of 'none', 'features', or 'all'");
+            }
+            logger.finest(String.format("packed-grammar-prefault: %s", packed_grammar_prefault));
+
           } else if (parameter.equals(normalize_key("visualize_hypergraph"))) {
             visualize_hypergraph = Boolean.valueOf(fds[1]);
             logger.finest(String.format("visualize_hypergraph: %s", visualize_hypergraph));
@@ -406,6 +573,21 @@ public class JoshuaConfiguration {
             pop_limit = Integer.valueOf(fds[1]);
             logger.finest(String.format("pop-limit: %s", pop_limit));
 
+          } else if (parameter.equals(normalize_key("search-strategy"))) {
+            search_strategy = fds[1];
+            if (!search_strategy.equals("cube-pruning") && !search_strategy.equals("cube-growing")) {
+              throw new IllegalArgumentException(
+                  "search-strategy must be one of 'cube-pruning' or 'cube-growing'");
+            }
+            logger.finest(String.format("search-strategy: %s", search_strategy));
+
+          } else if (parameter.equals(normalize_key("cell-beam"))) {
+            cell_beam = Float.parseFloat(fds[1]);
+            if (cell_beam < 0) {
+              throw new IllegalArgumentException("cell-beam must not be negative");
+            }
+            logger.finest(String.format("cell-beam: %s", cell_beam));
+
           } else if (parameter.equals(normalize_key("useGoogleLinearCorpusGain"))) {
             useGoogleLinearCorpusGain = new Boolean(fds[1].trim());
             logger
@@ -427,6 +609,36 @@ public class JoshuaConfiguration {
             server_port = Integer.parseInt(fds[1]);
             logger.info(String.format("    server-port: %d", server_port));
 
+          } else if (parameter.equals(normalize_key("server-threads"))) {
+            server_threads = Integer.parseInt(fds[1]);
+            if (server_threads <= 0) {
+              throw new IllegalArgumentException("Must specify a positive number for server-threads");
+            }
+            logger.info(String.format("    server-threads: %d", server_threads));
+
+          } else if (parameter.equals(normalize_key("virtual-threads"))) {
+            virtual_threads = Boolean.parseBoolean(fds[1]);
+            logger.finest(String.format("virtual-threads: %s", virtual_threads));
+
+          } else if (parameter.equals(normalize_key("metrics-sink"))) {
+            metrics_sinks.add(fds[1]);
+            logger.finest(String.format("metrics-sink: %s", fds[1]));
+
+          } else if (parameter.equals(normalize_key("metrics-jmx"))) {
+            metrics_jmx = Boolean.parseBoolean(fds[1]);
+            logger.finest(String.format("metrics-jmx: %s", metrics_jmx));
+
+          } else if (parameter.equals(normalize_key("metrics-port"))) {
+            metrics_port = Integer.parseInt(fds[1]);
+            logger.info(String.format("    metrics-port: %d", metrics_port));
+
+          } else if (parameter.equals(normalize_key("metrics-slow-ms"))) {
+            metrics_slow_ms = Float.parseFloat(fds[1]);
+            if (metrics_slow_ms < 0) {
+              throw new IllegalArgumentException("metrics-slow-ms must not be negative");
+            }
+            logger.finest(String.format("metrics-slow-ms: %s", metrics_slow_ms));
+
           } else if (parameter.equals(normalize_key("rescore-forest"))) {
             rescoreForest = true;
             logger.info(String.format("    rescore-forest: %s", rescoreForest));
@@ -516,6 +728,11 @@ public class JoshuaConfiguration {
    * Checks for invalid variable configurations
    */
   public void sanityCheck() {
+    // Unordered output has to say which sentence each translation belongs to
+    if (output_unordered && !outputFormat.contains("%i")) {
+      outputFormat = "%i ||| " + outputFormat;
+      logger.info(String.format("output-unordered: using output format '%s'", outputFormat));
+    }
   }
 
   /**
@@ -1,10 +1,14 @@
 package joshua.decoder;
 
+import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.logging.Logger;
 
 import joshua.decoder.io.TranslationRequest;
+import joshua.server.MetricsServer;
 import joshua.server.TcpServer;
 
 /**
@@ -47,6 +51,10 @@ public class JoshuaDecoder {
     logger.info(String.format("Memory used %.1f MB", ((Runtime.getRuntime().totalMemory() - Runtime
         .getRuntime().freeMemory()) / 1000000.0)));  
 
+    // serve the decoder's metrics if requested
+    if (joshuaConfiguration.metrics_port > 0)
+      new MetricsServer(decoder, joshuaConfiguration.metrics_port).start();
+
     /* Step-2: Decoding */
     // create a server if requested, which will create TranslationRequest objects
     if (joshuaConfiguration.server_port > 0) {
@@ -57,13 +65,15 @@ public class JoshuaDecoder {
     // create a TranslationRequest object on STDIN
     TranslationRequest fileRequest = new TranslationRequest(System.in, joshuaConfiguration);
     Translations translationStream = decoder.decodeAll(fileRequest);
+    Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
     for (;;) {
       Translation translation = translationStream.next();
       if (translation == null)
         break;
       
-      System.out.print(translation);
+      translation.writeTo(out);
     }
+    out.flush();
 
     logger.info("Decoding completed.");
     logger.info(String.format("Memory used %.1f MB", ((Runtime.getRuntime().totalMemory() - Runtime
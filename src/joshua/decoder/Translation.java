@@ -2,7 +2,7 @@ package joshua.decoder;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.Writer;
 import java.util.List;
 
 import joshua.decoder.ff.FeatureFunction;
@@ -24,39 +24,58 @@ public class Translation {
 
   /**
    * This stores the output of the translation so we don't have to hold onto the hypergraph while we
-   * wait for the outputs to be assembled.
+   * wait for the outputs to be assembled. It is filled in as the k-best list is extracted.
    */
-  private String output = null;
+  private final OutputBuffer output = new OutputBuffer();
 
   public Translation(Sentence source, HyperGraph hypergraph, KBestExtractor kBestExtractor,
       List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration) {
+    this(source, hypergraph, kBestExtractor, featureFunctions, joshuaConfiguration, null);
+  }
+
+  /**
+   * As above, but records the translation with the given Translations (if not null) as soon as
+   * its output starts, so that it can be streamed to the client while the rest of the k-best list
+   * is extracted.
+   */
+  public Translation(Sentence source, HyperGraph hypergraph, KBestExtractor kBestExtractor,
+      List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration,
+      Translations translations) {
     this.source = source;
 
-    StringWriter sw = new StringWriter();
-    BufferedWriter out = new BufferedWriter(sw);
+    if (translations != null)
+      translations.record(this);
+
+    BufferedWriter out = new BufferedWriter(output);
 
     try {
       if (hypergraph != null) {
         if (!joshuaConfiguration.hypergraphFilePattern.equals("")) {
-          hypergraph.dump(String.format(joshuaConfiguration.hypergraphFilePattern, source.id()), featureFunctions);
+          String fileName = String.format(joshuaConfiguration.hypergraphFilePattern, source.id());
+          if (joshuaConfiguration.hypergraphFileFormat.equals("binary"))
+            hypergraph.dumpBinary(fileName, featureFunctions);
+          else
+            hypergraph.dump(fileName, featureFunctions);
         }
 
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
 
-        // We must put this weight as zero, otherwise we get an error when we try to retrieve it
-        // without checking
-        Decoder.weights.put("BLEU", 0);
         kBestExtractor.lazyKBestExtractOnHG(hypergraph, joshuaConfiguration.topN, out);
 
         if (joshuaConfiguration.rescoreForest) {
-          Decoder.weights.put("BLEU", joshuaConfiguration.rescoreForestWeight);
-          kBestExtractor.lazyKBestExtractOnHG(hypergraph, joshuaConfiguration.topN, out);
-
-          Decoder.weights.put("BLEU", -joshuaConfiguration.rescoreForestWeight);
-          kBestExtractor.lazyKBestExtractOnHG(hypergraph, joshuaConfiguration.topN, out);
+          /*
+           * The BLEU weight is set on copies of the weights, which are shared with the sentences
+           * being decoded by other threads.
+           */
+          kBestExtractor.withBLEUWeight(joshuaConfiguration.rescoreForestWeight)
+              .lazyKBestExtractOnHG(hypergraph, joshuaConfiguration.topN, out);
+
+          kBestExtractor.withBLEUWeight(-joshuaConfiguration.rescoreForestWeight)
+              .lazyKBestExtractOnHG(hypergraph, joshuaConfiguration.topN, out);
         }
 
-        float seconds = (float) (System.currentTimeMillis() - startTime) / 1000.0f;
+        source.getMetrics().kbestNanos = System.nanoTime() - startTime;
+        float seconds = source.getMetrics().kbestNanos / 1e9f;
         System.err.println(String.format("[%d] %d-best extraction took %.3f seconds", id(),
             joshuaConfiguration.topN, seconds));
 
@@ -82,6 +101,8 @@ public class Translation {
     } catch (IOException e) {
       e.printStackTrace();
       System.exit(1);
+    } finally {
+      output.finish();
     }
 
     /*
@@ -94,8 +115,6 @@ public class Translation {
         break;
       }
     }
-
-    this.output = sw.toString();
   }
 
   public Sentence getSourceSentence() {
@@ -106,8 +125,91 @@ public class Translation {
     return source.id();
   }
 
+  /**
+   * Writes the output of the translation to the writer as it is produced, returning once all of it
+   * has been written. The writer is flushed whenever the translation is waited for.
+   */
+  public void writeTo(Writer out) throws IOException {
+    output.writeTo(out);
+  }
+
+  /**
+   * Returns the output of the translation, waiting for it to be complete.
+   */
   @Override
   public String toString() {
-    return output;
+    return output.toString();
+  }
+
+  /**
+   * The output of a translation. The thread translating the sentence writes to it, and other
+   * threads can read from it at the same time.
+   */
+  private static class OutputBuffer extends Writer {
+    private final StringBuilder buffer = new StringBuilder();
+    private boolean finished = false;
+
+    @Override
+    public synchronized void write(char[] chars, int offset, int length) {
+      buffer.append(chars, offset, length);
+      notifyAll();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+      finish();
+    }
+
+    synchronized void finish() {
+      finished = true;
+      notifyAll();
+    }
+
+    void writeTo(Writer out) throws IOException {
+      int written = 0;
+      for (;;) {
+        String chunk;
+        boolean done;
+        synchronized (this) {
+          chunk = buffer.substring(written);
+          done = finished;
+        }
+        out.write(chunk);
+        written += chunk.length();
+        if (done)
+          return;
+
+        /*
+         * Send what has been written before waiting for more. The client may be slow to read, so
+         * this is done outside the lock, which the decoder needs in order to add to the buffer.
+         */
+        out.flush();
+        synchronized (this) {
+          while (written == buffer.length() && !finished) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+          }
+        }
+      }
+    }
+
+    @Override
+    public synchronized String toString() {
+      while (!finished) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return buffer.toString();
+    }
   }
 }
@@ -1,6 +1,8 @@
 package joshua.decoder;
 
+import java.util.HashMap;
 import java.util.LinkedList;
+
 import joshua.decoder.io.TranslationRequest;
 
 /**
@@ -8,10 +10,19 @@ import joshua.decoder.io.TranslationRequest;
  * point to the Decoder object, the call to decodeAll. The translations here are parallel to the
  * input sentences in the corresponding TranslationRequest object. Because of parallelization, the
  * translated sentences might be computed out of order. Each Translation is sent to this
- * Translations object by a DecoderThreadRunner via the record() function, which places the
+ * Translations object by a DecoderTask via the record() function, which places the
  * Translation in the right place. When the next translation in a sequence is available, next() is
  * notified.
- * 
+ *
+ * Translations that are done before the ones preceding them are held in a reorder buffer. The
+ * buffer is bounded: before a sentence is handed to a decoder, reserve() blocks until fewer than
+ * capacity sentences have been started but not yet returned by next(), so that one slow sentence
+ * cannot make the buffer grow without limit. In unordered mode, translations are returned in the
+ * order they are recorded.
+ *
+ * Translations are recorded as soon as their output starts, so next() may return one whose k-best
+ * list is still being extracted (see {@link Translation#writeTo(java.io.Writer)}).
+ *
  * @author Matt Post <post@cs.jhu.edu>
  */
 public class Translations {
@@ -20,93 +31,113 @@ public class Translations {
   private TranslationRequest request = null;
 
   /*
-   * This records the index of the sentence at the head of the underlying list. The iterator's
-   * next() blocks when the value at this position in the translations LinkedList is null.
+   * The number of translations returned by next(). In order, this is also the id of the next
+   * translation to be returned.
    */
   private int currentID = 0;
 
-  /* The set of translated sentences. */
-  private LinkedList<Translation> translations = null;
+  /* The most sentences that may be started but not returned, or 0 for no limit. */
+  private final int capacity;
+  private final boolean unordered;
+
+  /* Translations waiting for those before them, keyed by id (in order). */
+  private final HashMap<Integer, Translation> pending = new HashMap<Integer, Translation>();
+
+  /* Translations in the order they were recorded (unordered). */
+  private final LinkedList<Translation> ready = new LinkedList<Translation>();
 
   private boolean spent = false;
 
   public Translations(TranslationRequest request) {
+    this(request, 0, false);
+  }
+
+  /**
+   * @param request the sentences to be translated
+   * @param capacity the size of the reorder buffer, or 0 for no limit
+   * @param unordered whether to return translations as soon as they are recorded
+   */
+  public Translations(TranslationRequest request, int capacity, boolean unordered) {
     this.request = request;
-    this.translations = new LinkedList<Translation>();
+    this.capacity = capacity;
+    this.unordered = unordered;
   }
 
   /**
    * This is called when null is received from the TranslationRequest, indicating that there are no
    * more input sentences to translated. That in turn means that the request size will no longer
-   * grow. We then notify any waiting thread if the last ID we've processed is the last one, period.
+   * grow. We then notify any waiting thread, which may have been waiting for the last sentence.
    */
   public void finish() {
     synchronized (this) {
       spent = true;
-      if (currentID == request.size()) {
-        this.notifyAll();
-      }
+      this.notifyAll();
+    }
+  }
+
+  /**
+   * This is called before the sentence with the given id is handed to a decoder. It blocks while
+   * the reorder buffer is full, i.e., while capacity sentences have been started but not yet
+   * returned by next().
+   *
+   * @throws InterruptedException if interrupted while waiting, in which case no room was reserved
+   */
+  public void reserve(int id) throws InterruptedException {
+    synchronized (this) {
+      while (capacity > 0 && id - currentID >= capacity)
+        this.wait();
     }
   }
 
   /**
-   * This is called whenever a translation is completed by one of the decoder threads. There may be
-   * a current output thread waiting for the current translation, which is determined by checking if
-   * the ID of the translation is the same as the one being waited for (currentID). If so, the
-   * thread waiting for it is notified.
-   * 
+   * This is called whenever a translation is completed by one of the decoder threads (or, if it is
+   * streamed, as soon as its output starts). Any thread waiting in next() is notified.
+   *
    * @param translation
    */
   public void record(Translation translation) {
     synchronized (this) {
+      if (unordered)
+        ready.add(translation);
+      else
+        pending.put(translation.id(), translation);
 
-      /* Pad the set of translations with nulls to accommodate the new translation. */
-      int offset = translation.id() - currentID;
-      while (offset >= translations.size())
-        translations.add(null);
-      translations.set(offset, translation);
-
-      /*
-       * If the id of the current translation is at the head of the list (first element), then we
-       * have the next Translation to be return, and we should notify anyone waiting on next(),
-       * which will then remove the item and increment the currentID.
-       */
-      if (translation.id() == currentID) {
-        this.notify();
-      }
+      this.notifyAll();
     }
   }
 
   /**
    * Returns the next Translation, blocking if necessary until it's available, since the next
-   * Translation might not have been produced yet.
+   * Translation might not have been produced yet. Returns null once all the translations of the
+   * request have been returned.
    */
   public Translation next() {
     synchronized (this) {
+      for (;;) {
+        /*
+         * If there are no more input sentences, and we've already distributed what we then know is
+         * the last one, we're done.
+         */
+        if (spent && currentID == request.size())
+          return null;
+
+        Translation translation = unordered ? ready.poll() : pending.remove(currentID);
+        if (translation != null) {
+          currentID++;
+          // This may make room in the buffer for the request handler
+          this.notifyAll();
+          return translation;
+        }
 
-      /*
-       * If there are no more input sentences, and we've already distributed what we then know is
-       * the last one, we're done.
-       */
-      if (spent && currentID == request.size())
-        return null;
-
-      /*
-       * Otherwise, there is another sentence. If it's not available already, we need to wait for
-       * it.
-       */
-      if (translations.size() == 0 || translations.peek() == null) {
+        /* Otherwise, there is another sentence, and we need to wait for it. */
         try {
           this.wait();
         } catch (InterruptedException e) {
           // TODO Auto-generated catch block
           e.printStackTrace();
+          return null;
         }
       }
-
-      /* We now have the sentence and can return it. */
-      currentID++;
-      return translations.poll();
     }
   }
-}
\ No newline at end of file
+}
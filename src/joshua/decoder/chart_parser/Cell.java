@@ -9,6 +9,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.FeatureVector;
 import joshua.decoder.ff.state_maintenance.DPState;
 import joshua.decoder.ff.tm.Rule;
 import joshua.decoder.hypergraph.HGNode;
@@ -69,7 +70,8 @@ class Cell {
    * itself has many hyperedges only "goal bin" should call this function
    */
   // note that the input bin is bin[0][n], not the goal bin
-  boolean transitToGoal(Cell bin, List<FeatureFunction> featureFunctions, int sentenceLength) {
+  boolean transitToGoal(Cell bin, List<FeatureFunction> featureFunctions, FeatureVector weights,
+      int sentenceLength) {
     this.sortedNodes = new ArrayList<HGNode>();
     HGNode goalItem = null;
 
@@ -79,8 +81,8 @@ class Cell {
         List<HGNode> antNodes = new ArrayList<HGNode>();
         antNodes.add(antNode);
 
-        float finalTransitionLogP = ComputeNodeResult.computeFinalCost(featureFunctions, antNodes,
-            0, sentenceLength, null, this.chart.sentenceID());
+        float finalTransitionLogP = ComputeNodeResult.computeFinalCost(featureFunctions, weights,
+            antNodes, 0, sentenceLength, null, this.chart.sentenceID());
 
         List<HGNode> previousItems = new ArrayList<HGNode>();
         previousItems.add(antNode);
@@ -135,7 +137,7 @@ class Cell {
    * 
    * @return the new hypernode, or null if the cell was pruned.
    */
-  HGNode addHyperEdgeInCell(ComputeNodeResult result, Rule rule, int i, int j, List<HGNode> ants,
+  synchronized HGNode addHyperEdgeInCell(ComputeNodeResult result, Rule rule, int i, int j, List<HGNode> ants,
       SourcePath srcPath, boolean noPrune) {
 
     // System.err.println(String.format("ADD_EDGE(%s,%d,%d", rule, i, j));
@@ -165,7 +167,7 @@ class Cell {
      * */
     HGNode oldNode = this.nodesSigTbl.get(newNode.signature());
     if (null != oldNode) { // have an item with same states, combine items
-      this.chart.nMerged++;
+      this.chart.nMerged.incrementAndGet();
 
       /**
        * the position of oldItem in this.heapItems may change, basically, we should remove the
@@ -181,7 +183,7 @@ class Cell {
       }
 
     } else { // first time item
-      this.chart.nAdded++; // however, this item may not be used in the future due to pruning in
+      this.chart.nAdded.incrementAndGet(); // however, this item may not be used in the future due to pruning in
       // the hyper-graph
       addNewNode(newNode, noPrune);
     }
@@ -189,12 +191,17 @@ class Cell {
     return newNode;
   }
 
-  List<HGNode> getSortedNodes() {
+  /*
+   * A cell is only ever modified by the thread that expands its span, but once complete it is read
+   * by the threads expanding all wider spans that contain it, which may run concurrently. The
+   * sorting accessors are synchronized so that a lazy sort is never observed half-done.
+   */
+  synchronized List<HGNode> getSortedNodes() {
     ensureSorted();
     return this.sortedNodes;
   }
   
-  Map<Integer, SuperNode> getSortedSuperItems() {
+  synchronized Map<Integer, SuperNode> getSortedSuperItems() {
     ensureSorted();
     return this.superNodesTbl;
   }
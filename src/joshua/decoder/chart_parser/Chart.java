@@ -1,10 +1,14 @@
 package joshua.decoder.chart_parser;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,7 +19,9 @@ import joshua.decoder.JoshuaConfiguration;
 import joshua.decoder.chart_parser.CubePruneState;
 import joshua.decoder.chart_parser.DotChart.DotNode;
 import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.FeatureVector;
 import joshua.decoder.ff.SourceDependentFF;
+import joshua.decoder.ff.lm.LanguageModelFF;
 import joshua.decoder.ff.tm.AbstractGrammar;
 import joshua.decoder.ff.tm.Grammar;
 import joshua.decoder.ff.tm.Rule;
@@ -25,10 +31,12 @@ import joshua.decoder.ff.tm.hash_based.MemoryBasedBatchGrammar;
 import joshua.decoder.hypergraph.HGNode;
 import joshua.decoder.hypergraph.HyperGraph;
 import joshua.decoder.hypergraph.KBestExtractor;
+import joshua.decoder.metrics.SentenceMetrics;
 import joshua.decoder.segment_file.ParsedSentence;
 import joshua.decoder.segment_file.Sentence;
 import joshua.lattice.Lattice;
 import joshua.util.ChartSpan;
+import joshua.util.ForkJoinPools;
 
 /**
  * Chart class this class implements chart-parsing: (1) seeding the chart (2)
@@ -56,10 +64,19 @@ public class Chart {
   /**
    * how many items have been pruned away because its cost is greater than the
    * cutoff in calling chart.add_deduction_in_chart()
+   * 
+   * These are atomic since cells of the same width may be filled concurrently
+   * (see {@link JoshuaConfiguration#chart_threads}).
    */
-  int nMerged = 0;
-  int nAdded = 0;
-  int nDotitemAdded = 0; // note: there is no pruning in dot-item
+  final AtomicInteger nMerged = new AtomicInteger();
+  final AtomicInteger nAdded = new AtomicInteger();
+  final AtomicInteger nDotitemAdded = new AtomicInteger(); // note: there is no pruning in dot-item
+
+  /* The work done by cube pruning, and the time spent looking up rules (see SentenceMetrics) */
+  private final AtomicInteger nPopped = new AtomicInteger();
+  private final AtomicInteger nScored = new AtomicInteger();
+  private final AtomicInteger nPruned = new AtomicInteger();
+  private final AtomicLong grammarNanos = new AtomicLong();
 
   public int sentenceID() {
     if (sentence != null)
@@ -73,12 +90,14 @@ public class Chart {
   private ChartSpan<Cell> cells; // note that in some cell, it might be null
   private int sourceLength;
   private List<FeatureFunction> featureFunctions;
+  private FeatureVector weights;
   private Grammar[] grammars;
   private DotChart[] dotcharts; // each grammar should have a dotchart
                                 // associated with it
   private Cell goalBin;
   private int goalSymbolID = -1;
   private Lattice<Integer> inputLattice;
+  private int numLanguageModels = 0;
 
   public KBestExtractor kBestExtractor;
 
@@ -87,9 +106,12 @@ public class Chart {
 
   private ManualConstraintsHandler manualConstraintsHandler;
 
-  // ===============================================================
-  // Static fields
-  // ===============================================================
+  /*
+   * Arenas for cube pruning that are not in use by a cell. They live as long as the chart, so the
+   * objects they hold are released along with it when the sentence is done.
+   */
+  private final ConcurrentLinkedQueue<CubePruneArena> arenas =
+      new ConcurrentLinkedQueue<CubePruneArena>();
 
   // ===========================================================
   // Logger
@@ -113,10 +135,20 @@ public class Chart {
 
   public Chart(Sentence sentence, List<FeatureFunction> featureFunctions, Grammar[] grammars,
       String goalSymbol, JoshuaConfiguration config) {
+    this(sentence, featureFunctions, Decoder.weights, grammars, goalSymbol, config);
+  }
+
+  /**
+   * Creates a chart that scores hypotheses with the given weights (which must not be modified
+   * while the chart is in use).
+   */
+  public Chart(Sentence sentence, List<FeatureFunction> featureFunctions, FeatureVector weights,
+      Grammar[] grammars, String goalSymbol, JoshuaConfiguration config) {
     this.joshuaConfiguration = config;
     this.inputLattice = sentence.intLattice();
     this.sourceLength = inputLattice.size() - 1;
     this.featureFunctions = featureFunctions;
+    this.weights = weights;
 
     this.sentence = sentence;
 
@@ -134,7 +166,7 @@ public class Chart {
      * Create the kbest extractor. This is only actually used in the chart if we
      * are decoding with non-local features.
      */
-    this.kBestExtractor = new KBestExtractor(sentence, featureFunctions, Decoder.weights, false,
+    this.kBestExtractor = new KBestExtractor(sentence, featureFunctions, weights, false,
         config);
 
     /* Create the grammars, leaving space for the OOV grammar. */
@@ -161,9 +193,12 @@ public class Chart {
         sentence.constraints());
 
     /* Find the SourceDependent feature and give it access to the sentence. */
-    for (FeatureFunction ff : this.featureFunctions)
+    for (FeatureFunction ff : this.featureFunctions) {
       if (ff instanceof SourceDependentFF)
         ((SourceDependentFF) ff).setSource(sentence);
+      if (ff instanceof LanguageModelFF)
+        numLanguageModels++;
+    }
 
     logger.fine("Finished seeding chart.");
   }
@@ -203,6 +238,13 @@ public class Chart {
    * rule, the 1-best tail node for that nonterminal and subspan. If the maximum
    * arity of a rule is R, then the dimension of the hypercube is R + 1, since
    * the first dimension is used to record the rule.
+   * 
+   * With cube growing (see {@link JoshuaConfiguration#search_strategy}), candidates
+   * enter the heap unscored, ordered by a cheap estimate, and are only scored
+   * with all the features once they reach the top of the heap; they are then put
+   * back, and added to the chart when they reach the top a second time. Under
+   * either strategy, the cell stops taking hypotheses after the pop limit, or
+   * once they fall outside the cell beam.
    */
   private void completeSpan(int i, int j) {
 
@@ -212,11 +254,44 @@ public class Chart {
       stateConstraint = new StateConstraint(Vocabulary.START_SYM + " " + sentence.target() + " "
           + Vocabulary.STOP_SYM);
 
+    /*
+     * The states, the heap, the visited set and the batches of edges all come from an arena that
+     * is reused from cell to cell.
+     */
+    CubePruneArena arena = arenas.poll();
+    if (arena == null)
+      arena = new CubePruneArena();
+    try {
+      completeSpan(i, j, stateConstraint, arena);
+    } finally {
+      arena.reset();
+      arenas.add(arena);
+    }
+  }
+
+  private void completeSpan(int i, int j, StateConstraint stateConstraint, CubePruneArena arena) {
+
     /* STEP 1: create the heap, and seed it with all of the candidate states */
-    PriorityQueue<CubePruneState> candidates = new PriorityQueue<CubePruneState>();
+    PriorityQueue<CubePruneState> candidates = arena.candidates;
+
+    /*
+     * Edges are scored a round at a time: all the seeds of the cell first, then the neighbors of
+     * each popped state. Rules with no nonterminals are collected in terminalEdges, and the best
+     * edge of each cube in cubeEdges, parallel to the list of the states they belong to.
+     */
+    EdgeBatch terminalEdges = arena.terminalEdges;
+    EdgeBatch cubeEdges = arena.cubeEdges;
+    List<CubePruneState> cubeStates = arena.cubeStates;
 
-    // this records states we have already visited
-    HashSet<CubePruneState> visitedStates = new HashSet<CubePruneState>();
+    boolean lazy = joshuaConfiguration.search_strategy.equals("cube-growing");
+    /*
+     * The heuristic leaves out costs that are mostly negative, so it would put every unscored
+     * candidate ahead of every scored one. It is corrected by the largest difference between the
+     * estimate and the heuristic of the states scored so far in the cell, which keeps it
+     * optimistic.
+     */
+    float correction = 0.0f;
+    int numScored = 0;
 
     /*
      * Look at all the grammars, seeding the chart with completed rules from the
@@ -236,7 +311,9 @@ public class Chart {
         if (cells.get(i, j) == null)
           cells.set(i, j, new Cell(this, goalSymbolID));
 
+        long lookupStart = System.nanoTime();
         List<Rule> rules = ruleCollection.getSortedRules(this.featureFunctions);
+        grammarNanos.addAndGet(System.nanoTime() - lookupStart);
         SourcePath sourcePath = dotNode.getSourcePath();
 
         if (null == rules || rules.size() <= 0)
@@ -253,36 +330,31 @@ public class Chart {
             HGNode newNode = new HGNode(i, j, rule.getLHS(), null, newEdge, 0.0f);
             DerivationState state = this.kBestExtractor.new DerivationState(newNode, newEdge, null, 0.0f, -1);
 
-            ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, state, i, j,
-                sourcePath, this.sentence);
+            ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, this.weights,
+                state, i, j, sourcePath, this.sentence);
 */
             
-            ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, rule, null, i,
-                j, sourcePath, this.sentence);
-
-            if (stateConstraint == null || stateConstraint.isLegal(result.getDPStates()))
-              cells.get(i, j).addHyperEdgeInCell(result, rule, i, j, null, sourcePath, true);
+            terminalEdges.add(rule, null, i, j, sourcePath);
           }
         } else {
           /* Productions with rank > 0 are subject to cube pruning */
 
           Rule bestRule = rules.get(0);
 
-          List<HGNode> currentTailNodes = new ArrayList<HGNode>();
-          List<SuperNode> superNodes = dotNode.getAntSuperNodes();
-          for (SuperNode si : superNodes) {
-            currentTailNodes.add(si.nodes.get(0));
-          }
-
           /*
-           * `ranks` records the current position in the cube. the 0th index is
-           * the rule, and the remaining indices 1..N correspond to the tail
-           * nodes (= nonterminals in the rule). These tail nodes are
+           * The state's ranks record the current position in the cube. the 0th
+           * index is the rule, and the remaining indices 1..N correspond to the
+           * tail nodes (= nonterminals in the rule). These tail nodes are
            * represented by SuperNodes, which group together items with the same
            * nonterminal but different DP state (e.g., language model state)
            */
-          int[] ranks = new int[1 + superNodes.size()];
-          Arrays.fill(ranks, 1);
+          List<SuperNode> superNodes = dotNode.getAntSuperNodes();
+          CubePruneState bestState = arena.newState(rules, dotNode, superNodes.size());
+          bestState.setRank(0, 1);
+          for (int x = 0; x < superNodes.size(); x++) {
+            bestState.setRank(x + 1, 1);
+            bestState.setTailNode(x, superNodes.get(x).nodes.get(0));
+          }
 
           /*
           // DON'T USE UNIQUE STATE CHECKING!!!
@@ -292,23 +364,38 @@ public class Chart {
           DerivationState derivationState = kBestExtractor.getKthDerivation(newNode, 1);
 
           // Score the rule application
-          ComputeNodeResult result = new ComputeNodeResult(featureFunctions, derivationState, i, j,
-              sourcePath, this.sentence);
+          ComputeNodeResult result = new ComputeNodeResult(featureFunctions, weights,
+              derivationState, i, j, sourcePath, this.sentence);
           */
           
-          ComputeNodeResult result = new ComputeNodeResult(featureFunctions, bestRule, currentTailNodes, i, j, sourcePath, sentence);
-          
-          CubePruneState bestState = new CubePruneState(result, ranks, rules, currentTailNodes, dotNode);
-
-          candidates.add(bestState);
-          visitedStates.add(bestState);
+          if (lazy) {
+            bestState.setHeuristic(heuristic(bestState));
+            arena.visit(bestState);
+            candidates.add(bestState);
+          } else {
+            cubeEdges.add(bestRule, bestState.antNodes, i, j, sourcePath);
+            cubeStates.add(bestState);
+          }
         }
       }
     }
 
+    /* Terminal productions are added directly to the chart */
+    ComputeNodeResult[] results = ComputeNodeResult.computeAll(featureFunctions, weights,
+        terminalEdges, sentence);
+    nScored.addAndGet(results.length);
+    for (int k = 0; k < results.length; k++) {
+      if (stateConstraint == null || stateConstraint.isLegal(results[k].getDPStates()))
+        cells.get(i, j).addHyperEdgeInCell(results[k], terminalEdges.getRule(k), i, j, null,
+            terminalEdges.getSourcePath(k), true);
+    }
+    scoreStates(cubeEdges, cubeStates, candidates, arena);
+
     int popLimit = joshuaConfiguration.pop_limit;
+    float beam = joshuaConfiguration.cell_beam;
+    float bestEstimate = Float.NEGATIVE_INFINITY;
     int popCount = 0;
-    while (candidates.size() > 0 && ((++popCount <= popLimit) || popLimit == 0)) {
+    while (candidates.size() > 0 && (popCount < popLimit || popLimit == 0)) {
       CubePruneState state = candidates.poll();
 
       DotNode dotNode = state.getDotNode();
@@ -316,13 +403,50 @@ public class Chart {
       SourcePath sourcePath = dotNode.getSourcePath();
       List<SuperNode> superNodes = dotNode.getAntSuperNodes();
 
+      /*
+       * Cube growing: score the candidate now that it is the best, along with any other unscored
+       * ones right behind it, and put them back.
+       */
+      if (state.computeNodeResult == null) {
+        cubeStates.add(state);
+        while (candidates.size() > 0 && candidates.peek().computeNodeResult == null)
+          cubeStates.add(candidates.poll());
+        for (CubePruneState unscored : cubeStates)
+          cubeEdges.add(unscored.getRule(), unscored.antNodes, i, j,
+              unscored.getDotNode().getSourcePath());
+
+        ComputeNodeResult[] scored = ComputeNodeResult.computeAll(featureFunctions, weights,
+            cubeEdges, sentence);
+        nScored.addAndGet(scored.length);
+        for (int k = 0; k < scored.length; k++) {
+          CubePruneState scoredState = cubeStates.get(k);
+          scoredState.computeNodeResult = scored[k];
+          float difference = scored[k].getPruningEstimate() - heuristic(scoredState);
+          correction = (numScored++ == 0) ? difference : Math.max(correction, difference);
+          candidates.add(scoredState);
+        }
+        cubeEdges.clear();
+        cubeStates.clear();
+        continue;
+      }
+
+      popCount++;
+
+      /* Stop once the candidates fall outside the beam of the best one. */
+      if (beam > 0.0f) {
+        float estimate = state.getEstimate();
+        if (estimate < bestEstimate - beam)
+          break;
+        bestEstimate = Math.max(bestEstimate, estimate);
+      }
+
       /*
        * Add the hypothesis to the chart. This can only happen if (a) we're not
        * doing constrained decoding or (b) we are and the state is legal.
        */
       if (stateConstraint == null || stateConstraint.isLegal(state.getDPStates())) {
         cells.get(i, j).addHyperEdgeInCell(state.computeNodeResult, state.getRule(), i, j,
-            state.antNodes, sourcePath, true);
+            new ArrayList<HGNode>(state.antNodes), sourcePath, true);
       }
 
       /*
@@ -332,32 +456,28 @@ public class Chart {
        */
 
       // TODO: go through the derivation states
-      for (int k = 0; k < state.ranks.length; k++) {
+      for (int k = 0; k < state.numRanks(); k++) {
 
-        /* Copy the current ranks, then extend the one we're looking at. */
-        int[] nextRanks = new int[state.ranks.length];
-        System.arraycopy(state.ranks, 0, nextRanks, 0, state.ranks.length);
-        nextRanks[k]++;
+        /* Extend the rank we're looking at. */
+        int nextRank = state.getRank(k) + 1;
 
         /*
          * We might have reached the end of something (list of rules or tail
          * nodes)
          */
-        if ((k == 0 && nextRanks[k] > rules.size())
-            || (k != 0 && nextRanks[k] > superNodes.get(k - 1).nodes.size()))
+        if ((k == 0 && nextRank > rules.size())
+            || (k != 0 && nextRank > superNodes.get(k - 1).nodes.size()))
           continue;
 
-        /* Use the updated ranks to assign the next rule and tail node. */
-        Rule nextRule = rules.get(nextRanks[0] - 1);
-        // HGNode[] nextAntNodes = new HGNode[state.antNodes.size()];
-        List<HGNode> nextAntNodes = new ArrayList<HGNode>();
-        for (int x = 0; x < state.ranks.length - 1; x++)
-          nextAntNodes.add(superNodes.get(x).nodes.get(nextRanks[x + 1] - 1));
-
-        /* Create the next state. */
-        CubePruneState nextState = new CubePruneState(new ComputeNodeResult(featureFunctions,
-            nextRule, nextAntNodes, i, j, sourcePath, this.sentence), nextRanks, rules,
-            nextAntNodes, dotNode);
+        /*
+         * Create the next state with the updated ranks, and use them to assign
+         * the next rule and tail nodes. It is scored with its siblings.
+         */
+        CubePruneState nextState = arena.newState(rules, dotNode, state.numRanks() - 1);
+        for (int x = 0; x < state.numRanks(); x++)
+          nextState.setRank(x, (x == k) ? nextRank : state.getRank(x));
+        for (int x = 0; x < state.numRanks() - 1; x++)
+          nextState.setTailNode(x, superNodes.get(x).nodes.get(nextState.getRank(x + 1) - 1));
         
         /*
         // DON'T USE UNIQUE STATE CHECKING!!!
@@ -366,84 +486,89 @@ public class Chart {
         HGNode newNode = new HGNode(i, j, nextRule.getLHS(), null, newEdge, 0.0f);
         DerivationState nextDerivationState = kBestExtractor.getKthDerivation(newNode, 1);
 
-        CubePruneState nextState = new CubePruneState(new ComputeNodeResult(featureFunctions,
+        CubePruneState nextState = new CubePruneState(new ComputeNodeResult(featureFunctions, weights,
             nextDerivationState, i, j, sourcePath, this.sentence), nextRanks, rules, nextTailNodes,
             dotNode);
         */
 
-        /* Skip states that have been explored before. */
-        if (visitedStates.contains(nextState))
-          continue;
-
-        visitedStates.add(nextState);
-        candidates.add(nextState);
+        if (lazy) {
+          nextState.setHeuristic(heuristic(nextState) + correction);
+          if (arena.visit(nextState))
+            candidates.add(nextState);
+        } else {
+          cubeEdges.add(nextState.getRule(), nextState.antNodes, i, j, sourcePath);
+          cubeStates.add(nextState);
+        }
       }
+      if (!lazy)
+        scoreStates(cubeEdges, cubeStates, candidates, arena);
     }
+
+    nPopped.addAndGet(popCount);
+    nPruned.addAndGet(candidates.size());
+  }
+
+  /**
+   * The estimate that cube growing orders an unscored state by: the estimated cost of its rule,
+   * which includes the language model cost of the rule's own words, plus the inside scores of its
+   * tail nodes. It leaves out the language model cost of the words where the rule and the tail
+   * nodes meet, which is what makes scoring expensive.
+   */
+  private float heuristic(CubePruneState state) {
+    float estimate = state.getRule().getEstimatedCost();
+    for (HGNode tail : state.antNodes)
+      estimate += tail.bestHyperedge.getBestDerivationScore();
+    return estimate;
+  }
+
+  /**
+   * Scores a round of cube-pruning states, whose edges are listed in the same order in the batch,
+   * and adds those that have not been explored before to the heap of candidates. States are only
+   * checked against the visited set once they are scored, since the set may compare them. The
+   * batch and list of states are cleared.
+   */
+  private void scoreStates(EdgeBatch edges, List<CubePruneState> states,
+      PriorityQueue<CubePruneState> candidates, CubePruneArena arena) {
+    ComputeNodeResult[] results = ComputeNodeResult.computeAll(featureFunctions, weights, edges,
+        sentence);
+    nScored.addAndGet(results.length);
+    for (int k = 0; k < results.length; k++) {
+      CubePruneState state = states.get(k);
+      state.computeNodeResult = results[k];
+
+      /* Skip states that have been explored before. */
+      if (!arena.visit(state))
+        continue;
+
+      candidates.add(state);
+    }
+    edges.clear();
+    states.clear();
   }
 
   /**
    * This function performs the main work of decoding.
    * 
+   * Spans are processed in order of increasing width. Every cell of a given width depends only on
+   * cells of smaller widths, so when more than one chart thread is configured, all the cells of a
+   * width are expanded in parallel and joined before moving on to the next width.
+   * 
    * @return the hypergraph containing the translated sentence.
    */
   public HyperGraph expand() {
 
-    for (int width = 1; width <= sourceLength; width++) {
-      for (int i = 0; i <= sourceLength - width; i++) {
-        int j = i + width;
-        if (logger.isLoggable(Level.FINEST))
-          logger.finest(String.format("Processing span (%d, %d)", i, j));
-
-        /* Skips spans for which no path exists (possible in lattices). */
-        if (inputLattice.distance(i, j) == Float.POSITIVE_INFINITY) {
-          continue;
-        }
-
-        /*
-         * 1. Expand the dot through all rules. This is a matter of (a) look for
-         * rules over (i,j-1) that need the terminal at (j-1,j) and looking at
-         * all split points k to expand nonterminals.
-         */
-        logger.finest("Expanding cell");
-        for (int k = 0; k < this.grammars.length; k++) {
-          /**
-           * Each dotChart can act individually (without consulting other
-           * dotCharts) because it either consumes the source input or the
-           * complete nonTerminals, which are both grammar-independent.
-           **/
-          this.dotcharts[k].expandDotCell(i, j);
-        }
-
-        /*
-         * 2. The regular CKY part: add completed items onto the chart via cube
-         * pruning.
-         */
-        logger.finest("Adding complete items into chart");
-        completeSpan(i, j);
-
-        /* 3. Process unary rules. */
-        logger.finest("Adding unary items into chart");
-        addUnaryNodes(this.grammars, i, j);
-
-        // (4)=== in dot_cell(i,j), add dot-nodes that start from the /complete/
-        // superIterms in
-        // chart_cell(i,j)
-        logger.finest("Initializing new dot-items that start from complete items in this cell");
-        for (int k = 0; k < this.grammars.length; k++) {
-          if (this.grammars[k].hasRuleForSpan(i, j, inputLattice.distance(i, j))) {
-            this.dotcharts[k].startDotItems(i, j);
-          }
-        }
+    long startTime = System.nanoTime();
+    ForkJoinPool pool = null;
+    if (joshuaConfiguration.chart_threads > 1)
+      pool = ForkJoinPools.get(joshuaConfiguration.chart_threads);
 
-        /*
-         * 5. Sort the nodes in the cell.
-         * 
-         * Sort the nodes in this span, to make them usable for future
-         * applications of cube pruning.
-         */
-        if (null != this.cells.get(i, j)) {
-          this.cells.get(i, j).getSortedNodes();
-        }
+    for (int width = 1; width <= sourceLength; width++) {
+      int numSpans = sourceLength - width + 1;
+      if (pool == null || numSpans == 1) {
+        for (int i = 0; i < numSpans; i++)
+          expandCell(i, i + width);
+      } else {
+        pool.invoke(new CellExpander(width, 0, numSpans));
       }
     }
 
@@ -452,17 +577,111 @@ public class Chart {
     // transition_final: setup a goal item, which may have many deductions
     if (null == this.cells.get(0, sourceLength)
         || !this.goalBin.transitToGoal(this.cells.get(0, sourceLength), this.featureFunctions,
-            this.sourceLength)) {
+            this.weights, this.sourceLength)) {
       logger.severe("No complete item in the Cell[0," + sourceLength + "]; possible reasons: "
           + "(1) your grammar does not have any valid derivation for the source sentence; "
           + "(2) too aggressive pruning.");
+      recordMetrics(startTime, true);
       return null;
     }
 
     logger.fine("Finished expand");
+    recordMetrics(startTime, false);
     return new HyperGraph(this.goalBin.getSortedNodes().get(0), -1, -1, this.sentence);
   }
 
+  /**
+   * Fills in the cell over span (i,j). This reads from (but does not modify) cells of smaller
+   * width, and writes only to the cell and dot cells over (i,j), so it is safe to call concurrently
+   * for distinct spans of the same width.
+   */
+  private void expandCell(int i, int j) {
+    if (logger.isLoggable(Level.FINEST))
+      logger.finest(String.format("Processing span (%d, %d)", i, j));
+
+    /* Skips spans for which no path exists (possible in lattices). */
+    if (inputLattice.distance(i, j) == Float.POSITIVE_INFINITY) {
+      return;
+    }
+
+    /*
+     * 1. Expand the dot through all rules. This is a matter of (a) look for
+     * rules over (i,j-1) that need the terminal at (j-1,j) and looking at
+     * all split points k to expand nonterminals.
+     */
+    logger.finest("Expanding cell");
+    long lookupStart = System.nanoTime();
+    for (int k = 0; k < this.grammars.length; k++) {
+      /**
+       * Each dotChart can act individually (without consulting other
+       * dotCharts) because it either consumes the source input or the
+       * complete nonTerminals, which are both grammar-independent.
+       **/
+      this.dotcharts[k].expandDotCell(i, j);
+    }
+    grammarNanos.addAndGet(System.nanoTime() - lookupStart);
+
+    /*
+     * 2. The regular CKY part: add completed items onto the chart via cube
+     * pruning.
+     */
+    logger.finest("Adding complete items into chart");
+    completeSpan(i, j);
+
+    /* 3. Process unary rules. */
+    logger.finest("Adding unary items into chart");
+    addUnaryNodes(this.grammars, i, j);
+
+    // (4)=== in dot_cell(i,j), add dot-nodes that start from the /complete/
+    // superIterms in
+    // chart_cell(i,j)
+    logger.finest("Initializing new dot-items that start from complete items in this cell");
+    lookupStart = System.nanoTime();
+    for (int k = 0; k < this.grammars.length; k++) {
+      if (this.grammars[k].hasRuleForSpan(i, j, inputLattice.distance(i, j))) {
+        this.dotcharts[k].startDotItems(i, j);
+      }
+    }
+    grammarNanos.addAndGet(System.nanoTime() - lookupStart);
+
+    /*
+     * 5. Sort the nodes in the cell.
+     * 
+     * Sort the nodes in this span, to make them usable for future
+     * applications of cube pruning.
+     */
+    if (null != this.cells.get(i, j)) {
+      this.cells.get(i, j).getSortedNodes();
+    }
+  }
+
+  /**
+   * Expands the cells (i, i + width) for all i in [from, to), splitting the range in half until a
+   * single cell remains.
+   */
+  @SuppressWarnings("serial")
+  private class CellExpander extends RecursiveAction {
+    private final int width;
+    private final int from;
+    private final int to;
+
+    CellExpander(int width, int from, int to) {
+      this.width = width;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        expandCell(from, from + width);
+      } else {
+        int mid = (from + to) / 2;
+        invokeAll(new CellExpander(width, from, mid), new CellExpander(width, mid, to));
+      }
+    }
+  }
+
   public Cell getCell(int i, int j) {
     return this.cells.get(i, j);
   }
@@ -471,12 +690,31 @@ public class Chart {
   // Private methods
   // ===============================================================
 
+  /*
+   * Stores the chart's statistics with the sentence's metrics.
+   */
+  private void recordMetrics(long startTime, boolean failed) {
+    SentenceMetrics metrics = sentence.getMetrics();
+    metrics.chartNanos = System.nanoTime() - startTime;
+    metrics.grammarNanos = grammarNanos.get();
+    metrics.pops = nPopped.get();
+    metrics.scored = nScored.get();
+    metrics.lmCallsEstimate = (long) nScored.get() * numLanguageModels;
+    metrics.nodes = nAdded.get();
+    // each edge that passes pre-pruning either creates a node or is merged into one
+    metrics.edges = nAdded.get() + nMerged.get();
+    metrics.pruned = nPruned.get();
+    metrics.dotItems = nDotitemAdded.get();
+    metrics.failed = failed;
+  }
+
   private void logStatistics(Level level) {
     if (logger.isLoggable(level))
       logger.log(
           level,
           String.format("Sentence %d Chart: ADDED %d MERGED %d DOT-ITEMS ADDED: %d",
-              this.sentence.id(), this.nAdded, this.nMerged, this.nDotitemAdded));
+              this.sentence.id(), this.nAdded.get(), this.nMerged.get(),
+              this.nDotitemAdded.get()));
   }
 
   /**
@@ -531,14 +769,15 @@ public class Chart {
             HGNode newNode = new HGNode(i, j, rule.getLHS(), null, newEdge, 0.0f);
             DerivationState state = this.kBestExtractor.new DerivationState(newNode, newEdge, null, 0.0f, -1);
             
-            ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, state, i, j,
-                new SourcePath(), this.sentence);
+            ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, this.weights,
+                state, i, j, new SourcePath(), this.sentence);
             HGNode resNode = chartBin.addHyperEdgeInCell(result, rule, i, j, antecedents,
                 new SourcePath(), true);
 */
             
-            ComputeNodeResult states = new ComputeNodeResult(this.featureFunctions, rule,
+            ComputeNodeResult states = new ComputeNodeResult(this.featureFunctions, this.weights, rule,
                 antecedents, i, j, new SourcePath(), this.sentence);
+            nScored.incrementAndGet();
             HGNode resNode = chartBin.addHyperEdgeInCell(states, rule, i, j, antecedents,
                 new SourcePath(), true);
 
@@ -578,13 +817,13 @@ public class Chart {
     
     this.cells.get(i, j)
         .addHyperEdgeInCell(
-            new ComputeNodeResult(this.featureFunctions, state, i, j, srcPath,
+            new ComputeNodeResult(this.featureFunctions, this.weights, state, i, j, srcPath,
                 sentence), rule, i, j, null, srcPath, false);
 */
     
     this.cells.get(i, j).addHyperEdgeInCell(
-        new ComputeNodeResult(this.featureFunctions, rule, null, i, j, srcPath, sentence), rule,
-        i, j, null, srcPath, false);
+        new ComputeNodeResult(this.featureFunctions, this.weights, rule, null, i, j, srcPath,
+            sentence), rule, i, j, null, srcPath, false);
 
   }
 }
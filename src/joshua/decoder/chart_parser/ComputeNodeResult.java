@@ -15,7 +15,7 @@ import joshua.decoder.hypergraph.KBestExtractor.DerivationState;
 import joshua.decoder.segment_file.Sentence;
 
 /**
- * This class computes the cost of applying a rule.
+ * This class computes the cost of applying a rule, under the weights of the sentence being decoded.
  * 
  * @author Matt Post <post@cs.jhu.edu>
  * @author Zhifei Li, <zhifei.work@gmail.com>
@@ -42,8 +42,8 @@ public class ComputeNodeResult {
    * 
    * Old version that doesn't use the derivation state.
    */
-  public ComputeNodeResult(List<FeatureFunction> featureFunctions, Rule rule, List<HGNode> tailNodes,
-      int i, int j, SourcePath sourcePath, Sentence sentence) {
+  public ComputeNodeResult(List<FeatureFunction> featureFunctions, FeatureVector weights, Rule rule,
+      List<HGNode> tailNodes, int i, int j, SourcePath sourcePath, Sentence sentence) {
 
     int sentID = sentence.id();
     
@@ -85,15 +85,15 @@ public class ComputeNodeResult {
      * cost.
      */
     for (FeatureFunction feature : featureFunctions) {
-      FeatureFunction.ScoreAccumulator acc = feature.new ScoreAccumulator(); 
+      FeatureFunction.ScoreAccumulator acc = new FeatureFunction.ScoreAccumulator(weights); 
 
       DPState newState = feature.compute(rule, tailNodes, i, j, sourcePath, sentence.id(), acc);
       transitionCost += acc.getScore();
       
       if (Decoder.VERBOSE >= 3)
         System.err.println(String.format("-> FEATURE %s = %.3f * %.3f = %.3f", 
-            feature.getName(), acc.getScore() / Decoder.weights.get(feature.getName()),
-            Decoder.weights.get(feature.getName()), acc.getScore()));
+            feature.getName(), acc.getScore() / weights.get(feature.getName()),
+            weights.get(feature.getName()), acc.getScore()));
 
       if (feature.isStateful()) {
         futureCostEstimate += feature.estimateFutureCost(rule, newState, sentID);
@@ -118,8 +118,8 @@ public class ComputeNodeResult {
    * nodes. Also computes a range of costs of doing so (the transition cost, the total (Viterbi)
    * cost, and a score that includes a future cost estimate).
    */
-  public ComputeNodeResult(List<FeatureFunction> featureFunctions, DerivationState derivationState,
-      int i, int j, SourcePath sourcePath, Sentence sentence) {
+  public ComputeNodeResult(List<FeatureFunction> featureFunctions, FeatureVector weights,
+      DerivationState derivationState, int i, int j, SourcePath sourcePath, Sentence sentence) {
 
     Rule rule = derivationState.edge.getRule();
     List<HGNode> tailNodes = derivationState.edge.getTailNodes();
@@ -154,7 +154,7 @@ public class ComputeNodeResult {
      * cost.
      */
     for (FeatureFunction feature : featureFunctions) {
-      FeatureFunction.ScoreAccumulator acc = feature.new ScoreAccumulator(); 
+      FeatureFunction.ScoreAccumulator acc = new FeatureFunction.ScoreAccumulator(weights); 
 
       DPState newState = feature.compute(derivationState, i, j, sourcePath, sentence, acc);
       transitionCost += acc.getScore();
@@ -178,6 +178,69 @@ public class ComputeNodeResult {
     this.dpStates = allDPStates;
   }
 
+  private ComputeNodeResult(float viterbiCost, List<DPState> dpStates) {
+    this.viterbiCost = viterbiCost;
+    this.dpStates = dpStates;
+  }
+
+  /**
+   * Computes the results of a whole batch of edges, returning them in the order the edges were
+   * added. The results are the same as constructing each one separately, but every feature
+   * function is asked for the whole batch at once (see {@link FeatureFunction#computeAll}), which
+   * saves the per-call overhead of features implemented in native code.
+   */
+  public static ComputeNodeResult[] computeAll(List<FeatureFunction> featureFunctions,
+      FeatureVector weights, EdgeBatch edges, Sentence sentence) {
+
+    int sentID = sentence.id();
+    int size = edges.size();
+    ComputeNodeResult[] results = new ComputeNodeResult[size];
+    if (size == 0)
+      return results;
+
+    // Keep the detailed trace of the one-at-a-time constructor
+    if (Decoder.VERBOSE >= 3) {
+      for (int k = 0; k < size; k++)
+        results[k] = new ComputeNodeResult(featureFunctions, weights, edges.getRule(k),
+            edges.getTailNodes(k), edges.getI(k), edges.getJ(k), edges.getSourcePath(k), sentence);
+      return results;
+    }
+
+    float[] futureCostEstimates = new float[size];
+    for (int k = 0; k < size; k++) {
+      float viterbiCost = 0.0f;
+      if (null != edges.getTailNodes(k))
+        for (HGNode item : edges.getTailNodes(k))
+          viterbiCost += item.bestHyperedge.getBestDerivationScore();
+      results[k] = new ComputeNodeResult(viterbiCost, new ArrayList<DPState>());
+    }
+
+    // One accumulator per edge, reset for each feature
+    FeatureFunction.ScoreAccumulator[] accs = new FeatureFunction.ScoreAccumulator[size];
+    for (int k = 0; k < size; k++)
+      accs[k] = new FeatureFunction.ScoreAccumulator(weights);
+    for (FeatureFunction feature : featureFunctions) {
+      for (int k = 0; k < size; k++)
+        accs[k].reset();
+
+      DPState[] newStates = feature.computeAll(edges, sentID, accs);
+      for (int k = 0; k < size; k++) {
+        results[k].transitionCost += accs[k].getScore();
+
+        if (feature.isStateful()) {
+          futureCostEstimates[k] += feature.estimateFutureCost(edges.getRule(k), newStates[k], sentID);
+          results[k].dpStates.add(((StatefulFF) feature).getStateIndex(), newStates[k]);
+        }
+      }
+    }
+
+    for (int k = 0; k < size; k++) {
+      results[k].viterbiCost += results[k].transitionCost;
+      results[k].pruningCostEstimate = results[k].viterbiCost + futureCostEstimates[k];
+    }
+    return results;
+  }
+
   /**
    * This is called from Cell.java when making the final transition to the goal state.
    * This is done to allow feature functions to correct for partial estimates, since
@@ -191,11 +254,11 @@ public class ComputeNodeResult {
    * the feature function interface).
    */
   public static float computeFinalCost(List<FeatureFunction> featureFunctions,
-      List<HGNode> tailNodes, int i, int j, SourcePath sourcePath, int sentID) {
+      FeatureVector weights, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath, int sentID) {
 
     float cost = 0;
     for (FeatureFunction ff : featureFunctions) {
-      cost += ff.computeFinalCost(tailNodes.get(0), i, j, sourcePath, sentID);
+      cost += ff.computeFinalCost(tailNodes.get(0), i, j, sourcePath, sentID, weights);
     }
     return cost;
   }
@@ -211,6 +274,7 @@ public class ComputeNodeResult {
       DerivationState state, int i, int j, Sentence sentence) {
     // Initialize the set of features with those that were present with the rule in the grammar.
     FeatureVector featureDelta = new FeatureVector();
+    FeatureFunction.FeatureAccumulator acc = new FeatureFunction.FeatureAccumulator(featureDelta);
     
     HyperEdge edge = state.edge;
     int sentID = sentence.id();
@@ -219,9 +283,9 @@ public class ComputeNodeResult {
     for (FeatureFunction feature : featureFunctions) {
       // A null rule signifies the final transition.
       if (edge.getRule() == null)
-        featureDelta.add(feature.computeFinalFeatures(edge.getTailNodes().get(0), i, j, edge.getSourcePath(), sentID));
+        feature.computeFinal(edge.getTailNodes().get(0), i, j, edge.getSourcePath(), sentID, acc);
       else {
-        featureDelta.add(feature.computeFeatures(state, i, j, edge.getSourcePath(), sentence));
+        feature.compute(state, i, j, edge.getSourcePath(), sentence, acc);
       }
     }
     
@@ -233,18 +297,28 @@ public class ComputeNodeResult {
 
     // Initialize the set of features with those that were present with the rule in the grammar.
     FeatureVector featureDelta = new FeatureVector();
+    computeTransitionFeatures(featureFunctions, edge, i, j, sentID, featureDelta);
+    return featureDelta;
+  }
+
+  /**
+   * As above, but adds the features fired by the transition directly to an existing vector (e.g.,
+   * the running total of a derivation), so that no intermediate vectors are built.
+   */
+  public static void computeTransitionFeatures(List<FeatureFunction> featureFunctions,
+      HyperEdge edge, int i, int j, int sentID, FeatureVector features) {
+
+    FeatureFunction.FeatureAccumulator acc = new FeatureFunction.FeatureAccumulator(features);
     
     // === compute feature logPs
     for (FeatureFunction ff : featureFunctions) {
       // A null rule signifies the final transition.
       if (edge.getRule() == null)
-        featureDelta.add(ff.computeFinalFeatures(edge.getTailNodes().get(0), i, j, edge.getSourcePath(), sentID));
+        ff.computeFinal(edge.getTailNodes().get(0), i, j, edge.getSourcePath(), sentID, acc);
       else {
-        featureDelta.add(ff.computeFeatures(edge.getRule(), edge.getTailNodes(), i, j, edge.getSourcePath(), sentID));
+        ff.compute(edge.getRule(), edge.getTailNodes(), i, j, edge.getSourcePath(), sentID, acc);
       }
     }
-    
-    return featureDelta;
   }
 
   public float getPruningEstimate() {
@@ -0,0 +1,126 @@
+package joshua.decoder.chart_parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import joshua.decoder.chart_parser.DotChart.DotNode;
+import joshua.decoder.ff.tm.Rule;
+import joshua.decoder.hypergraph.HGNode;
+
+/**
+ * Storage for the states that cube pruning explores while filling one cell. Most of these states
+ * are scored and then never popped, so rather than allocating each with its own arrays and lists,
+ * the arena keeps the ranks and tail nodes of all of them in two flat arrays, indexed by each
+ * state's offset, and hands out state objects from a pool. The heap, the visited set, and the
+ * batches of edges to score are kept here as well, so they are reused from cell to cell.
+ *
+ * An arena is used by one cell at a time and is reset when the next one starts, at which point all
+ * of its states become invalid. {@link Chart} keeps the arenas for a sentence, and drops them with
+ * the chart when the sentence is done.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+class CubePruneArena {
+
+  // The pool of states; the first numStates are in use
+  private final List<CubePruneState> states = new ArrayList<CubePruneState>();
+  private int numStates = 0;
+
+  // The ranks (at offset + 0..arity) and tail nodes (at offset + 1..arity) of the states in use
+  int[] ranks = new int[1024];
+  HGNode[] tails = new HGNode[1024];
+  private int size = 0;
+
+  // The visited set: an open-addressed table of state indices (plus one; 0 marks empty slots)
+  private int[] visited = new int[256];
+  private int numVisited = 0;
+
+  final PriorityQueue<CubePruneState> candidates = new PriorityQueue<CubePruneState>();
+  final EdgeBatch terminalEdges = new EdgeBatch();
+  final EdgeBatch cubeEdges = new EdgeBatch();
+  final List<CubePruneState> cubeStates = new ArrayList<CubePruneState>();
+
+  /**
+   * Invalidates all states, and empties the heap, the visited set and the batches.
+   */
+  void reset() {
+    for (int s = 0; s < numStates; s++)
+      states.get(s).release();
+    numStates = 0;
+    Arrays.fill(tails, 0, size, null);
+    size = 0;
+    if (numVisited > 0) {
+      Arrays.fill(visited, 0);
+      numVisited = 0;
+    }
+    candidates.clear();
+    terminalEdges.clear();
+    cubeEdges.clear();
+    cubeStates.clear();
+  }
+
+  /**
+   * Returns a state over the given rules and dot node with room for the rule rank and arity tail
+   * nodes, which the caller must fill in.
+   */
+  CubePruneState newState(List<Rule> rules, DotNode dotNode, int arity) {
+    int length = arity + 1;
+    if (size + length > ranks.length) {
+      int capacity = Math.max(2 * ranks.length, size + length);
+      ranks = Arrays.copyOf(ranks, capacity);
+      tails = Arrays.copyOf(tails, capacity);
+    }
+
+    CubePruneState state;
+    if (numStates < states.size()) {
+      state = states.get(numStates);
+    } else {
+      state = new CubePruneState(this);
+      states.add(state);
+    }
+    state.init(numStates++, size, length, rules, dotNode);
+    size += length;
+    return state;
+  }
+
+  /**
+   * Adds the state to the visited set, returning false if an equal state was already there.
+   */
+  boolean visit(CubePruneState state) {
+    if (2 * (numVisited + 1) > visited.length)
+      growVisited();
+
+    int mask = visited.length - 1;
+    for (int slot = mix(state.hashCode()) & mask;; slot = (slot + 1) & mask) {
+      int entry = visited[slot];
+      if (entry == 0) {
+        visited[slot] = state.index() + 1;
+        numVisited++;
+        return true;
+      }
+      if (states.get(entry - 1).equals(state))
+        return false;
+    }
+  }
+
+  private void growVisited() {
+    int[] old = visited;
+    visited = new int[2 * old.length];
+    int mask = visited.length - 1;
+    for (int entry : old) {
+      if (entry != 0) {
+        int slot = mix(states.get(entry - 1).hashCode()) & mask;
+        while (visited[slot] != 0)
+          slot = (slot + 1) & mask;
+        visited[slot] = entry;
+      }
+    }
+  }
+
+  private static int mix(int hash) {
+    hash *= 0x9E3779B1;
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -1,7 +1,6 @@
 package joshua.decoder.chart_parser;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.AbstractList;
 import java.util.List;
 
 import joshua.decoder.hypergraph.HGNode;
@@ -12,33 +11,109 @@ import joshua.decoder.ff.tm.Rule;
 // ===============================================================
 // CubePruneState class
 // ===============================================================
+/**
+ * A position in the cube of a dot node: the rank of the rule and of each tail node. States live
+ * in a {@link CubePruneArena}, which holds their ranks and tail nodes, and reuses them once the
+ * cell they were created for is complete.
+ */
 public class CubePruneState implements Comparable<CubePruneState> {
-  int[] ranks;
+  private final CubePruneArena arena;
+
+  // The index of the state in the arena, and the position and number of its ranks
+  private int index;
+  private int offset;
+  private int length;
+
   ComputeNodeResult computeNodeResult;
-  List<HGNode> antNodes;
+  // The estimate used to order the state in the heap until it is scored (cube growing)
+  private float heuristic;
   List<Rule> rules;
   private DotNode dotNode;
 
-  public CubePruneState(ComputeNodeResult score, int[] ranks, List<Rule> rules, List<HGNode> antecedents, DotNode dotNode) {
-    this.computeNodeResult = score;
-    this.ranks = ranks;
+  // A view of the tail nodes in the arena
+  final List<HGNode> antNodes = new AbstractList<HGNode>() {
+    @Override
+    public HGNode get(int x) {
+      return arena.tails[offset + 1 + x];
+    }
+
+    @Override
+    public int size() {
+      return length - 1;
+    }
+  };
+
+  CubePruneState(CubePruneArena arena) {
+    this.arena = arena;
+  }
+
+  void init(int index, int offset, int length, List<Rule> rules, DotNode dotNode) {
+    this.index = index;
+    this.offset = offset;
+    this.length = length;
     this.rules = rules;
-    // create a new vector is critical, because currentAntecedents will change later
-    this.antNodes = new ArrayList<HGNode>(antecedents);
     this.dotNode = dotNode;
+    this.computeNodeResult = null;
+    this.heuristic = Float.NEGATIVE_INFINITY;
+  }
+
+  /*
+   * Drops the references to the cell's objects once the state is no longer in use.
+   */
+  void release() {
+    this.rules = null;
+    this.dotNode = null;
+    this.computeNodeResult = null;
+  }
+
+  int index() {
+    return index;
+  }
+
+  /**
+   * The number of ranks: one for the rule, plus one per tail node.
+   */
+  int numRanks() {
+    return length;
+  }
+
+  /**
+   * The 1-based rank of the rule (k = 0) or of the (k-1)th tail node.
+   */
+  int getRank(int k) {
+    return arena.ranks[offset + k];
+  }
+
+  void setRank(int k, int rank) {
+    arena.ranks[offset + k] = rank;
+  }
+
+  void setTailNode(int x, HGNode node) {
+    arena.tails[offset + 1 + x] = node;
   }
 
   /**
    * This returns the list of DP states associated with the result.
-   * 
+   *
    * @return
    */
   List<DPState> getDPStates() {
     return this.computeNodeResult.getDPStates();
   }
-  
+
+  void setHeuristic(float heuristic) {
+    this.heuristic = heuristic;
+  }
+
+  /**
+   * The pruning estimate of the state once it has been scored, and its heuristic until then.
+   */
+  float getEstimate() {
+    return (computeNodeResult != null) ? computeNodeResult.getPruningEstimate() : heuristic;
+  }
+
   Rule getRule() {
-    return this.rules.get(this.ranks[0]-1);
+    return this.rules.get(getRank(0) - 1);
   }
 
   public String toString() {
@@ -62,10 +137,10 @@ public class CubePruneState implements Comparable<CubePruneState> {
     if (!this.getClass().equals(obj.getClass()))
       return false;
     CubePruneState state = (CubePruneState) obj;
-    if (state.ranks.length != ranks.length)
+    if (state.length != length)
       return false;
-    for (int i = 0; i < ranks.length; i++)
-      if (state.ranks[i] != ranks[i])
+    for (int i = 0; i < length; i++)
+      if (state.getRank(i) != getRank(i))
         return false;
     if (getDotNode() != state.getDotNode())
       return false;
@@ -75,7 +150,10 @@ public class CubePruneState implements Comparable<CubePruneState> {
 
   public int hashCode() {
     int hash = (dotNode != null) ? dotNode.hashCode() : 0;
-    hash += Arrays.hashCode(ranks);
+    int ranksHash = 1;
+    for (int i = 0; i < length; i++)
+      ranksHash = 31 * ranksHash + getRank(i);
+    hash += ranksHash;
 
     return hash;
   }
@@ -85,14 +163,12 @@ public class CubePruneState implements Comparable<CubePruneState> {
    * order (high-prob first).
    */
   public int compareTo(CubePruneState another) {
-    if (this.computeNodeResult.getPruningEstimate() < another.computeNodeResult
-        .getPruningEstimate()) {
+    if (this.getEstimate() < another.getEstimate()) {
       return 1;
-    } else if (this.computeNodeResult.getPruningEstimate() == another.computeNodeResult
-        .getPruningEstimate()) {
+    } else if (this.getEstimate() == another.getEstimate()) {
       return 0;
     } else {
       return -1;
     }
   }
-}
\ No newline at end of file
+}
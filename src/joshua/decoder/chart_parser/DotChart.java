@@ -31,6 +31,11 @@ import joshua.util.ChartSpan;
  * 
  * There is a separate DotChart for every grammar.
  * 
+ * When the chart is expanded in parallel, each span (i,j) of a given width is handled by a
+ * different thread. All dot items added while processing (i,j) are placed in dot cells (i,k) with
+ * k >= j, and no other span of the same width starts at i, so the threads never write to the same
+ * dot cell.
+ * 
  * @author Zhifei Li, <zhifei.work@gmail.com>
  * @author Matt Post <post@cs.jhu.edu>
  * @author Kristy Hollingshead Seitz
@@ -358,11 +363,11 @@ class DotChart {
       dotcells.set(i, j, new DotCell());
     }
     dotcells.get(i, j).addDotNode(item);
-    dotChart.nDotitemAdded++;
+    int numAdded = dotChart.nDotitemAdded.incrementAndGet();
 
     if (logger.isLoggable(Level.FINEST)) {
       logger.finest(String.format("Add a dotitem in cell (%d, %d), n_dotitem=%d, %s", i, j,
-          dotChart.nDotitemAdded, srcPath));
+          numAdded, srcPath));
 
       RuleCollection rules = tnode.getRuleCollection();
       if (rules != null) {
@@ -0,0 +1,69 @@
+package joshua.decoder.chart_parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import joshua.decoder.ff.tm.Rule;
+import joshua.decoder.hypergraph.HGNode;
+
+/**
+ * A list of candidate hyperedges (a rule applied to a list of tail nodes over a span) that are
+ * scored together. Cube pruning produces its candidates in rounds: the best edge of every cube when
+ * a cell is seeded, and the neighbors of each popped edge after that. Collecting a round into a
+ * batch lets feature functions that are expensive to call once per edge (such as {@link
+ * joshua.decoder.ff.lm.KenLMFF}, which crosses into native code) score the whole round at once.
+ *
+ * @see ComputeNodeResult#computeAll(List, joshua.decoder.ff.FeatureVector, EdgeBatch,
+ *      joshua.decoder.segment_file.Sentence)
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class EdgeBatch {
+
+  private final List<Rule> rules = new ArrayList<Rule>();
+  private final List<List<HGNode>> tailNodes = new ArrayList<List<HGNode>>();
+  private final List<SourcePath> sourcePaths = new ArrayList<SourcePath>();
+  private int[] spans = new int[16];
+
+  public void add(Rule rule, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath) {
+    int k = size();
+    if (2 * k + 2 > spans.length)
+      spans = Arrays.copyOf(spans, 2 * spans.length);
+    spans[2 * k] = i;
+    spans[2 * k + 1] = j;
+
+    this.rules.add(rule);
+    this.tailNodes.add(tailNodes);
+    this.sourcePaths.add(sourcePath);
+  }
+
+  public int size() {
+    return rules.size();
+  }
+
+  public void clear() {
+    rules.clear();
+    tailNodes.clear();
+    sourcePaths.clear();
+  }
+
+  public Rule getRule(int k) {
+    return rules.get(k);
+  }
+
+  public List<HGNode> getTailNodes(int k) {
+    return tailNodes.get(k);
+  }
+
+  public int getI(int k) {
+    return spans[2 * k];
+  }
+
+  public int getJ(int k) {
+    return spans[2 * k + 1];
+  }
+
+  public SourcePath getSourcePath(int k) {
+    return sourcePaths.get(k);
+  }
+}
@@ -52,7 +52,7 @@ public class ArityPhrasePenaltyFF extends StatelessFF {
 
   public DPState compute(Rule rule, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath,
       int sentID, Accumulator acc) {
-    acc.add(name, isEligible(rule));
+    acc.add(featureId, isEligible(rule));
     
     return null;
   }
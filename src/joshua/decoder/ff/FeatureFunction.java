@@ -2,6 +2,7 @@ package joshua.decoder.ff;
 
 import java.util.List;
 
+import joshua.decoder.chart_parser.EdgeBatch;
 import joshua.decoder.chart_parser.SourcePath;
 import joshua.decoder.ff.state_maintenance.DPState;
 import joshua.decoder.ff.tm.Rule;
@@ -35,10 +36,18 @@ public abstract class FeatureFunction {
   // The name of the feature function (also the prefix on weights)
   protected String name = null;
 
+  // The id of that name in the FeatureMap, for features that fire under their own name.
+  protected final int featureId;
+
   // The list of arguments passed to the feature.
   private String argString;
 
-  // The weight vector used by the decoder, passed it when the feature is instantiated.
+  /*
+   * The decoder's weight vector, passed in when the feature is instantiated. This is used for
+   * estimates (rule costs used for sorting and pruning) and for the costs that are cached with the
+   * rules. Costs computed while decoding are weighted by the ScoreAccumulator, whose weights can
+   * differ from request to request.
+   */
   protected FeatureVector weights;
 
   // Accessor functions
@@ -56,11 +65,13 @@ public abstract class FeatureFunction {
   public FeatureFunction(FeatureVector weights, String name) {
     this.weights = weights;
     this.name = name;
+    this.featureId = FeatureMap.id(name);
   }
 
   public FeatureFunction(FeatureVector weights, String name, String args) {
     this.weights = weights;
     this.name = name;
+    this.featureId = FeatureMap.id(name);
     this.argString = args;
 
     processArgs(this.argString);
@@ -98,6 +109,26 @@ public abstract class FeatureFunction {
   public abstract DPState compute(Rule rule, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath,
       int sentID, Accumulator acc);
 
+  /**
+   * Computes the feature function over every edge of a batch, adding the values of edge k to
+   * accs[k] and returning the new states in the same order. The default calls
+   * {@link #compute(Rule, List, int, int, SourcePath, int, Accumulator)} once per edge; feature
+   * functions for which a call has a high fixed cost can override this to score the whole batch
+   * at once.
+   *
+   * @param edges
+   * @param sentID
+   * @param accs
+   * @return the new state of each edge
+   */
+  public DPState[] computeAll(EdgeBatch edges, int sentID, Accumulator[] accs) {
+    DPState[] states = new DPState[edges.size()];
+    for (int k = 0; k < edges.size(); k++)
+      states[k] = compute(edges.getRule(k), edges.getTailNodes(k), edges.getI(k), edges.getJ(k),
+          edges.getSourcePath(k), sentID, accs[k]);
+    return states;
+  }
+
   /**
    * This is a convenience function for retrieving the cost of applying a rule, provided for
    * backwards compatibility.
@@ -113,7 +144,7 @@ public abstract class FeatureFunction {
   public final float computeCost(Rule rule, List<HGNode> tailNodes, int i, int j,
       SourcePath sourcePath, int sentID) {
 
-    ScoreAccumulator score = new ScoreAccumulator();
+    ScoreAccumulator score = new ScoreAccumulator(weights);
     compute(rule, tailNodes, i, j, sourcePath, sentID, score);
     return score.getScore();
   }
@@ -166,8 +197,16 @@ public abstract class FeatureFunction {
    */
   public final float computeFinalCost(HGNode tailNode, int i, int j, SourcePath sourcePath,
       int sentID) {
+    return computeFinalCost(tailNode, i, j, sourcePath, sentID, weights);
+  }
+
+  /**
+   * As above, but weights the cost with the given weights instead of the decoder's.
+   */
+  public final float computeFinalCost(HGNode tailNode, int i, int j, SourcePath sourcePath,
+      int sentID, FeatureVector weights) {
 
-    ScoreAccumulator score = new ScoreAccumulator();
+    ScoreAccumulator score = new ScoreAccumulator(weights);
     computeFinal(tailNode, i, j, sourcePath, sentID, score);
     return score.getScore();
   }
@@ -242,47 +281,88 @@ public abstract class FeatureFunction {
 
   /**
    * Accumulator objects allow us to generalize feature computation. ScoreAccumulator takes
-   * (feature,value) pairs and simple stores the weighted sum (for decoding). FeatureAccumulator
-   * records the named feature values (for k-best extraction).
+   * (feature,value) pairs and simple stores the weighted sum (for decoding), under the weights of
+   * the sentence being decoded. FeatureAccumulator records the named feature values (for k-best
+   * extraction).
+   * 
+   * Features can be identified either by name or by their id in the {@link FeatureMap}. The
+   * latter avoids hashing the name and should be preferred on hot paths; features that fire under
+   * the feature function's own name can use {@link FeatureFunction#featureId}.
    * 
    * @author Matt Post <post@cs.jhu.edu>
    */
 
   public interface Accumulator {
     public void add(String name, float value);
+
+    public void add(int featureId, float value);
   }
 
-  public class ScoreAccumulator implements Accumulator {
+  public static class ScoreAccumulator implements Accumulator {
+    private final FeatureVector weights;
     private float score;
 
-    public ScoreAccumulator() {
+    public ScoreAccumulator(FeatureVector weights) {
+      this.weights = weights;
       this.score = 0.0f;
     }
 
+    /**
+     * The weights the score is computed with. Features that cache weighted costs (e.g., with the
+     * rules) should only use them if these are the weights the cache was computed with.
+     */
+    public FeatureVector getWeights() {
+      return weights;
+    }
+
     public void add(String name, float value) {
-      if (weights.containsKey(name)) {
-        score += value * weights.get(name);
-      }
+      // Don't register the name: a feature without a weight doesn't contribute to the score.
+      int id = FeatureMap.lookup(name);
+      if (id != -1)
+        add(id, value);
+    }
+
+    public void add(int featureId, float value) {
+      score += value * weights.get(featureId);
     }
 
     public float getScore() {
       return score;
     }
+
+    /**
+     * Sets the score back to zero, so the accumulator can be used again.
+     */
+    public void reset() {
+      score = 0.0f;
+    }
   }
 
-  public class FeatureAccumulator implements Accumulator {
+  public static class FeatureAccumulator implements Accumulator {
     private FeatureVector features;
 
     public FeatureAccumulator() {
       this.features = new FeatureVector();
     }
 
+    /**
+     * Accumulates into an existing vector, so that the features of several feature functions can
+     * be collected without allocating a vector for each.
+     */
+    public FeatureAccumulator(FeatureVector features) {
+      this.features = features;
+    }
+
     public void add(String name, float value) {
-      if (features.containsKey(name)) {
-        features.put(name, features.get(name) + value);
-      } else {
-        features.put(name, value);
-      }
+      features.increment(FeatureMap.id(name), value);
+    }
+
+    public void add(int featureId, float value) {
+      features.increment(featureId, value);
+    }
+
+    public void add(FeatureVector other) {
+      features.add(other);
     }
 
     public FeatureVector getFeatures() {
@@ -0,0 +1,143 @@
+package joshua.decoder.ff;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Static, global registry mapping feature names to integer ids, in the spirit of
+ * {@link joshua.corpus.Vocabulary}. Feature vectors and accumulators are keyed by these ids so
+ * that the hot paths of decoding (scoring, summing, and inner products) never hash strings.
+ *
+ * Ids are allocated in two ranges. Dense features (see {@link FeatureVector#isDense(String)}) are
+ * numbered consecutively from 0, so that {@link FeatureVector} can store them in a flat array.
+ * All other (sparse) features are numbered from {@link #DENSE_CAPACITY} upwards. Should there
+ * ever be more than DENSE_CAPACITY dense features, the remainder are simply treated as sparse.
+ *
+ * Lookups, in both directions, are lock-free; registration of a new name is synchronized.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class FeatureMap {
+
+  /* The maximum number of features that are stored in the dense range. */
+  public static final int DENSE_CAPACITY = 1024;
+
+  private static final ConcurrentHashMap<String, Integer> nameToId =
+      new ConcurrentHashMap<String, Integer>();
+
+  /*
+   * The names of the features in each range, by id. As in Vocabulary, a name is stored before the
+   * count that covers it is published, and the arrays are only ever replaced by larger copies, so
+   * name() can read them without locking.
+   */
+  private static volatile String[] denseNames = new String[16];
+  private static volatile int numDense = 0;
+  private static volatile String[] sparseNames = new String[16];
+  private static volatile int numSparse = 0;
+
+  /*
+   * Caches the ids of the unlabeled grammar features, which are named by appending their index to
+   * a per-grammar prefix ("tm_pt_0", "tm_pt_1", ...). Read without locking; the arrays are
+   * replaced, never modified, once published.
+   */
+  private static final ConcurrentHashMap<String, int[]> prefixToIds =
+      new ConcurrentHashMap<String, int[]>();
+
+  private static final Object lock = new Object();
+
+  /**
+   * Returns the id of the named feature, registering it if it has not been seen before.
+   */
+  public static int id(String name) {
+    Integer id = nameToId.get(name);
+    if (id != null)
+      return id;
+
+    synchronized (lock) {
+      id = nameToId.get(name);
+      if (id == null) {
+        if (FeatureVector.isDense(name) && numDense < DENSE_CAPACITY) {
+          id = numDense;
+          denseNames = add(denseNames, numDense, name);
+          numDense = numDense + 1;
+        } else {
+          id = DENSE_CAPACITY + numSparse;
+          sparseNames = add(sparseNames, numSparse, name);
+          numSparse = numSparse + 1;
+        }
+        nameToId.put(name, id);
+      }
+      return id;
+    }
+  }
+
+  /**
+   * Returns the id of the feature named by concatenating the prefix and the index (e.g., "tm_pt_"
+   * and 3 become "tm_pt_3"), without building the string once the id is known.
+   */
+  public static int id(String prefix, int index) {
+    int[] ids = prefixToIds.get(prefix);
+    if (ids != null && index < ids.length)
+      return ids[index];
+
+    synchronized (lock) {
+      ids = prefixToIds.get(prefix);
+      int oldLength = (ids == null) ? 0 : ids.length;
+      if (index >= oldLength) {
+        // Only names that are asked for are registered, since every name ends up in the weights
+        int[] newIds = new int[index + 1];
+        for (int i = 0; i < newIds.length; i++)
+          newIds[i] = (i < oldLength) ? ids[i] : id(prefix + i);
+        prefixToIds.put(prefix, newIds);
+        ids = newIds;
+      }
+      return ids[index];
+    }
+  }
+
+  /**
+   * Returns the id of the named feature, or -1 if no such feature has been registered. Unlike
+   * {@link #id(String)}, this never adds to the registry.
+   */
+  public static int lookup(String name) {
+    Integer id = nameToId.get(name);
+    return (id == null) ? -1 : id;
+  }
+
+  /**
+   * Returns the name of the feature with the given id.
+   */
+  public static String name(int id) {
+    // Read the count before the array, which is then at least as new as the count
+    if (id >= 0 && id < DENSE_CAPACITY) {
+      if (id < numDense)
+        return denseNames[id];
+    } else if (id >= DENSE_CAPACITY) {
+      if (id - DENSE_CAPACITY < numSparse)
+        return sparseNames[id - DENSE_CAPACITY];
+    }
+    throw new IllegalArgumentException("Unknown feature id " + id);
+  }
+
+  public static boolean isDense(int id) {
+    return id < DENSE_CAPACITY;
+  }
+
+  /**
+   * The number of registered features.
+   */
+  public static int size() {
+    return numDense + numSparse;
+  }
+
+  /*
+   * Stores the name at the given position of the array, first copying the array into a larger one
+   * if it is full. Returns the array that holds the name. Called with the lock held.
+   */
+  private static String[] add(String[] names, int position, String name) {
+    if (position == names.length)
+      names = Arrays.copyOf(names, 2 * names.length);
+    names[position] = name;
+    return names;
+  }
+}
@@ -2,44 +2,66 @@ package joshua.decoder.ff;
 
 import joshua.decoder.Decoder;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * An implementation of a sparse feature vector, using for representing both weights and feature
  * values.
- * 
+ *
+ * Features are keyed by their integer id in the global {@link FeatureMap}. Dense features (those
+ * with ids below {@link FeatureMap#DENSE_CAPACITY}) are stored in a flat array indexed by id; all
+ * other features are kept in a small open-addressed hash table of primitive ints and floats. This
+ * makes the operations used during decoding (get, add, subtract, and innerProduct) free of string
+ * hashing, boxing, and allocation. The String-keyed methods are kept for convenience and simply
+ * translate the name through the FeatureMap.
+ *
+ * Instances are not thread-safe.
+ *
  * @author Matt Post <post@cs.jhu.edu>
  */
 
 public class FeatureVector {
-  private HashMap<String, Float> features;
+
+  private static final int EMPTY = -1;
+  private static final float[] NO_VALUES = new float[0];
+  private static final boolean[] NO_FLAGS = new boolean[0];
+
+  /* Dense feature values, indexed by feature id, along with flags recording which are present. */
+  private float[] dense = NO_VALUES;
+  private boolean[] denseSet = NO_FLAGS;
+  private int denseSize = 0;
+
+  /* Sparse feature values, in an open-addressed table (linear probing, power-of-two capacity). */
+  private int[] sparseKeys = null;
+  private float[] sparseValues = null;
+  private int sparseSize = 0;
 
   public FeatureVector() {
-    features = new HashMap<String, Float>();
   }
 
   public FeatureVector(String feature, float value) {
-    features = new HashMap<String, Float>();
-    features.put(feature, value);
+    put(feature, value);
   }
 
   /**
    * This version of the constructor takes an uninitialized feature with potentially intermingled
    * labeled and unlabeled feature values, of the format:
-   * 
+   *
    * [feature1=]value [feature2=]value
-   * 
+   *
    * It produces a Feature Vector where all unlabeled features have been labeled by appending the
    * unlabeled feature index (starting at 0) to the defaultPrefix value.
-   * 
+   *
    * **IMPORTANT** The feature values are inverted, for historical reasons, which leads to a lot
-   * of confusion. They have to be inverted here and when the score is actually computed. They 
+   * of confusion. They have to be inverted here and when the score is actually computed. They
    * are inverted here (which is used to build the feature vector representation of a rule's dense
    * features) and in {@link BilingualRule::estimateRuleCost()}, where the rule's precomputable
    * (weighted) score is cached.
-   * 
+   *
    * @param featureString, the string of labeled and unlabeled features (probably straight from the
    *          grammar text file)
    * @param prefix, the prefix to use for unlabeled features (probably "tm_OWNER_")
@@ -49,42 +71,119 @@ public class FeatureVector {
     /*
      * Read through the features on this rule, adding them to the feature vector. Unlabeled features
      * are converted to a canonical form.
-     * 
+     *
      * Note that it's bad form to mix unlabeled features and the named feature index they are mapped
      * to, but we are being liberal in what we accept.
-     * 
+     *
      * IMPORTANT: Note that, for historical reasons, the sign is reversed on all scores.
      * This is the source of *no end* of confusion and should be done away with.
+     *
+     * The string is scanned by hand rather than split with a regular expression, since this is
+     * called for every rule whose features are replayed.
      */
-    features = new HashMap<String, Float>();
     int denseFeatureIndex = 0;
+    int length = featureString.length();
+    int pos = 0;
+    while (pos < length) {
+      while (pos < length && Character.isWhitespace(featureString.charAt(pos)))
+        pos++;
+      if (pos == length)
+        break;
 
-    if (!featureString.trim().equals("")) {
-      for (String token : featureString.split("\\s+")) {
-        if (token.indexOf('=') == -1) {
-          features.put(String.format("%s%d", prefix, denseFeatureIndex), -Float.parseFloat(token));
-          denseFeatureIndex++;
-        } else {
-          int splitPoint = token.indexOf('=');
-          features.put(token.substring(0, splitPoint),
-              Float.parseFloat(token.substring(splitPoint + 1)));
-        }
+      int start = pos;
+      int splitPoint = -1;
+      while (pos < length && !Character.isWhitespace(featureString.charAt(pos))) {
+        if (splitPoint == -1 && featureString.charAt(pos) == '=')
+          splitPoint = pos;
+        pos++;
+      }
+
+      if (splitPoint == -1) {
+        put(FeatureMap.id(prefix, denseFeatureIndex),
+            -Float.parseFloat(featureString.substring(start, pos)));
+        denseFeatureIndex++;
+      } else {
+        put(FeatureMap.id(featureString.substring(start, splitPoint)),
+            Float.parseFloat(featureString.substring(splitPoint + 1, pos)));
       }
     }
   }
 
-  public Set<String> keySet() {
-    return features.keySet();
+  // ===============================================================
+  // Id-based access
+  // ===============================================================
+
+  /**
+   * Returns the value of the feature with the given id. Unlike {@link #get(String)}, features that
+   * are not present have the value 0.
+   */
+  public float get(int id) {
+    if (id < FeatureMap.DENSE_CAPACITY)
+      return (id < dense.length) ? dense[id] : 0.0f;
+
+    int slot = findSlot(id);
+    return (slot == -1 || sparseKeys[slot] == EMPTY) ? 0.0f : sparseValues[slot];
   }
 
+  public boolean containsKey(int id) {
+    if (id < FeatureMap.DENSE_CAPACITY)
+      return id < denseSet.length && denseSet[id];
+
+    int slot = findSlot(id);
+    return slot != -1 && sparseKeys[slot] != EMPTY;
+  }
+
+  public void put(int id, float value) {
+    if (id < FeatureMap.DENSE_CAPACITY) {
+      ensureDense(id);
+      if (!denseSet[id]) {
+        denseSet[id] = true;
+        denseSize++;
+      }
+      dense[id] = value;
+    } else {
+      int slot = claimSlot(id);
+      sparseValues[slot] = value;
+    }
+  }
+
+  /**
+   * Adds the value to the feature with the given id, which is set to the value if not yet present
+   * (this preserves the sign of zero values, which shows up in the output).
+   */
+  public void increment(int id, float value) {
+    if (id < FeatureMap.DENSE_CAPACITY) {
+      if (id < denseSet.length && denseSet[id])
+        dense[id] += value;
+      else
+        put(id, value);
+    } else {
+      int slot = findSlot(id);
+      if (slot != -1 && sparseKeys[slot] != EMPTY)
+        sparseValues[slot] += value;
+      else
+        put(id, value);
+    }
+  }
+
+  // ===============================================================
+  // Vector operations
+  // ===============================================================
+
   public int size() {
-    return features.size();
+    return denseSize + sparseSize;
   }
 
   public FeatureVector clone() {
     FeatureVector newOne = new FeatureVector();
-    for (String key : this.features.keySet())
-      newOne.put(key, this.features.get(key));
+    newOne.dense = dense.clone();
+    newOne.denseSet = denseSet.clone();
+    newOne.denseSize = denseSize;
+    if (sparseKeys != null) {
+      newOne.sparseKeys = sparseKeys.clone();
+      newOne.sparseValues = sparseValues.clone();
+      newOne.sparseSize = sparseSize;
+    }
     return newOne;
   }
 
@@ -94,10 +193,14 @@ public class FeatureVector {
    * a value of 0.0f before subtraction.
    */
   public void subtract(FeatureVector other) {
-    for (String key : other.keySet()) {
-      float oldValue = (features.containsKey(key)) ? features.get(key) : 0.0f;
-      features.put(key, oldValue - other.get(key));
-    }
+    for (int id = 0; id < other.denseSet.length; id++)
+      if (other.denseSet[id])
+        increment(id, -other.dense[id]);
+
+    if (other.sparseKeys != null)
+      for (int slot = 0; slot < other.sparseKeys.length; slot++)
+        if (other.sparseKeys[slot] != EMPTY)
+          increment(other.sparseKeys[slot], -other.sparseValues[slot]);
   }
 
   /**
@@ -105,16 +208,70 @@ public class FeatureVector {
    * between the two being summed.
    */
   public void add(FeatureVector other) {
-    for (String key : other.keySet()) {
-      if (!features.containsKey(key))
-        features.put(key, other.get(key));
-      else
-        features.put(key, features.get(key) + other.get(key));
-    }
+    for (int id = 0; id < other.denseSet.length; id++)
+      if (other.denseSet[id])
+        increment(id, other.dense[id]);
+
+    if (other.sparseKeys != null)
+      for (int slot = 0; slot < other.sparseKeys.length; slot++)
+        if (other.sparseKeys[slot] != EMPTY)
+          increment(other.sparseKeys[slot], other.sparseValues[slot]);
+  }
+
+  /**
+   * Computes the inner product between this feature vector and another one.
+   */
+  public float innerProduct(FeatureVector other) {
+    float cost = 0.0f;
+
+    // Absent dense features are stored as 0, so they can be multiplied through blindly.
+    int shared = Math.min(dense.length, other.dense.length);
+    for (int id = 0; id < shared; id++)
+      cost += dense[id] * other.dense[id];
+
+    if (sparseKeys != null && other.sparseSize > 0)
+      for (int slot = 0; slot < sparseKeys.length; slot++)
+        if (sparseKeys[slot] != EMPTY)
+          cost += sparseValues[slot] * other.get(sparseKeys[slot]);
+
+    return cost;
+  }
+
+  /**
+   * Returns the ids of the features present in this vector, dense features first. This builds a
+   * new array.
+   */
+  public int[] getIds() {
+    int[] ids = new int[size()];
+    int k = 0;
+    for (int id = 0; id < denseSet.length; id++)
+      if (denseSet[id])
+        ids[k++] = id;
+
+    if (sparseKeys != null)
+      for (int slot = 0; slot < sparseKeys.length; slot++)
+        if (sparseKeys[slot] != EMPTY)
+          ids[k++] = sparseKeys[slot];
+
+    return ids;
+  }
+
+  public void times(float value) {
+    for (int id = 0; id < dense.length; id++)
+      dense[id] *= value;
+
+    if (sparseKeys != null)
+      for (int slot = 0; slot < sparseKeys.length; slot++)
+        sparseValues[slot] *= value;
   }
 
+  // ===============================================================
+  // Name-based access
+  // ===============================================================
+
   public boolean containsKey(final String feature) {
-    return features.containsKey(feature);
+    int id = FeatureMap.lookup(feature);
+    return id != -1 && containsKey(id);
   }
 
   /**
@@ -126,13 +283,13 @@ public class FeatureVector {
    * It is therefore good defensive programming to just throw an error when someone tries to get a
    * feature that does not exist - this will automatically eliminate such hard to debug errors. This
    * is what is now implemented.
-   * 
+   *
    * @param feature
    * @return
    */
   public float get(String feature) {
-    if (features.containsKey(feature))
-      return features.get(feature);
+    if (containsKey(feature))
+      return get(FeatureMap.lookup(feature));
 
     throw new RuntimeException(
         "Error : unknown feature "
@@ -143,28 +300,42 @@ public class FeatureVector {
   }
 
   public void put(String feature, float value) {
-    features.put(feature, value);
+    put(FeatureMap.id(feature), value);
   }
 
-  public Map<String, Float> getMap() {
-    return features;
+  /**
+   * Returns the names of the features present in this vector. This builds a new set.
+   */
+  public Set<String> keySet() {
+    Set<String> keys = new LinkedHashSet<String>();
+    for (int id = 0; id < denseSet.length; id++)
+      if (denseSet[id])
+        keys.add(FeatureMap.name(id));
+
+    if (sparseKeys != null)
+      for (int slot = 0; slot < sparseKeys.length; slot++)
+        if (sparseKeys[slot] != EMPTY)
+          keys.add(FeatureMap.name(sparseKeys[slot]));
+
+    return keys;
   }
 
   /**
-   * Computes the inner product between this feature vector and another one.
+   * Returns a copy of this vector as a map from feature names to values. Changes to the map are
+   * not reflected in the vector.
    */
-  public float innerProduct(FeatureVector other) {
-    float cost = 0.0f;
-    for (String key : features.keySet())
-      if (other.containsKey(key))
-        cost += features.get(key) * other.get(key);
+  public Map<String, Float> getMap() {
+    Map<String, Float> map = new HashMap<String, Float>();
+    for (int id = 0; id < denseSet.length; id++)
+      if (denseSet[id])
+        map.put(FeatureMap.name(id), dense[id]);
 
-    return cost;
-  }
+    if (sparseKeys != null)
+      for (int slot = 0; slot < sparseKeys.length; slot++)
+        if (sparseKeys[slot] != EMPTY)
+          map.put(FeatureMap.name(sparseKeys[slot]), sparseValues[slot]);
 
-  public void times(float value) {
-    for (String key : features.keySet())
-      features.put(key, features.get(key) * value);
+    return map;
   }
 
   /***
@@ -172,19 +343,97 @@ public class FeatureVector {
    * in the order they were read in.
    */
   public String toString() {
-    String outputString = "";
+    StringBuilder outputString = new StringBuilder();
 
+    // Printing must not register names; a name that was never registered has id -1 and value 0
     for (String key: Decoder.feature_names) {
-      if (features.containsKey(key) || isDense(key)) {
-        float value = features.containsKey(key) ? features.get(key) : 0.0f;
-        outputString += String.format("%s%s=%.3f", (outputString.length() > 0) ? " " : "", key, value);
+      int id = FeatureMap.lookup(key);
+      if ((id >= 0 && containsKey(id)) || isDense(key)) {
+        if (outputString.length() > 0)
+          outputString.append(" ");
+        outputString.append(String.format("%s=%.3f", key, (id >= 0) ? get(id) : 0.0f));
       }
     }
-    
-    return outputString;
+
+    return outputString.toString();
   }
 
   public static boolean isDense(String feature) {
     return feature.startsWith("tm_") || feature.startsWith("lm_") || feature.equals("WordPenalty");
   }
+
+  // ===============================================================
+  // Storage
+  // ===============================================================
+
+  private void ensureDense(int id) {
+    if (id < dense.length)
+      return;
+
+    int newLength = Math.min(FeatureMap.DENSE_CAPACITY, Math.max(id + 1, 2 * dense.length));
+    float[] newDense = new float[newLength];
+    boolean[] newDenseSet = new boolean[newLength];
+    System.arraycopy(dense, 0, newDense, 0, dense.length);
+    System.arraycopy(denseSet, 0, newDenseSet, 0, denseSet.length);
+    dense = newDense;
+    denseSet = newDenseSet;
+  }
+
+  private static int hash(int id) {
+    int h = id * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /*
+   * Returns the slot holding the id, or the empty slot where it would go, or -1 if the table has
+   * not been allocated.
+   */
+  private int findSlot(int id) {
+    if (sparseKeys == null)
+      return -1;
+
+    int mask = sparseKeys.length - 1;
+    int slot = hash(id) & mask;
+    while (sparseKeys[slot] != EMPTY && sparseKeys[slot] != id)
+      slot = (slot + 1) & mask;
+    return slot;
+  }
+
+  /*
+   * Returns the slot holding the id, inserting it with a value of 0 if it is not present.
+   */
+  private int claimSlot(int id) {
+    if (sparseKeys == null || 2 * (sparseSize + 1) > sparseKeys.length)
+      rehash(sparseKeys == null ? 8 : 2 * sparseKeys.length);
+
+    int slot = findSlot(id);
+    if (sparseKeys[slot] == EMPTY) {
+      sparseKeys[slot] = id;
+      sparseValues[slot] = 0.0f;
+      sparseSize++;
+    }
+    return slot;
+  }
+
+  private void rehash(int capacity) {
+    int[] oldKeys = sparseKeys;
+    float[] oldValues = sparseValues;
+
+    sparseKeys = new int[capacity];
+    sparseValues = new float[capacity];
+    Arrays.fill(sparseKeys, EMPTY);
+
+    if (oldKeys != null) {
+      int mask = capacity - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != EMPTY) {
+          int slot = hash(oldKeys[i]) & mask;
+          while (sparseKeys[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+          sparseKeys[slot] = oldKeys[i];
+          sparseValues[slot] = oldValues[i];
+        }
+      }
+    }
+  }
 }
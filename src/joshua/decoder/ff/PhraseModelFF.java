@@ -1,6 +1,9 @@
 package joshua.decoder.ff;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import joshua.corpus.Vocabulary;
 import joshua.decoder.chart_parser.SourcePath;
@@ -26,6 +29,13 @@ public class PhraseModelFF extends StatelessFF {
   
   private float[] phrase_weights = null;
 
+  /*
+   * The dense weights under other weight vectors that sentences are decoded with (see
+   * Decoder#decodeAll(TranslationRequest, FeatureVector)), keyed by the weight vector itself.
+   */
+  private final Map<FeatureVector, float[]> requestWeights = Collections
+      .synchronizedMap(new WeakHashMap<FeatureVector, float[]>());
+
   public PhraseModelFF(FeatureVector weights, String owner) {
     super(weights, "tm_" + owner, "");
 
@@ -47,12 +57,10 @@ public class PhraseModelFF extends StatelessFF {
     while (weights.containsKey(String.format("tm_%s_%d", owner, num_features)))
       num_features++;
 
-    phrase_weights = new float[num_features];
-    for (int i = 0; i < num_features; i++)
-      phrase_weights[i] = weights.get(String.format("tm_%s_%d", owner, i));
-        
     // Store the owner.
     this.ownerID = Vocabulary.id(owner);
+
+    phrase_weights = denseWeights(weights, num_features);
   }
 
   /**
@@ -86,11 +94,19 @@ public class PhraseModelFF extends StatelessFF {
        * cheating; the Accumulator is supposed to be a generic object. But without this cheat
        */
       if (acc instanceof ScoreAccumulator) {
-        if (rule.getPrecomputableCost() <= Float.NEGATIVE_INFINITY) {
-//          float score = rule.getFeatureVector().innerProduct(weights);
-          rule.setPrecomputableCost(phrase_weights);
+        FeatureVector accWeights = ((ScoreAccumulator) acc).getWeights();
+        if (accWeights == weights) {
+          if (rule.getPrecomputableCost() <= Float.NEGATIVE_INFINITY) {
+//            float score = rule.getFeatureVector().innerProduct(weights);
+            rule.setPrecomputableCost(phrase_weights);
+          }
+          acc.add(featureId, rule.getPrecomputableCost());
+        } else {
+          // The cost cached with the rule is for the decoder's weights, so it can't be used here.
+          acc.add(featureId, rule.computePrecomputableCost(denseWeights(accWeights)));
         }
-        acc.add(name, rule.getPrecomputableCost());
+      } else if (acc instanceof FeatureAccumulator) {
+        ((FeatureAccumulator) acc).add(rule.getFeatureVector());
       } else {
         FeatureVector features = rule.getFeatureVector();
         for (String key : features.keySet())
@@ -101,6 +117,26 @@ public class PhraseModelFF extends StatelessFF {
     return null;
   }
 
+  /**
+   * Returns the dense weights of this grammar's features under the given weight vector.
+   */
+  private float[] denseWeights(FeatureVector weights) {
+    float[] dense = requestWeights.get(weights);
+    if (dense == null) {
+      dense = denseWeights(weights, phrase_weights.length);
+      requestWeights.put(weights, dense);
+    }
+    return dense;
+  }
+
+  private float[] denseWeights(FeatureVector weights, int num_features) {
+    String owner = Vocabulary.word(ownerID);
+    float[] dense = new float[num_features];
+    for (int i = 0; i < num_features; i++)
+      dense[i] = weights.get(String.format("tm_%s_%d", owner, i));
+    return dense;
+  }
+
   public String toString() {
     return name + " " + Vocabulary.word(ownerID);
   }
@@ -59,7 +59,7 @@ public class PhrasePenaltyFF extends StatelessFF {
 
     if (rule != null && rule != Hypothesis.BEGIN_RULE && rule != Hypothesis.END_RULE 
         && (owner == 0 || rule.getOwner() == owner))
-      acc.add(name, 1);
+      acc.add(featureId, 1);
 
     return null;
   }
@@ -27,7 +27,7 @@ public final class SourcePathFF extends StatelessFF {
   public DPState compute(Rule rule, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath,
       int sentID, Accumulator acc) {
 
-    acc.add(name,  sourcePath.getPathCost());
+    acc.add(featureId,  sourcePath.getPathCost());
     return null;
   }
 }
@@ -32,7 +32,7 @@ public final class WordPenaltyFF extends StatelessFF {
       int sentID, Accumulator acc) {
     
     if (rule != null && rule != Hypothesis.BEGIN_RULE && rule != Hypothesis.END_RULE)
-      acc.add(name, OMEGA * (rule.getEnglish().length - rule.getArity()));
+      acc.add(featureId, OMEGA * (rule.getEnglish().length - rule.getArity()));
 
     return null;
   }
@@ -91,6 +91,25 @@ public abstract class DefaultNGramLanguageModel implements NGramLanguageModel {
     return probability;
   }
 
+  /**
+   * Returns the number of words at the end of a right-hand LM context that can affect the
+   * probabilities of the words following it. The earlier words need not distinguish LM states.
+   * Models that support right-state minimization override this; by default, all words count.
+   * 
+   * @param context the last words of a hypothesis
+   * @return the length of the suffix of the context that matters
+   */
+  public int rightStateLength(int[] context) {
+    return rightStateLength(context, 0, context.length);
+  }
+
+  /**
+   * As above, for the context held in words[from..from+length).
+   */
+  public int rightStateLength(int[] words, int from, int length) {
+    return length;
+  }
+
   @Override
   public float ngramLogProbability(int[] ngram) {
     return this.ngramLogProbability(ngram, this.ngramOrder);
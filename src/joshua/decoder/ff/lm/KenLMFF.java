@@ -4,9 +4,11 @@ import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import joshua.corpus.Vocabulary;
+import joshua.decoder.chart_parser.EdgeBatch;
 import joshua.decoder.chart_parser.SourcePath;
 import joshua.decoder.ff.FeatureVector;
 import joshua.decoder.ff.lm.kenlm.jni.KenLM;
+import joshua.decoder.ff.lm.kenlm.jni.KenLM.RuleBatch;
 import joshua.decoder.ff.lm.kenlm.jni.KenLM.StateProbPair;
 import joshua.decoder.ff.state_maintenance.DPState;
 import joshua.decoder.ff.state_maintenance.KenLMState;
@@ -24,6 +26,14 @@ public class KenLMFF extends LanguageModelFF {
   // maps from sentence numbers to KenLM-side pools used to allocate state
   private static final ConcurrentHashMap<Integer, Long> poolMap = new ConcurrentHashMap<Integer, Long>();
 
+  // the buffers used to pass rules to KenLM, one per decoding thread
+  private static final ThreadLocal<RuleBatch> batches = new ThreadLocal<RuleBatch>() {
+    @Override
+    protected RuleBatch initialValue() {
+      return new RuleBatch();
+    }
+  };
+
   public KenLMFF(FeatureVector weights, String featureName, KenLM lm) {
     super(weights, featureName, lm);
   }
@@ -90,19 +100,80 @@ public class KenLMFF extends LanguageModelFF {
       }
     }
 
-    if (!poolMap.containsKey(sentID))
-      poolMap.put(sentID, KenLM.createPool());
-
     // Get the probability of applying the rule and the new state
-    StateProbPair pair = ((KenLM) languageModel).probRule(words, poolMap.get(sentID));
+    StateProbPair pair = ((KenLM) languageModel).probRule(words, getPool(sentID));
 
     // Record the prob
-    acc.add(name, pair.prob);
+    acc.add(featureId, pair.prob);
 
     // Return the state
     return pair.state;
   }
 
+  /**
+   * Scores all the edges of the batch with a single call to KenLM.
+   */
+  @Override
+  public DPState[] computeAll(EdgeBatch edges, int sentID, Accumulator[] accs) {
+
+    RuleBatch batch = batches.get();
+    batch.clear();
+    for (int k = 0; k < edges.size(); k++)
+      addRule(batch, edges.getRule(k), edges.getTailNodes(k));
+
+    ((KenLM) languageModel).probRules(batch, getPool(sentID));
+
+    DPState[] states = new DPState[edges.size()];
+    for (int k = 0; k < edges.size(); k++) {
+      accs[k].add(featureId, batch.getProb(k));
+      states[k] = new KenLMState(batch.getState(k));
+    }
+    return states;
+  }
+
+  /**
+   * Adds the words of the rule to the batch, in the form KenLM expects: terminals are passed as
+   * is, and nonterminals are replaced by the negated KenLM state of the corresponding tail node.
+   */
+  private void addRule(RuleBatch batch, Rule rule, List<HGNode> tailNodes) {
+    int[] ruleWords = rule.getEnglish();
+
+    batch.startRule(ruleWords.length);
+    for (int x = 0; x < ruleWords.length; x++) {
+      int id = ruleWords[x];
+
+      if (Vocabulary.nt(id)) {
+        // Nonterminal: retrieve the KenLM long that records the state
+        int index = -(id + 1);
+        KenLMState state = (KenLMState) tailNodes.get(index).getDPState(stateIndex);
+        batch.addWord(-state.getState());
+
+      } else {
+        // Terminal: just add it
+        batch.addWord(id);
+      }
+    }
+  }
+
+  /**
+   * Returns the KenLM-side pool for the sentence, creating it if necessary. Cells of one sentence
+   * may be scored from several threads at once, so creation must not race (a losing pool would
+   * never be destroyed).
+   */
+  private long getPool(int sentID) {
+    Long pool = poolMap.get(sentID);
+    if (pool == null) {
+      synchronized (poolMap) {
+        pool = poolMap.get(sentID);
+        if (pool == null) {
+          pool = KenLM.createPool();
+          poolMap.put(sentID, pool);
+        }
+      }
+    }
+    return pool;
+  }
+
   /**
    * Destroys the pool created to allocate state for this sentence. Called from the
    * {@link joshua.decoder.Translation} class after outputting the sentence or k-best list. Hosting
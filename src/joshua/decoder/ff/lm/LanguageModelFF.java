@@ -1,12 +1,12 @@
 package joshua.decoder.ff.lm;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 
 import joshua.corpus.Vocabulary;
-import joshua.decoder.Support;
 import joshua.decoder.chart_parser.SourcePath;
 import joshua.decoder.ff.FeatureVector;
 import joshua.decoder.ff.StatefulFF;
@@ -59,10 +59,52 @@ public class LanguageModelFF extends StatefulFF {
    */
   protected float weight;
 
+  /**
+   * The language model, if it supports right-state minimization and it was requested; otherwise
+   * null.
+   */
+  private final DefaultNGramLanguageModel minimizer;
+
+  /* Tags distinguishing the kinds of scores kept in the caches */
+  private static final int NGRAM = 0;
+  private static final int CHUNK = 1;
+  private static final int CHUNK_SKIP_START = 2;
+
+  /**
+   * Caches of n-gram scores, one per thread, or null if caching is disabled. The caches are also
+   * referenced weakly from allCaches, for reporting, so that those of threads that have finished
+   * can be collected.
+   */
+  private final ThreadLocal<NgramCache> caches;
+  private final List<WeakReference<NgramCache>> allCaches =
+      new ArrayList<WeakReference<NgramCache>>();
+
+  /**
+   * Scratch space for scoring, one per thread: an array of each length up to the order, holding
+   * the n-gram or chunk being scored.
+   */
+  private final ThreadLocal<int[][]> scratch = new ThreadLocal<int[][]>() {
+    @Override
+    protected int[][] initialValue() {
+      int[][] buffers = new int[ngramOrder + 1][];
+      for (int n = 0; n <= ngramOrder; n++)
+        buffers[n] = new int[n];
+      return buffers;
+    }
+  };
+
   /**
    *
    */
   public LanguageModelFF(FeatureVector weights, String featureName, NGramLanguageModel lm) {
+    this(weights, featureName, lm, 0);
+  }
+
+  /**
+   * @param cacheSize the number of scores each decoding thread caches (0 to disable caching)
+   */
+  public LanguageModelFF(FeatureVector weights, String featureName, NGramLanguageModel lm,
+      final int cacheSize) {
     super(weights, featureName);
     this.languageModel = lm;
     this.ngramOrder = lm.getOrder();
@@ -70,6 +112,27 @@ public class LanguageModelFF extends StatefulFF {
     LanguageModelFF.STOP_SYM_ID = Vocabulary.id(Vocabulary.STOP_SYM);
 
     this.weight = weights.get(name);
+    this.minimizer = (lm.isMinimizing() && lm instanceof DefaultNGramLanguageModel)
+        ? (DefaultNGramLanguageModel) lm : null;
+
+    if (cacheSize > 0) {
+      caches = new ThreadLocal<NgramCache>() {
+        @Override
+        protected NgramCache initialValue() {
+          NgramCache cache = new NgramCache(cacheSize, ngramOrder);
+          synchronized (allCaches) {
+            Iterator<WeakReference<NgramCache>> it = allCaches.iterator();
+            while (it.hasNext())
+              if (it.next().get() == null)
+                it.remove();
+            allCaches.add(new WeakReference<NgramCache>(cache));
+          }
+          return cache;
+        }
+      };
+    } else {
+      caches = null;
+    }
   }
 
   public NGramLanguageModel getLM() {
@@ -83,6 +146,63 @@ public class LanguageModelFF extends StatefulFF {
       return "WHOA";
   }
 
+  /**
+   * The number of lookups answered from the caches so far, over all live threads.
+   */
+  public long getCacheHits() {
+    long hits = 0;
+    synchronized (allCaches) {
+      for (WeakReference<NgramCache> ref : allCaches) {
+        NgramCache cache = ref.get();
+        if (cache != null)
+          hits += cache.getHits();
+      }
+    }
+    return hits;
+  }
+
+  /**
+   * The number of lookups that had to go to the language model so far, over all live threads.
+   */
+  public long getCacheMisses() {
+    long misses = 0;
+    synchronized (allCaches) {
+      for (WeakReference<NgramCache> ref : allCaches) {
+        NgramCache cache = ref.get();
+        if (cache != null)
+          misses += cache.getMisses();
+      }
+    }
+    return misses;
+  }
+
+  public boolean isCaching() {
+    return caches != null;
+  }
+
+  /*
+   * Returns this thread's cache, or null if caching is disabled. Language model scores don't depend
+   * on the sentence, so the cache is shared by all the sentences the thread decodes.
+   */
+  private NgramCache cache() {
+    return (caches == null) ? null : caches.get();
+  }
+
+  /*
+   * Scores a complete n-gram, going through the cache if there is one.
+   */
+  private float ngramLogProbability(int[] ngram, NgramCache cache) {
+    if (cache == null)
+      return this.languageModel.ngramLogProbability(ngram, ngram.length);
+
+    float prob = cache.get(ngram, 0, ngram.length, NGRAM);
+    if (Float.isNaN(prob)) {
+      prob = this.languageModel.ngramLogProbability(ngram, ngram.length);
+      cache.put(ngram, 0, ngram.length, NGRAM, prob);
+    }
+    return prob;
+  }
+
   /**
    * Computes the features incurred along this edge. Note that these features are unweighted costs
    * of the feature; they are the feature cost, not the model cost, or the inner product of them.
@@ -93,14 +213,15 @@ public class LanguageModelFF extends StatefulFF {
 
     NgramDPState newState = null;
     if (rule != null)
-      newState = computeTransition(rule.getEnglish(), tailNodes, acc);
+      newState = computeTransition(rule.getEnglish(), tailNodes, acc, cache());
 
     return newState;
   }
 
   public DPState computeFinal(HGNode tailNode, int i, int j, SourcePath sourcePath, int sentID,
       Accumulator acc) {
-    return computeFinalTransition((NgramDPState) tailNode.getDPState(stateIndex), acc);
+    return computeFinalTransition((NgramDPState) tailNode.getDPState(stateIndex), acc,
+        cache());
   }
 
   /**
@@ -115,7 +236,7 @@ public class LanguageModelFF extends StatefulFF {
 
     int[] enWords = rule.getEnglish();
 
-    List<Integer> words = new ArrayList<Integer>();
+    int start = 0;
     boolean skipStart = (enWords[0] == START_SYM_ID);
 
     /*
@@ -123,16 +244,15 @@ public class LanguageModelFF extends StatefulFF {
      * 2), and resetting the series of words when we hit a nonterminal.
      */
     for (int c = 0; c < enWords.length; c++) {
-      int currentWord = enWords[c];
-      if (Vocabulary.nt(currentWord)) {
-        estimate += scoreChunkLogP(words, considerIncompleteNgrams, skipStart);
-        words.clear();
+      if (Vocabulary.nt(enWords[c])) {
+        estimate += scoreChunkLogP(Arrays.copyOfRange(enWords, start, c),
+            considerIncompleteNgrams, skipStart);
+        start = c + 1;
         skipStart = false;
-      } else {
-        words.add(currentWord);
       }
     }
-    estimate += scoreChunkLogP(words, considerIncompleteNgrams, skipStart);
+    estimate += scoreChunkLogP(Arrays.copyOfRange(enWords, start, enWords.length),
+        considerIncompleteNgrams, skipStart);
 
     return weight * estimate;
   }
@@ -146,19 +266,28 @@ public class LanguageModelFF extends StatefulFF {
     NgramDPState state = (NgramDPState) currentState;
 
     float estimate = 0.0f;
-    int[] leftContext = state.getLeftLMStateWords();
+    int length = state.getLength();
 
-    if (null != leftContext) {
-      List<Integer> words = new ArrayList<Integer>();
-      for (int w : leftContext)
-        words.add(w);
+    if (length > 0) {
+      int[] leftContext = scratch.get()[length];
+      for (int i = 0; i < length; i++)
+        leftContext[i] = state.getLeftWord(i);
 
       boolean considerIncompleteNgrams = true;
       boolean skipStart = true;
-      if (words.get(0) != START_SYM_ID) {
+      if (leftContext[0] != START_SYM_ID) {
         skipStart = false;
       }
-      estimate += scoreChunkLogP(words, considerIncompleteNgrams, skipStart);
+
+      NgramCache cache = cache();
+      int tag = skipStart ? CHUNK_SKIP_START : CHUNK;
+      float score = (cache == null) ? Float.NaN : cache.get(leftContext, 0, length, tag);
+      if (Float.isNaN(score)) {
+        score = scoreChunkLogP(leftContext, considerIncompleteNgrams, skipStart);
+        if (cache != null)
+          cache.put(leftContext, 0, length, tag, score);
+      }
+      estimate += score;
     }
 
     return weight * estimate;
@@ -176,16 +305,20 @@ public class LanguageModelFF extends StatefulFF {
    * than the complete n-gram state remain *unscored*. This fact adds a lot of complication to the
    * code, including the use of the computeFinal* family of functions, which correct this fact for
    * sentences that are too short on the final transition.
+   * 
+   * This is the innermost loop of decoding, so the only allocation is the new state: words are
+   * accumulated in this thread's scratch buffer, shifting it left after each complete n-gram.
    */
-  private NgramDPState computeTransition(int[] enWords, List<HGNode> tailNodes, Accumulator acc) {
+  private NgramDPState computeTransition(int[] enWords, List<HGNode> tailNodes, Accumulator acc,
+      NgramCache cache) {
 
-    int[] current = new int[this.ngramOrder];
-    int[] shadow = new int[this.ngramOrder];
+    int[] current = scratch.get()[this.ngramOrder];
     int ccount = 0;
     float transitionLogP = 0.0f;
-    int[] left_context = null;
-    
-//    System.err.println(String.format("LanguageModel::computeTransition(%s)", Arrays.toString(enWords)));
+
+    // The new state (left context, then right context), created once the left context is complete
+    int stateLength = this.ngramOrder - 1;
+    int[] stateWords = null;
 
     for (int c = 0; c < enWords.length; c++) {
       int curID = enWords[c];
@@ -194,56 +327,50 @@ public class LanguageModelFF extends StatefulFF {
         int index = -(curID + 1);
 
         NgramDPState state = (NgramDPState) tailNodes.get(index).getDPState(stateIndex);
-        int[] left = state.getLeftLMStateWords();
-        int[] right = state.getRightLMStateWords();
+        int length = state.getLength();
 
         // Left context.
-        for (int i = 0; i < left.length; i++) {
-          current[ccount++] = left[i];
+        for (int i = 0; i < length; i++) {
+          current[ccount++] = state.getLeftWord(i);
 
-          if (left_context == null && ccount == this.ngramOrder - 1)
-            left_context = Arrays.copyOf(current, ccount);
+          if (stateWords == null && ccount == stateLength)
+            stateWords = Arrays.copyOf(current, 2 * stateLength);
 
           if (ccount == this.ngramOrder) {
             // Compute the current word probability, and remove it.
-            float prob = this.languageModel.ngramLogProbability(current, this.ngramOrder);
-//            System.err.println(String.format("-> prob(%s) = %f", Vocabulary.getWords(current), prob));
-            transitionLogP += prob;
-            System.arraycopy(current, 1, shadow, 0, this.ngramOrder - 1);
-            int[] tmp = current;
-            current = shadow;
-            shadow = tmp;
+            transitionLogP += ngramLogProbability(current, cache);
+            System.arraycopy(current, 1, current, 0, this.ngramOrder - 1);
             --ccount;
           }
         }
-        System.arraycopy(right, 0, current, ccount - right.length, right.length);
+        for (int i = 0; i < length; i++)
+          current[ccount - length + i] = state.getRightWord(i);
+
       } else { // terminal words
         current[ccount++] = curID;
 
-        if (left_context == null && ccount == this.ngramOrder - 1)
-          left_context = Arrays.copyOf(current, ccount);
+        if (stateWords == null && ccount == stateLength)
+          stateWords = Arrays.copyOf(current, 2 * stateLength);
 
         if (ccount == this.ngramOrder) {
-          // Compute the current word probability, and remove it.s
-          float prob = this.languageModel.ngramLogProbability(current, this.ngramOrder);
-//          System.err.println(String.format("-> prob(%s) = %f", Vocabulary.getWords(current), prob));
-          transitionLogP += prob;
-          System.arraycopy(current, 1, shadow, 0, this.ngramOrder - 1);
-          int[] tmp = current;
-          current = shadow;
-          shadow = tmp;
+          // Compute the current word probability, and remove it.
+          transitionLogP += ngramLogProbability(current, cache);
+          System.arraycopy(current, 1, current, 0, this.ngramOrder - 1);
           --ccount;
         }
       }
     }
-    acc.add(name, transitionLogP);
+    acc.add(featureId, transitionLogP);
 
-    if (left_context != null) {
-      return new NgramDPState(left_context, Arrays.copyOfRange(current, ccount - this.ngramOrder
-          + 1, ccount));
+    if (stateWords != null) {
+      System.arraycopy(current, ccount - stateLength, stateWords, stateLength, stateLength);
+      int rightLength = (minimizer != null)
+          ? minimizer.rightStateLength(stateWords, stateLength, stateLength) : stateLength;
+      return new NgramDPState(stateWords, stateLength, rightLength);
     } else {
-      int[] context = Arrays.copyOf(current, ccount);
-      return new NgramDPState(context, context);
+      int[] context = Arrays.copyOf(current, 2 * ccount);
+      System.arraycopy(current, 0, context, ccount, ccount);
+      return new NgramDPState(context, ccount, ccount);
     }
   }
 
@@ -255,33 +382,27 @@ public class LanguageModelFF extends StatefulFF {
    * @param state the dynamic programming state
    * @return the final transition probability (including incomplete n-grams)
    */
-  private NgramDPState computeFinalTransition(NgramDPState state, Accumulator acc) {
+  private NgramDPState computeFinalTransition(NgramDPState state, Accumulator acc,
+      NgramCache cache) {
 
-//    System.err.println(String.format("LanguageModel::computeFinalTransition()"));
-    
     float res = 0.0f;
-    LinkedList<Integer> currentNgram = new LinkedList<Integer>();
-    int[] leftContext = state.getLeftLMStateWords();
-    int[] rightContext = state.getRightLMStateWords();
-
-    for (int i = 0; i < leftContext.length; i++) {
-      int t = leftContext[i];
-      currentNgram.add(t);
-
-      if (currentNgram.size() >= 2) { // start from bigram
-        float prob = this.languageModel.ngramLogProbability(Support.toArray(currentNgram),
-            currentNgram.size());
-        res += prob;
+    int[][] ngrams = scratch.get();
+    for (int i = 0; i < state.getLength(); i++) {
+      // The n-gram ending at this word, starting from bigrams
+      int n = Math.min(i + 1, this.ngramOrder);
+      if (n >= 2) {
+        int[] ngram = ngrams[n];
+        for (int k = 0; k < n; k++)
+          ngram[k] = state.getLeftWord(i - n + 1 + k);
+        res += ngramLogProbability(ngram, cache);
       }
-      if (currentNgram.size() == this.ngramOrder)
-        currentNgram.removeFirst();
     }
 
     // Tell the accumulator
-    acc.add(name, res);
+    acc.add(featureId, res);
 
     // State is the same
-    return new NgramDPState(leftContext, rightContext);
+    return state;
   }
 
   /**
@@ -294,11 +415,10 @@ public class LanguageModelFF extends StatefulFF {
    * @param skipStart
    * @return the phrase log probability
    */
-  private float scoreChunkLogP(List<Integer> words, boolean considerIncompleteNgrams,
-      boolean skipStart) {
+  private float scoreChunkLogP(int[] words, boolean considerIncompleteNgrams, boolean skipStart) {
 
     float score = 0.0f;
-    if (words.size() > 0) {
+    if (words.length > 0) {
       int startIndex;
       if (!considerIncompleteNgrams) {
         startIndex = this.ngramOrder;
@@ -307,8 +427,7 @@ public class LanguageModelFF extends StatefulFF {
       } else {
         startIndex = 1;
       }
-      score = this.languageModel.sentenceLogProbability(
-          Support.subIntArray(words, 0, words.size()), this.ngramOrder, startIndex);
+      score = this.languageModel.sentenceLogProbability(words, this.ngramOrder, startIndex);
     }
 
     return score;
@@ -0,0 +1,156 @@
+package joshua.decoder.ff.lm;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size cache of language model scores, keyed by sequences of word ids. The same n-grams
+ * are scored over and over, whenever hypotheses sharing boundary words are combined, so
+ * {@link LanguageModelFF} puts one of these in front of its language model.
+ *
+ * The cache is an open-addressed table whose keys are stored packed in a single int array, each
+ * slot holding a header (the length of the sequence and a tag distinguishing different kinds of
+ * scores) followed by the words. There are no objects per entry, and no false hits. A lookup
+ * probes a few slots; if they are all taken, an insertion replaces the first of them.
+ *
+ * Caches are not thread-safe; {@link LanguageModelFF} keeps one per thread. The scores don't depend
+ * on the sentence being decoded, so entries are kept across sentences, and the cache is only
+ * cleared when it is three quarters full, which advances a generation counter.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class NgramCache {
+
+  private static final int MAX_PROBES = 4;
+
+  // The number of ints per slot: the header plus the longest key
+  private final int width;
+  private final int mask;
+
+  private final int[] keys;
+  private final float[] values;
+  // The generation in which each slot was written; slots of older generations are empty
+  private final int[] generations;
+  private int generation = 1;
+
+  // The number of slots of the current generation, and how many there may be before clearing
+  private int size = 0;
+  private final int capacity;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * @param size the number of entries (rounded up to a power of two)
+   * @param maxLength the longest sequence of words that will be used as a key
+   */
+  public NgramCache(int size, int maxLength) {
+    int slots = Integer.highestOneBit(Math.max(size, MAX_PROBES) - 1) << 1;
+    this.width = maxLength + 1;
+    this.mask = slots - 1;
+    this.keys = new int[slots * width];
+    this.values = new float[slots];
+    this.generations = new int[slots];
+    this.capacity = slots - slots / 4;
+  }
+
+  /**
+   * Empties the cache.
+   */
+  public void clear() {
+    size = 0;
+    if (++generation == Integer.MAX_VALUE) {
+      Arrays.fill(generations, 0);
+      generation = 1;
+    }
+  }
+
+  /**
+   * Returns the score cached for words[from..from+length) under the given tag, or NaN if there is
+   * none.
+   */
+  public float get(int[] words, int from, int length, int tag) {
+    int header = header(length, tag);
+    int hash = hash(words, from, length, header);
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int slot = (hash + probe) & mask;
+      if (generations[slot] != generation)
+        break;
+      if (matches(slot, header, words, from, length)) {
+        hits++;
+        return values[slot];
+      }
+    }
+    misses++;
+    return Float.NaN;
+  }
+
+  /**
+   * Caches the score of words[from..from+length) under the given tag, clearing the cache first if
+   * it is full.
+   */
+  public void put(int[] words, int from, int length, int tag, float value) {
+    int header = header(length, tag);
+    int hash = hash(words, from, length, header);
+    int slot = hash & mask;
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int s = (hash + probe) & mask;
+      if (generations[s] != generation) {
+        if (size == capacity) {
+          clear();
+          s = hash & mask;
+        }
+        size++;
+        slot = s;
+        break;
+      }
+      if (matches(s, header, words, from, length)) {
+        slot = s;
+        break;
+      }
+    }
+
+    int position = slot * width;
+    keys[position] = header;
+    System.arraycopy(words, from, keys, position + 1, length);
+    values[slot] = value;
+    generations[slot] = generation;
+  }
+
+  /**
+   * The number of scores in the cache.
+   */
+  public int size() {
+    return size;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  private int header(int length, int tag) {
+    if (length >= width)
+      throw new IllegalArgumentException("Key of " + length + " words is too long for the cache");
+    return (tag << 8) | length;
+  }
+
+  private boolean matches(int slot, int header, int[] words, int from, int length) {
+    int position = slot * width;
+    if (keys[position] != header)
+      return false;
+    for (int i = 0; i < length; i++)
+      if (keys[position + 1 + i] != words[from + i])
+        return false;
+    return true;
+  }
+
+  private static int hash(int[] words, int from, int length, int header) {
+    int hash = header;
+    for (int i = from; i < from + length; i++)
+      hash = (hash + words[i]) * 0x9E3779B1;
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -1,5 +1,8 @@
 package joshua.decoder.ff.lm.kenlm.jni;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import joshua.decoder.ff.lm.NGramLanguageModel;
 import joshua.decoder.ff.state_maintenance.KenLMState;
 
@@ -19,6 +22,10 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     System.loadLibrary("ken");
   }
 
+  // whether the library has probRules(); libraries built before it was added score batches one rule
+  // at a time with probRule() instead
+  static boolean batched = hasProbRules();
+
   private final long pointer;
 
   // this is read from the config file, used to set maximum order
@@ -39,6 +46,9 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
   private final static native float prob(long ptr, int words[]);
 
   private final static native StateProbPair probRule(long ptr, long pool, long words[]);
+
+  private final static native void probRules(long ptr, long pool, ByteBuffer words, int count,
+      ByteBuffer results);
   
   private final static native float estimateRule(long ptr, long words[]);
 
@@ -100,6 +110,51 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     return pair;
   }
 
+  /**
+   * Scores every rule in the batch with a single call into KenLM. This is the same computation as
+   * {@link #probRule(long[], long)}, but the words are passed in and the states and probabilities
+   * returned through direct buffers, so that there is only one JNI transition per batch and no
+   * objects are allocated on either side.
+   * 
+   * @param batch
+   * @param poolPointer
+   */
+  public void probRules(RuleBatch batch, long poolPointer) {
+    if (batch.size == 0)
+      return;
+
+    batch.ensureResults();
+    if (batched) {
+      probRules(pointer, poolPointer, batch.words, batch.size, batch.results);
+      return;
+    }
+
+    int position = 0;
+    for (int k = 0; k < batch.size; k++) {
+      long[] words = new long[(int) batch.words.getLong(8 * position++)];
+      for (int x = 0; x < words.length; x++)
+        words[x] = batch.words.getLong(8 * position++);
+      StateProbPair pair = probRule(pointer, poolPointer, words);
+      batch.results.putLong(8 * k, pair.state.getState());
+      batch.results.putFloat(8 * batch.size + 4 * k, pair.prob);
+    }
+  }
+
+  /*
+   * Checks whether the loaded library has probRules(), by calling it with an empty batch, which
+   * touches neither the model nor the pool.
+   */
+  private static boolean hasProbRules() {
+    ByteBuffer empty = ByteBuffer.allocateDirect(8);
+    try {
+      probRules(0, 0, empty, 0, empty);
+      return true;
+    } catch (UnsatisfiedLinkError e) {
+      System.err.println("* WARNING: libken has no probRules(); rebuild it to score rules in batches");
+      return false;
+    }
+  }
+
   /**
    * Public facing function that estimates the cost of a rule, which value is used for sorting
    * rules during cube pruning.
@@ -134,6 +189,80 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     }
   }
 
+  /**
+   * A reusable batch of rules to be scored by {@link KenLM#probRules(RuleBatch, long)}. Each rule
+   * is written to a direct buffer as its length followed by its words (encoded as for
+   * {@link KenLM#probRule(long[], long)}), all as native-order longs. KenLM writes the state of
+   * each rule to the results buffer, followed by all the probabilities as floats. The buffers grow
+   * as needed and are kept across batches; a batch must only be used by one thread at a time.
+   */
+  public static class RuleBatch {
+    private ByteBuffer words = allocate(1024);
+    private ByteBuffer results = allocate(256);
+
+    // The number of rules, and the position (in longs) where the next word will be written
+    private int size = 0;
+    private int position = 0;
+
+    /**
+     * Empties the batch.
+     */
+    public void clear() {
+      size = 0;
+      position = 0;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Starts a new rule with the given number of words, which must then be added with
+     * {@link #addWord(long)}.
+     */
+    public void startRule(int length) {
+      ensureWords(position + 1 + length);
+      words.putLong(8 * position++, length);
+      size++;
+    }
+
+    public void addWord(long word) {
+      words.putLong(8 * position++, word);
+    }
+
+    /**
+     * Returns the KenLM state pointer of the kth rule after scoring.
+     */
+    public long getState(int k) {
+      return results.getLong(8 * k);
+    }
+
+    /**
+     * Returns the probability of the kth rule after scoring.
+     */
+    public float getProb(int k) {
+      return results.getFloat(8 * size + 4 * k);
+    }
+
+    private void ensureWords(int longs) {
+      if (8 * longs > words.capacity()) {
+        ByteBuffer bigger = allocate(Math.max(2 * words.capacity(), 8 * longs));
+        words.position(0).limit(8 * position);
+        bigger.put(words);
+        words = bigger;
+      }
+    }
+
+    private void ensureResults() {
+      if (12 * size > results.capacity())
+        results = allocate(Math.max(2 * results.capacity(), 12 * size));
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+      return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+  }
+
   @Override
   public int compareTo(KenLM other) {
     if (this == other)
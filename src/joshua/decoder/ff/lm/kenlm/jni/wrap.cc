@@ -45,34 +45,47 @@ typedef __gnu_cxx::hash_map<uint64_t, lm::ngram::ChartState*> PoolHash;
  * instantiated using a pool. This allows duplicate states to avoid allocating separate
  * state objects at multiple places throughout a sentence, and also allows state to be
  * shared across KenLMs for the same sentence.
+ *
+ * The cells of a sentence may be scored from several Java threads at once, so insertion
+ * is guarded by a mutex. Scoring itself happens outside the lock.
  */
 struct Chart {
   // A cache for allocated chart objects
   PoolHash* poolHash;
   // Pool used to allocate new ones
   util::Pool* pool;
+  // Guards poolHash and pool
+  pthread_mutex_t lock;
 
   Chart() {
     poolHash = new PoolHash();
     pool = new util::Pool();
+    pthread_mutex_init(&lock, NULL);
   }
 
   ~Chart() {
     delete poolHash;
     pool->FreeAll();
     delete pool;
+    pthread_mutex_destroy(&lock);
   }
 
   lm::ngram::ChartState* put(const lm::ngram::ChartState& state) {
     uint64_t hashValue = lm::ngram::hash_value(state);
   
-    if (poolHash->find(hashValue) == poolHash->end()) {
-      lm::ngram::ChartState* pointer = (lm::ngram::ChartState *)pool->Allocate(sizeof(lm::ngram::ChartState));
+    pthread_mutex_lock(&lock);
+    lm::ngram::ChartState* pointer;
+    PoolHash::iterator found = poolHash->find(hashValue);
+    if (found == poolHash->end()) {
+      pointer = (lm::ngram::ChartState *)pool->Allocate(sizeof(lm::ngram::ChartState));
       *pointer = state;
       (*poolHash)[hashValue] = pointer;
+    } else {
+      pointer = found->second;
     }
+    pthread_mutex_unlock(&lock);
 
-    return (*poolHash)[hashValue];
+    return pointer;
   }
 };
 
@@ -395,6 +408,29 @@ JNIEXPORT jobject JNICALL Java_joshua_decoder_ff_lm_kenlm_jni_KenLM_probRule(
   return env->NewObject(base->ChartPair(), base->ChartPairInit(), (long)outStatePtr, prob);
 }
 
+/**
+ * Scores a batch of rules in one call. The words buffer holds, for each rule, its length followed
+ * by its words, as for probRule. The state pointer of each rule is written to the start of the
+ * results buffer, followed by the probabilities of all the rules.
+ */
+JNIEXPORT void JNICALL Java_joshua_decoder_ff_lm_kenlm_jni_KenLM_probRules(
+  JNIEnv *env, jclass, jlong pointer, jlong chartPtr, jobject wordsBuffer, jint count,
+  jobject resultsBuffer) {
+  jlong *words = reinterpret_cast<jlong*>(env->GetDirectBufferAddress(wordsBuffer));
+  jlong *states = reinterpret_cast<jlong*>(env->GetDirectBufferAddress(resultsBuffer));
+  jfloat *probs = reinterpret_cast<jfloat*>(states + count);
+
+  const VirtualBase *base = reinterpret_cast<const VirtualBase*>(pointer);
+  Chart* chart = reinterpret_cast<Chart*>(chartPtr);
+  for (jint i = 0; i < count; ++i) {
+    jlong length = *words++;
+    lm::ngram::ChartState outState;
+    probs[i] = base->ProbRule(words, words + length, outState);
+    states[i] = reinterpret_cast<jlong>(chart->put(outState));
+    words += length;
+  }
+}
+
 JNIEXPORT jfloat JNICALL Java_joshua_decoder_ff_lm_kenlm_jni_KenLM_estimateRule(
   JNIEnv *env, jclass, jlong pointer, jlongArray arr) {
   jint length = env->GetArrayLength(arr);
@@ -0,0 +1,297 @@
+package joshua.decoder.ff.lm.mapped_lm;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+import joshua.decoder.ff.lm.DefaultNGramLanguageModel;
+import joshua.util.io.MappedFile;
+
+/**
+ * A backoff n-gram language model stored in a memory-mapped file, for hosts that cannot load the
+ * native KenLM library. The file is built from an ARPA file with
+ * {@link MappedLanguageModelBuilder}.
+ *
+ * The n-grams of each order (above unigrams) are kept in a linear-probing hash table, as in
+ * KenLM's probing model. Each bucket holds the 64-bit hash of the n-gram, which serves as its key,
+ * and a 32-bit value containing the quantized probability, the quantized backoff weight, and a
+ * flag recording whether the n-gram is the context of some longer n-gram. Probabilities and
+ * backoffs are quantized separately for each order, against a codebook stored in the header.
+ * Unigrams and the vocabulary are read onto the heap; the tables are mapped, so loading is
+ * immediate, and several decoders using the same model share its pages.
+ *
+ * If minimization was requested, {@link #rightStateLength(int[], int, int)} reports how many words of a right
+ * context can influence the probabilities of words that follow it (see LanguageModelFF).
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class MappedLanguageModel extends DefaultNGramLanguageModel {
+
+  private static final Logger logger = Logger.getLogger(MappedLanguageModel.class.getName());
+
+  /* "JOSHUALM" */
+  static final long MAGIC = 0x4a4f534855414c4dL;
+  static final int VERSION = 1;
+
+  /* Layout of a bucket value: the probability code, the backoff code, and the extension flag. */
+  static final int PROB_BITS = 16;
+  static final int BACKOFF_BITS = 15;
+  static final int PROB_MASK = (1 << PROB_BITS) - 1;
+  static final int BACKOFF_MASK = (1 << BACKOFF_BITS) - 1;
+  static final int EXTENDS = 1 << 31;
+
+  /* The probability code of blanks, n-grams added only so that their extensions can be found. */
+  static final int BLANK = PROB_MASK;
+
+  /* The LM id of unknown words. */
+  static final int UNKNOWN = 0;
+
+  // The order of the model in the file (the decoder may use a lower one).
+  private final int modelOrder;
+  private final boolean minimizing;
+
+  // The LM's private vocabulary, and the mapping to it from Joshua's ids.
+  private final HashMap<String, Integer> vocabulary;
+  private volatile int[] idMap = new int[0];
+
+  private final float[] unigramProbs;
+  private final float[] unigramBackoffs;
+  private final boolean[] unigramExtends;
+
+  // The tables of orders 2 and above, indexed by order.
+  private final MappedFile file;
+  private final long[] keyPositions;
+  private final long[] valueIndices;
+  private final long[] bucketMasks;
+  private final float[][] probCodebooks;
+  private final float[][] backoffCodebooks;
+
+  public MappedLanguageModel(int order, String filename, boolean minimizing) throws IOException {
+    super(order);
+    this.minimizing = minimizing;
+
+    DataInputStream in = new DataInputStream(new FileInputStream(filename));
+    byte[] header;
+    try {
+      if (in.readLong() != MAGIC)
+        throw new IOException(filename + " is not a mapped language model");
+      if (in.readInt() != VERSION)
+        throw new IOException(filename + ": unsupported version (rebuild it from the ARPA file)");
+      header = new byte[in.readInt()];
+      in.readFully(header);
+    } finally {
+      in.close();
+    }
+
+    in = new DataInputStream(new ByteArrayInputStream(header));
+    modelOrder = in.readInt();
+    int vocabSize = in.readInt();
+    if (order > modelOrder)
+      logger.warning(String.format("%s: requested order %d, but the model only has order %d",
+          filename, order, modelOrder));
+
+    long[] buckets = new long[modelOrder + 1];
+    for (int k = 2; k <= modelOrder; k++)
+      buckets[k] = in.readLong();
+
+    probCodebooks = new float[modelOrder + 1][];
+    backoffCodebooks = new float[modelOrder + 1][];
+    for (int k = 2; k <= modelOrder; k++) {
+      probCodebooks[k] = readFloats(in);
+      backoffCodebooks[k] = readFloats(in);
+    }
+
+    vocabulary = new HashMap<String, Integer>(vocabSize * 2);
+    for (int i = 0; i < vocabSize; i++)
+      vocabulary.put(in.readUTF(), i);
+    unigramProbs = new float[vocabSize];
+    unigramBackoffs = new float[vocabSize];
+    unigramExtends = new boolean[vocabSize];
+    for (int i = 0; i < vocabSize; i++)
+      unigramProbs[i] = in.readFloat();
+    for (int i = 0; i < vocabSize; i++)
+      unigramBackoffs[i] = in.readFloat();
+    for (int i = 0; i < vocabSize; i++)
+      unigramExtends[i] = in.readBoolean();
+
+    file = new MappedFile(new File(filename), MapMode.READ_ONLY, 0);
+    keyPositions = new long[modelOrder + 1];
+    valueIndices = new long[modelOrder + 1];
+    bucketMasks = new long[modelOrder + 1];
+    long position = tablesStart(header.length);
+    for (int k = 2; k <= modelOrder; k++) {
+      keyPositions[k] = position;
+      valueIndices[k] = (position + 8 * buckets[k]) / 4;
+      bucketMasks[k] = buckets[k] - 1;
+      position += tableSize(buckets[k]);
+    }
+    if (position != file.size())
+      throw new IOException(filename + ": truncated or corrupt (expected " + position + " bytes)");
+
+    logger.info(String.format("Mapped %d-gram language model from %s (%d words)", modelOrder,
+        filename, vocabSize));
+  }
+
+  private static float[] readFloats(DataInputStream in) throws IOException {
+    float[] values = new float[in.readInt()];
+    for (int i = 0; i < values.length; i++)
+      values[i] = in.readFloat();
+    return values;
+  }
+
+  /* The position of the first table, after the magic number, version, header length and header. */
+  static long tablesStart(int headerLength) {
+    return (16L + headerLength + 7) & ~7L;
+  }
+
+  /* The size of a table: 8-byte keys and 4-byte values, padded to a multiple of 8. */
+  static long tableSize(long buckets) {
+    return 8 * buckets + ((4 * buckets + 7) & ~7L);
+  }
+
+  /**
+   * Adds a word to the hash of the n-gram, which is computed from the last word to the first.
+   */
+  static long extend(long hash, int word) {
+    long h = (hash + word + 1) * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * The key under which an n-gram with the given hash is stored. Zero marks empty buckets.
+   */
+  static long key(long hash) {
+    return (hash == 0) ? 1 : hash;
+  }
+
+  /*
+   * Returns the bucket holding the key in the table of the given order, or -1.
+   */
+  private long find(int order, long key) {
+    long mask = bucketMasks[order];
+    long position = keyPositions[order];
+    for (long bucket = key & mask;; bucket = (bucket + 1) & mask) {
+      long found = file.getLongAt(position + 8 * bucket);
+      if (found == key)
+        return bucket;
+      if (found == 0)
+        return -1;
+    }
+  }
+
+  private int value(int order, long bucket) {
+    return file.getInt(valueIndices[order] + bucket);
+  }
+
+  private int map(int id) {
+    int[] map = idMap;
+    return (id >= 0 && id < map.length) ? map[id] : UNKNOWN;
+  }
+
+  @Override
+  public synchronized boolean registerWord(String token, int id) {
+    Integer word = vocabulary.get(token);
+    int[] map = idMap;
+    if (id >= map.length) {
+      int[] bigger = new int[Math.max(id + 1, 2 * map.length)];
+      System.arraycopy(map, 0, bigger, 0, map.length);
+      map = bigger;
+    }
+    boolean alreadyPresent = map[id] != UNKNOWN;
+    map[id] = (word == null) ? UNKNOWN : word;
+    idMap = map;
+    return alreadyPresent;
+  }
+
+  /**
+   * Computes the backoff probability of the last word of the n-gram given the ones before it: the
+   * probability of the longest suffix of the n-gram that is in the model (not counting blanks),
+   * plus the backoff weights of the longer contexts.
+   */
+  @Override
+  protected float ngramLogProbability_helper(int[] ngram, int order) {
+    int n = Math.min(ngram.length, modelOrder);
+    int last = ngram.length - 1;
+
+    int word = map(ngram[last]);
+    float prob = unigramProbs[word];
+    int matched = 1;
+    long hash = extend(0, word);
+    for (int len = 2; len <= n; len++) {
+      hash = extend(hash, map(ngram[last - len + 1]));
+      long bucket = find(len, key(hash));
+      if (bucket < 0)
+        break;
+      int code = value(len, bucket) & PROB_MASK;
+      if (code != BLANK) {
+        prob = probCodebooks[len][code];
+        matched = len;
+      }
+    }
+
+    // Backoff weights of the contexts longer than the one that matched
+    long context = 0;
+    for (int len = 1; len < n; len++) {
+      int w = map(ngram[last - len]);
+      context = extend(context, w);
+      if (len < matched)
+        continue;
+
+      if (len == 1) {
+        prob += unigramBackoffs[w];
+      } else {
+        long bucket = find(len, key(context));
+        if (bucket < 0)
+          break;
+        prob += backoffCodebooks[len][(value(len, bucket) >>> PROB_BITS) & BACKOFF_MASK];
+      }
+    }
+
+    return prob;
+  }
+
+  /**
+   * Returns the number of words at the end of the context that can affect the probability of the
+   * words following it. Earlier words can be dropped from the state if the longer context is not
+   * the start of any n-gram and has no backoff weight, since they are then never consulted.
+   */
+  @Override
+  public int rightStateLength(int[] words, int from, int length) {
+    if (!minimizing)
+      return length;
+
+    int stateLength = 0;
+    long hash = 0;
+    for (int len = 1; len <= length && len < modelOrder; len++) {
+      int w = map(words[from + length - len]);
+      hash = extend(hash, w);
+      if (len == 1) {
+        if (unigramExtends[w] || unigramBackoffs[w] != 0.0f)
+          stateLength = 1;
+      } else {
+        long bucket = find(len, key(hash));
+        if (bucket < 0)
+          break;
+        int value = value(len, bucket);
+        if ((value & EXTENDS) != 0 || ((value >>> PROB_BITS) & BACKOFF_MASK) != 0)
+          stateLength = len;
+      }
+    }
+    return stateLength;
+  }
+
+  @Override
+  public boolean isMinimizing() {
+    return minimizing;
+  }
+}
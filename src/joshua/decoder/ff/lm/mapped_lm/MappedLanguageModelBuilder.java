@@ -0,0 +1,480 @@
+package joshua.decoder.ff.lm.mapped_lm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import joshua.util.Regex;
+import joshua.util.io.LineReader;
+import joshua.util.io.MappedFile;
+
+/**
+ * Converts an ARPA language model (optionally gzipped) into the file format read by
+ * {@link MappedLanguageModel}.
+ *
+ * The ARPA file is read twice. The first pass builds the vocabulary and the unigrams and collects
+ * the probabilities and backoff weights of each higher order, from which the quantization
+ * codebooks are built: if an order has no more distinct values than there are codes, they are
+ * stored exactly; otherwise the range of values is split into bins of equal width, each represented
+ * by the mean of its values. A backoff of zero always has a code of its own, since the decoder
+ * relies on recognizing it exactly. The second pass fills in the hash tables, which are mapped
+ * read-write, so the size of the model is not limited by the heap.
+ *
+ * Queries stop at the first suffix of an n-gram (or of its context) that is missing, which is only
+ * correct if every suffix and context of an n-gram in the model is also in the model. Pruned ARPA
+ * files do not always satisfy this, so, like KenLM, the second pass adds the missing n-grams as
+ * "blanks", which have a reserved probability code (telling the query to keep backing off) and a
+ * backoff weight of zero.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class MappedLanguageModelBuilder {
+
+  private static final Logger logger = Logger.getLogger(MappedLanguageModelBuilder.class.getName());
+
+  /* Tables are built at most this full, leaving room for blanks. */
+  private static final double MAX_LOAD = 0.67;
+
+  /* Adding blanks must not fill a table beyond this. */
+  private static final double MAX_LOAD_WITH_BLANKS = 0.9;
+
+  private final String arpaFile;
+  private final int probBits;
+  private final int backoffBits;
+
+  private int order;
+  private long[] counts;
+
+  private final HashMap<String, Integer> vocabulary = new HashMap<String, Integer>();
+  private final List<String> words = new ArrayList<String>();
+  private float[] unigramProbs;
+  private float[] unigramBackoffs;
+  private boolean[] unigramExtends;
+
+  private float[][] probCodebooks;
+  private float[][] backoffCodebooks;
+
+  // The tables being filled in the second pass
+  private MappedFile tables;
+  private long[] buckets;
+  private long[] keyPositions;
+  private long[] valueIndices;
+  private long[] entries;
+  private long blanks = 0;
+
+  /**
+   * @param arpaFile the ARPA file to convert
+   * @param probBits the number of bits to quantize probabilities to (at most 16)
+   * @param backoffBits the number of bits to quantize backoff weights to (at most 15)
+   */
+  public MappedLanguageModelBuilder(String arpaFile, int probBits, int backoffBits) {
+    if (probBits < 1 || probBits > MappedLanguageModel.PROB_BITS)
+      throw new IllegalArgumentException("Probabilities can use 1 to "
+          + MappedLanguageModel.PROB_BITS + " bits");
+    if (backoffBits < 1 || backoffBits > MappedLanguageModel.BACKOFF_BITS)
+      throw new IllegalArgumentException("Backoffs can use 1 to "
+          + MappedLanguageModel.BACKOFF_BITS + " bits");
+
+    this.arpaFile = arpaFile;
+    this.probBits = probBits;
+    this.backoffBits = backoffBits;
+  }
+
+  /**
+   * Reads the ARPA file and writes the model to the output file.
+   */
+  public void build(String outputFile) throws IOException {
+    readVocabularyAndValues();
+
+    buckets = new long[order + 1];
+    for (int k = 2; k <= order; k++)
+      buckets[k] = Math.max(2, Long.highestOneBit((long) Math.ceil(counts[k] / MAX_LOAD)) << 1);
+
+    byte[] header = header();
+    long size = MappedLanguageModel.tablesStart(header.length);
+    keyPositions = new long[order + 1];
+    valueIndices = new long[order + 1];
+    for (int k = 2; k <= order; k++) {
+      keyPositions[k] = size;
+      valueIndices[k] = (size + 8 * buckets[k]) / 4;
+      size += MappedLanguageModel.tableSize(buckets[k]);
+    }
+
+    File file = new File(outputFile);
+    file.delete();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.writeLong(MappedLanguageModel.MAGIC);
+      raf.writeInt(MappedLanguageModel.VERSION);
+      raf.writeInt(header.length);
+      raf.write(header);
+      raf.setLength(size);
+    } finally {
+      raf.close();
+    }
+
+    tables = new MappedFile(file, MapMode.READ_WRITE, 0);
+    entries = new long[order + 1];
+    fillTables();
+
+    logger.info(String.format("Wrote %d-gram model with %d words and %d blanks to %s (%d bytes)",
+        order, words.size(), blanks, outputFile, size));
+  }
+
+  /*
+   * The first pass: reads the counts, the vocabulary, the unigrams, and all higher-order values.
+   */
+  private void readVocabularyAndValues() throws IOException {
+    words.add("<unk>");
+    vocabulary.put("<unk>", MappedLanguageModel.UNKNOWN);
+
+    float[][] probs = null;
+    float[][] backoffs = null;
+    int[] numValues = null;
+
+    LineReader reader = new LineReader(arpaFile);
+    try {
+      int section = -1;
+      List<Long> sectionCounts = new ArrayList<Long>();
+      for (String line : reader) {
+        line = line.trim();
+        if (line.length() == 0)
+          continue;
+
+        if (line.equals("\\data\\")) {
+          section = 0;
+        } else if (line.equals("\\end\\")) {
+          break;
+        } else if (line.startsWith("\\") && line.endsWith("-grams:")) {
+          section = Integer.parseInt(line.substring(1, line.indexOf('-')));
+          if (section == 1)
+            startUnigrams(sectionCounts);
+          if (probs == null) {
+            probs = new float[order + 1][];
+            backoffs = new float[order + 1][];
+            numValues = new int[order + 1];
+            for (int k = 2; k <= order; k++) {
+              probs[k] = new float[(int) counts[k]];
+              backoffs[k] = new float[(k < order) ? (int) counts[k] : 0];
+            }
+          }
+        } else if (section == 0) {
+          if (line.startsWith("ngram "))
+            sectionCounts.add(Long.parseLong(line.substring(line.indexOf('=') + 1).trim()));
+        } else if (section == 1) {
+          String[] tokens = Regex.spaces.split(line);
+          int id = wordId(tokens[1], true);
+          unigramProbs[id] = Float.parseFloat(tokens[0]);
+          unigramBackoffs[id] = (tokens.length > 2) ? Float.parseFloat(tokens[2]) : 0.0f;
+        } else if (section > 1) {
+          String[] tokens = Regex.spaces.split(line);
+          int n = numValues[section]++;
+          probs[section][n] = Float.parseFloat(tokens[0]);
+          if (section < order)
+            backoffs[section][n] = (tokens.length > section + 1) ? Float.parseFloat(tokens[section + 1])
+                : 0.0f;
+          if (section == 2)
+            unigramExtends[wordId(tokens[1], false)] = true;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    if (order == 0)
+      throw new RuntimeException(arpaFile + ": no \\data\\ section found");
+
+    probCodebooks = new float[order + 1][];
+    backoffCodebooks = new float[order + 1][];
+    for (int k = 2; k <= order; k++) {
+      if (numValues[k] != counts[k])
+        throw new RuntimeException(String.format("%s: expected %d %d-grams, found %d", arpaFile,
+            counts[k], k, numValues[k]));
+      // The largest code is reserved for blanks
+      probCodebooks[k] = codebook(probs[k], Math.min(1 << probBits, MappedLanguageModel.BLANK),
+          false);
+      backoffCodebooks[k] = codebook(backoffs[k], 1 << backoffBits, true);
+      probs[k] = backoffs[k] = null;
+    }
+  }
+
+  private void startUnigrams(List<Long> sectionCounts) {
+    order = sectionCounts.size();
+    counts = new long[order + 1];
+    for (int k = 1; k <= order; k++) {
+      counts[k] = sectionCounts.get(k - 1);
+      if (k > 1 && counts[k] > Integer.MAX_VALUE)
+        throw new RuntimeException(String.format("Too many %d-grams (%d)", k, counts[k]));
+    }
+
+    int vocabSize = (int) counts[1] + 1;
+    unigramProbs = new float[vocabSize];
+    unigramBackoffs = new float[vocabSize];
+    unigramExtends = new boolean[vocabSize];
+    // Unknown words get the decoder's floor if the model doesn't list <unk>
+    unigramProbs[MappedLanguageModel.UNKNOWN] = -100.0f;
+  }
+
+  private int wordId(String word, boolean add) {
+    Integer id = vocabulary.get(word);
+    if (id == null) {
+      if (!add)
+        throw new RuntimeException(arpaFile + ": n-gram contains the unknown word '" + word + "'");
+      id = words.size();
+      words.add(word);
+      vocabulary.put(word, id);
+    }
+    return id;
+  }
+
+  /*
+   * Builds the codebook for a list of values, with at most the given number of entries, sorted in
+   * increasing order. If requested, zero is given an entry of its own, at code 0.
+   */
+  static float[] codebook(float[] values, int size, boolean exactZero) {
+    float[] sorted = values.clone();
+    Arrays.sort(sorted);
+
+    float[] distinct = new float[sorted.length];
+    int numDistinct = 0;
+    for (float value : sorted)
+      if ((numDistinct == 0 || value != distinct[numDistinct - 1]) && !(exactZero && value == 0.0f))
+        distinct[numDistinct++] = value;
+
+    int offset = exactZero ? 1 : 0;
+    size -= offset;
+    float[] codebook;
+    if (numDistinct <= size) {
+      codebook = new float[offset + numDistinct];
+      System.arraycopy(distinct, 0, codebook, offset, numDistinct);
+    } else {
+      // Split the range of the values (other than zero) into bins of equal width
+      float min = distinct[0], max = distinct[numDistinct - 1];
+      double[] sums = new double[size];
+      int[] binCounts = new int[size];
+      for (float value : sorted) {
+        if (exactZero && value == 0.0f)
+          continue;
+        int bin = (int) Math.min(size - 1, (long) ((value - min) / (max - min) * size));
+        sums[bin] += value;
+        binCounts[bin]++;
+      }
+
+      int numCodes = offset;
+      codebook = new float[offset + size];
+      for (int bin = 0; bin < size; bin++)
+        if (binCounts[bin] > 0)
+          codebook[numCodes++] = (float) (sums[bin] / binCounts[bin]);
+      codebook = Arrays.copyOf(codebook, numCodes);
+    }
+    return codebook;
+  }
+
+  /*
+   * Returns the code of the codebook entry closest to the value.
+   */
+  static int quantize(float[] codebook, float value, boolean exactZero) {
+    if (exactZero && value == 0.0f)
+      return 0;
+
+    int from = exactZero ? 1 : 0;
+    int i = Arrays.binarySearch(codebook, from, codebook.length, value);
+    if (i >= 0)
+      return i;
+    i = -(i + 1);
+    if (i == codebook.length)
+      return i - 1;
+    if (i == from)
+      return i;
+    return (value - codebook[i - 1] <= codebook[i] - value) ? i - 1 : i;
+  }
+
+  private byte[] header() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeInt(order);
+    out.writeInt(words.size());
+    for (int k = 2; k <= order; k++)
+      out.writeLong(buckets[k]);
+    for (int k = 2; k <= order; k++) {
+      for (float[] codebook : new float[][] { probCodebooks[k], backoffCodebooks[k] }) {
+        out.writeInt(codebook.length);
+        for (float value : codebook)
+          out.writeFloat(value);
+      }
+    }
+
+    for (String word : words)
+      out.writeUTF(word);
+    for (int i = 0; i < words.size(); i++)
+      out.writeFloat(unigramProbs[i]);
+    for (int i = 0; i < words.size(); i++)
+      out.writeFloat(unigramBackoffs[i]);
+    for (int i = 0; i < words.size(); i++)
+      out.writeBoolean(unigramExtends[i]);
+
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /*
+   * The second pass: inserts every n-gram of order 2 and above into its table, and marks the
+   * n-grams that are the context of a longer one.
+   */
+  private void fillTables() throws IOException {
+    LineReader reader = new LineReader(arpaFile);
+    try {
+      int section = -1;
+      int[] ids = new int[order];
+      for (String line : reader) {
+        line = line.trim();
+        if (line.length() == 0)
+          continue;
+
+        if (line.equals("\\end\\")) {
+          break;
+        } else if (line.startsWith("\\")) {
+          section = line.endsWith("-grams:") ? Integer.parseInt(line.substring(1, line.indexOf('-')))
+              : -1;
+        } else if (section > 1) {
+          String[] tokens = Regex.spaces.split(line);
+          for (int i = 0; i < section; i++)
+            ids[i] = wordId(tokens[i + 1], false);
+
+          int value = quantize(probCodebooks[section], Float.parseFloat(tokens[0]), false);
+          if (section < order && tokens.length > section + 1)
+            value |= quantize(backoffCodebooks[section], Float.parseFloat(tokens[section + 1]), true)
+                << MappedLanguageModel.PROB_BITS;
+
+          long bucket = insert(section, hash(ids, 0, section));
+          if (bucket < 0)
+            throw new RuntimeException(arpaFile + ": duplicate n-gram '" + line + "'");
+          tables.putInt(valueIndices[section] + bucket, value);
+
+          if (section > 2) {
+            // The context of this n-gram extends; unigrams were marked in the first pass
+            long context = ensure(ids, 0, section - 1);
+            long index = valueIndices[section - 1] + context;
+            tables.putInt(index, tables.getInt(index) | MappedLanguageModel.EXTENDS);
+
+            ensure(ids, 1, section);
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /*
+   * Returns the bucket of the n-gram ids[from..to), first adding it as a blank if it is missing.
+   */
+  private long ensure(int[] ids, int from, int to) {
+    int k = to - from;
+    long key = hash(ids, from, to);
+    long bucket = find(k, key);
+    if (bucket >= 0)
+      return bucket;
+
+    if (k > 2) {
+      ensure(ids, from + 1, to);
+      long context = ensure(ids, from, to - 1);
+      long index = valueIndices[k - 1] + context;
+      tables.putInt(index, tables.getInt(index) | MappedLanguageModel.EXTENDS);
+    }
+
+    bucket = insert(k, key);
+    tables.putInt(valueIndices[k] + bucket, MappedLanguageModel.BLANK);
+    blanks++;
+    return bucket;
+  }
+
+  /*
+   * The key of the n-gram ids[from..to), hashed from the last word to the first.
+   */
+  private static long hash(int[] ids, int from, int to) {
+    long hash = 0;
+    for (int i = to - 1; i >= from; i--)
+      hash = MappedLanguageModel.extend(hash, ids[i]);
+    return MappedLanguageModel.key(hash);
+  }
+
+  /*
+   * Adds the key to the table of the given order and returns its bucket, or -1 if it is already
+   * there.
+   */
+  private long insert(int order, long key) {
+    if (++entries[order] > MAX_LOAD_WITH_BLANKS * buckets[order])
+      throw new RuntimeException(String.format(
+          "%s: too many missing %d-grams; the file is not a consistent backoff model", arpaFile,
+          order));
+
+    long mask = buckets[order] - 1;
+    long position = keyPositions[order];
+    for (long bucket = key & mask;; bucket = (bucket + 1) & mask) {
+      long found = tables.getLongAt(position + 8 * bucket);
+      if (found == key)
+        return -1;
+      if (found == 0) {
+        tables.putLongAt(position + 8 * bucket, key);
+        return bucket;
+      }
+    }
+  }
+
+  private long find(int order, long key) {
+    long mask = buckets[order] - 1;
+    long position = keyPositions[order];
+    for (long bucket = key & mask;; bucket = (bucket + 1) & mask) {
+      long found = tables.getLongAt(position + 8 * bucket);
+      if (found == key)
+        return bucket;
+      if (found == 0)
+        return -1;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    String arpaFile = null;
+    String outputFile = null;
+    int probBits = MappedLanguageModel.PROB_BITS;
+    int backoffBits = MappedLanguageModel.BACKOFF_BITS;
+
+    if (args.length < 1 || args[0].equals("-h")) {
+      System.err.println("Usage: " + MappedLanguageModelBuilder.class.toString());
+      System.err.println("    -a arpa_file        ARPA language model to convert (may be gzipped)");
+      System.err.println("    -o output_file      where to write the mapped model");
+      System.err.println("   [-p bits             bits per probability (1-16, default 16)]");
+      System.err.println("   [-b bits             bits per backoff weight (1-15, default 15)]");
+      System.err.println();
+      System.exit(-1);
+    }
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-a".equals(args[i]) && (i < args.length - 1)) {
+        arpaFile = args[++i];
+      } else if ("-o".equals(args[i]) && (i < args.length - 1)) {
+        outputFile = args[++i];
+      } else if ("-p".equals(args[i]) && (i < args.length - 1)) {
+        probBits = Integer.parseInt(args[++i]);
+      } else if ("-b".equals(args[i]) && (i < args.length - 1)) {
+        backoffBits = Integer.parseInt(args[++i]);
+      }
+    }
+    if (arpaFile == null || outputFile == null) {
+      logger.severe("Both an ARPA file (-a) and an output file (-o) must be given.");
+      System.exit(-1);
+    }
+
+    new MappedLanguageModelBuilder(arpaFile, probBits, backoffBits).build(outputFile);
+  }
+}
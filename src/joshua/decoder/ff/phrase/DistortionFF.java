@@ -24,7 +24,7 @@ public class DistortionFF extends StatelessFF {
         int start_point = j - rule.getFrench().length + rule.getArity();
 
         int jump_size = Math.abs(tailNodes.get(0).j - start_point);
-        acc.add(name, -jump_size);
+        acc.add(featureId, -jump_size);
     }
     
 //    System.err.println(String.format("DISTORTION(%d, %d) from %d = %d", i, j, tailNodes != null ? tailNodes.get(0).j : -1, jump_size));
@@ -60,7 +60,7 @@ public class EdgePhraseSimilarityFF extends StatefulFF implements SourceDependen
       int sentID, Accumulator acc) {
 
     float value = computeScore(rule, tailNodes);
-    acc.add(name, value);
+    acc.add(featureId, value);
 
     // TODO 07/2013: EdgePhraseSimilarity needs to know its order rather than inferring it from tail
     // nodes.
@@ -236,8 +236,12 @@ public class EdgePhraseSimilarityFF extends StatefulFF implements SourceDependen
     }
     if (!to_cache.isEmpty()) {
       try {
-        serverAsk.println(query.toString());
-        String response = serverReply.readLine();
+        // The connection is shared by all cells of the sentence, which may be filled concurrently.
+        String response;
+        synchronized (socket) {
+          serverAsk.println(query.toString());
+          response = serverReply.readLine();
+        }
         String[] scores = response.split("\\s+");
         for (int i = 0; i < scores.length; i++) {
           Float score = Float.parseFloat(scores[i]);
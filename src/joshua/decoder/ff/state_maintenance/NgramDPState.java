@@ -5,52 +5,99 @@ import java.util.Arrays;
 import joshua.corpus.Vocabulary;
 
 /**
+ * The language model state of a hypothesis: its first and last words (its left and right
+ * contexts), which have the same length. States are immutable. Both contexts are packed into a
+ * single array, and the hash code is computed once, since states are hashed and compared every
+ * time a hypothesis is added to a cell.
+ *
  * @author Zhifei Li, <zhifei.work@gmail.com>
  * @author Juri Ganitkevitch, <juri@cs.jhu.edu>
  */
 public class NgramDPState extends DPState {
 
-  private int[] left;
-  private int[] right;
+  // the left context followed by the right context
+  private final int[] words;
+  private final int length;
+  // the number of words at the end of the right state that distinguish it from other states
+  private final int rightLength;
 
-  private int hash = 0;
+  private final int hash;
 
   public NgramDPState(int[] l, int[] r) {
-    left = l;
-    right = r;
-    assertLengths();
+    this(l, r, r.length);
   }
 
-  public void setLeftLMStateWords(int[] words) {
-    left = words;
-    assertLengths();
+  /**
+   * Creates a state whose right context is minimized: only its last rightLength words can affect
+   * the language model probabilities of the words that follow, so only they are compared when
+   * recombining states. The earlier words are kept, since they are needed to rebuild n-grams.
+   */
+  public NgramDPState(int[] l, int[] r, int rightLength) {
+    this(pack(l, r), l.length, rightLength);
   }
 
-  public int[] getLeftLMStateWords() {
-    return left;
-  }
+  /**
+   * Creates a state from an array holding the left context followed by the right context, each of
+   * the given length. The state takes ownership of the array.
+   */
+  public NgramDPState(int[] words, int length, int rightLength) {
+    if (words.length != 2 * length)
+      throw new RuntimeException("Unequal lengths in left and right state: "
+          + Vocabulary.getWords(words));
+    this.words = words;
+    this.length = length;
+    this.rightLength = rightLength;
 
-  public void setRightLMStateWords(int[] words) {
-    right = words;
-    assertLengths();
-  }
-
-  public int[] getRightLMStateWords() {
-    return right;
+    // The same hash as that of the separate contexts
+    int leftHash = 1;
+    for (int i = 0; i < length; i++)
+      leftHash = 31 * leftHash + words[i];
+    int rightHash = 1;
+    for (int i = 2 * length - rightLength; i < 2 * length; i++)
+      rightHash = 31 * rightHash + words[i];
+    this.hash = (31 + leftHash) * 19 + rightHash;
   }
 
-  private final void assertLengths() {
+  private static int[] pack(int[] left, int[] right) {
     if (left.length != right.length)
       throw new RuntimeException("Unequal lengths in left and right state: < "
           + Vocabulary.getWords(left) + " | " + Vocabulary.getWords(right) + " >");
+    int[] words = Arrays.copyOf(left, 2 * left.length);
+    System.arraycopy(right, 0, words, left.length, right.length);
+    return words;
+  }
+
+  /**
+   * The number of words in each context.
+   */
+  public int getLength() {
+    return length;
+  }
+
+  public int getLeftWord(int i) {
+    return words[i];
+  }
+
+  public int getRightWord(int i) {
+    return words[length + i];
+  }
+
+  /**
+   * Returns a copy of the left context.
+   */
+  public int[] getLeftLMStateWords() {
+    return Arrays.copyOfRange(words, 0, length);
+  }
+
+  /**
+   * Returns a copy of the right context.
+   */
+  public int[] getRightLMStateWords() {
+    return Arrays.copyOfRange(words, length, 2 * length);
   }
 
   @Override
   public int hashCode() {
-    if (hash == 0) {
-      hash = 31 + Arrays.hashCode(left);
-      hash = hash * 19 + Arrays.hashCode(right);
-    }
     return hash;
   }
 
@@ -58,9 +105,13 @@ public class NgramDPState extends DPState {
   public boolean equals(Object other) {
     if (other instanceof NgramDPState) {
       NgramDPState that = (NgramDPState) other;
-      if (this.left.length == that.left.length && this.right.length == that.right.length) {
-        for (int i = 0; i < left.length; ++i)
-          if (this.left[i] != that.left[i] || this.right[i] != that.right[i])
+      if (this.hash == that.hash && this.length == that.length
+          && this.rightLength == that.rightLength) {
+        for (int i = 0; i < length; ++i)
+          if (this.words[i] != that.words[i])
+            return false;
+        for (int i = 2 * length - rightLength; i < 2 * length; ++i)
+          if (this.words[i] != that.words[i])
             return false;
         return true;
       }
@@ -71,11 +122,11 @@ public class NgramDPState extends DPState {
   public String toString() {
     StringBuilder sb = new StringBuilder();
     sb.append("<");
-    for (int id : left)
-      sb.append(" " + Vocabulary.word(id));
+    for (int i = 0; i < length; i++)
+      sb.append(" " + Vocabulary.word(words[i]));
     sb.append(" |");
-    for (int id : right)
-      sb.append(" " + Vocabulary.word(id));
+    for (int i = length; i < 2 * length; i++)
+      sb.append(" " + Vocabulary.word(words[i]));
     sb.append(" >");
     return sb.toString();
   }
@@ -216,6 +216,11 @@ public class BilingualRule extends Rule {
 
   @Override
   public void setPrecomputableCost(float[] weights) {
+    this.precomputableCost = computePrecomputableCost(weights);
+  }
+
+  @Override
+  public float computePrecomputableCost(float[] weights) {
     int denseFeatureIndex = 0;
     float cost = 0.0f;
     
@@ -238,8 +243,8 @@ public class BilingualRule extends Rule {
         }
       }
     }
-    
-    this.precomputableCost = cost;
+
+    return cost;
   }
 
   /**
@@ -163,6 +163,14 @@ public abstract class Rule implements Comparator<Rule>, Comparable<Rule> {
     // default: do nothing
   }
 
+  /**
+   * Computes the precomputable cost under the given dense weights, without caching it. This is
+   * used when decoding with weights other than the ones the cached cost was computed with.
+   */
+  public float computePrecomputableCost(float[] weights) {
+    return 0.0f;
+  }
+
   // ===============================================================
   // Methods
   // ===============================================================
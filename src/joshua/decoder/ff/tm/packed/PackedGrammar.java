@@ -10,24 +10,22 @@ package joshua.decoder.ff.tm.packed;
  *   Title = {Joshua 4.0: Packing, PRO, and paraphrases},
  *   Year = {2012}}
  *   
- * The packed grammar works by compiling out the grammar tries into a compact format that is loaded
- * and parsed directly from Java arrays. A fundamental problem is that Java arrays are indexed
- * by ints and not longs, meaning the maximum size of the packed grammar is about 2 GB. This forces
- * the use of packed grammar slices, which together constitute the grammar. The figure in the
- * paper above shows what each slice looks like. 
+ * The packed grammar works by compiling out the grammar tries into a compact format that is
+ * memory-mapped and parsed directly from the mapped buffers. A fundamental problem is that Java
+ * buffers are indexed by ints and not longs, meaning a single mapping is limited to 2 GB. Each file
+ * of a slice is therefore mapped in segments (see {@link MappedFile}); trie positions are stored
+ * as int indices in units of four bytes (allowing tries of up to 8 GB), and the feature and
+ * alignment files use long offsets. Grammars are still divided into packed grammar slices, which
+ * together constitute the grammar. The figure in the paper above shows what each slice looks like.
  * 
  * The division across slices is done in a depth-first manner. Consider the entire grammar organized
  * into a single source-side trie. The splits across tries are done by grouping the root-level
  * outgoing trie arcs --- and the entire trie beneath them --- across slices. 
  * 
- * This presents a problem: if the subtree rooted beneath a single top-level arc is too big for a 
- * slice, the grammar can't be packed. This happens with very large Hiero grammars, for example,
- * where there are a *lot* of rules that start with [X].
- * 
- * A solution being worked on is to split that symbol and pack them into separate grammars with a
- * shared vocabulary, and then rely on Joshua's ability to query multiple grammars for rules to
- * solve this problem. This is not currently implemented but could be done directly in the
- * Grammar Packer.
+ * The subtree rooted beneath a single top-level arc can be very large; this happens with very large
+ * Hiero grammars, for example, where there are a *lot* of rules that start with [X]. Since slices
+ * are no longer limited to 2 GB, such a subtree is simply packed into a slice of its own, as long as
+ * its tries fit within the 8 GB that int positions can address.
  */
 
 import java.io.BufferedInputStream;
@@ -36,10 +34,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.IntBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -47,11 +42,13 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Logger;
 
 import joshua.corpus.Vocabulary;
 import joshua.decoder.JoshuaConfiguration;
 import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.FeatureMap;
 import joshua.decoder.ff.FeatureVector;
 import joshua.decoder.ff.tm.AbstractGrammar;
 import joshua.decoder.ff.tm.BasicRuleCollection;
@@ -62,13 +59,28 @@ import joshua.decoder.ff.tm.Trie;
 import joshua.decoder.ff.tm.hash_based.ExtensionIterator;
 import joshua.util.encoding.EncoderConfiguration;
 import joshua.util.encoding.FloatEncoder;
+import joshua.util.io.MappedFile;
 
 public class PackedGrammar extends AbstractGrammar {
 
   private static final Logger logger = Logger.getLogger(PackedGrammar.class.getName());
 
+  /* Marks feature and alignment files whose data blocks are located by long offsets. */
+  public static final int LONG_OFFSETS = -1;
+
+  /* The maximum size in bytes of the data (features or alignments) stored with a single rule. */
+  public static final int MAX_BLOCK_SIZE = 1 << 16;
+
   private EncoderConfiguration encoding;
 
+  /*
+   * Indexed by the (inner) feature ids of the encoding: the id of each feature in the FeatureMap,
+   * and, for the grammar's unlabeled features ("tm_OWNER_INDEX"), the INDEX (-1 for all others).
+   * These let rule features be decoded straight from the feature buffer.
+   */
+  private int[] featureMapIds;
+  private int[] denseFeatureIndices;
+
   private PackedRoot root;
   private ArrayList<PackedSlice> slices;
 
@@ -89,21 +101,52 @@ public class PackedGrammar extends AbstractGrammar {
     // Set phrase owner.
     this.owner = Vocabulary.id(owner);
 
+    mapFeatures(owner);
+
     String[] listing = new File(grammar_dir).list();
     slices = new ArrayList<PackedSlice>();
     for (int i = 0; i < listing.length; i++) {
       if (listing[i].startsWith("slice_") && listing[i].endsWith(".source"))
-        slices.add(new PackedSlice(grammar_dir + File.separator + listing[i].substring(0, 11)));
+        slices.add(new PackedSlice(grammar_dir + File.separator + listing[i].substring(0, 11),
+            joshuaConfiguration.packed_grammar_prefault));
     }
 
     long count = 0;
     for (PackedSlice s : slices)
-      count += s.estimated.length;
+      count += s.features.numBlocks();
     root = new PackedRoot(this);
 
     logger.info("Loaded " + count + " rules.");
   }
 
+  /**
+   * Resolves the names of the features in the encoding once, so that they needn't be formatted and
+   * parsed for every rule. Unlabeled features are stored under their index, and are named using
+   * the pattern
+   * 
+   * tm_OWNER_INDEX
+   */
+  private void mapFeatures(String owner) {
+    String prefix = "tm_" + owner + "_";
+    int num_features = encoding.getNumFeatures();
+    featureMapIds = new int[num_features];
+    denseFeatureIndices = new int[num_features];
+
+    for (int feature_id = 0; feature_id < num_features; feature_id++) {
+      String feature_name = Vocabulary.word(encoding.outerId(feature_id));
+      String index_name = feature_name.startsWith(prefix)
+          ? feature_name.substring(prefix.length()) : feature_name;
+      try {
+        int index = Integer.parseInt(index_name);
+        denseFeatureIndices[feature_id] = index;
+        featureMapIds[feature_id] = FeatureMap.id(prefix, index);
+      } catch (NumberFormatException e) {
+        denseFeatureIndices[feature_id] = -1;
+        featureMapIds[feature_id] = FeatureMap.id(feature_name);
+      }
+    }
+  }
+
   @Override
   public Trie getTrieRoot() {
     return root;
@@ -118,7 +161,7 @@ public class PackedGrammar extends AbstractGrammar {
   public int getNumRules() {
     int num_rules = 0;
     for (PackedSlice ps : slices)
-      num_rules += ps.featureSize;
+      num_rules += ps.features.numBlocks();
     return num_rules;
   }
 
@@ -134,9 +177,9 @@ public class PackedGrammar extends AbstractGrammar {
       lookup = new HashMap<Integer, PackedSlice>();
 
       for (PackedSlice ps : grammar.slices) {
-        int num_children = ps.source[0];
+        int num_children = ps.source.getInt(0);
         for (int i = 0; i < num_children; i++)
-          lookup.put(ps.source[2 * i + 1], ps);
+          lookup.put(ps.source.getInt(2 * i + 1), ps);
       }
     }
 
@@ -191,29 +234,36 @@ public class PackedGrammar extends AbstractGrammar {
     }
   }
 
+  /**
+   * A slice of the grammar. All of its files are memory-mapped read-only and accessed in place:
+   * nothing proportional to the size of the grammar is copied onto the heap. Several decoders
+   * loading the same grammar (whether in one JVM or in separate processes on a host) therefore
+   * share a single physical copy of it in the OS page cache. The only per-rule state kept on the
+   * heap is the cost cache of the trie nodes that have actually been visited.
+   */
   public final class PackedSlice {
     private final String name;
 
-    private final int[] source;
+    /*
+     * The source and target tries, addressed in ints. They are mapped rather than copied onto the
+     * heap, and are never modified.
+     */
+    private final MappedFile source;
 
-    private final int[] target;
+    private final MappedFile target;
     private final int[] targetLookup;
 
-    private MappedByteBuffer features;
-    private int featureSize;
-    private int[] featureLookup;
-    private RandomAccessFile featureFile;
-
-    private float[] estimated;
-    private float[] precomputable;
-    
-    private RandomAccessFile alignmentFile;
-    private MappedByteBuffer alignments;
-    private int[] alignmentLookup;
+    private final BlockFile features;
+    private final BlockFile alignments;
 
-    private HashMap<Integer, PackedTrie> tries;
+    private final TrieCache tries;
 
-    public PackedSlice(String prefix) throws IOException {
+    /**
+     * @param prefix the path of the slice's files, without their extensions
+     * @param prefault which files to read into memory up front: "none", "features" (the features
+     *          and alignments), or "all"
+     */
+    public PackedSlice(String prefix, String prefault) throws IOException {
       name = prefix;
 
       File source_file = new File(prefix + ".source");
@@ -222,61 +272,19 @@ public class PackedGrammar extends AbstractGrammar {
       File feature_file = new File(prefix + ".features");
       File alignment_file = new File(prefix + ".alignments");
 
-      // Get the channels etc.
-      FileInputStream source_fis = new FileInputStream(source_file);
-      FileChannel source_channel = source_fis.getChannel();
-      int source_size = (int) source_channel.size();
-
-      FileInputStream target_fis = new FileInputStream(target_file);
-      FileChannel target_channel = target_fis.getChannel();
-      int target_size = (int) target_channel.size();
-
-      featureFile = new RandomAccessFile(feature_file, "r");
-      FileChannel feature_channel = featureFile.getChannel();
-      int feature_size = (int) feature_channel.size();
-
-      IntBuffer source_buffer = source_channel.map(MapMode.READ_ONLY, 0, source_size).asIntBuffer();
-      source = new int[source_size / 4];
-      source_buffer.get(source);
-      source_fis.close();
-
-      IntBuffer target_buffer = target_channel.map(MapMode.READ_ONLY, 0, target_size).asIntBuffer();
-      target = new int[target_size / 4];
-      target_buffer.get(target);
-      target_fis.close();
+      source = new MappedFile(source_file, MapMode.READ_ONLY, 0);
+      target = new MappedFile(target_file, MapMode.READ_ONLY, 0);
+      features = new BlockFile(feature_file);
+      alignments = alignment_file.exists() ? new BlockFile(alignment_file) : null;
 
-      features = feature_channel.map(MapMode.READ_ONLY, 0, feature_size);
-      features.load();
-      
-      if (alignment_file.exists()) {
-        alignmentFile = new RandomAccessFile(alignment_file, "r");
-        FileChannel alignment_channel = alignmentFile.getChannel();
-        int alignment_size = (int) alignment_channel.size();
-        alignments = alignment_channel.map(MapMode.READ_ONLY, 0, alignment_size);
-        alignments.load();
-        
-        int num_blocks = alignments.getInt(0);
-        alignmentLookup = new int[num_blocks];
-        int header_pos = 8;
-        for (int i = 0; i < num_blocks; i++) {
-          alignmentLookup[i] = alignments.getInt(header_pos);
-          header_pos += 4;
-        }
-      } else {
-        alignments = null;
+      if (prefault.equals("all")) {
+        source.load();
+        target.load();
       }
-
-      int num_blocks = features.getInt(0);
-      featureLookup = new int[num_blocks];
-      estimated = new float[num_blocks];
-      precomputable = new float[num_blocks];
-      featureSize = features.getInt(4);
-      int header_pos = 8;
-      for (int i = 0; i < num_blocks; i++) {
-        featureLookup[i] = features.getInt(header_pos);
-        estimated[i] = Float.NEGATIVE_INFINITY;
-        precomputable[i] = Float.NEGATIVE_INFINITY;
-        header_pos += 4;
+      if (prefault.equals("all") || prefault.equals("features")) {
+        features.load();
+        if (alignments != null)
+          alignments.load();
       }
 
       DataInputStream target_lookup_stream = new DataInputStream(new BufferedInputStream(
@@ -286,18 +294,9 @@ public class PackedGrammar extends AbstractGrammar {
         targetLookup[i] = target_lookup_stream.readInt();
       target_lookup_stream.close();
 
-      tries = new HashMap<Integer, PackedTrie>();
+      tries = new TrieCache();
     }
 
-    @SuppressWarnings("unused")
-    private final Object guardian = new Object() {
-      @Override
-      // Finalizer object to ensure feature file handle get closed upon slice's dismissal.
-      protected void finalize() throws Throwable {
-        featureFile.close();
-      }
-    };
-
     private final int[] getTarget(int pointer) {
       // Figure out level.
       int tgt_length = 1;
@@ -307,84 +306,159 @@ public class PackedGrammar extends AbstractGrammar {
       int index = 0;
       int parent;
       do {
-        parent = target[pointer];
+        parent = target.getInt(pointer);
         if (parent != -1)
-          tgt[index++] = target[pointer + 1];
+          tgt[index++] = target.getInt(pointer + 1);
         pointer = parent;
       } while (pointer != -1);
       return tgt;
     }
 
-    private synchronized PackedTrie getTrie(final int node_address) {
+    private PackedTrie getTrie(final int node_address) {
       PackedTrie t = tries.get(node_address);
-      if (t == null) {
-        t = new PackedTrie(node_address);
-        tries.put(node_address, t);
-      }
+      if (t == null)
+        t = tries.putIfAbsent(new PackedTrie(node_address));
       return t;
     }
 
-    private synchronized PackedTrie getTrie(int node_address, int[] parent_src, int parent_arity,
-        int symbol) {
+    private PackedTrie getTrie(int node_address, int[] parent_src, int parent_arity, int symbol) {
       PackedTrie t = tries.get(node_address);
-      if (t == null) {
-        t = new PackedTrie(node_address, parent_src, parent_arity, symbol);
-        tries.put(node_address, t);
-      }
+      if (t == null)
+        t = tries.putIfAbsent(new PackedTrie(node_address, parent_src, parent_arity, symbol));
       return t;
     }
 
     /**
-     * NEW VERSION
-     * 
-     * Returns a string version of the features associated with a rule (represented as a block ID).
-     * These features are in the form "feature1=value feature2=value...". By default, unlabeled
-     * features are named using the pattern
-     * 
-     * tm_OWNER_INDEX
-     * 
-     * where OWNER is the grammar's owner (Vocabulary.word(this.owner)) and INDEX is a 0-based index
-     * of the feature found in the grammar.
+     * Caches the trie nodes of a slice, keyed by their position in the source array. Every decoder
+     * thread looks up nodes here for every span, so reads must not contend: lookups probe an
+     * open-addressed table without locking, and only the insertion of a new node (which happens
+     * once per node) takes the lock. The table is never modified in place when it grows; a new one
+     * is built and published through the volatile reference, so a reader holding the old table
+     * can at worst miss a recent insertion, and then finds it under the lock.
+     */
+    private final class TrieCache {
+      private volatile AtomicReferenceArray<PackedTrie> table =
+          new AtomicReferenceArray<PackedTrie>(1024);
+      private int size = 0;
+
+      public PackedTrie get(int position) {
+        AtomicReferenceArray<PackedTrie> t = table;
+        int mask = t.length() - 1;
+        int slot = hash(position) & mask;
+        PackedTrie trie;
+        while ((trie = t.get(slot)) != null) {
+          if (trie.position == position)
+            return trie;
+          slot = (slot + 1) & mask;
+        }
+        return null;
+      }
+
+      /**
+       * Adds the node unless one with the same position is already present, returning whichever
+       * is in the cache afterwards.
+       */
+      public synchronized PackedTrie putIfAbsent(PackedTrie trie) {
+        PackedTrie existing = get(trie.position);
+        if (existing != null)
+          return existing;
+
+        if (2 * (size + 1) > table.length())
+          table = rehash(table, 2 * table.length());
+        insert(table, trie);
+        size++;
+        return trie;
+      }
+
+      private AtomicReferenceArray<PackedTrie> rehash(AtomicReferenceArray<PackedTrie> old,
+          int capacity) {
+        AtomicReferenceArray<PackedTrie> t = new AtomicReferenceArray<PackedTrie>(capacity);
+        for (int i = 0; i < old.length(); i++)
+          if (old.get(i) != null)
+            insert(t, old.get(i));
+        return t;
+      }
+
+      private void insert(AtomicReferenceArray<PackedTrie> t, PackedTrie trie) {
+        int mask = t.length() - 1;
+        int slot = hash(trie.position) & mask;
+        while (t.get(slot) != null)
+          slot = (slot + 1) & mask;
+        t.set(slot, trie);
+      }
+
+      private int hash(int position) {
+        int h = position * 0x9E3779B9;
+        return h ^ (h >>> 16);
+      }
+    }
+
+    /**
+     * Returns the features associated with a rule (represented as a block ID), decoded directly
+     * from the feature buffer. Unlabeled features are named tm_OWNER_INDEX (see mapFeatures()).
+     * Note that, as elsewhere, the sign of the stored values is reversed.
      * 
      * @param block_id
      * @return
      */
-
-    private final String getFeatures(int block_id) {
-      int feature_position = featureLookup[block_id];
+    private final FeatureVector getFeatures(int block_id) {
+      long block_position = features.position(block_id);
+      ByteBuffer buffer = features.file.buffer(block_position);
+      int feature_position = features.file.offset(block_position);
 
       // The number of non-zero features stored with the rule.
-      int num_features = encoding.readId(features, feature_position);
+      int num_features = encoding.readId(buffer, feature_position);
 
       feature_position += EncoderConfiguration.ID_SIZE;
-      StringBuilder sb = new StringBuilder();
+      FeatureVector vector = new FeatureVector();
       for (int i = 0; i < num_features; i++) {
-        int feature_id = encoding.readId(features, feature_position);
+        int feature_id = encoding.readId(buffer, feature_position);
         FloatEncoder encoder = encoding.encoder(feature_id);
 
-        String feature_name = Vocabulary.word(encoding.outerId(feature_id));
-        try {
-          int index = Integer.parseInt(feature_name);
-          sb.append(String.format(" tm_%s_%d=%.5f", Vocabulary.word(owner), index,
-              -encoder.read(features, feature_position)));
-        } catch (NumberFormatException e) {
-          sb.append(String.format(" %s=%.5f", feature_name, -encoder.read(features, feature_position)));
-        }
+        vector.put(featureMapIds[feature_id], -encoder.read(buffer, feature_position));
 
         feature_position += EncoderConfiguration.ID_SIZE + encoder.size();
       }
-      return sb.toString().trim();
+      return vector;
+    }
+
+    /**
+     * Computes the inner product of a rule's unlabeled features (represented as a block ID) with
+     * the grammar's dense weights, without building a feature vector. This is the packed
+     * equivalent of {@link BilingualRule#setPrecomputableCost(float[])}.
+     */
+    private final float getPrecomputableCost(int block_id, float[] weights) {
+      long block_position = features.position(block_id);
+      ByteBuffer buffer = features.file.buffer(block_position);
+      int feature_position = features.file.offset(block_position);
+      int num_features = encoding.readId(buffer, feature_position);
+
+      feature_position += EncoderConfiguration.ID_SIZE;
+      float cost = 0.0f;
+      for (int i = 0; i < num_features; i++) {
+        int feature_id = encoding.readId(buffer, feature_position);
+        FloatEncoder encoder = encoding.encoder(feature_id);
+
+        int index = denseFeatureIndices[feature_id];
+        if (index == -1)
+          throw new RuntimeException("FATAL: we don't support arbitrary named features in the grammar file");
+        if (index < weights.length)
+          cost += weights[index] * -encoder.read(buffer, feature_position);
+
+        feature_position += EncoderConfiguration.ID_SIZE + encoder.size();
+      }
+      return cost;
     }
 
     private final byte[] getAlignmentArray(int block_id) {
       if (alignments == null)
         throw new RuntimeException("No alignments available.");
-      int alignment_position = alignmentLookup[block_id];
-      int num_points = (int) alignments.get(alignment_position);
+      long alignment_position = alignments.position(block_id);
+      int num_points = (int) alignments.file.get(alignment_position);
       byte[] alignment = new byte[num_points * 2];
       
-      alignments.position(alignment_position + 1);
-      alignments.get(alignment, 0, num_points * 2);
+      for (int i = 0; i < alignment.length; i++)
+        alignment[i] = alignments.file.get(alignment_position + 1 + i);
       return alignment;
     }
     
@@ -407,7 +481,22 @@ public class PackedGrammar extends AbstractGrammar {
 
       private final int position;
 
-      private boolean sorted = false;
+      // Volatile so that threads that find the node sorted also see the sorted rules.
+      private volatile boolean sorted = false;
+
+      /*
+       * The order of the node's rules once sorted (as indices into its rules). The mapped source
+       * is read-only, so rules are not permuted in place.
+       */
+      private int[] ruleOrder = null;
+
+      /*
+       * The estimated and precomputable costs of the node's rules, indexed by their position in the
+       * node and allocated the first time a cost is cached. Trie nodes are themselves cached, so the
+       * costs survive as long as the node does, without reserving space for every rule of the slice.
+       */
+      private volatile float[] estimated = null;
+      private volatile float[] precomputable = null;
 
       private int[] src;
       private int arity;
@@ -430,19 +519,19 @@ public class PackedGrammar extends AbstractGrammar {
 
       @Override
       public final Trie match(int token_id) {
-        int num_children = source[position];
+        int num_children = source.getInt(position);
         if (num_children == 0)
           return null;
-        if (num_children == 1 && token_id == source[position + 1])
-          return getTrie(source[position + 2], src, arity, token_id);
+        if (num_children == 1 && token_id == source.getInt(position + 1))
+          return getTrie(source.getInt(position + 2), src, arity, token_id);
         int top = 0;
         int bottom = num_children - 1;
         while (true) {
           int candidate = (top + bottom) / 2;
           int candidate_position = position + 1 + 2 * candidate;
-          int read_token = source[candidate_position];
+          int read_token = source.getInt(candidate_position);
           if (read_token == token_id) {
-            return getTrie(source[candidate_position + 1], src, arity, token_id);
+            return getTrie(source.getInt(candidate_position + 1), src, arity, token_id);
           } else if (top == bottom) {
             return null;
           } else if (read_token > token_id) {
@@ -458,26 +547,26 @@ public class PackedGrammar extends AbstractGrammar {
       @Override
       public HashMap<Integer, ? extends Trie> getChildren() {
         HashMap<Integer, Trie> children = new HashMap<Integer, Trie>();
-        int num_children = source[position];
+        int num_children = source.getInt(position);
         for (int i = 0; i < num_children; i++) {
-          int symbol = source[position + 1 + 2 * i];
-          int address = source[position + 2 + 2 * i];
+          int symbol = source.getInt(position + 1 + 2 * i);
+          int address = source.getInt(position + 2 + 2 * i);
           children.put(symbol, getTrie(address, src, arity, symbol));
         }
         return children;
       }
 
       public boolean hasExtensions() {
-        return (source[position] != 0);
+        return (source.getInt(position) != 0);
       }
 
       public ArrayList<? extends Trie> getExtensions() {
-        int num_children = source[position];
+        int num_children = source.getInt(position);
         ArrayList<PackedTrie> tries = new ArrayList<PackedTrie>(num_children);
 
         for (int i = 0; i < num_children; i++) {
-          int symbol = source[position + 1 + 2 * i];
-          int address = source[position + 2 + 2 * i];
+          int symbol = source.getInt(position + 1 + 2 * i);
+          int address = source.getInt(position + 2 + 2 * i);
           tries.add(getTrie(address, src, arity, symbol));
         }
 
@@ -485,29 +574,47 @@ public class PackedGrammar extends AbstractGrammar {
       }
 
       public boolean hasRules() {
-        int num_children = source[position];
-        return (source[position + 1 + 2 * num_children] != 0);
+        int num_children = source.getInt(position);
+        return (source.getInt(position + 1 + 2 * num_children) != 0);
       }
 
       public RuleCollection getRuleCollection() {
         return this;
       }
 
+      /* The position of the node's first rule. */
+      private int rulePosition() {
+        return position + 2 * (source.getInt(position) + 1);
+      }
+
+      private int numRules() {
+        return source.getInt(rulePosition() - 1);
+      }
+
+      private synchronized void allocateCosts() {
+        if (estimated == null) {
+          int num_rules = numRules();
+          float[] p = new float[num_rules];
+          float[] e = new float[num_rules];
+          Arrays.fill(p, Float.NEGATIVE_INFINITY);
+          Arrays.fill(e, Float.NEGATIVE_INFINITY);
+          precomputable = p;
+          estimated = e;
+        }
+      }
+
       public List<Rule> getRules() {
-        int num_children = source[position];
-        int rule_position = position + 2 * (num_children + 1);
-        int num_rules = source[rule_position - 1];
+        int num_rules = numRules();
 
         ArrayList<Rule> rules = new ArrayList<Rule>(num_rules);
-        for (int i = 0; i < num_rules; i++) {
-          rules.add(new PackedRule(rule_position + 3 * i));
-        }
+        int[] order = ruleOrder;
+        for (int i = 0; i < num_rules; i++)
+          rules.add(new PackedRule((order != null) ? order[i] : i));
         return rules;
       }
 
       /**
-       * We determine if the Trie is sorted by checking if the estimated cost of the first rule in
-       * the trie has been set.
+       * Whether the node's rules have been sorted by their estimated cost (see sortRules()).
        */
       @Override
       public boolean isSorted() {
@@ -515,48 +622,39 @@ public class PackedGrammar extends AbstractGrammar {
       }
 
       private synchronized void sortRules(List<FeatureFunction> models) {
-        int num_children = source[position];
-        int rule_position = position + 2 * (num_children + 1);
-        int num_rules = source[rule_position - 1];
+        // Another thread may have sorted the rules while we were waiting for the lock.
+        if (sorted)
+          return;
+
+        int num_rules = numRules();
         if (num_rules == 0) {
           this.sorted = true;
           return;
         }
         Integer[] rules = new Integer[num_rules];
 
-        int target_address;
-        int block_id;
         for (int i = 0; i < num_rules; ++i) {
-          target_address = source[rule_position + 1 + 3 * i];
-          rules[i] = rule_position + 2 + 3 * i;
-          block_id = source[rules[i]];
-
-          BilingualRule rule = new BilingualRule(source[rule_position + 3 * i], src,
-              getTarget(target_address), getFeatures(block_id), arity, owner);
-          estimated[block_id] = rule.estimateRuleCost(models);
-          precomputable[block_id] = rule.getPrecomputableCost();
+          rules[i] = i;
+
+          // Scores the rule, caching its cost with the node.
+          new PackedRule(i).estimateRuleCost(models);
         }
 
+        final float[] costs = estimated;
         Arrays.sort(rules, new Comparator<Integer>() {
           public int compare(Integer a, Integer b) {
-            float a_cost = estimated[source[a]];
-            float b_cost = estimated[source[b]];
+            float a_cost = costs[a];
+            float b_cost = costs[b];
             if (a_cost == b_cost)
               return 0;
             return (a_cost > b_cost ? -1 : 1);
           }
         });
 
-        int[] sorted = new int[3 * num_rules];
-        int j = 0;
-        for (int i = 0; i < rules.length; i++) {
-          int address = rules[i];
-          sorted[j++] = source[address - 2];
-          sorted[j++] = source[address - 1];
-          sorted[j++] = source[address];
-        }
-        for (int i = 0; i < sorted.length; i++)
-          source[rule_position + i] = sorted[i];
+        int[] order = new int[num_rules];
+        for (int i = 0; i < rules.length; i++)
+          order[i] = rules[i];
+        this.ruleOrder = order;
         this.sorted = true;
       }
 
@@ -596,7 +694,7 @@ public class PackedGrammar extends AbstractGrammar {
 
         PackedChildIterator(int position, boolean terminal) {
           this.terminal = terminal;
-          int num_children = source[position];
+          int num_children = source.getInt(position);
           done = (num_children == 0);
           if (!done) {
             current = (terminal ? position + 1 : position - 1 + 2 * num_children);
@@ -611,19 +709,19 @@ public class PackedGrammar extends AbstractGrammar {
           int next = (terminal ? current + 2 : current - 2);
           if (next == last)
             return false;
-          return (terminal ? source[next] > 0 : source[next] < 0);
+          return (terminal ? source.getInt(next) > 0 : source.getInt(next) < 0);
         }
 
         @Override
         public Integer next() {
           if (done)
             throw new RuntimeException("No more symbols!");
-          int symbol = source[current];
+          int symbol = source.getInt(current);
           if (current == last)
             done = true;
           if (!done) {
             current = (terminal ? current + 2 : current - 2);
-            done = (terminal ? source[current] < 0 : source[current] > 0);
+            done = (terminal ? source.getInt(current) < 0 : source.getInt(current) > 0);
           }
           return symbol;
         }
@@ -635,13 +733,16 @@ public class PackedGrammar extends AbstractGrammar {
       }
 
       public final class PackedRule extends Rule {
+        // The index of the rule within the trie node, and its position in the source array.
+        private final int index;
         private final int address;
 
         private int[] tgt = null;
         private FeatureVector features = null;
 
-        public PackedRule(int address) {
-          this.address = address;
+        public PackedRule(int index) {
+          this.index = index;
+          this.address = rulePosition() + 3 * index;
         }
 
         @Override
@@ -668,7 +769,7 @@ public class PackedGrammar extends AbstractGrammar {
 
         @Override
         public int getLHS() {
-          return source[address];
+          return source.getInt(address);
         }
 
         @Override
@@ -678,7 +779,7 @@ public class PackedGrammar extends AbstractGrammar {
         @Override
         public int[] getEnglish() {
           if (tgt == null) {
-            tgt = getTarget(source[address + 1]);
+            tgt = getTarget(source.getInt(address + 1));
           }
           return tgt;
         }
@@ -695,7 +796,7 @@ public class PackedGrammar extends AbstractGrammar {
         @Override
         public FeatureVector getFeatureVector() {
           if (features == null) {
-            features = new FeatureVector(getFeatures(source[address + 2]), "");
+            features = getFeatures(source.getInt(address + 2));
           }
 
           return features;
@@ -704,28 +805,49 @@ public class PackedGrammar extends AbstractGrammar {
         @Override
         public byte[] getAlignment() {
           if (alignments != null)
-            return getAlignmentArray(source[address + 2]);
+            return getAlignmentArray(source.getInt(address + 2));
           return null;
         }
 
         @Override
         public float getEstimatedCost() {
-          return estimated[source[address + 2]];
+          float[] costs = estimated;
+          return (costs == null) ? Float.NEGATIVE_INFINITY : costs[index];
         }
 
-//        @Override
-//        public void setPrecomputableCost(float cost) {
-//          precomputable[source[address + 2]] = cost;
-//        }
+        @Override
+        public void setPrecomputableCost(float[] weights) {
+          if (precomputable == null)
+            allocateCosts();
+          precomputable[index] = PackedSlice.this.getPrecomputableCost(source.getInt(address + 2),
+              weights);
+        }
+
+        @Override
+        public float computePrecomputableCost(float[] weights) {
+          return PackedSlice.this.getPrecomputableCost(source.getInt(address + 2), weights);
+        }
 
         @Override
         public float getPrecomputableCost() {
-          return precomputable[source[address + 2]];
+          float[] costs = precomputable;
+          return (costs == null) ? Float.NEGATIVE_INFINITY : costs[index];
         }
 
         @Override
         public float estimateRuleCost(List<FeatureFunction> models) {
-          return estimated[source[address + 2]];
+          if (null == models)
+            return 0.0f;
+
+          if (estimated == null)
+            allocateCosts();
+          if (estimated[index] <= Float.NEGATIVE_INFINITY) {
+            float cost = 0.0f;
+            for (FeatureFunction ff : models)
+              cost += ff.estimateCost(this, -1);
+            estimated[index] = cost;
+          }
+          return estimated[index];
         }
 
         @Override
@@ -745,6 +867,45 @@ public class PackedGrammar extends AbstractGrammar {
     }
   }
 
+  /**
+   * A feature or alignment file of a slice: a header locating each rule's data block, followed by
+   * the blocks. In the original format, the header is the number of blocks, the total size of the
+   * blocks, and the int offset of each block. Since blocks are addressed in bytes, this limits the
+   * file to 2 GB, so the packer now writes LONG_OFFSETS, followed by the number of blocks, the total
+   * size as a long, and the long offset of each block. Both formats are read.
+   * 
+   * Offsets are read from the mapped header when needed rather than copied onto the heap.
+   */
+  static final class BlockFile {
+    final MappedFile file;
+    private final boolean longOffsets;
+    private final int numBlocks;
+
+    BlockFile(File block_file) throws IOException {
+      file = new MappedFile(block_file, MapMode.READ_ONLY, MAX_BLOCK_SIZE);
+      int first = file.getIntAt(0);
+      longOffsets = (first == LONG_OFFSETS);
+      numBlocks = longOffsets ? file.getIntAt(4) : first;
+    }
+
+    int numBlocks() {
+      return numBlocks;
+    }
+
+    /**
+     * The byte position of the given block in the file.
+     */
+    long position(int block_id) {
+      if (longOffsets)
+        return file.getLongAt(16 + 8L * block_id);
+      return file.getIntAt(8 + 4L * block_id);
+    }
+
+    void load() {
+      file.load();
+    }
+  }
+
   @Override
   public boolean isRegexpGrammar() {
     // TODO Auto-generated method stub
@@ -0,0 +1,230 @@
+package joshua.decoder.hypergraph;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import joshua.corpus.Vocabulary;
+import joshua.decoder.chart_parser.ComputeNodeResult;
+import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.FeatureMap;
+import joshua.decoder.ff.FeatureVector;
+import joshua.decoder.ff.tm.Rule;
+import joshua.decoder.hypergraph.ForestWalker.TRAVERSAL;
+
+/**
+ * Writes a hypergraph in the binary format read by {@link MappedHyperGraph}, so that it can be
+ * rescored (e.g., for MBR, oracle extraction, or tuning) without decoding the sentence again.
+ *
+ * The file consists of a header followed by a number of tables of big-endian ints, in this order:
+ *
+ * <pre>
+ * nodes     (NODE_INTS per node: i, j, lhs, first edge, number of edges, best edge)
+ * edges     (EDGE_INTS per edge: rule, first tail, number of tails, first feature,
+ *            number of features, transition score, best derivation score)
+ * tails     (the node index of each tail node)
+ * features  (FEATURE_INTS per feature: name, value)
+ * rules     (the offset of each rule in the rule words, plus one past the last)
+ * rule words(for each rule: lhs, owner (or -1), arity, source length, target length, source,
+ *            target)
+ * strings   (the offset of each string in the string bytes, plus one past the last)
+ * string bytes (UTF-8)
+ * </pre>
+ *
+ * Nodes are listed in post-order, so that tail nodes always come before the nodes that use them,
+ * and the goal node is last. Scores are stored as the bits of floats. Words, nonterminals, and
+ * feature names are indices into the table of strings, which makes a file independent of the
+ * vocabulary and feature ids of the process that wrote it. On the source side of a rule,
+ * nonterminals are stored as -(index + 1); on the target side, they keep their (negative)
+ * nonterminal index. The rule of the edges into the goal node is -1.
+ *
+ * The features of each edge are those fired by its transition, as computed for the text dump.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class BinaryHyperGraphWriter {
+
+  private final List<FeatureFunction> model;
+  private final int sentID;
+
+  private final HashMap<HGNode, Integer> nodeMap = new HashMap<HGNode, Integer>();
+  private final IdentityHashMap<Rule, Integer> ruleMap = new IdentityHashMap<Rule, Integer>();
+  private final HashMap<String, Integer> stringMap = new HashMap<String, Integer>();
+
+  private final ByteArrayOutputStream nodeBytes = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream edgeBytes = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream tailBytes = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream featureBytes = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream ruleBytes = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream ruleWordBytes = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream stringDataBytes = new ByteArrayOutputStream();
+
+  private final DataOutputStream nodes = new DataOutputStream(nodeBytes);
+  private final DataOutputStream edges = new DataOutputStream(edgeBytes);
+  private final DataOutputStream tails = new DataOutputStream(tailBytes);
+  private final DataOutputStream features = new DataOutputStream(featureBytes);
+  private final DataOutputStream rules = new DataOutputStream(ruleBytes);
+  private final DataOutputStream ruleWords = new DataOutputStream(ruleWordBytes);
+  private final DataOutputStream strings = new DataOutputStream(stringBytes);
+
+  private int numEdges = 0;
+  private int numTails = 0;
+  private int numFeatures = 0;
+  private int numRuleWords = 0;
+
+  private BinaryHyperGraphWriter(List<FeatureFunction> model, int sentID) {
+    this.model = model;
+    this.sentID = sentID;
+  }
+
+  /**
+   * Writes the hypergraph to the named file. The feature functions are used to compute the
+   * features of each edge.
+   */
+  public static void write(HyperGraph hg, List<FeatureFunction> model, String fileName)
+      throws IOException {
+    BinaryHyperGraphWriter writer = new BinaryHyperGraphWriter(model, hg.sentID());
+    writer.addNodes(hg.goalNode);
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+        fileName)));
+    try {
+      writer.write(out, writer.string(hg.sentence.source()));
+    } finally {
+      out.close();
+    }
+  }
+
+  private void addNodes(HGNode goalNode) throws IOException {
+    final List<HGNode> order = new ArrayList<HGNode>();
+    new ForestWalker(TRAVERSAL.POSTORDER).walk(goalNode, new WalkerFunction() {
+      @Override
+      public void apply(HGNode node) {
+        order.add(node);
+      }
+    });
+
+    for (HGNode node : order) {
+      nodeMap.put(node, nodeMap.size());
+
+      int firstEdge = numEdges;
+      int bestEdge = -1;
+      List<HyperEdge> incoming = node.getHyperEdges();
+      if (incoming != null) {
+        for (HyperEdge edge : incoming) {
+          if (edge == node.bestHyperedge)
+            bestEdge = numEdges;
+          addEdge(node, edge);
+        }
+      }
+
+      nodes.writeInt(node.i);
+      nodes.writeInt(node.j);
+      nodes.writeInt(string(Vocabulary.word(node.lhs)));
+      nodes.writeInt(firstEdge);
+      nodes.writeInt(numEdges - firstEdge);
+      nodes.writeInt(bestEdge);
+    }
+  }
+
+  private void addEdge(HGNode node, HyperEdge edge) throws IOException {
+    edges.writeInt(edge.getRule() == null ? -1 : rule(edge.getRule()));
+
+    edges.writeInt(numTails);
+    List<HGNode> tailNodes = edge.getTailNodes();
+    int arity = (tailNodes == null) ? 0 : tailNodes.size();
+    edges.writeInt(arity);
+    for (int k = 0; k < arity; k++)
+      tails.writeInt(nodeMap.get(tailNodes.get(k)));
+    numTails += arity;
+
+    FeatureVector edgeFeatures = ComputeNodeResult.computeTransitionFeatures(model, edge, node.i,
+        node.j, sentID);
+    int[] ids = edgeFeatures.getIds();
+    edges.writeInt(numFeatures);
+    edges.writeInt(ids.length);
+    for (int id : ids) {
+      features.writeInt(string(FeatureMap.name(id)));
+      features.writeFloat(edgeFeatures.get(id));
+    }
+    numFeatures += ids.length;
+
+    edges.writeFloat(edge.getTransitionLogP(false));
+    edges.writeFloat(edge.getBestDerivationScore());
+    numEdges++;
+  }
+
+  private int rule(Rule rule) throws IOException {
+    Integer index = ruleMap.get(rule);
+    if (index != null)
+      return index;
+
+    index = ruleMap.size();
+    ruleMap.put(rule, index);
+    rules.writeInt(numRuleWords);
+
+    int[] source = rule.getFrench();
+    int[] target = rule.getEnglish();
+    ruleWords.writeInt(string(Vocabulary.word(rule.getLHS())));
+    ruleWords.writeInt(rule.getOwner() < 0 ? -1 : string(Vocabulary.word(rule.getOwner())));
+    ruleWords.writeInt(rule.getArity());
+    ruleWords.writeInt(source.length);
+    ruleWords.writeInt(target.length);
+    for (int id : source)
+      ruleWords.writeInt(id < 0 ? -(string(Vocabulary.word(id)) + 1) : string(Vocabulary.word(id)));
+    for (int id : target)
+      ruleWords.writeInt(id < 0 ? id : string(Vocabulary.word(id)));
+    numRuleWords += 5 + source.length + target.length;
+
+    return index;
+  }
+
+  private int string(String string) throws IOException {
+    Integer index = stringMap.get(string);
+    if (index != null)
+      return index;
+
+    index = stringMap.size();
+    stringMap.put(string, index);
+    strings.writeInt(stringDataBytes.size());
+    stringDataBytes.write(string.getBytes("UTF-8"));
+    return index;
+  }
+
+  private void write(DataOutputStream out, int source) throws IOException {
+    // Terminate the offset tables, and pad the string bytes to a whole number of ints
+    rules.writeInt(numRuleWords);
+    strings.writeInt(stringDataBytes.size());
+    while (stringDataBytes.size() % 4 != 0)
+      stringDataBytes.write(0);
+
+    out.writeInt(MappedHyperGraph.MAGIC);
+    out.writeInt(MappedHyperGraph.VERSION);
+    out.writeInt(sentID);
+    out.writeInt(source);
+    out.writeInt(nodeMap.size());
+    out.writeInt(numEdges);
+    out.writeInt(numTails);
+    out.writeInt(numFeatures);
+    out.writeInt(ruleMap.size());
+    out.writeInt(numRuleWords);
+    out.writeInt(stringMap.size());
+    out.writeInt(stringDataBytes.size());
+
+    nodeBytes.writeTo(out);
+    edgeBytes.writeTo(out);
+    tailBytes.writeTo(out);
+    featureBytes.writeTo(out);
+    ruleBytes.writeTo(out);
+    ruleWordBytes.writeTo(out);
+    stringBytes.writeTo(out);
+    stringDataBytes.writeTo(out);
+  }
+}
@@ -143,6 +143,21 @@ public class HyperGraph {
     out.close();
   }
 
+  /**
+   * Dump the hypergraph to the specified file in the binary format read by
+   * {@link MappedHyperGraph}.
+   * 
+   * @param fileName
+   */
+  public void dumpBinary(String fileName, List<FeatureFunction> model) {
+    try {
+      BinaryHyperGraphWriter.write(this, model, fileName);
+    } catch (IOException e) {
+      System.err.println("* Can't dump hypergraph to file '" + fileName + "'");
+      e.printStackTrace();
+    }
+  }
+
   public float bestScore() {
     return this.goalNode.bestHyperedge.getBestDerivationScore();
   }
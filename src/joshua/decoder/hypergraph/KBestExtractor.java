@@ -5,24 +5,30 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import joshua.corpus.Vocabulary;
 import joshua.decoder.BLEU;
 import joshua.decoder.JoshuaConfiguration;
 import joshua.decoder.chart_parser.ComputeNodeResult;
 import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.FeatureMap;
 import joshua.decoder.ff.FeatureVector;
 import joshua.decoder.ff.fragmentlm.Tree;
 import joshua.decoder.ff.state_maintenance.DPState;
 import joshua.decoder.ff.tm.Rule;
 import joshua.decoder.io.DeNormalize;
 import joshua.decoder.segment_file.Sentence;
+import joshua.util.ForkJoinPools;
 
 /**
  * This class implements lazy k-best extraction on a hyper-graph.
@@ -75,7 +81,13 @@ import joshua.decoder.segment_file.Sentence;
  */
 public class KBestExtractor {
   private final JoshuaConfiguration joshuaConfiguration;
-  private final HashMap<HGNode, VirtualNode> virtualNodesTable = new HashMap<HGNode, VirtualNode>();
+  private final ConcurrentHashMap<HGNode, VirtualNode> virtualNodesTable =
+      new ConcurrentHashMap<HGNode, VirtualNode>();
+
+  private static final Logger logger = Logger.getLogger(KBestExtractor.class.getName());
+
+  /* The number of derivations extracted before each round of parallel formatting */
+  private static final int FORMAT_BATCH_SIZE = 64;
 
   // static final String rootSym = JoshuaConfiguration.goal_symbol;
   static final String rootSym = "ROOT";
@@ -89,9 +101,15 @@ public class KBestExtractor {
   private boolean extractUniqueNbest = true;
 
   /* Whether to include the alignment information in the output */
-  @SuppressWarnings("unused")
   private boolean includeAlign = false;
 
+  /*
+   * Whether unique strings are found by hashing the target words of each derivation (see YieldSet)
+   * rather than by building its output string. The output strings are only the words of the yield
+   * when it is the target side and there are no alignments.
+   */
+  private boolean hashYields = false;
+
   /* Which side to output (source or target) */
   private Side defaultSide = Side.TARGET;
 
@@ -101,6 +119,9 @@ public class KBestExtractor {
   /* The weights being used to score the forest */
   private FeatureVector weights;
 
+  /* The feature id of the BLEU weight, looked up once since it is consulted on every comparison */
+  private static final int BLEU_ID = FeatureMap.id("BLEU");
+
   /* The feature functions */
   private List<FeatureFunction> models;
 
@@ -119,12 +140,25 @@ public class KBestExtractor {
     this.weights = weights;
     this.defaultSide = (isMonolingual ? Side.SOURCE : Side.TARGET);
     this.sentence = sentence;
+    this.hashYields = extractUniqueNbest && defaultSide == Side.TARGET && !includeAlign;
 
     if (joshuaConfiguration.rescoreForest) {
       references = new BLEU.References(sentence.references());
     }
   }
 
+  /**
+   * Returns an extractor for the same sentence whose derivations are also scored by BLEU against
+   * the references, with the given weight. This is used for forest rescoring. The weights are
+   * copied, since they are shared by the other sentences being decoded.
+   */
+  public KBestExtractor withBLEUWeight(float bleuWeight) {
+    FeatureVector rescoringWeights = weights.clone();
+    rescoringWeights.put(BLEU_ID, bleuWeight);
+    return new KBestExtractor(sentence, models, rescoringWeights, defaultSide == Side.SOURCE,
+        joshuaConfiguration);
+  }
+
   /**
    * Returns the kth derivation.
    * 
@@ -147,12 +181,20 @@ public class KBestExtractor {
    */
   public String getKthHyp(HGNode node, int k) {
 
-    String outputString = null;
-
     // Determine the k-best hypotheses at each HGNode
     VirtualNode virtualNode = getVirtualNode(node);
     DerivationState derivationState = virtualNode.lazyKBestExtractOnNode(this, k);
-//    DerivationState derivationState = getKthDerivation(node, k);
+    return formatDerivation(derivationState, k);
+  }
+
+  /**
+   * Formats the kth-best derivation (which may be null) with the output-format template. This only
+   * reads the derivations that have been extracted, so it may be called from several threads.
+   */
+  private String formatDerivation(DerivationState derivationState, int k) {
+
+    String outputString = null;
+
     if (derivationState != null) {
       // ==== read the kbest from each hgnode and convert to output format
       FeatureVector features = new FeatureVector();
@@ -170,8 +212,10 @@ public class KBestExtractor {
 
       outputString = joshuaConfiguration.outputFormat
           .replace("%k", Integer.toString(k))
-          .replace("%s", hypothesis)
-          .replace("%S", DeNormalize.processSingleLine(hypothesis))
+          .replace("%s", hypothesis);
+      if (outputString.contains("%S"))
+        outputString = outputString.replace("%S", DeNormalize.processSingleLine(hypothesis));
+      outputString = outputString
           .replace("%i", Integer.toString(sentence.id()))
           .replace("%f", features.toString())
           .replace("%c", String.format("%.3f", derivationState.cost));
@@ -233,6 +277,11 @@ public class KBestExtractor {
     if (null == hg.goalNode)
       return;
 
+    if (joshuaConfiguration.kbest_threads > 1 && topN > 1) {
+      parallelKBestExtractOnHG(hg, topN, out);
+      return;
+    }
+
     for (int k = 1;; k++) {
       String hypStr = getKthHyp(hg.goalNode, k);
 
@@ -245,6 +294,74 @@ public class KBestExtractor {
     }
   }
 
+  /**
+   * Extracts the k-best derivations in batches, formatting each batch in parallel. Extraction
+   * itself is cheap once the candidates are seeded; most of the time goes to building the output
+   * of each derivation (its string, and its features if they are output), which depends only on
+   * the derivations already extracted. Batches are written in order as they are done.
+   */
+  private void parallelKBestExtractOnHG(HyperGraph hg, int topN, BufferedWriter out)
+      throws IOException {
+    ForkJoinPool pool = ForkJoinPools.get(joshuaConfiguration.kbest_threads);
+    VirtualNode goal = getVirtualNode(hg.goalNode);
+    DerivationState[] batch = new DerivationState[FORMAT_BATCH_SIZE];
+    String[] lines = new String[FORMAT_BATCH_SIZE];
+
+    for (int k = 1; k <= topN;) {
+      int size = 0;
+      for (; size < batch.length && k + size <= topN; size++) {
+        batch[size] = goal.lazyKBestExtractOnNode(this, k + size);
+        if (batch[size] == null)
+          break;
+      }
+      if (size == 0)
+        break;
+
+      pool.invoke(new DerivationFormatter(batch, lines, k, 0, size));
+      for (int i = 0; i < size; i++) {
+        out.write(lines[i]);
+        out.write("\n");
+      }
+      out.flush();
+
+      if (size < batch.length && k + size <= topN)
+        break; // no more derivations
+      k += size;
+    }
+  }
+
+  /**
+   * Formats the derivations in batch[from, to), the first of which is the kth best, into lines.
+   */
+  @SuppressWarnings("serial")
+  private class DerivationFormatter extends RecursiveAction {
+    private final DerivationState[] batch;
+    private final String[] lines;
+    private final int k;
+    private final int from;
+    private final int to;
+
+    DerivationFormatter(DerivationState[] batch, String[] lines, int k, int from, int to) {
+      this.batch = batch;
+      this.lines = lines;
+      this.k = k;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= 4) {
+        for (int i = from; i < to; i++)
+          lines[i] = formatDerivation(batch[i], k + i);
+      } else {
+        int mid = (from + to) / 2;
+        invokeAll(new DerivationFormatter(batch, lines, k, from, mid),
+            new DerivationFormatter(batch, lines, k, mid, to));
+      }
+    }
+  }
+
   /**
    * This clears the virtualNodesTable, which maintains a list of virtual nodes. This should be
    * called in between forest rescorings.
@@ -261,10 +378,16 @@ public class KBestExtractor {
    * @return the corresponding VirtualNode
    */
   private VirtualNode getVirtualNode(HGNode hgnode) {
+    /*
+     * The chart's extractor may be consulted by several threads when cells are filled in parallel,
+     * and derivations are read by several threads when k-best lists are formatted in parallel.
+     */
     VirtualNode virtualNode = virtualNodesTable.get(hgnode);
     if (null == virtualNode) {
       virtualNode = new VirtualNode(hgnode);
-      virtualNodesTable.put(hgnode, virtualNode);
+      VirtualNode existing = virtualNodesTable.putIfAbsent(hgnode, virtualNode);
+      if (existing != null)
+        virtualNode = existing;
     }
     return virtualNode;
   }
@@ -297,6 +420,9 @@ public class KBestExtractor {
     // This records unique *strings* at each item, used for unique-nbest-string extraction.
     private HashSet<String> uniqueStringsTable = null;
 
+    // The same, by the hashes of their target words (see YieldSet).
+    private YieldSet uniqueYields = null;
+
     public VirtualNode(HGNode it) {
       this.node = it;
     }
@@ -309,7 +435,8 @@ public class KBestExtractor {
      * @return the k-th best (1-indexed) hypothesis, or null if there are no more.
      */
     // return: the k-th hyp or null; k is started from one
-    private DerivationState lazyKBestExtractOnNode(KBestExtractor kbestExtractor, int k) {
+    private synchronized DerivationState lazyKBestExtractOnNode(KBestExtractor kbestExtractor,
+        int k) {
       if (nbests.size() >= k) { // no need to continue
         return nbests.get(k - 1);
       }
@@ -336,13 +463,11 @@ public class KBestExtractor {
           // derivation_tbl.remove(res.get_signature());//TODO: should remove? note that two state
           // may be tied because the cost is the same
           if (extractUniqueNbest) {
-            // We pass false for extract_nbest_tree because we want; to check that the hypothesis
-            // *strings* are unique, not the trees.
-            String res_str = derivationState.getHypothesis();
-            if (!uniqueStringsTable.contains(res_str)) {
+            // We want to check that the hypothesis *strings* are unique, not the trees.
+            boolean isNew = hashYields ? uniqueYields.add(derivationState)
+                : uniqueStringsTable.add(derivationState.getHypothesis());
+            if (isNew)
               nbests.add(derivationState);
-              uniqueStringsTable.add(res_str);
-            }
           } else {
             nbests.add(derivationState);
           }
@@ -372,6 +497,15 @@ public class KBestExtractor {
       return derivationState;
     }
 
+    /**
+     * Returns the derivation of the given rank (indexed from one) that has already been extracted.
+     * Other threads may be extracting derivations at this node at the same time, so this is the
+     * only way the list may be read.
+     */
+    private synchronized DerivationState nbest(int rank) {
+      return nbests.get(rank - 1);
+    }
+
     /**
      * This function extends the current hypothesis, adding each extended item to the list of
      * candidates (assuming they have not been added before). It does this by, in turn, extending
@@ -405,15 +539,12 @@ public class KBestExtractor {
         // Don't add the state to the list of candidates if it's already been added.
         if (!derivationTable.contains(nextState)) {
           // Make sure that next candidate exists
-          virtualTailNode.lazyKBestExtractOnNode(kbestExtractor, newRanks[i]);
-          // System.err.println(String.format("  newRanks[%d] = %d and tail size %d", i,
-          // newRanks[i], virtualTailNode.nbests.size()));
-          if (newRanks[i] <= virtualTailNode.nbests.size()) {
-            // System.err.println("NODE: " + this.node);
-            // System.err.println("  tail is " + virtualTailNode.node);
+          DerivationState nextTailState = virtualTailNode.lazyKBestExtractOnNode(kbestExtractor,
+              newRanks[i]);
+          if (nextTailState != null) {
             float cost = previousState.getModelCost()
-                - virtualTailNode.nbests.get(previousState.ranks[i] - 1).getModelCost()
-                + virtualTailNode.nbests.get(newRanks[i] - 1).getModelCost();
+                - virtualTailNode.nbest(previousState.ranks[i]).getModelCost()
+                + nextTailState.getModelCost();
             nextState.setCost(cost);
 
             if (joshuaConfiguration.rescoreForest)
@@ -453,7 +584,9 @@ public class KBestExtractor {
        * A Joshua configuration option allows the decoder to output only unique strings. In that
        * case, we keep an list of the frontiers of derivation states extending from this node.
        */
-      if (extractUniqueNbest) {
+      if (hashYields) {
+        uniqueYields = new YieldSet();
+      } else if (extractUniqueNbest) {
         uniqueStringsTable = new HashSet<String>();
       }
 
@@ -537,6 +670,80 @@ public class KBestExtractor {
     }
   };
 
+  /* Matches the nonterminals of rules' target sides, when hypotheses are built as strings */
+  private static final Pattern NT_PATTERN = Pattern.compile(Rule.NT_REGEX);
+
+  /* The base of the polynomial hashes of derivations' yields (any odd number will do) */
+  private static final long YIELD_PRIME = 0x9E3779B97F4A7C15L;
+
+  /**
+   * The set of yields of the derivations extracted at a node, for unique k-best extraction. The
+   * yields are kept by their hashes (see DerivationState.yieldHash()) in an open-addressed table,
+   * and only derivations with the same hash have their words compared, so no strings are built.
+   */
+  private static class YieldSet {
+    private long[] hashes = new long[16];
+    private DerivationState[] states = new DerivationState[16];
+    private int size = 0;
+
+    /* The words of the states in the table, built the first time they are compared */
+    private int[][] yields = new int[16][];
+
+    /**
+     * Adds the state's yield, returning false if a state with the same yield was already added.
+     */
+    boolean add(DerivationState state) {
+      long hash = state.yieldHash();
+      int[] words = null;
+      int mask = states.length - 1;
+      int slot = slot(hash, mask);
+      for (; states[slot] != null; slot = (slot + 1) & mask) {
+        if (hashes[slot] == hash) {
+          if (words == null)
+            words = state.getYield();
+          if (yields[slot] == null)
+            yields[slot] = states[slot].getYield();
+          if (Arrays.equals(words, yields[slot]))
+            return false;
+        }
+      }
+
+      hashes[slot] = hash;
+      states[slot] = state;
+      yields[slot] = words;
+      if (++size * 2 > states.length)
+        grow();
+      return true;
+    }
+
+    private void grow() {
+      long[] oldHashes = hashes;
+      DerivationState[] oldStates = states;
+      int[][] oldYields = yields;
+      hashes = new long[oldHashes.length * 2];
+      states = new DerivationState[oldStates.length * 2];
+      yields = new int[oldYields.length * 2][];
+      int mask = states.length - 1;
+      for (int i = 0; i < oldStates.length; i++) {
+        if (oldStates[i] != null) {
+          int slot = slot(oldHashes[i], mask);
+          while (states[slot] != null)
+            slot = (slot + 1) & mask;
+          hashes[slot] = oldHashes[i];
+          states[slot] = oldStates[i];
+          yields[slot] = oldYields[i];
+        }
+      }
+    }
+
+    private static int slot(long hash, int mask) {
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      return (int) hash & mask;
+    }
+  }
+
   /**
    * A DerivationState describes which path to follow through the hypergraph. For example, it
    * might say to use the 1-best from the first tail node, the 9th-best from the second tail node,
@@ -581,6 +788,17 @@ public class KBestExtractor {
      */
     BLEU.Stats stats = null;
 
+    /* The hash of the edge position and ranks, which are not changed once the state is created */
+    private final int hash;
+
+    /*
+     * The hash of the target words of the derivation's yield, and YIELD_PRIME raised to the number
+     * of words, which is odd and so is zero only until they are computed (see yieldHash()).
+     */
+    private long yieldHash = 0;
+    private long yieldPower = 0;
+    private int yieldLength = 0;
+
     public DerivationState(HGNode pa, HyperEdge e, int[] r, float c, int pos) {
       parentNode = pa;
       edge = e;
@@ -588,6 +806,13 @@ public class KBestExtractor {
       cost = c;
       edgePos = pos;
       bleu = 0.0f;
+
+      int h = edgePos;
+      if (ranks != null) {
+        for (int i = 0; i < ranks.length; i++)
+          h = h * 53 + ranks[i];
+      }
+      hash = h;
     }
 
     /**
@@ -636,7 +861,7 @@ public class KBestExtractor {
      * @return
      */
     public float getCost() {
-      return cost - weights.get("BLEU") * bleu;
+      return cost - weights.get(BLEU_ID) * bleu;
     }
 
     public String toString() {
@@ -653,16 +878,8 @@ public class KBestExtractor {
     public boolean equals(Object other) {
       if (other instanceof DerivationState) {
         DerivationState that = (DerivationState) other;
-        if (edgePos == that.edgePos) {
-          if (ranks != null && that.ranks != null) {
-            if (ranks.length == that.ranks.length) {
-              for (int i = 0; i < ranks.length; i++)
-                if (ranks[i] != that.ranks[i])
-                  return false;
-              return true;
-            }
-          }
-        }
+        return hash == that.hash && edgePos == that.edgePos && ranks != null
+            && Arrays.equals(ranks, that.ranks);
       }
 
       return false;
@@ -673,13 +890,70 @@ public class KBestExtractor {
      * only need contain the edge position and the ranks.
      */
     public int hashCode() {
-      int hash = edgePos;
-      if (ranks != null) {
-        for (int i = 0; i < ranks.length; i++)
-          hash = hash * 53 + i;
+      return hash;
+    }
+
+    /**
+     * Returns a hash of the target words of the derivation. The hash is polynomial in the word IDs,
+     * so it is computed from the hashes of the tail nodes' derivations without visiting their words,
+     * and it is remembered. The derivations of the tail nodes have already been hashed when they
+     * were extracted.
+     */
+    private long yieldHash() {
+      if (yieldPower == 0) {
+        long h = 0;
+        long power = 1;
+        int length = 0;
+        Rule rule = edge.getRule();
+        if (rule == null) {
+          DerivationState child = getChildDerivationState(edge, 0);
+          h = child.yieldHash();
+          power = child.yieldPower;
+          length = child.yieldLength;
+        } else {
+          for (int id : rule.getEnglish()) {
+            if (Vocabulary.idx(id)) {
+              DerivationState child = getChildDerivationState(edge, -(id + 1));
+              h = h * child.yieldPower + child.yieldHash();
+              power *= child.yieldPower;
+              length += child.yieldLength;
+            } else {
+              h = h * YIELD_PRIME + id;
+              power *= YIELD_PRIME;
+              length++;
+            }
+          }
+        }
+        yieldHash = h;
+        yieldLength = length;
+        yieldPower = power;
       }
+      return yieldHash;
+    }
 
-      return hash;
+    /**
+     * Returns the target word IDs of the derivation, for telling apart derivations whose yields have
+     * the same hash.
+     */
+    private int[] getYield() {
+      yieldHash();
+      int[] words = new int[yieldLength];
+      fillYield(words, 0);
+      return words;
+    }
+
+    private int fillYield(int[] words, int pos) {
+      Rule rule = edge.getRule();
+      if (rule == null)
+        return getChildDerivationState(edge, 0).fillYield(words, pos);
+
+      for (int id : rule.getEnglish()) {
+        if (Vocabulary.idx(id))
+          pos = getChildDerivationState(edge, -(id + 1)).fillYield(words, pos);
+        else
+          words[pos++] = id;
+      }
+      return pos;
     }
 
     /**
@@ -744,7 +1018,7 @@ public class KBestExtractor {
     public DerivationState getChildDerivationState(HyperEdge edge, int tailNodeIndex) {
       HGNode child = edge.getTailNodes().get(tailNodeIndex);
       VirtualNode virtualChild = getVirtualNode(child);
-      return virtualChild.nbests.get(ranks[tailNodeIndex] - 1);
+      return virtualChild.nbest(ranks[tailNodeIndex]);
     }
 
     // natural order by cost
@@ -792,12 +1066,11 @@ public class KBestExtractor {
       outputs = new Stack<String>();
     }
 
-    String ntMatcher = ".*" + Rule.NT_REGEX + ".*";
-
     void merge(String words) {
-      if (!words.matches(ntMatcher) && outputs.size() > 0 && outputs.peek().matches(ntMatcher)) {
+      if (!hasNonterminal(words) && outputs.size() > 0 && hasNonterminal(outputs.peek())) {
         String parentWords = outputs.pop();
-        String replaced = parentWords.replaceFirst(Rule.NT_REGEX, Matcher.quoteReplacement(words));
+        String replaced = NT_PATTERN.matcher(parentWords).replaceFirst(
+            Matcher.quoteReplacement(words));
 
         merge(replaced);
       } else {
@@ -832,12 +1105,16 @@ public class KBestExtractor {
     public void after(DerivationState state, int level) {
     }
 
+    private boolean hasNonterminal(String words) {
+      return words.indexOf('[') != -1 && NT_PATTERN.matcher(words).find();
+    }
+
     /**
      * After all rules in the grammar have been merged, there should be one item on the stack, which
      * is the complete target (or source) string.
      */
     public String toString() {
-      return outputs.pop().replaceAll("<s> ", "").replace(" </s>", "");
+      return outputs.pop().replace("<s> ", "").replace(" </s>", "");
     }
   }
 
@@ -929,12 +1206,11 @@ public class KBestExtractor {
         
         HyperEdge edge = state.edge;
 
-        FeatureVector transitionCosts = ComputeNodeResult.computeTransitionFeatures(models, edge,
-            parentNode.i, parentNode.j, sentence.id());
+        ComputeNodeResult.computeTransitionFeatures(models, edge, parentNode.i, parentNode.j,
+            sentence.id(), features);
 
 //        FeatureVector transitionCosts = ComputeNodeResult.computeTransitionFeatures(models, state,
 //            parentNode.i, parentNode.j, sentence);
-        features.add(transitionCosts);
       }
     }
 
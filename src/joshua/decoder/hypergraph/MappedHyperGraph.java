@@ -0,0 +1,347 @@
+package joshua.decoder.hypergraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import joshua.corpus.Vocabulary;
+import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.ff.FeatureMap;
+import joshua.decoder.ff.FeatureVector;
+import joshua.decoder.ff.tm.BilingualRule;
+import joshua.decoder.ff.tm.Rule;
+import joshua.decoder.segment_file.Sentence;
+import joshua.util.io.MappedFile;
+
+/**
+ * A hypergraph written by {@link BinaryHyperGraphWriter}, memory-mapped read-only. The tables in
+ * the file are read in place: nodes and edges are addressed by their index, and nothing is copied
+ * onto the heap until it is asked for, so forests can be scanned (e.g., to collect features for
+ * tuning) at little more than the cost of paging them in.
+ *
+ * {@link #toHyperGraph(FeatureVector, JoshuaConfiguration)} rebuilds the forest as a
+ * {@link HyperGraph}, for use with the existing algorithms (k-best and Viterbi extraction, oracle
+ * extraction, inside-outside). Its nodes and edges are created in index order, so that
+ * {@link #getEdgeFeatures(int)} can be used to look up the features of the rebuilt edges.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class MappedHyperGraph {
+
+  /* "JHG1" */
+  static final int MAGIC = 0x4a484731;
+  static final int VERSION = 1;
+
+  static final int HEADER_INTS = 12;
+  static final int NODE_INTS = 6;
+  static final int EDGE_INTS = 7;
+  static final int FEATURE_INTS = 2;
+
+  private final MappedFile file;
+
+  private final int sentID;
+  private final int source;
+  private final int numNodes;
+  private final int numEdges;
+  private final int numRules;
+  private final int numStrings;
+
+  // The int index at which each table starts
+  private final long nodes;
+  private final long edges;
+  private final long tails;
+  private final long features;
+  private final long rules;
+  private final long ruleWords;
+  private final long strings;
+  // The byte position of the string data
+  private final long stringData;
+
+  // The feature id of each string used as a feature name, filled in as they are looked up
+  private final int[] featureIds;
+
+  public MappedHyperGraph(String fileName) throws IOException {
+    this.file = new MappedFile(new File(fileName), MapMode.READ_ONLY, 0);
+    if (file.size() < 4 * HEADER_INTS || file.getInt(0) != MAGIC)
+      throw new RuntimeException(fileName + " is not a binary hypergraph");
+    if (file.getInt(1) != VERSION)
+      throw new RuntimeException(String.format("%s has version %d, but only version %d is supported",
+          fileName, file.getInt(1), VERSION));
+
+    this.sentID = file.getInt(2);
+    this.source = file.getInt(3);
+    this.numNodes = file.getInt(4);
+    this.numEdges = file.getInt(5);
+    int numTails = file.getInt(6);
+    int numFeatures = file.getInt(7);
+    this.numRules = file.getInt(8);
+    int numRuleWords = file.getInt(9);
+    this.numStrings = file.getInt(10);
+    int numStringBytes = file.getInt(11);
+
+    this.nodes = HEADER_INTS;
+    this.edges = nodes + (long) NODE_INTS * numNodes;
+    this.tails = edges + (long) EDGE_INTS * numEdges;
+    this.features = tails + numTails;
+    this.rules = features + (long) FEATURE_INTS * numFeatures;
+    this.ruleWords = rules + numRules + 1;
+    this.strings = ruleWords + numRuleWords;
+    this.stringData = 4 * (strings + numStrings + 1);
+
+    if (stringData + numStringBytes != file.size())
+      throw new RuntimeException(String.format("%s is truncated or corrupt", fileName));
+
+    this.featureIds = new int[numStrings];
+    Arrays.fill(featureIds, -1);
+  }
+
+  public int sentID() {
+    return sentID;
+  }
+
+  public String source() {
+    return getString(source);
+  }
+
+  public int getNumNodes() {
+    return numNodes;
+  }
+
+  public int getNumEdges() {
+    return numEdges;
+  }
+
+  public int getNumRules() {
+    return numRules;
+  }
+
+  /**
+   * The index of the goal node, which is always the last.
+   */
+  public int getGoalNode() {
+    return numNodes - 1;
+  }
+
+  // ===============================================================
+  // Nodes
+  // ===============================================================
+
+  public int getNodeStart(int node) {
+    return nodeField(node, 0);
+  }
+
+  public int getNodeEnd(int node) {
+    return nodeField(node, 1);
+  }
+
+  public String getNodeLHS(int node) {
+    return getString(nodeField(node, 2));
+  }
+
+  public int getFirstEdge(int node) {
+    return nodeField(node, 3);
+  }
+
+  public int getNumEdges(int node) {
+    return nodeField(node, 4);
+  }
+
+  /**
+   * The index of the node's best incoming edge, as found by the decoder.
+   */
+  public int getBestEdge(int node) {
+    return nodeField(node, 5);
+  }
+
+  private int nodeField(int node, int field) {
+    return file.getInt(nodes + (long) NODE_INTS * node + field);
+  }
+
+  // ===============================================================
+  // Edges
+  // ===============================================================
+
+  /**
+   * The index of the edge's rule, or -1 for edges into the goal node.
+   */
+  public int getEdgeRule(int edge) {
+    return edgeField(edge, 0);
+  }
+
+  public int getNumTails(int edge) {
+    return edgeField(edge, 2);
+  }
+
+  /**
+   * The node index of the kth tail node of the edge.
+   */
+  public int getTail(int edge, int k) {
+    return file.getInt(tails + edgeField(edge, 1) + k);
+  }
+
+  public int getNumFeatures(int edge) {
+    return edgeField(edge, 4);
+  }
+
+  public String getFeatureName(int edge, int k) {
+    return getString(file.getInt(features + FEATURE_INTS * (long) (edgeField(edge, 3) + k)));
+  }
+
+  /**
+   * The id of the kth feature of the edge in the {@link FeatureMap}.
+   */
+  public int getFeatureId(int edge, int k) {
+    int name = file.getInt(features + FEATURE_INTS * (long) (edgeField(edge, 3) + k));
+    int id = featureIds[name];
+    if (id == -1) {
+      id = FeatureMap.id(getString(name));
+      featureIds[name] = id;
+    }
+    return id;
+  }
+
+  public float getFeatureValue(int edge, int k) {
+    return Float.intBitsToFloat(file.getInt(features + FEATURE_INTS
+        * (long) (edgeField(edge, 3) + k) + 1));
+  }
+
+  /**
+   * Returns the features fired by the edge's transition. This builds a new vector.
+   */
+  public FeatureVector getEdgeFeatures(int edge) {
+    FeatureVector vector = new FeatureVector();
+    for (int k = 0; k < getNumFeatures(edge); k++)
+      vector.put(getFeatureId(edge, k), getFeatureValue(edge, k));
+    return vector;
+  }
+
+  /**
+   * The score of the edge's transition, as computed by the decoder.
+   */
+  public float getTransitionScore(int edge) {
+    return Float.intBitsToFloat(edgeField(edge, 5));
+  }
+
+  /**
+   * The score of the best derivation through the edge, as computed by the decoder.
+   */
+  public float getBestDerivationScore(int edge) {
+    return Float.intBitsToFloat(edgeField(edge, 6));
+  }
+
+  private int edgeField(int edge, int field) {
+    return file.getInt(edges + (long) EDGE_INTS * edge + field);
+  }
+
+  // ===============================================================
+  // Rules and strings
+  // ===============================================================
+
+  /**
+   * Builds the rule with the given index, with words and nonterminals in the current vocabulary.
+   * The rule has no features of its own; the features of the edges that use it are stored with the
+   * edges.
+   */
+  public Rule getRule(int rule) {
+    long position = ruleWords + file.getInt(rules + rule);
+    int lhs = Vocabulary.id(getString(file.getInt(position)));
+    int owner = file.getInt(position + 1);
+    int arity = file.getInt(position + 2);
+    int[] source = new int[file.getInt(position + 3)];
+    int[] target = new int[file.getInt(position + 4)];
+    position += 5;
+    for (int k = 0; k < source.length; k++) {
+      int word = file.getInt(position++);
+      source[k] = Vocabulary.id(getString(word < 0 ? -word - 1 : word));
+    }
+    for (int k = 0; k < target.length; k++) {
+      int word = file.getInt(position++);
+      target[k] = (word < 0) ? word : Vocabulary.id(getString(word));
+    }
+
+    return new BilingualRule(lhs, source, target, "", arity, (owner < 0) ? -1
+        : Vocabulary.id(getString(owner)));
+  }
+
+  public String getString(int index) {
+    long start = file.getInt(strings + index);
+    int length = (int) (file.getInt(strings + index + 1) - start);
+    byte[] bytes = new byte[length];
+    for (int k = 0; k < length; k++)
+      bytes[k] = file.get(stringData + start + k);
+    try {
+      return new String(bytes, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // ===============================================================
+  // Conversion
+  // ===============================================================
+
+  /**
+   * Rebuilds the forest as a {@link HyperGraph} over a sentence with the stored source. If weights
+   * are given, the edges are rescored with them, and each node's best edge is chosen again;
+   * otherwise, the decoder's scores are used.
+   */
+  public HyperGraph toHyperGraph(FeatureVector weights, JoshuaConfiguration joshuaConfiguration) {
+    Rule[] ruleCache = new Rule[numRules];
+    HGNode[] nodeList = new HGNode[numNodes];
+
+    for (int node = 0; node < numNodes; node++) {
+      int firstEdge = getFirstEdge(node);
+      int numIncoming = getNumEdges(node);
+      List<HyperEdge> incoming = new ArrayList<HyperEdge>(numIncoming);
+      HyperEdge bestEdge = null;
+
+      for (int edge = firstEdge; edge < firstEdge + numIncoming; edge++) {
+        Rule rule = null;
+        int ruleIndex = getEdgeRule(edge);
+        if (ruleIndex >= 0) {
+          if (ruleCache[ruleIndex] == null)
+            ruleCache[ruleIndex] = getRule(ruleIndex);
+          rule = ruleCache[ruleIndex];
+        }
+
+        List<HGNode> tailNodes = null;
+        float transitionScore = getTransitionScore(edge);
+        float bestScore = getBestDerivationScore(edge);
+        if (getNumTails(edge) > 0) {
+          tailNodes = new ArrayList<HGNode>(getNumTails(edge));
+          for (int k = 0; k < getNumTails(edge); k++)
+            tailNodes.add(nodeList[getTail(edge, k)]);
+        }
+
+        if (weights != null) {
+          transitionScore = 0.0f;
+          for (int k = 0; k < getNumFeatures(edge); k++)
+            transitionScore += weights.get(getFeatureId(edge, k)) * getFeatureValue(edge, k);
+          bestScore = transitionScore;
+          if (tailNodes != null)
+            for (HGNode tailNode : tailNodes)
+              bestScore += tailNode.bestHyperedge.getBestDerivationScore();
+        }
+
+        HyperEdge hyperEdge = new HyperEdge(rule, bestScore, transitionScore, tailNodes, null);
+        incoming.add(hyperEdge);
+        if (weights == null) {
+          if (edge == getBestEdge(node))
+            bestEdge = hyperEdge;
+        } else if (bestEdge == null || bestScore > bestEdge.getBestDerivationScore()) {
+          bestEdge = hyperEdge;
+        }
+      }
+
+      nodeList[node] = new HGNode(getNodeStart(node), getNodeEnd(node),
+          Vocabulary.id(getNodeLHS(node)), incoming, bestEdge, null);
+    }
+
+    Sentence sentence = new Sentence(source(), sentID, joshuaConfiguration);
+    return new HyperGraph(nodeList[getGoalNode()], numNodes, numEdges, sentence);
+  }
+}
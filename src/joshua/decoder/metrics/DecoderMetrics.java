@@ -0,0 +1,293 @@
+package joshua.decoder.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import joshua.decoder.Decoder;
+import joshua.decoder.JoshuaConfiguration;
+
+/**
+ * The metrics of a decoder: counters and latency histograms over all the sentences it has
+ * translated, along with gauges of the state of its scheduler and of the heap, which are read when
+ * the metrics are. Each sentence's {@link SentenceMetrics} is added to the totals and passed on to
+ * the configured {@link MetricsSink}s.
+ *
+ * The metrics can be read through JMX (see {@link DecoderMetricsMBean}) or as text, one metric per
+ * line in the Prometheus exposition format (see {@link #writeText(Writer)}), which is what the
+ * metrics port serves.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class DecoderMetrics implements MetricsSink, DecoderMetricsMBean {
+
+  private static final Logger logger = Logger.getLogger(DecoderMetrics.class.getName());
+
+  /* Tells apart the MBeans of several decoders in the same JVM */
+  private static final AtomicInteger numRegistered = new AtomicInteger();
+
+  private final Decoder decoder;
+  private final List<MetricsSink> sinks = new CopyOnWriteArrayList<MetricsSink>();
+
+  private final AtomicLong sentences = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong pops = new AtomicLong();
+  private final AtomicLong scored = new AtomicLong();
+  private final AtomicLong lmCallsEstimate = new AtomicLong();
+  private final AtomicLong nodes = new AtomicLong();
+  private final AtomicLong edges = new AtomicLong();
+  private final AtomicLong pruned = new AtomicLong();
+  private final AtomicLong dotItems = new AtomicLong();
+
+  /* The name the metrics are registered under with JMX, if they are */
+  private ObjectName mbeanName = null;
+
+  // Times, in microseconds
+  private final Histogram total = new Histogram();
+  private final Histogram queue = new Histogram();
+  private final Histogram grammar = new Histogram();
+  private final Histogram chart = new Histogram();
+  private final Histogram kbest = new Histogram();
+
+  /**
+   * @param decoder the decoder whose scheduler is reported on (may be null)
+   */
+  public DecoderMetrics(Decoder decoder) {
+    this.decoder = decoder;
+  }
+
+  public void addSink(MetricsSink sink) {
+    sinks.add(sink);
+  }
+
+  /**
+   * Creates the sink named by a metrics-sink parameter: the name of a class in this package, or
+   * a fully qualified class name.
+   */
+  public static MetricsSink createSink(String name, JoshuaConfiguration joshuaConfiguration) {
+    String className = name.contains(".") ? name : DecoderMetrics.class.getPackage().getName()
+        + "." + name;
+    try {
+      Class<?> clas = Class.forName(className);
+      try {
+        Constructor<?> constructor = clas.getConstructor(JoshuaConfiguration.class);
+        return (MetricsSink) constructor.newInstance(joshuaConfiguration);
+      } catch (NoSuchMethodException e) {
+        return (MetricsSink) clas.getDeclaredConstructor().newInstance();
+      }
+    } catch (Exception e) {
+      throw new IllegalArgumentException(String.format("Invalid metrics sink '%s'", name), e);
+    }
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server.
+   */
+  public void registerMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      int n = numRegistered.getAndIncrement();
+      ObjectName name = new ObjectName("joshua.decoder:type=DecoderMetrics"
+          + ((n == 0) ? "" : ",id=" + n));
+      server.registerMBean(this, name);
+      mbeanName = name;
+      logger.info("Registered " + name);
+    } catch (JMException e) {
+      logger.warning("Couldn't register the decoder metrics with JMX: " + e);
+    }
+  }
+
+  /**
+   * Unregisters the metrics from the platform MBean server, if {@link #registerMBean()} registered
+   * them. MERT and PRO create a decoder per iteration, each of which registers its own.
+   */
+  public void unregisterMBean() {
+    if (mbeanName == null)
+      return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+    } catch (JMException e) {
+      logger.warning("Couldn't unregister " + mbeanName + ": " + e);
+    }
+    mbeanName = null;
+  }
+
+  @Override
+  public void record(SentenceMetrics metrics) {
+    sentences.incrementAndGet();
+    if (metrics.failed)
+      failed.incrementAndGet();
+    pops.addAndGet(metrics.pops);
+    scored.addAndGet(metrics.scored);
+    lmCallsEstimate.addAndGet(metrics.lmCallsEstimate);
+    nodes.addAndGet(metrics.nodes);
+    edges.addAndGet(metrics.edges);
+    pruned.addAndGet(metrics.pruned);
+    dotItems.addAndGet(metrics.dotItems);
+
+    total.record(metrics.totalNanos / 1000);
+    queue.record(metrics.queueNanos / 1000);
+    grammar.record(metrics.grammarNanos / 1000);
+    chart.record(metrics.chartNanos / 1000);
+    kbest.record(metrics.kbestNanos / 1000);
+
+    for (MetricsSink sink : sinks)
+      sink.record(metrics);
+  }
+
+  // ===============================================================
+  // DecoderMetricsMBean
+  // ===============================================================
+
+  public long getSentences() {
+    return sentences.get();
+  }
+
+  public long getFailedSentences() {
+    return failed.get();
+  }
+
+  public long getCubePruningPops() {
+    return pops.get();
+  }
+
+  public long getEdgesScored() {
+    return scored.get();
+  }
+
+  public long getEstimatedLanguageModelCalls() {
+    return lmCallsEstimate.get();
+  }
+
+  public long getNodesCreated() {
+    return nodes.get();
+  }
+
+  public long getEdgesCreated() {
+    return edges.get();
+  }
+
+  public long getHypothesesPruned() {
+    return pruned.get();
+  }
+
+  public double getMeanLatency() {
+    return total.getMean() / 1000.0;
+  }
+
+  public double getLatency50() {
+    return total.getQuantile(0.5) / 1000.0;
+  }
+
+  public double getLatency99() {
+    return total.getQuantile(0.99) / 1000.0;
+  }
+
+  public double getMaxLatency() {
+    return total.getMax() / 1000.0;
+  }
+
+  public double getMeanQueueWait() {
+    return queue.getMean() / 1000.0;
+  }
+
+  public double getQueueWait99() {
+    return queue.getQuantile(0.99) / 1000.0;
+  }
+
+  public double getMeanGrammarTime() {
+    return grammar.getMean() / 1000.0;
+  }
+
+  public double getMeanChartTime() {
+    return chart.getMean() / 1000.0;
+  }
+
+  public double getMeanKBestTime() {
+    return kbest.getMean() / 1000.0;
+  }
+
+  public int getQueueDepth() {
+    return (decoder == null) ? 0 : decoder.getQueueDepth();
+  }
+
+  public int getBusyDecoders() {
+    return (decoder == null) ? 0 : decoder.getBusyDecoders();
+  }
+
+  public long getHeapUsed() {
+    return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+  }
+
+  public String getText() {
+    StringWriter out = new StringWriter();
+    try {
+      writeText(out);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return out.toString();
+  }
+
+  // ===============================================================
+  // Text output
+  // ===============================================================
+
+  /**
+   * Writes the metrics as text. Counters are totals since the decoder started, and latencies are
+   * summaries (quantiles, sum, count, and maximum) in seconds, labeled with the stage.
+   */
+  public void writeText(Writer out) throws IOException {
+    writeCounter(out, "joshua_sentences_total", sentences.get());
+    writeCounter(out, "joshua_failed_sentences_total", failed.get());
+    writeCounter(out, "joshua_cube_pruning_pops_total", pops.get());
+    writeCounter(out, "joshua_edges_scored_total", scored.get());
+    writeCounter(out, "joshua_lm_calls_estimated_total", lmCallsEstimate.get());
+    writeCounter(out, "joshua_nodes_created_total", nodes.get());
+    writeCounter(out, "joshua_edges_created_total", edges.get());
+    writeCounter(out, "joshua_hypotheses_pruned_total", pruned.get());
+    writeCounter(out, "joshua_dot_items_total", dotItems.get());
+
+    out.write("# TYPE joshua_latency_seconds summary\n");
+    writeSummary(out, "total", total);
+    writeSummary(out, "queue", queue);
+    writeSummary(out, "grammar", grammar);
+    writeSummary(out, "chart", chart);
+    writeSummary(out, "kbest", kbest);
+
+    writeGauge(out, "joshua_queue_depth", getQueueDepth());
+    writeGauge(out, "joshua_busy_decoders", getBusyDecoders());
+    writeGauge(out, "joshua_heap_used_bytes", getHeapUsed());
+    out.flush();
+  }
+
+  private static void writeCounter(Writer out, String name, long value) throws IOException {
+    out.write(String.format("# TYPE %s counter\n%s %d\n", name, name, value));
+  }
+
+  private static void writeGauge(Writer out, String name, long value) throws IOException {
+    out.write(String.format("# TYPE %s gauge\n%s %d\n", name, name, value));
+  }
+
+  private static void writeSummary(Writer out, String stage, Histogram histogram)
+      throws IOException {
+    final String name = "joshua_latency_seconds";
+    for (double q : new double[] { 0.5, 0.9, 0.99 })
+      out.write(String.format("%s{stage=\"%s\",quantile=\"%s\"} %.6f\n", name, stage, q,
+          histogram.getQuantile(q) / 1e6));
+    out.write(String.format("%s_sum{stage=\"%s\"} %.6f\n", name, stage, histogram.getSum() / 1e6));
+    out.write(String.format("%s_count{stage=\"%s\"} %d\n", name, stage, histogram.getCount()));
+    out.write(String.format("%s_max{stage=\"%s\"} %.6f\n", name, stage, histogram.getMax() / 1e6));
+  }
+}
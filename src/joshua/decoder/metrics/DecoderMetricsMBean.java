@@ -0,0 +1,59 @@
+package joshua.decoder.metrics;
+
+/**
+ * The management interface of {@link DecoderMetrics}, which is registered with the platform MBean
+ * server as joshua.decoder:type=DecoderMetrics when metrics-jmx is set. Times are in milliseconds.
+ * 
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public interface DecoderMetricsMBean {
+
+  long getSentences();
+
+  long getFailedSentences();
+
+  long getCubePruningPops();
+
+  long getEdgesScored();
+
+  /**
+   * An estimate, from the edges scored, of the calls to the language models (see
+   * {@link SentenceMetrics#lmCallsEstimate}).
+   */
+  long getEstimatedLanguageModelCalls();
+
+  long getNodesCreated();
+
+  long getEdgesCreated();
+
+  long getHypothesesPruned();
+
+  double getMeanLatency();
+
+  double getLatency50();
+
+  double getLatency99();
+
+  double getMaxLatency();
+
+  double getMeanQueueWait();
+
+  double getQueueWait99();
+
+  double getMeanGrammarTime();
+
+  double getMeanChartTime();
+
+  double getMeanKBestTime();
+
+  int getQueueDepth();
+
+  int getBusyDecoders();
+
+  long getHeapUsed();
+
+  /**
+   * All the metrics, in the format of the metrics port.
+   */
+  String getText();
+}
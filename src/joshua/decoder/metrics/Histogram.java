@@ -0,0 +1,90 @@
+package joshua.decoder.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values. Values are counted in buckets whose width doubles
+ * with every power of two, split into four, so quantiles are accurate to within 25% at any scale
+ * while the histogram stays a fixed 2KB.
+ * 
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class Histogram {
+
+  private static final int BUCKETS = 256;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    if (value < 0)
+      value = 0;
+
+    buckets.incrementAndGet(bucket(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    for (long current = max.get(); value > current; current = max.get())
+      if (max.compareAndSet(current, value))
+        break;
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getSum() {
+    return sum.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.get();
+    return (n == 0) ? 0.0 : (double) sum.get() / n;
+  }
+
+  /**
+   * Returns an upper bound on the value below which the given fraction of the values fall (e.g.,
+   * 0.99 for the 99th percentile), or 0 if nothing has been recorded.
+   */
+  public long getQuantile(double q) {
+    long n = count.get();
+    if (n == 0)
+      return 0;
+
+    long rank = Math.max(1, (long) Math.ceil(q * n));
+    long seen = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      seen += buckets.get(b);
+      if (seen >= rank)
+        return Math.min(upperBound(b), max.get());
+    }
+    return max.get();
+  }
+
+  /*
+   * Values below 4 have a bucket each. Above that, the two bits after the leading one select one
+   * of four buckets for each power of two.
+   */
+  static int bucket(long value) {
+    if (value < 4)
+      return (int) value;
+    int log = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (log - 2)) & 3;
+    return 4 * (log - 1) + sub;
+  }
+
+  /* The largest value counted in the bucket. */
+  static long upperBound(int bucket) {
+    if (bucket < 4)
+      return bucket;
+    int log = bucket / 4 + 1;
+    long width = 1L << (log - 2);
+    return (4L + bucket % 4) * width + width - 1;
+  }
+}
@@ -0,0 +1,16 @@
+package joshua.decoder.metrics;
+
+/**
+ * Receives the metrics of each sentence once it has been translated. Sinks are called on the
+ * thread that translated the sentence, so they should be quick and must be thread-safe.
+ * 
+ * Sinks are added with the metrics-sink parameter, which names a class in this package (e.g.,
+ * "TraceSink") or a fully qualified class. The class needs a public constructor that takes the
+ * JoshuaConfiguration, or one that takes no arguments.
+ * 
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public interface MetricsSink {
+
+  void record(SentenceMetrics metrics);
+}
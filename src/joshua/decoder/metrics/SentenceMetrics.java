@@ -0,0 +1,92 @@
+package joshua.decoder.metrics;
+
+/**
+ * What it took to translate a single sentence: the time spent in each stage, and counts of the work
+ * done in the chart. It is created with the sentence, filled in as the sentence moves through the
+ * decoder (the request handler, the chart, and the k-best extractor), and handed to the decoder's
+ * {@link MetricsSink}s once the translation is complete. Stages run one after the other, so the
+ * fields are written by one thread at a time; the chart totals its counters before storing them.
+ * 
+ * Times are in nanoseconds. The grammar time (trie lookups and rule sorting) is also part of the
+ * chart time, and is summed over threads when cells are expanded in parallel.
+ * 
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class SentenceMetrics {
+
+  private final int id;
+  private final String source;
+
+  /* When the sentence was read from its request, or -1 if it was not (e.g., Decoder.decode()). */
+  private long queuedAt = -1;
+
+  /* From being read to being handed to a decoding thread */
+  public long queueNanos = 0;
+  /* Looking up rules: expanding the dot chart and fetching the sorted rules of each dot node */
+  public long grammarNanos = 0;
+  /* Building the chart (or, for phrase-based decoding, searching the stacks) */
+  public long chartNanos = 0;
+  /* Extracting the k-best list and writing the output */
+  public long kbestNanos = 0;
+  /* From the start of translation to the end of k-best extraction */
+  public long totalNanos = 0;
+
+  /* Hypotheses popped from the cube-pruning heaps */
+  public long pops = 0;
+  /* Edges scored with all the feature functions */
+  public long scored = 0;
+  /*
+   * An estimate of the calls to the language models: one per scored edge and language model. The
+   * final transitions into the goal node and the estimates used to sort rules are not counted, and
+   * some of the calls are answered by the n-gram caches (see LanguageModelFF.getCacheHits()).
+   */
+  public long lmCallsEstimate = 0;
+  /* Nodes created in the chart, and edges added to them (including those merged into a node) */
+  public long nodes = 0;
+  public long edges = 0;
+  /* Candidates left in the cube-pruning heaps when their cells were complete */
+  public long pruned = 0;
+  public long dotItems = 0;
+
+  /* Whether the chart had no complete derivation */
+  public boolean failed = false;
+
+  public SentenceMetrics(int id, String source) {
+    this.id = id;
+    this.source = source;
+  }
+
+  public int id() {
+    return id;
+  }
+
+  public String source() {
+    return source;
+  }
+
+  /**
+   * Marks the time the sentence was read, from which the time it waited for a decoder is measured.
+   */
+  public void queued() {
+    queuedAt = System.nanoTime();
+  }
+
+  /**
+   * Marks the start of translation, recording how long the sentence was queued.
+   */
+  public void started() {
+    if (queuedAt >= 0)
+      queueNanos = System.nanoTime() - queuedAt;
+  }
+
+  /**
+   * A one-line summary, with times in milliseconds.
+   */
+  @Override
+  public String toString() {
+    return String.format("sentence=%d total=%.3f queue=%.3f grammar=%.3f chart=%.3f kbest=%.3f "
+        + "pops=%d scored=%d lm_est=%d nodes=%d edges=%d pruned=%d dotitems=%d%s", id,
+        totalNanos / 1e6, queueNanos / 1e6, grammarNanos / 1e6, chartNanos / 1e6, kbestNanos / 1e6,
+        pops, scored, lmCallsEstimate, nodes, edges, pruned, dotItems, failed ? " failed" : "");
+  }
+}
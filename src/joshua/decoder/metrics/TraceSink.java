@@ -0,0 +1,31 @@
+package joshua.decoder.metrics;
+
+import java.util.logging.Logger;
+
+import joshua.decoder.JoshuaConfiguration;
+
+/**
+ * Logs the metrics of each sentence on one line, or, if metrics-slow-ms is set, of only those
+ * sentences that took longer, along with their source, so that slow inputs can be found and
+ * reproduced.
+ * 
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class TraceSink implements MetricsSink {
+
+  private static final Logger logger = Logger.getLogger(TraceSink.class.getName());
+
+  private final long thresholdNanos;
+
+  public TraceSink(JoshuaConfiguration joshuaConfiguration) {
+    this.thresholdNanos = (long) (joshuaConfiguration.metrics_slow_ms * 1000000);
+  }
+
+  @Override
+  public void record(SentenceMetrics metrics) {
+    if (thresholdNanos == 0)
+      logger.info(metrics.toString());
+    else if (metrics.totalNanos > thresholdNanos)
+      logger.warning(String.format("slow sentence: %s ||| %s", metrics, metrics.source()));
+  }
+}
@@ -1,24 +1,31 @@
 package joshua.decoder.phrase;
 
+import java.util.Arrays;
+
 import joshua.corpus.Span;
 
 /**
  * Represents a coverage vector. The vector is relative to a hypothesis. {firstZero} denotes the
- * first uncovered word of the sentence, and {bits} contains the coverage vector of all the words
- * after it, with the first zero removed. Since {bits} is 64 bits, this means we have a hard-coded
- * rule that reordering distance + max phrase length <= 64.
+ * first uncovered word of the sentence, and {bits} contains the coverage vector of the 64 words
+ * starting there. Words beyond those are covered only if the reordering window reaches that far;
+ * their coverage is stored in {more}, which is null otherwise. Short reordering windows (the
+ * common case) thus only ever touch a single long, while sentences and reordering limits of any
+ * length are still handled correctly.
  */
 
 public class Coverage {
-  
+
   // The index of the first uncovered word
   private int firstZero;
 
-  // Bits with the first zero removed.                                                             
-  // We also assume anything beyond this is zero due to the reordering window.                     
-  // Lowest bits correspond to next word.    
+  // Coverage of the words [firstZero, firstZero + 64); the first bit is always zero.
+  // Lowest bits correspond to next word.
   private long bits;
 
+  // Coverage of the words [firstZero + 64 * (i + 1), firstZero + 64 * (i + 2)) for each word i,
+  // or null if none of them are covered. The last word is never zero.
+  private long[] more;
+
   /**
    * Pretty-prints the coverage vector, making a guess about the length
    */
@@ -29,7 +36,7 @@ public class Coverage {
 
     long mask = 1L;
     for (int i = 0; i < 10; i++) { // only display first 10 bits
-      sb.append((bits & mask) > 0 ? "x" : ".");
+      sb.append((bits & mask) != 0 ? "x" : ".");
       mask <<= 1;
     }
 
@@ -40,7 +47,7 @@ public class Coverage {
     firstZero = 0;
     bits = 0;
   }
-  
+
   public Coverage(int firstZero) {
     this.firstZero = firstZero;
     bits = 0;
@@ -48,53 +55,69 @@ public class Coverage {
 
   /**
    * Initialize a coverage vector from another Coverage vector.
-   * 
+   *
    * @param firstZero
    * @param bits
    */
   public Coverage(Coverage other) {
     this.firstZero = other.firstZero;
     this.bits = other.bits;
+    if (other.more != null)
+      this.more = other.more.clone();
   }
 
   /**
    * Turns on all bits from position start to position (end - 1), that is, in the range [start .. end).
    * This is done relative to the current coverage vector, of course, which may not start at 0.
-   * 
+   *
    * @param begin
    * @param end
    */
   public void Set(int begin, int end) {
     assert compatible(begin, end);
-//    StringBuffer sb = new StringBuffer();
-//    sb.append(String.format("SET(%d,%d) %s", begin, end, this));
     if (begin == firstZero) {
-      firstZero = end;
-      bits >>= (end - begin);
-      while ((bits & 1) != 0) {
-        ++firstZero;
-        bits >>= 1;
+      shift(end - begin);
+      // Skip over the words that were already covered.
+      if (more == null) {
+        int covered = Long.numberOfTrailingZeros(~bits);
+        if (covered < 64) {
+          firstZero += covered;
+          bits >>>= covered;
+          return;
+        }
       }
+      shift(coveredPrefix());
     } else {
-      bits |= pattern(begin, end);
+      set(begin - firstZero, end - firstZero);
     }
-
-//    sb.append(String.format(" -> %s", this));
-//    System.err.println(sb);
   }
 
   /**
    * A span is compatible with the current coverage vector if it begins at or after the first zero
    * and there is no overlap with currently covered bits. Recall that {firstZero} is an absolute
-   * index marking where in the input the bit vector begins, while {bits} is the coverage vector
-   * for positions [{firstZero+1}..{firstZero+64+1})
-   * 
+   * index marking where in the input the bit vector begins.
+   *
    * @param begin the begin index (absolute)
    * @param end the end index (absolute)
    * @return true if the span is compatible with the coverage vector
    */
   public boolean compatible(int begin, int end) {
-    return (begin >= firstZero) && ((pattern(begin, end) & bits) == 0L);
+    if (begin < firstZero)
+      return false;
+
+    int from = begin - firstZero, to = end - firstZero;
+    if (from >= to)
+      return true;
+    if (to <= 64)
+      return (bits & mask(from, to)) == 0L;
+
+    for (int word = from >>> 6; word <= (to - 1) >>> 6; word++) {
+      int lo = Math.max(from - (word << 6), 0);
+      int hi = Math.min(to - (word << 6), 64);
+      if ((word(word) & mask(lo, hi)) != 0L)
+        return false;
+    }
+    return true;
   }
 
   public int firstZero() {
@@ -102,19 +125,24 @@ public class Coverage {
   }
 
   /**
-   * The following two functions find gaps.                                                        
-   * When a phrase [begin, end) is to be covered,                                                  
-   *   [LeftOpen(begin), RightOpen(end, sentence_length))                                          
-   * indicates the larger gap in which the phrase sits.                                            
-   * Find the left bound of the gap in which the phrase [begin, ...) sits.                         
-   * TODO: integer log2 optimization?   
-   * 
+   * The following two functions find gaps.
+   * When a phrase [begin, end) is to be covered,
+   *   [LeftOpen(begin), RightOpen(end, sentence_length))
+   * indicates the larger gap in which the phrase sits.
+   * Find the left bound of the gap in which the phrase [begin, ...) sits.
+   *
    * @param begin
    * @return
    */
   public int LeftOpen(int begin) {
-    for (int i = begin - firstZero; i > 0; --i) {
-      if (((bits & (1L << i)) != 0)) {
+    // Find the last covered word at or before begin.
+    int last = begin - firstZero;
+    for (int word = (last < 0) ? -1 : last >>> 6; word >= 0; word--) {
+      long covered = word(word);
+      if (word == last >>> 6)
+        covered &= -1L >>> (63 - (last & 63));
+      if (covered != 0L) {
+        int i = (word << 6) + 63 - Long.numberOfLeadingZeros(covered);
         assert compatible(i + firstZero + 1, begin);
         assert !compatible(i + firstZero, begin);
         return i + firstZero + 1;
@@ -130,36 +158,25 @@ public class Coverage {
    * bit is a 1 or end of sentence.
    */
   public int RightOpen(int end, int sentenceLength) {
-    for (int i = end - firstZero; i < Math.min(64, sentenceLength - firstZero); i++) {
-      if ((bits & (1L << i)) != 0) {
-        return i + firstZero;
+    // Find the first covered word at or after end.
+    int first = Math.max(end - firstZero, 0);
+    int numWords = (more == null) ? 1 : more.length + 1;
+    for (int word = first >>> 6; word < numWords; word++) {
+      long covered = word(word);
+      if (word == first >>> 6)
+        covered &= -1L << (first & 63);
+      if (covered != 0L) {
+        int i = (word << 6) + Long.numberOfTrailingZeros(covered);
+        return Math.min(i + firstZero, sentenceLength);
       }
     }
     return sentenceLength;
   }
 
-  /**
-   * Creates a bit vector with the same offset as the current coverage vector, flipping on
-   * bits begin..end.
-   * 
-   * @param begin the begin index (absolute)
-   * @param end the end index (absolute)
-   * @return a bit vector (relative) with positions [begin..end) on
-   */
-  public long pattern(int begin, int end) {
-    assert begin >= firstZero;
-    assert end - firstZero < 64;
-    return (1L << (end - firstZero)) - (1L << (begin - firstZero));
-  }
-
-  public long getCoverage() {
-    return bits;
-  }
-
   /**
    * Computes the or bitwise operation of the current coverage vector against a new span. Does
-   * not check for compatibility. 
-   * 
+   * not check for compatibility.
+   *
    * @param span
    * @return
    */
@@ -173,7 +190,7 @@ public class Coverage {
   public boolean equals(Object obj) {
     if (obj instanceof Coverage) {
       Coverage other = (Coverage) obj;
-      return getCoverage() == other.getCoverage() && firstZero() == other.firstZero();
+      return bits == other.bits && firstZero == other.firstZero && Arrays.equals(more, other.more);
     }
 
     return false;
@@ -181,6 +198,88 @@ public class Coverage {
 
   @Override
   public int hashCode() {
-    return (int) getCoverage() * firstZero();
+    int hash = (int) bits * firstZero;
+    return (more == null) ? hash : hash * 31 + Arrays.hashCode(more);
+  }
+
+  /*
+   * The bits [lo, hi) of a long, for 0 <= lo < hi <= 64.
+   */
+  private static long mask(int lo, int hi) {
+    return (-1L << lo) & (-1L >>> (64 - hi));
+  }
+
+  /*
+   * The given word of the vector, where word 0 is {bits}.
+   */
+  private long word(int word) {
+    if (word == 0)
+      return bits;
+    return (more == null || word > more.length) ? 0L : more[word - 1];
+  }
+
+  /*
+   * Turns on the bits [from, to) (relative). Words before {firstZero} are covered already.
+   */
+  private void set(int from, int to) {
+    from = Math.max(from, 0);
+    if (from >= to)
+      return;
+    if (to <= 64) {
+      bits |= mask(from, to);
+      return;
+    }
+
+    int last = (to - 1) >>> 6;
+    if (more == null)
+      more = new long[last];
+    else if (more.length < last)
+      more = Arrays.copyOf(more, last);
+
+    for (int word = from >>> 6; word <= last; word++) {
+      long pattern = mask(Math.max(from - (word << 6), 0), Math.min(to - (word << 6), 64));
+      if (word == 0)
+        bits |= pattern;
+      else
+        more[word - 1] |= pattern;
+    }
+  }
+
+  /*
+   * The number of consecutive covered words starting at {firstZero}.
+   */
+  private int coveredPrefix() {
+    int covered = 0;
+    for (int word = 0;; word++) {
+      int ones = Long.numberOfTrailingZeros(~word(word));
+      covered += ones;
+      if (ones < 64)
+        return covered;
+    }
+  }
+
+  /*
+   * Moves {firstZero} forward by n words, dropping their bits.
+   */
+  private void shift(int n) {
+    firstZero += n;
+    if (more == null) {
+      bits = (n < 64) ? bits >>> n : 0L;
+      return;
+    }
+
+    int words = n >>> 6, offset = n & 63;
+    int length = more.length + 1 - words;
+    long[] shifted = new long[Math.max(length, 1)];
+    for (int i = 0; i < length; i++) {
+      long low = word(i + words) >>> offset;
+      long high = (offset == 0) ? 0L : word(i + words + 1) << (64 - offset);
+      shifted[i] = low | high;
+    }
+
+    bits = shifted[0];
+    while (length > 1 && shifted[length - 1] == 0L)
+      length--;
+    more = (length > 1) ? Arrays.copyOfRange(shifted, 1, length) : null;
   }
 }
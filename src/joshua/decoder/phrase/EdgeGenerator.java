@@ -1,35 +1,49 @@
 package joshua.decoder.phrase;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.PriorityQueue;
 
 import joshua.decoder.Decoder;
 import joshua.decoder.JoshuaConfiguration;
 import joshua.decoder.chart_parser.ComputeNodeResult;
+import joshua.decoder.chart_parser.EdgeBatch;
 import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.FeatureVector;
 import joshua.decoder.segment_file.Sentence;
 
 public class EdgeGenerator {
 
   private PriorityQueue<Candidate> generate;
   private List<FeatureFunction> featureFunctions;
+  private FeatureVector weights;
   private Sentence sentence;
   private JoshuaConfiguration config;
+
+  // Candidates that have been added but not yet scored, and their edges
+  private List<Candidate> pending;
+  private EdgeBatch edges;
   
-  public EdgeGenerator(Sentence sentence, List<FeatureFunction> features, JoshuaConfiguration config) {
+  public EdgeGenerator(Sentence sentence, List<FeatureFunction> features, FeatureVector weights,
+      JoshuaConfiguration config) {
     // TODO: does the comparator need to be reversed to put highest-scoring
     // items at the top?
     generate = new PriorityQueue<Candidate>(1);
 
     this.featureFunctions = features;
+    this.weights = weights;
     this.sentence = sentence;
     this.config = config;
+
+    this.pending = new ArrayList<Candidate>();
+    this.edges = new EdgeBatch();
   }
 
   /**
-   * Receives a partially-initialized translation candidate and places it on the
-   * priority queue after scoring it with all of the feature functions. In this
-   * respect it is like {@link CubePruneState} (it could make use of that class with
+   * Receives a partially-initialized translation candidate, which will be placed on the priority
+   * queue once it has been scored with all of the feature functions. Candidates are scored a round
+   * at a time (see {@link #scorePending()}), which lets expensive feature functions score many
+   * candidates per call. In this respect it is like {@link CubePruneState} (it could make use of that class with
    * a little generalization of spans / coverage).
    * 
    * This function is also used to (fairly concisely) implement constrained decoding. Before
@@ -56,13 +70,30 @@ public class EdgeGenerator {
     }
 
     // TODO: sourcepath
-    ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, cand.getRule(),
-        cand.getTailNodes(), -1, cand.getSpan().end, null, this.sentence);
-    cand.setResult(result);
-    
-//    System.err.println("addCandidate(): " + cand);
+    edges.add(cand.getRule(), cand.getTailNodes(), -1, cand.getSpan().end, null);
+    pending.add(cand);
+  }
 
-    generate.add(cand);
+  /**
+   * Scores all the candidates added since the last call and places them on the priority queue, in
+   * the order in which they were added.
+   */
+  private void scorePending() {
+    if (pending.isEmpty())
+      return;
+
+    ComputeNodeResult[] results = ComputeNodeResult.computeAll(this.featureFunctions, this.weights,
+        edges, this.sentence);
+    for (int k = 0; k < results.length; k++) {
+      Candidate cand = pending.get(k);
+      cand.setResult(results[k]);
+
+//      System.err.println("addCandidate(): " + cand);
+
+      generate.add(cand);
+    }
+    edges.clear();
+    pending.clear();
   }
 
   /**
@@ -76,6 +107,7 @@ public class EdgeGenerator {
   // Pop. If there's a complete hypothesis, return it. Otherwise return an
   // invalid PartialEdge.
   public Candidate Pop() {
+    scorePending();
     assert !generate.isEmpty();
 
     // This is what we'll return, but first we have to do some expansion
@@ -92,6 +124,7 @@ public class EdgeGenerator {
    * @param output
    */
   public void Search(Output output) {
+    scorePending();
     int to_pop = config.pop_limit;
     if (Decoder.VERBOSE >= 3) {
       System.err.println("EdgeGenerator::Search(): pop: " + to_pop + " size: " + generate.size());
@@ -108,6 +141,7 @@ public class EdgeGenerator {
           if (c != null) {
             addCandidate(c);
           }
+        scorePending();
       }
     }
   }
@@ -8,6 +8,7 @@ import joshua.decoder.Decoder;
 import joshua.decoder.JoshuaConfiguration;
 import joshua.decoder.chart_parser.ComputeNodeResult;
 import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.FeatureVector;
 import joshua.decoder.ff.tm.AbstractGrammar;
 import joshua.decoder.ff.tm.Grammar;
 import joshua.decoder.hypergraph.HGNode;
@@ -25,6 +26,9 @@ public class Stacks {
   
   List<FeatureFunction> featureFunctions;
 
+  // The weights the hypotheses are scored with
+  private FeatureVector weights;
+
   private Sentence sentence;
 
   private PhraseChart chart;
@@ -41,9 +45,15 @@ public class Stacks {
 //  public Stacks(Context context, Chart chart, List<FeatureFunction> featureFunctions) {
   public Stacks(Sentence sentence, List<FeatureFunction> featureFunctions, Grammar[] grammars, 
       JoshuaConfiguration config) {
+    this(sentence, featureFunctions, Decoder.weights, grammars, config);
+  }
+
+  public Stacks(Sentence sentence, List<FeatureFunction> featureFunctions, FeatureVector weights,
+      Grammar[] grammars, JoshuaConfiguration config) {
 
     this.sentence = sentence;
     this.featureFunctions = featureFunctions;
+    this.weights = weights;
     this.config = config;
     
     int num_phrase_tables = 0;
@@ -84,13 +94,13 @@ public class Stacks {
       stacks.add(new Stack());
 
     // Initialize root hypothesis with <s> context and future cost for everything.
-    ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, Hypothesis.BEGIN_RULE,
-        null, -1, 1, null, this.sentence);
+    ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, this.weights,
+        Hypothesis.BEGIN_RULE, null, -1, 1, null, this.sentence);
     stacks.get(1).add(new Hypothesis(result.getDPStates(), future.Full()));
     
     // Decode with increasing numbers of source words. 
     for (int source_words = 2; source_words <= sentence.length(); ++source_words) {
-      EdgeGenerator gen = new EdgeGenerator(sentence, featureFunctions, config);
+      EdgeGenerator gen = new EdgeGenerator(sentence, featureFunctions, weights, config);
 
       // Iterate over stacks to continue from.
       for (int phrase_length = 1; phrase_length <= Math.min(source_words - 1, chart.MaxSourcePhraseLength());
@@ -109,8 +119,10 @@ public class Stacks {
           // the index of the starting point of the first possible phrase
           int begin = coverage.firstZero();
           
-          // the absolute position of the ending spot of the last possible phrase
-          int last_end = Math.min(coverage.firstZero() + config.reordering_limit, chart.SentenceLength());
+          // the absolute position of the ending spot of the last possible phrase (a negative
+          // reordering limit means there is none)
+          int last_end = (config.reordering_limit < 0) ? chart.SentenceLength()
+              : Math.min(coverage.firstZero() + config.reordering_limit, chart.SentenceLength());
           int last_begin = (last_end > phrase_length) ? (last_end - phrase_length) : 0;
 
           for (begin = coverage.firstZero(); begin <= last_begin; begin++) {
@@ -209,7 +221,8 @@ public class Stacks {
       List<HGNode> tailNodes = new ArrayList<HGNode>();
       tailNodes.add(hyp);
       
-      float finalTransitionScore = ComputeNodeResult.computeFinalCost(featureFunctions, tailNodes, 0, sentence.length(), null, sentence.id());
+      float finalTransitionScore = ComputeNodeResult.computeFinalCost(featureFunctions, weights,
+          tailNodes, 0, sentence.length(), null, sentence.id());
 
       if (null == this.end)
         this.end = new Hypothesis(null, score + finalTransitionScore, hyp, sentence.length(), null);
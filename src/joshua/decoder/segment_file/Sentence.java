@@ -13,6 +13,7 @@ import java.util.regex.Pattern;
 import joshua.corpus.Vocabulary;
 import joshua.decoder.ff.tm.Grammar;
 import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.metrics.SentenceMetrics;
 import joshua.lattice.Arc;
 import joshua.lattice.Lattice;
 import joshua.lattice.Node;
@@ -47,6 +48,9 @@ public class Sentence {
 
   private final List<ConstraintSpan> constraints;
 
+  /* What it took to translate the sentence, filled in as it is translated */
+  private final SentenceMetrics metrics;
+
   // Matches the opening and closing <seg> tags, e.g.,
   // <seg id="72">this is a test input sentence</seg>.
   protected static final Pattern SEG_START = Pattern
@@ -94,6 +98,8 @@ public class Sentence {
     // A maxlen of 0 means no limit. Only trim lattices that are linear chains.
     if (joshuaConfiguration.maxlen != 0 && !this.intLattice().hasMoreThanOnePath())
       adjustForLength(joshuaConfiguration.maxlen);
+
+    this.metrics = new SentenceMetrics(this.id, sentence);
   }
 
   /**
@@ -247,6 +253,10 @@ public class Sentence {
     return id;
   }
 
+  public SentenceMetrics getMetrics() {
+    return metrics;
+  }
+
   public String source() {
     return sentence;
   }
@@ -1,37 +1,48 @@
 package joshua.metrics;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
-
-import joshua.util.StreamGobbler;
-
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+
+import joshua.util.ForkJoinPools;
+
+/**
+ * Translation edit rate: the number of edits (insertions, deletions, substitutions, and shifts of
+ * phrases) needed to turn a candidate into the closest reference, divided by the average length of
+ * the references.
+ *
+ * The edits are computed in-process, with the algorithm of tercom 0.7.25: the shifts are chosen
+ * greedily, each time taking the one that most reduces the edit distance, and the edit distance is
+ * only computed in a beam around the diagonal. Words are compared as integer ids, which are
+ * assigned to the words of each sentence's references when the sentence is first scored. The
+ * sufficient statistics are the number of edits and the average reference length, truncated to an
+ * integer as it was when it was read from tercom's output.
+ */
 public class TER extends EvaluationMetric {
   private boolean caseSensitive;
   private boolean withPunctuation;
   private int beamWidth;
   private int maxShiftDist;
-  private String tercomJarFileName;
   private int numScoringThreads;
 
+  // the references of each sentence, prepared when the sentence is first scored
+  private References[] refCache;
+
+  private final static int MAX_SHIFT_SIZE = 10; // longest phrase that can be shifted, as in tercom
+  private final static int INF = Integer.MAX_VALUE / 2;
+  private final static Pattern PUNCTUATION = Pattern.compile("[\\.,\\?:;!\"\\(\\)]");
+  private final static Pattern WHITESPACE = Pattern.compile("\\s+");
+
   public TER(String[] Metric_options) {
     // M_o[0]: case sensitivity, case/nocase
     // M_o[1]: with-punctuation, punc/nopunc
     // M_o[2]: beam width, positive integer
     // M_o[3]: maximum shift distance, positive integer
-    // M_o[4]: filename of tercom jar file
-    // M_o[5]: number of threads to use for TER scoring (= number of tercom processes launched)
+    // M_o[4]: filename of tercom jar file (no longer used, since TER is computed in-process)
+    // M_o[5]: number of threads to use for TER scoring
 
     // for 0-3, default values in tercom-0.7.25 are: nocase, punc, 20, 50
 
@@ -67,31 +78,12 @@ public class TER extends EvaluationMetric {
       System.exit(1);
     }
 
-    tercomJarFileName = Metric_options[4];
-
-    if (tercomJarFileName == null || tercomJarFileName.equals("")) {
-      System.out.println("Problem processing tercom's jar filename");
-      System.exit(1);
-    } else {
-      File checker = new File(tercomJarFileName);
-      if (!checker.exists()) {
-        System.out.println("Could not find tercom jar file " + tercomJarFileName);
-        System.out.println("(Please make sure you use the full path in the filename)");
-        System.exit(1);
-      }
-    }
-
     numScoringThreads = Integer.parseInt(Metric_options[5]);
     if (numScoringThreads < 1) {
       System.out.println("Number of TER scoring threads must be positive");
       System.exit(1);
     }
 
-
-    TercomRunner.set_TercomParams(caseSensitive, withPunctuation, beamWidth, maxShiftDist,
-        tercomJarFileName);
-
-
     initialize(); // set the data members of the metric
   }
 
@@ -99,6 +91,7 @@ public class TER extends EvaluationMetric {
     metricName = "TER";
     toBeMinimized = true;
     suffStatsCount = 2;
+    refCache = new References[numSentences];
   }
 
   public double bestPossibleScore() {
@@ -110,10 +103,20 @@ public class TER extends EvaluationMetric {
   }
 
   public int[] suffStats(String cand_str, int i) {
-    // this method should never be used when the metric is TER,
-    // because TER.java overrides createSuffStatsFile below,
-    // which is the only method that calls suffStats(String,int).
-    return null;
+    References refs = references(i);
+    int[] hyp = refs.ids(tokenize(cand_str));
+
+    // the edits to the closest reference (the first one, if there are ties)
+    int minEdits = INF;
+    for (int r = 0; r < refs.words.length; ++r) {
+      int edits = numEdits(hyp, refs.words[r], refs.positions[r]);
+      if (edits < minEdits) minEdits = edits;
+    }
+
+    int[] stats = new int[suffStatsCount];
+    stats[0] = minEdits;
+    stats[1] = (int) refs.avgLength;
+    return stats;
   }
 
   public int[][] suffStats(String[] cand_strings, int[] cand_indices) {
@@ -125,302 +128,319 @@ public class TER extends EvaluationMetric {
       return null;
     }
 
-    int[][] stats = new int[candCount][suffStatsCount];
-
-    try {
-
-      // 1) Create input files for tercom
-
-      // 1a) Create hypothesis file
-      FileOutputStream outStream = new FileOutputStream("hyp.txt.TER", false); // false: don't
-                                                                               // append
-      OutputStreamWriter outStreamWriter = new OutputStreamWriter(outStream, "utf8");
-      BufferedWriter outFile = new BufferedWriter(outStreamWriter);
-
-      for (int d = 0; d < candCount; ++d) {
-        writeLine(cand_strings[d] + " (ID" + d + ")", outFile);
-      }
-
-      outFile.close();
-
-      // 1b) Create reference file
-      outStream = new FileOutputStream("ref.txt.TER", false); // false: don't append
-      outStreamWriter = new OutputStreamWriter(outStream, "utf8");
-      outFile = new BufferedWriter(outStreamWriter);
-
-      for (int d = 0; d < candCount; ++d) {
-        for (int r = 0; r < refsPerSen; ++r) {
-          writeLine(refSentences[cand_indices[d]][r] + " (ID" + d + ")", outFile);
-        }
-      }
+    int[][] stats = new int[candCount][];
 
-      outFile.close();
-
-      // 2) Launch tercom as an external process
-
-      runTercom("ref.txt.TER", "hyp.txt.TER", "TER_out", 500);
-
-      // 3) Read SS from output file produced by tercom.7.25.jar
-
-      BufferedReader inFile = new BufferedReader(new FileReader("TER_out.ter"));
-      String line = "";
-
-      line = inFile.readLine(); // skip hyp line
-      line = inFile.readLine(); // skip ref line
-
-      for (int d = 0; d < candCount; ++d) {
-        line = inFile.readLine(); // read info
-        String[] strA = line.split("\\s+");
-
-        stats[d][0] = (int) Double.parseDouble(strA[1]);
-        stats[d][1] = (int) Double.parseDouble(strA[2]);
-      }
-
-
-      // 4) Delete TER files
-
-      File fd;
-      fd = new File("hyp.txt.TER");
-      if (fd.exists()) fd.delete();
-      fd = new File("ref.txt.TER");
-      if (fd.exists()) fd.delete();
-      fd = new File("TER_out.ter");
-      if (fd.exists()) fd.delete();
-
-    } catch (IOException e) {
-      System.err.println("IOException in TER.suffStats(String[],int[]): " + e.getMessage());
-      System.exit(99902);
+    if (numScoringThreads <= 1) {
+      for (int d = 0; d < candCount; ++d)
+        stats[d] = suffStats(cand_strings[d], cand_indices[d]);
+    } else {
+      ForkJoinPools.get(numScoringThreads).invoke(
+          new ScoringAction(cand_strings, cand_indices, stats, 0, candCount));
     }
 
     return stats;
   }
 
-  public void createSuffStatsFile(String cand_strings_fileName, String cand_indices_fileName,
-      String outputFileName, int maxBatchSize) {
-
-    try {
-      int batchCount = 0;
+  /* Scores the candidates [from, to), splitting them across the threads. */
+  @SuppressWarnings("serial")
+  private class ScoringAction extends RecursiveAction {
+    private final String[] cand_strings;
+    private final int[] cand_indices;
+    private final int[][] stats;
+    private final int from;
+    private final int to;
+
+    ScoringAction(String[] cand_strings, int[] cand_indices, int[][] stats, int from, int to) {
+      this.cand_strings = cand_strings;
+      this.cand_indices = cand_indices;
+      this.stats = stats;
+      this.from = from;
+      this.to = to;
+    }
 
-      FileInputStream inStream_cands = new FileInputStream(cand_strings_fileName);
-      BufferedReader inFile_cands =
-          new BufferedReader(new InputStreamReader(inStream_cands, "utf8"));
+    @Override
+    protected void compute() {
+      if (to - from <= 16) {
+        for (int d = from; d < to; ++d)
+          stats[d] = suffStats(cand_strings[d], cand_indices[d]);
+      } else {
+        int mid = (from + to) / 2;
+        invokeAll(new ScoringAction(cand_strings, cand_indices, stats, from, mid),
+            new ScoringAction(cand_strings, cand_indices, stats, mid, to));
+      }
+    }
+  }
 
-      FileInputStream inStream_indices = new FileInputStream(cand_indices_fileName);
-      BufferedReader inFile_indices =
-          new BufferedReader(new InputStreamReader(inStream_indices, "utf8"));
+  /* Lowercases the string and removes punctuation (if asked to), and splits it into words. */
+  private String[] tokenize(String str) {
+    if (!caseSensitive) str = str.toLowerCase();
+    if (!withPunctuation) str = PUNCTUATION.matcher(str).replaceAll("");
+    str = str.trim();
+    if (str.length() == 0) return new String[0];
+    return WHITESPACE.split(str);
+  }
 
-      while (true) {
-        ++batchCount;
-        int readCount =
-            createTercomHypFile(inFile_cands, tmpDirPrefix + "hyp.txt.TER.batch" + batchCount,
-                10000);
-        createTercomRefFile(inFile_indices, tmpDirPrefix + "ref.txt.TER.batch" + batchCount, 10000);
+  private synchronized References references(int i) {
+    if (refCache[i] == null) {
+      String[][] refWords = new String[refsPerSen][];
+      for (int r = 0; r < refsPerSen; ++r)
+        refWords[r] = tokenize(refSentences[i][r]);
+      refCache[i] = new References(refWords);
+    }
+    return refCache[i];
+  }
 
-        if (readCount == 0) {
-          --batchCount;
-          break;
-        } else if (readCount < 10000) {
-          break;
+  /*
+   * The references of a sentence, as word ids. Only the words of the references are given ids;
+   * other words of the candidates are all given the id -1, which matches nothing.
+   */
+  private static class References {
+    final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    // words[r] is the rth reference, and positions[r][id] has the positions of the word id in it
+    final int[][] words;
+    final int[][][] positions;
+    final double avgLength;
+
+    References(String[][] refWords) {
+      int numRefs = refWords.length;
+      words = new int[numRefs][];
+      double totalLength = 0;
+      for (int r = 0; r < numRefs; ++r) {
+        words[r] = new int[refWords[r].length];
+        for (int k = 0; k < refWords[r].length; ++k) {
+          Integer id = ids.get(refWords[r][k]);
+          if (id == null) {
+            id = ids.size();
+            ids.put(refWords[r][k], id);
+          }
+          words[r][k] = id;
         }
+        totalLength += words[r].length;
       }
-
-      // score the batchCount batches of candidates, in parallel, across numThreads threads
-      ExecutorService pool = Executors.newFixedThreadPool(numScoringThreads);
-      Semaphore blocker = new Semaphore(0);
-
-      for (int b = 1; b <= batchCount; ++b) {
-        pool.execute(new TercomRunner(blocker, tmpDirPrefix + "ref.txt.TER.batch" + b, tmpDirPrefix
-            + "hyp.txt.TER.batch" + b, tmpDirPrefix + "TER_out.batch" + b, 500));
-        // Each thread scores the candidates, creating a tercom output file,
-        // and then deletes the .hyp. and .ref. files, which are not needed
-        // for other batches.
-      }
-
-      pool.shutdown();
-
-      try {
-        blocker.acquire(batchCount);
-      } catch (java.lang.InterruptedException e) {
-        System.err.println("InterruptedException in TER.createSuffStatsFile(...): "
-            + e.getMessage());
-        System.exit(99906);
+      avgLength = totalLength / numRefs;
+
+      positions = new int[numRefs][ids.size()][];
+      for (int r = 0; r < numRefs; ++r) {
+        int[] counts = new int[ids.size()];
+        for (int id : words[r])
+          ++counts[id];
+        for (int id = 0; id < counts.length; ++id)
+          positions[r][id] = new int[counts[id]];
+        for (int k = words[r].length - 1; k >= 0; --k)
+          positions[r][words[r][k]][--counts[words[r][k]]] = k;
       }
+    }
 
-      PrintWriter outFile = new PrintWriter(outputFileName);
-      for (int b = 1; b <= batchCount; ++b) {
-        copySS(tmpDirPrefix + "TER_out.batch" + b + ".ter", outFile);
-        File fd;
-        fd = new File(tmpDirPrefix + "TER_out.batch" + b + ".ter");
-        if (fd.exists()) fd.delete();
-        // .hyp. and .ref. already deleted by individual threads
+    int[] ids(String[] candWords) {
+      int[] cand = new int[candWords.length];
+      for (int k = 0; k < candWords.length; ++k) {
+        Integer id = ids.get(candWords[k]);
+        cand[k] = (id == null) ? -1 : id;
       }
-      outFile.close();
-
-    } catch (IOException e) {
-      System.err.println("IOException in TER.createSuffStatsFile(...): " + e.getMessage());
-      System.exit(99902);
+      return cand;
     }
-
   }
 
-  public int createTercomHypFile(BufferedReader inFile_cands, String hypFileName, int numCands) {
-    // returns # lines read
-
-    int readCount = 0;
+  /*
+   * The alignment of a (possibly shifted) candidate to a reference with the least edits: which
+   * words of each are in error, and the position of the candidate word that each reference word is
+   * aligned to (for a deleted word, the position of the candidate word before it).
+   */
+  private static class Alignment {
+    int[] hyp;
+    int numEdits;
+    boolean[] hypErr;
+    boolean[] refErr;
+    int[] refAlign;
+  }
 
-    try {
-      FileOutputStream outStream = new FileOutputStream(hypFileName, false); // false: don't append
-      OutputStreamWriter outStreamWriter = new OutputStreamWriter(outStream, "utf8");
-      BufferedWriter outFile = new BufferedWriter(outStreamWriter);
+  /* Returns the number of edits, including shifts, that turn the candidate into the reference. */
+  private int numEdits(int[] hyp, int[] ref, int[][] positions) {
+    if (ref.length == 0) return hyp.length;
+
+    Alignment alignment = align(hyp, ref);
+    int numShifts = 0;
+    while (true) {
+      Alignment shifted = bestShift(ref, positions, alignment);
+      if (shifted == null) break;
+      alignment = shifted;
+      ++numShifts;
+    }
 
-      String line_cand = "";
+    return numShifts + alignment.numEdits;
+  }
 
-      if (numCands > 0) {
-        for (int d = 0; d < numCands; ++d) {
-          line_cand = inFile_cands.readLine();
-          if (line_cand != null) {
-            ++readCount;
-            writeLine(line_cand + " (ID" + d + ")", outFile);
-          } else {
-            break;
+  /*
+   * Finds the shift of the candidate that reduces the edit distance the most (by at least the cost
+   * of the shift), trying longer phrases first, and returns the alignment of the shifted
+   * candidate, or null if no shift helps. A phrase is only shifted to where it occurs in the
+   * reference, if some of its words and some of the words it would be aligned to are in error.
+   */
+  private Alignment bestShift(int[] ref, int[][] positions, Alignment alignment) {
+    int[] cur = alignment.hyp;
+    // shifts.get(len): {start, end, newLoc}
+    List<List<int[]>> shifts = new ArrayList<List<int[]>>(MAX_SHIFT_SIZE + 1);
+    for (int len = 0; len <= MAX_SHIFT_SIZE; ++len)
+      shifts.add(new ArrayList<int[]>());
+
+    int[] refAlign = alignment.refAlign;
+    for (int start = 0; start < cur.length; ++start) {
+      if (cur[start] < 0) continue;
+      int[] locs = positions[cur[start]];
+      if (locs.length == 0) continue;
+
+      // matches[l] is whether the phrase starting at start matches the reference at locs[l]
+      boolean[] matches = new boolean[locs.length];
+      Arrays.fill(matches, true);
+      boolean hypErr = false;
+
+      for (int len = 1; len <= MAX_SHIFT_SIZE && start + len <= cur.length; ++len) {
+        int end = start + len - 1;
+        hypErr |= alignment.hypErr[end];
+
+        boolean found = false;
+        for (int l = 0; l < locs.length; ++l) {
+          int moveTo = locs[l];
+          matches[l] &= (moveTo + len <= ref.length && ref[moveTo + len - 1] == cur[end]);
+          if (!matches[l]) continue;
+          found = true;
+
+          if (!hypErr) continue;
+          boolean refErr = false;
+          for (int k = moveTo; k < moveTo + len; ++k)
+            refErr |= alignment.refErr[k];
+          if (!refErr) continue;
+          if (Math.abs(start - refAlign[moveTo]) > maxShiftDist) continue;
+
+          // move the phrase to after one of the candidate words aligned to the reference words
+          // that precede or are covered by its occurrence in the reference
+          for (int off = -1; off < len; ++off) {
+            int newLoc;
+            if (off == -1 && moveTo == 0)
+              newLoc = -1;
+            else if (off == 0 || refAlign[moveTo + off] != refAlign[moveTo])
+              newLoc = refAlign[moveTo + off];
+            else
+              continue;
+
+            if (newLoc >= start - 1 && newLoc <= end) continue; // the phrase wouldn't move
+            boolean seen = false;
+            for (int[] shift : shifts.get(len))
+              seen |= (shift[0] == start && shift[2] == newLoc);
+            if (!seen) shifts.get(len).add(new int[] { start, end, newLoc });
           }
         }
-      } else {
-        line_cand = inFile_cands.readLine();
-        int d = -1;
-        while (line_cand != null) {
-          ++readCount;
-          ++d;
-          writeLine(line_cand + " (ID" + d + ")", outFile);
-          line_cand = inFile_cands.readLine();
-        }
-      }
 
-      outFile.close();
-
-    } catch (IOException e) {
-      System.err.println("IOException in TER.createTercomHypFile(...): " + e.getMessage());
-      System.exit(99902);
+        if (!found) break; // longer phrases don't occur in the reference either
+      }
     }
 
-    return readCount;
-
-  }
-
-  public int createTercomRefFile(BufferedReader inFile_indices, String refFileName, int numIndices) {
-    // returns # lines read
-
-    int readCount = 0;
-
-    try {
-      FileOutputStream outStream = new FileOutputStream(refFileName, false); // false: don't append
-      OutputStreamWriter outStreamWriter = new OutputStreamWriter(outStream, "utf8");
-      BufferedWriter outFile = new BufferedWriter(outStreamWriter);
-
-      String line_index = "";
-
-      if (numIndices > 0) {
-        for (int d = 0; d < numIndices; ++d) {
-          line_index = inFile_indices.readLine();
-          if (line_index != null) {
-            ++readCount;
-            int index = Integer.parseInt(line_index);
-            for (int r = 0; r < refsPerSen; ++r) {
-              writeLine(refSentences[index][r] + " (ID" + d + ")", outFile);
-            }
-          } else {
-            break;
-          }
-        }
-      } else {
-        line_index = inFile_indices.readLine();
-        int d = -1;
-        while (line_index != null) {
-          ++readCount;
-          ++d;
-          int index = Integer.parseInt(line_index);
-          for (int r = 0; r < refsPerSen; ++r) {
-            writeLine(refSentences[index][r] + " (ID" + d + ")", outFile);
-          }
-          line_index = inFile_indices.readLine();
+    int curEdits = alignment.numEdits;
+    int bestEdits = curEdits; // edits after the best shift, including its cost
+    Alignment best = null;
+    for (int len = MAX_SHIFT_SIZE; len >= 1; --len) {
+      // a shift of len words can fix at most 2 * len edits
+      for (int[] shift : shifts.get(len)) {
+        int fixed = curEdits - bestEdits;
+        if (fixed > 2 * len || (best != null && fixed == 2 * len)) return best;
+
+        Alignment shifted = align(shift(cur, shift[0], shift[1], shift[2]), ref);
+        int edits = shifted.numEdits + 1;
+        if (edits < bestEdits || (best == null && edits == bestEdits)) {
+          best = shifted;
+          bestEdits = edits;
         }
       }
-
-      outFile.close();
-
-    } catch (IOException e) {
-      System.err.println("IOException in TER.createTercomRefFile(...): " + e.getMessage());
-      System.exit(99902);
     }
-
-    return readCount;
-
+    return best;
   }
 
-  public int runTercom(String refFileName, String hypFileName, String outFileNamePrefix, int memSize) {
-    int exitValue = -1;
-
-    try {
-
-      String cmd_str =
-          "java -Xmx" + memSize + "m -Dfile.encoding=utf8 -jar " + tercomJarFileName + " -r "
-              + refFileName + " -h " + hypFileName + " -o ter -n " + outFileNamePrefix;
-      cmd_str += " -b " + beamWidth;
-      cmd_str += " -d " + maxShiftDist;
-      if (caseSensitive) {
-        cmd_str += " -s";
-      }
-      if (!withPunctuation) {
-        cmd_str += " -P";
-      }
-      /*
-       * From tercom's README: -s case sensitivity, optional, default is insensitive -P no
-       * punctuations, default is with punctuations.
-       */
-
-      Runtime rt = Runtime.getRuntime();
-      Process p = rt.exec(cmd_str);
-
-      StreamGobbler errorGobbler = new StreamGobbler(p.getErrorStream(), 0);
-      StreamGobbler outputGobbler = new StreamGobbler(p.getInputStream(), 0);
-
-      errorGobbler.start();
-      outputGobbler.start();
-
-      exitValue = p.waitFor();
-
-    } catch (IOException e) {
-      System.err.println("IOException in TER.runTercom(...): " + e.getMessage());
-      System.exit(99902);
-    } catch (InterruptedException e) {
-      System.err.println("InterruptedException in TER.runTercom(...): " + e.getMessage());
-      System.exit(99903);
+  /* Moves the words [start, end] to after the word at newLoc (or to the beginning, if it is -1). */
+  private static int[] shift(int[] cur, int start, int end, int newLoc) {
+    int len = end - start + 1;
+    int[] shifted = new int[cur.length];
+    if (newLoc < start) {
+      System.arraycopy(cur, 0, shifted, 0, newLoc + 1);
+      System.arraycopy(cur, start, shifted, newLoc + 1, len);
+      System.arraycopy(cur, newLoc + 1, shifted, newLoc + 1 + len, start - newLoc - 1);
+      System.arraycopy(cur, end + 1, shifted, end + 1, cur.length - end - 1);
+    } else {
+      System.arraycopy(cur, 0, shifted, 0, start);
+      System.arraycopy(cur, end + 1, shifted, start, newLoc - end);
+      System.arraycopy(cur, start, shifted, newLoc - len + 1, len);
+      System.arraycopy(cur, newLoc + 1, shifted, newLoc + 1, cur.length - newLoc - 1);
     }
-
-    return exitValue;
-
+    return shifted;
   }
 
-  public void copySS(String inputFileName, PrintWriter outFile) {
-    try {
-      BufferedReader inFile = new BufferedReader(new FileReader(inputFileName));
-      String line = "";
-
-      line = inFile.readLine(); // skip hyp line
-      line = inFile.readLine(); // skip ref line
-
-      line = inFile.readLine(); // read info for first line
+  /*
+   * Aligns the candidate to the reference with the least insertions, deletions, and substitutions,
+   * only considering the cells of the edit distance table within beamWidth of the diagonal (widened
+   * so that the beam stays connected when the lengths differ a lot).
+   */
+  private Alignment align(int[] hyp, int[] ref) {
+    int n = hyp.length;
+    int m = ref.length;
+
+    Alignment alignment = new Alignment();
+    alignment.hyp = hyp;
+    alignment.hypErr = new boolean[n];
+    alignment.refErr = new boolean[m];
+    alignment.refAlign = new int[m];
+
+    if (n == 0) {
+      alignment.numEdits = m;
+      Arrays.fill(alignment.refErr, true);
+      Arrays.fill(alignment.refAlign, -1);
+      return alignment;
+    }
 
-      while (line != null) {
-        String[] strA = line.split("\\s+");
-        outFile
-            .println((int) Double.parseDouble(strA[1]) + " " + (int) Double.parseDouble(strA[2]));
-        line = inFile.readLine(); // read info for next line
+    int width = beamWidth + (m + n - 1) / n;
+    int[][] cost = new int[n + 1][m + 1];
+    for (int i = 0; i <= n; ++i) {
+      Arrays.fill(cost[i], INF);
+      int center = (int) ((long) i * m / n);
+      int lo = Math.max(0, center - width);
+      int hi = Math.min(m, center + width);
+      for (int j = lo; j <= hi; ++j) {
+        if (i == 0 && j == 0) {
+          cost[i][j] = 0;
+          continue;
+        }
+        int best = INF;
+        if (i > 0 && j > 0) best = cost[i - 1][j - 1] + (hyp[i - 1] == ref[j - 1] ? 0 : 1);
+        if (i > 0) best = Math.min(best, cost[i - 1][j] + 1); // insertion
+        if (j > 0) best = Math.min(best, cost[i][j - 1] + 1); // deletion
+        cost[i][j] = Math.min(best, INF);
+      }
+    }
+    alignment.numEdits = cost[n][m];
+
+    // trace back, preferring matches and substitutions, then insertions, then deletions
+    int i = n, j = m;
+    while (i > 0 || j > 0) {
+      if (i > 0 && j > 0) {
+        boolean match = (hyp[i - 1] == ref[j - 1]);
+        if (cost[i][j] == cost[i - 1][j - 1] + (match ? 0 : 1)) {
+          alignment.hypErr[i - 1] = !match;
+          alignment.refErr[j - 1] = !match;
+          alignment.refAlign[j - 1] = i - 1;
+          --i;
+          --j;
+          continue;
+        }
+      }
+      if (i > 0 && cost[i][j] == cost[i - 1][j] + 1) {
+        alignment.hypErr[i - 1] = true;
+        --i;
+      } else {
+        alignment.refErr[j - 1] = true;
+        alignment.refAlign[j - 1] = i - 1;
+        --j;
       }
-    } catch (IOException e) {
-      System.err.println("IOException in TER.copySS(String,PrintWriter): " + e.getMessage());
-      System.exit(99902);
     }
+
+    return alignment;
   }
 
   public double score(int[] stats) {
@@ -447,10 +467,4 @@ public class TER extends EvaluationMetric {
     }
   }
 
-  private void writeLine(String line, BufferedWriter writer) throws IOException {
-    writer.write(line, 0, line.length());
-    writer.newLine();
-    writer.flush();
-  }
-
 }
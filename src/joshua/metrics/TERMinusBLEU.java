@@ -1,12 +1,5 @@
 package joshua.metrics;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-
 public class TERMinusBLEU extends EvaluationMetric {
   // individual components
   private TER myTER;
@@ -19,8 +12,8 @@ public class TERMinusBLEU extends EvaluationMetric {
     // M_o[1]: with-punctuation, punc/nopunc
     // M_o[2]: beam width, positive integer
     // M_o[3]: maximum shift distance, positive integer
-    // M_o[4]: filename of tercom jar file
-    // M_o[5]: number of threads to use for TER scoring (= number of tercom processes launched)
+    // M_o[4]: filename of tercom jar file (no longer used, since TER is computed in-process)
+    // M_o[5]: number of threads to use for TER scoring
     // M_o[6]: maximum gram length, positive integer
     // M_o[7]: effective length calculation method, closest/shortest/average
 
@@ -49,10 +42,14 @@ public class TERMinusBLEU extends EvaluationMetric {
   }
 
   public int[] suffStats(String cand_str, int i) {
-    // this method should never be used when the metric is TER-BLEU,
-    // because TERMinusBLEU.java overrides suffStats(String[],int[]) below,
-    // which is the only method that calls suffStats(Sting,int).
-    return null;
+    int[] stats = new int[suffStatsCount];
+
+    int[] stats_TER = myTER.suffStats(cand_str, i);
+    int[] stats_BLEU = myBLEU.suffStats(cand_str, i);
+    System.arraycopy(stats_TER, 0, stats, 0, suffStatsCount_TER);
+    System.arraycopy(stats_BLEU, 0, stats, suffStatsCount_TER, suffStatsCount_BLEU);
+
+    return stats;
   }
 
   public int[][] suffStats(String[] cand_strings, int[] cand_indices) {
@@ -90,47 +87,6 @@ public class TERMinusBLEU extends EvaluationMetric {
 
   }
 
-  public void createSuffStatsFile(String cand_strings_fileName, String cand_indices_fileName,
-      String outputFileName, int maxBatchSize) {
-    try {
-      myTER.createSuffStatsFile(cand_strings_fileName, cand_indices_fileName, outputFileName
-          + ".TER", maxBatchSize);
-      myBLEU.createSuffStatsFile(cand_strings_fileName, cand_indices_fileName, outputFileName
-          + ".BLEU", maxBatchSize);
-
-      PrintWriter outFile = new PrintWriter(outputFileName);
-
-      FileInputStream inStream_TER = new FileInputStream(outputFileName + ".TER");
-      BufferedReader inFile_TER = new BufferedReader(new InputStreamReader(inStream_TER, "utf8"));
-
-      FileInputStream inStream_BLEU = new FileInputStream(outputFileName + ".BLEU");
-      BufferedReader inFile_BLEU = new BufferedReader(new InputStreamReader(inStream_BLEU, "utf8"));
-
-      String line_TER = inFile_TER.readLine();
-      String line_BLEU = inFile_BLEU.readLine();
-
-      // combine the two files into one
-      while (line_TER != null) {
-        outFile.println(line_TER + " " + line_BLEU);
-        line_TER = inFile_TER.readLine();
-        line_BLEU = inFile_BLEU.readLine();
-      }
-
-      inFile_TER.close();
-      inFile_BLEU.close();
-      outFile.close();
-
-      File fd;
-      fd = new File(outputFileName + ".TER");
-      if (fd.exists()) fd.delete();
-      fd = new File(outputFileName + ".BLEU");
-      if (fd.exists()) fd.delete();
-    } catch (IOException e) {
-      System.err.println("IOException in TER.createTercomHypFile(...): " + e.getMessage());
-      System.exit(99902);
-    }
-  }
-
   public double score(int[] stats) {
     if (stats.length != suffStatsCount) {
       System.out.println("Mismatch between stats.length and suffStatsCount (" + stats.length
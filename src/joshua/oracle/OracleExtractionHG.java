@@ -2,6 +2,7 @@ package joshua.oracle;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -14,6 +15,7 @@ import joshua.decoder.hypergraph.HGNode;
 import joshua.decoder.hypergraph.HyperEdge;
 import joshua.decoder.hypergraph.HyperGraph;
 import joshua.decoder.hypergraph.KBestExtractor;
+import joshua.decoder.hypergraph.MappedHyperGraph;
 import joshua.decoder.hypergraph.ViterbiExtractor;
 import joshua.util.FileUtility;
 
@@ -98,7 +100,7 @@ public class OracleExtractionHG extends SplitHg {
       }
       System.exit(1);
     }
-    // String f_hypergraphs = args[0].trim();
+    String f_hypergraphs = args[0].trim();
     // String f_rule_tbl = args[1].trim();
     String f_ref_files = args[2].trim();
     String f_orc_out = args[3].trim();
@@ -138,11 +140,15 @@ public class OracleExtractionHG extends SplitHg {
     while ((ref_sent = FileUtility.read_line_lzf(t_reader_ref)) != null) {
       System.out.println("############Process sentence " + sent_id);
       start_time = System.currentTimeMillis();
+      // f_hypergraphs is the pattern given to -dump-hypergraph, with -dump-hypergraph-format binary
+      String f_hypergraph = String.format(f_hypergraphs, sent_id);
       sent_id++;
       // if(sent_id>10)break;
 
       // HyperGraph hg = dhg_read.readHyperGraph();
       HyperGraph hg = null;
+      if (new File(f_hypergraph).exists())
+        hg = new MappedHyperGraph(f_hypergraph).toHyperGraph(null, joshuaConfiguration);
       if (hg == null)
         continue;
 
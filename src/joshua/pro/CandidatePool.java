@@ -0,0 +1,199 @@
+package joshua.pro;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The candidate translations that PRO has seen for each sentence, over all iterations, when it
+ * drives the embedded decoder. Each distinct candidate of a sentence is stored once, with its
+ * feature values (as floats, the precision the decoder computes them in) and the sufficient
+ * statistics of the evaluation metric, in flat primitive arrays that grow as new candidates are
+ * added. This replaces the temp.sents/feats/stats files and the string maps that hold the same
+ * information when an external decoder is used.
+ *
+ * A candidate is in the window of an iteration if it was output by the decoder in that iteration
+ * or in one of the previous iterations that are considered (see -prevIt). Candidates that fall out
+ * of the window are kept, so that their statistics needn't be computed again if they come back.
+ *
+ * The pool of a sentence may be added to by one thread while the pools of other sentences are
+ * read or added to by others.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class CandidatePool {
+
+  private final int numParams;
+  private final int numStats;
+  private final SentencePool[] sentences;
+
+  /**
+   * @param numSentences the number of sentences
+   * @param numParams the number of features; their values are indexed from 1, as lambda is
+   * @param numStats the number of sufficient statistics of the evaluation metric
+   */
+  public CandidatePool(int numSentences, int numParams, int numStats) {
+    this.numParams = numParams;
+    this.numStats = numStats;
+    this.sentences = new SentencePool[numSentences];
+    for (int i = 0; i < numSentences; i++)
+      sentences[i] = new SentencePool();
+  }
+
+  public int numSentences() {
+    return sentences.length;
+  }
+
+  public int numParams() {
+    return numParams;
+  }
+
+  public int numStats() {
+    return numStats;
+  }
+
+  /**
+   * Records that a sentence's decoder output included the candidate in the given iteration.
+   * Returns the candidate's index if it is new to the window of that iteration (which starts at
+   * firstIt), in which case the features replace any recorded before and its statistics need to be
+   * set if {@link #hasStats(int, int)} says they haven't; otherwise returns -1.
+   *
+   * @param feats the feature values, indexed from 1
+   */
+  public int add(int i, String candidate, float[] feats, int iteration, int firstIt) {
+    SentencePool pool = sentences[i];
+    synchronized (pool) {
+      Integer index = pool.index.get(candidate);
+      if (index != null) {
+        int c = index;
+        boolean inWindow = pool.lastSeen[c] >= firstIt;
+        pool.lastSeen[c] = iteration;
+        if (inWindow)
+          return -1;
+        pool.added[c] = iteration;
+        System.arraycopy(feats, 1, pool.feats, c * numParams, numParams);
+        return c;
+      }
+
+      int c = pool.size++;
+      pool.ensureCapacity(pool.size);
+      pool.index.put(candidate, c);
+      pool.candidates[c] = candidate;
+      pool.lastSeen[c] = iteration;
+      pool.added[c] = iteration;
+      System.arraycopy(feats, 1, pool.feats, c * numParams, numParams);
+      return c;
+    }
+  }
+
+  public boolean hasStats(int i, int c) {
+    SentencePool pool = sentences[i];
+    synchronized (pool) {
+      return pool.hasStats[c];
+    }
+  }
+
+  public void setStats(int i, int c, int[] stats) {
+    SentencePool pool = sentences[i];
+    synchronized (pool) {
+      System.arraycopy(stats, 0, pool.stats, c * numStats, numStats);
+      pool.hasStats[c] = true;
+    }
+  }
+
+  /**
+   * Returns the indices of the candidates of a sentence in the window that starts at firstIt, in
+   * the order they were added.
+   */
+  public int[] window(int i, int firstIt) {
+    SentencePool pool = sentences[i];
+    synchronized (pool) {
+      int[] window = new int[pool.size];
+      int n = 0;
+      for (int c = 0; c < pool.size; c++)
+        if (pool.lastSeen[c] >= firstIt)
+          window[n++] = c;
+      return Arrays.copyOf(window, n);
+    }
+  }
+
+  /**
+   * Returns the number of candidates in the window that starts at firstIt that entered it in the
+   * given iteration.
+   */
+  public int countAdded(int i, int iteration, int firstIt) {
+    SentencePool pool = sentences[i];
+    synchronized (pool) {
+      int n = 0;
+      for (int c = 0; c < pool.size; c++)
+        if (pool.lastSeen[c] >= firstIt && pool.added[c] == iteration)
+          n++;
+      return n;
+    }
+  }
+
+  public String candidate(int i, int c) {
+    SentencePool pool = sentences[i];
+    synchronized (pool) {
+      return pool.candidates[c];
+    }
+  }
+
+  /**
+   * Returns the inner product of a candidate's features with the weights (indexed from 1).
+   */
+  public double score(int i, int c, double[] lambda) {
+    float[] feats = features(i);
+    double score = 0.0;
+    int offset = c * numParams - 1;
+    for (int p = 1; p <= numParams; p++)
+      score += lambda[p] * feats[offset + p];
+    return score;
+  }
+
+  /**
+   * Returns the feature values of a sentence's candidates: those of candidate c are at
+   * c * numParams() ... (c + 1) * numParams() - 1. The array is replaced when the pool grows, so
+   * it should not be held on to while candidates are added.
+   */
+  public float[] features(int i) {
+    SentencePool pool = sentences[i];
+    synchronized (pool) {
+      return pool.feats;
+    }
+  }
+
+  /**
+   * Returns the sufficient statistics of a sentence's candidates, numStats() per candidate, as
+   * with {@link #features(int)}.
+   */
+  public int[] stats(int i) {
+    SentencePool pool = sentences[i];
+    synchronized (pool) {
+      return pool.stats;
+    }
+  }
+
+  /* The candidates of one sentence */
+  private class SentencePool {
+    final HashMap<String, Integer> index = new HashMap<String, Integer>();
+    int size = 0;
+    String[] candidates = new String[0];
+    int[] lastSeen = new int[0];
+    int[] added = new int[0];
+    boolean[] hasStats = new boolean[0];
+    float[] feats = new float[0];
+    int[] stats = new int[0];
+
+    void ensureCapacity(int n) {
+      if (n <= candidates.length)
+        return;
+      int capacity = Math.max(n, Math.max(16, 2 * candidates.length));
+      candidates = Arrays.copyOf(candidates, capacity);
+      lastSeen = Arrays.copyOf(lastSeen, capacity);
+      added = Arrays.copyOf(added, capacity);
+      hasStats = Arrays.copyOf(hasStats, capacity);
+      feats = Arrays.copyOf(feats, capacity * numParams);
+      stats = Arrays.copyOf(stats, capacity * numStats);
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package joshua.pro;
+
+import java.util.Vector;
+import java.util.concurrent.RecursiveAction;
+
+import joshua.util.ForkJoinPools;
+
+/**
+ * An averaged perceptron that trains with several threads, by iterative parameter mixing: in each
+ * iteration, the samples are split into shards, a perceptron is run over each shard (in parallel)
+ * starting from the current weights, and the current weights are replaced by the average of the
+ * shards' weights. The weights returned are the average of the current weights over the
+ * iterations.
+ *
+ * The samples are split into one shard per thread, or into the number of shards given as the
+ * fourth parameter. The weights depend on the number of shards but not on how the threads are
+ * scheduled, so fixing it makes the results the same for any number of threads.
+ */
+public class ClassifierParallelPerceptron implements DenseClassifierInterface {
+  @Override
+  public double[] runClassifier(Vector<String> samples, double[] initialLambda, int featDim) {
+    int width = featDim + 1;
+    float[] rows = new float[samples.size() * width];
+    String[] featVal;
+    String[] feat_info;
+
+    for (int s = 0; s < samples.size(); s++) {
+      featVal = samples.get(s).split("\\s+");
+      int row = s * width;
+      for (int d = 0; d < featVal.length - 1; d++) {
+        feat_info = featVal[d].split("[:=]");
+        rows[row + ClassifierPerceptron.featureId(feat_info[0])] += Float.parseFloat(feat_info[1]);
+      }
+      rows[row] = Float.parseFloat(featVal[featVal.length - 1]); // class label(+1/-1)
+    }
+
+    return runClassifier(rows, samples.size(), initialLambda, featDim);
+  }
+
+  @Override
+  public double[] runClassifier(float[] samples, int numSamples, double[] initialLambda,
+      int featDim) {
+    System.out.println("------- Parallel average-perceptron training starts ------");
+
+    int shards = (numShards > 0) ? numShards : numThreads;
+    shards = Math.max(1, Math.min(shards, numSamples));
+
+    double[] lambda = new double[featDim + 1]; // in ZMERT lambda[0] is not used
+    double[] sum_lambda = new double[featDim + 1];
+    for (int i = 1; i <= featDim; i++)
+      lambda[i] = initialLambda[i];
+
+    double[][] shardLambda = new double[shards][];
+    int[] shardErrors = new int[shards];
+
+    System.out.print("Perceptron iteration ");
+    int numIter = 0;
+    for (int it = 0; it < maxIter; it++) {
+      System.out.print(it + " ");
+
+      for (int s = 0; s < shards; s++)
+        shardLambda[s] = lambda.clone();
+
+      ShardAction action = new ShardAction(samples, numSamples, featDim, shardLambda, shardErrors,
+          0, shards);
+      if (numThreads <= 1) {
+        for (int s = 0; s < shards; s++)
+          shardErrors[s] = action.train(shardLambda[s], (int) ((long) s * numSamples / shards),
+              (int) ((long) (s + 1) * numSamples / shards));
+      } else
+        ForkJoinPools.get(numThreads).invoke(action);
+
+      // mix the weights of the shards
+      int numError = 0;
+      for (int i = 1; i <= featDim; i++)
+        lambda[i] = 0;
+      for (int s = 0; s < shards; s++) {
+        numError += shardErrors[s];
+        for (int i = 1; i <= featDim; i++)
+          lambda[i] += shardLambda[s][i] / shards;
+      }
+
+      for (int i = 1; i <= featDim; i++)
+        sum_lambda[i] += lambda[i];
+      numIter++;
+
+      if (numError == 0) break;
+    }
+
+    System.out.println("\n------- Parallel average-perceptron training ends ------");
+
+    for (int i = 1; i <= featDim; i++)
+      sum_lambda[i] /= numIter;
+
+    return sum_lambda;
+  }
+
+  /* Runs the perceptron over the samples of the shards [from, to). */
+  @SuppressWarnings("serial")
+  private class ShardAction extends RecursiveAction {
+    private final float[] samples;
+    private final int numSamples;
+    private final int featDim;
+    private final double[][] shardLambda;
+    private final int[] shardErrors;
+    private final int from;
+    private final int to;
+
+    ShardAction(float[] samples, int numSamples, int featDim, double[][] shardLambda,
+        int[] shardErrors, int from, int to) {
+      this.samples = samples;
+      this.numSamples = numSamples;
+      this.featDim = featDim;
+      this.shardLambda = shardLambda;
+      this.shardErrors = shardErrors;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        int shards = shardLambda.length;
+        long first = (long) from * numSamples / shards;
+        long last = (long) to * numSamples / shards;
+        shardErrors[from] = train(shardLambda[from], (int) first, (int) last);
+      } else {
+        int mid = (from + to) / 2;
+        invokeAll(new ShardAction(samples, numSamples, featDim, shardLambda, shardErrors, from,
+            mid), new ShardAction(samples, numSamples, featDim, shardLambda, shardErrors, mid, to));
+      }
+    }
+
+    /* One pass of the perceptron over samples [first, last), returning the number of errors. */
+    private int train(double[] lambda, int first, int last) {
+      int width = featDim + 1;
+      int numError = 0;
+      for (int n = first; n < last; n++) {
+        int row = n * width;
+        double label = samples[row];
+
+        double score = 0; // model score
+        for (int i = 1; i <= featDim; i++)
+          score += lambda[i] * samples[row + i];
+
+        if (score * label <= bias) // incorrect classification
+        {
+          numError++;
+          for (int i = 1; i <= featDim; i++)
+            lambda[i] += learningRate * label * samples[row + i];
+        }
+      }
+      return numError;
+    }
+  }
+
+  @Override
+  public void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
+  @Override
+  /*
+   * for parallel avg_perceptron: param[0] = maximum number of iterations param[1] = learning rate
+   * (step size) param[2] = bias (usually set to 0) param[3] = number of shards (optional; by
+   * default one per thread)
+   */
+  public void setClassifierParam(String[] param) {
+    if (param == null)
+      System.out
+          .println("WARNING: no parameters specified for parallel perceptron classifier, using default settings.");
+    else {
+      maxIter = Integer.parseInt(param[0]);
+      learningRate = Double.parseDouble(param[1]);
+      bias = Double.parseDouble(param[2]);
+      if (param.length > 3)
+        numShards = Integer.parseInt(param[3]);
+    }
+  }
+
+  int maxIter = 20;
+  double learningRate = 0.5;
+  double bias = 0.0;
+  int numShards = 0;
+  int numThreads = 1;
+}
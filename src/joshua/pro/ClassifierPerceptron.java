@@ -2,8 +2,6 @@ package joshua.pro;
 
 import java.util.Vector;
 
-import joshua.corpus.Vocabulary;
-
 // sparse feature representation version
 public class ClassifierPerceptron implements ClassifierInterface {
   @Override
@@ -50,7 +48,7 @@ public class ClassifierPerceptron implements ClassifierInterface {
 
         for (int d = 0; d < featVal.length - 1; d++) {
           feat_info = featVal[d].split("[:=]");
-          int featID = Vocabulary.id(feat_info[0]);
+          int featID = featureId(feat_info[0]);
           score += Double.parseDouble(feat_info[1]) * lambda[featID];
         }
 
@@ -68,7 +66,7 @@ public class ClassifierPerceptron implements ClassifierInterface {
 
           for (int d = 0; d < featVal.length - 1; d++) {
             feat_info = featVal[d].split("[:=]");
-            int featID = Vocabulary.id(feat_info[0]);            
+            int featID = featureId(feat_info[0]);
 
             lambda[featID] += learningRate * label * Double.parseDouble(feat_info[1]);
             sum_lambda[featID] += lambda[featID];
@@ -90,6 +88,14 @@ public class ClassifierPerceptron implements ClassifierInterface {
     return sum_lambda;
   }
 
+  /*
+   * Features are given by their index (see ClassifierInterface); PROCore maps the names of the
+   * decoder's dense features to their index in the parameter file.
+   */
+  static int featureId(String feature) {
+    return Integer.parseInt(feature);
+  }
+
   @Override
   /*
    * for avg_perceptron: param[0] = maximum number of iterations param[1] = learning rate (step
@@ -0,0 +1,16 @@
+package joshua.pro;
+
+/**
+ * A classifier that can also be trained on dense samples, without going through strings, and
+ * that can use more than one thread to train.
+ *
+ * The samples are stored in a single array, one row of featDim + 1 values per sample: the class
+ * label (1 or -1), followed by the values of features 1 ... featDim. (This matches the indexing of
+ * the weight vectors, whose 0th entry isn't used.)
+ */
+public interface DenseClassifierInterface extends ClassifierInterface {
+  double[] runClassifier(float[] samples, int numSamples, double[] initialLambda, int featDim);
+
+  // Set the number of threads to train with
+  void setNumThreads(int numThreads);
+}
@@ -1,17 +1,20 @@
 package joshua.pro;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.RecursiveAction;
 
-import joshua.corpus.Vocabulary;
 import joshua.metrics.EvaluationMetric;
+import joshua.util.ForkJoinPools;
 
 // this class implements the PRO tuning method
 public class Optimizer {
@@ -57,25 +60,70 @@ public class Optimizer {
     Xi = _Xi; // param Xi in PRO
     metricDiff = _metricDiff; // threshold for sampling acceptance
     normalizationOptions = _normalizationOptions; // weight normalization option
-    randgen = new Random(_seed); // random number generator
+    seed = _seed; // seeds the random number generator of each sentence
     classifierAlg = _classifierAlg; // classification algorithm
     classifierParam = _classifierParam; // params for the specified classifier
   }
 
-  public double[] run_Optimizer() {
-    // sampling from all candidates
-    Vector<String> allSamples = process_Params();
+  /**
+   * Creates an optimizer over the candidates of a pool that are in the window starting at firstIt,
+   * rather than over candidate maps. Only training mode 1 (dense features) is supported. Samples
+   * are passed to the classifier with the indices of the features (see
+   * {@link ClassifierInterface}).
+   */
+  public Optimizer(long _seed, int _sentNum, Vector<String> _output, double[] _initialTotalLambda,
+      CandidatePool _pool, int _firstIt, double _finalScore, EvaluationMetric _evalMetric,
+      int _Tau, int _Xi, double _metricDiff, double[] _normalizationOptions,
+      String _classifierAlg, String[] _classifierParam) {
+    this(_seed, _sentNum, _output, _initialTotalLambda, null, null, _finalScore, _evalMetric,
+        _Tau, _Xi, _metricDiff, _normalizationOptions, _classifierAlg, _classifierParam, "1", 0,
+        _initialTotalLambda.length - 1, "dense");
+    pool = _pool;
+    firstIt = _firstIt;
+    if (pool.numParams() != paramDim) {
+      System.err.println("The candidate pool has " + pool.numParams() + " features, but there are "
+          + paramDim + " weights; exiting ...");
+      System.exit(35);
+    }
+    sampleWidth = paramDim + 1;
+  }
 
+  /**
+   * Sets the number of threads that pairs are sampled with (one sentence at a time) and that
+   * {@link DenseClassifierInterface} classifiers train with. The samples don't depend on it.
+   */
+  public void setNumThreads(int _numThreads) {
+    numThreads = _numThreads;
+  }
+
+  public double[] run_Optimizer() {
     try {
       // create classifier object from the given class name string
       ClassifierInterface myClassifier =
           (ClassifierInterface) Class.forName(classifierAlg).newInstance();
-      System.out.println("Total training samples(class +1 & class -1): " + allSamples.size());
+      myClassifier.setClassifierParam(classifierParam); // set classifier parameters
 
       // thet intitialLambda & finalLambda are all trainable parameters
-      myClassifier.setClassifierParam(classifierParam); // set classifier parameters
-      finalLambda = myClassifier.runClassifier(allSamples, initialLambda, paramDim); // run
-                                                                                     // classifier
+      if (pool != null && myClassifier instanceof DenseClassifierInterface) {
+        // sampling from all candidates, as dense vectors
+        float[] allSamples = densePoolSamples();
+        int numSamples = allSamples.length / sampleWidth;
+        System.out.println("Total training samples(class +1 & class -1): " + numSamples);
+
+        DenseClassifierInterface denseClassifier = (DenseClassifierInterface) myClassifier;
+        denseClassifier.setNumThreads(numThreads);
+        finalLambda = denseClassifier.runClassifier(allSamples, numSamples, initialLambda,
+            paramDim);
+      } else {
+        // sampling from all candidates
+        Vector<String> allSamples = process_Params();
+        System.out.println("Total training samples(class +1 & class -1): " + allSamples.size());
+
+        if (myClassifier instanceof DenseClassifierInterface)
+          ((DenseClassifierInterface) myClassifier).setNumThreads(numThreads);
+        finalLambda = myClassifier.runClassifier(allSamples, initialLambda, paramDim); // run
+                                                                                       // classifier
+      }
 
       if (!trainMode.equals("3")) // for mode 3, no need to normalize sparse feature weights
         normalizeLambda(finalLambda);
@@ -155,6 +203,9 @@ public class Optimizer {
   }
 
   public double computeCorpusMetricScore(double[] finalLambda) {
+    if (pool != null)
+      return computePoolMetricScore(finalLambda);
+
     int suffStatsCount = evalMetric.get_suffStatsCount();
     double modelScore;
     double maxModelScore;
@@ -182,7 +233,7 @@ public class Optimizer {
           for (int f = 0; f < feat_str.length; f++) {
             String[] feat_info = feat_str[f].split("[=:]");
             modelScore +=
-                Double.parseDouble(feat_info[1]) * finalLambda[Vocabulary.id(feat_info[0])];
+                Double.parseDouble(feat_info[1]) * finalLambda[Integer.parseInt(feat_info[0])];
           }
         } else {
           int new_feat_id = 0;
@@ -216,38 +267,317 @@ public class Optimizer {
     return evalMetric.score(corpusStatsVal);
   }
 
+  /*
+   * As computeCorpusMetricScore(), for the candidates of the pool. Ties between the model scores of
+   * candidates go to the one that was added first.
+   */
+  private double computePoolMetricScore(double[] finalLambda) {
+    int suffStatsCount = evalMetric.get_suffStatsCount();
+    int[] corpusStatsVal = new int[suffStatsCount];
+
+    for (int i = 0; i < sentNum; i++) {
+      int[] window = pool.window(i, firstIt);
+      if (window.length == 0)
+        continue;
+
+      int best = window[0];
+      double maxModelScore = NegInf;
+      for (int c : window) {
+        double modelScore = pool.score(i, c, finalLambda);
+        if (maxModelScore < modelScore) {
+          maxModelScore = modelScore;
+          best = c;
+        }
+      }
+
+      int[] stats = pool.stats(i);
+      for (int j = 0; j < suffStatsCount; j++)
+        corpusStatsVal[j] += stats[best * suffStatsCount + j];
+    }
+
+    return evalMetric.score(corpusStatsVal);
+  }
+
   public Vector<String> process_Params() {
     Vector<String> allSamples = new Vector<String>(); // to save all sampled pairs
 
     // sampling
-    Vector<String> sampleVec = new Vector<String>(); // use String to make sparse representation
+    final Object[] sampleVecs = new Object[sentNum]; // use String to make sparse representation
                                                      // easy
+    forEachSentence(new SentenceTask() {
+      @Override
+      public void run(int sentId, Random randgen) {
+        if (pool != null)
+          sampleVecs[sentId] = toStrings(poolSampler(sentId, randgen));
+        else
+          sampleVecs[sentId] = Sampler(sentId, randgen);
+      }
+    });
+
     for (int i = 0; i < sentNum; i++) {
-      sampleVec = Sampler(i);
+      @SuppressWarnings("unchecked")
+      Vector<String> sampleVec = (Vector<String>) sampleVecs[i];
       allSamples.addAll(sampleVec);
     }
 
     return allSamples;
   }
 
-  private Vector<String> Sampler(int sentId) {
+  /*
+   * As process_Params(), for the candidates of the pool, returning the samples as rows of
+   * sampleWidth values: the label, then the feature values.
+   */
+  private float[] densePoolSamples() {
+    final float[][] sampleRows = new float[sentNum][];
+    forEachSentence(new SentenceTask() {
+      @Override
+      public void run(int sentId, Random randgen) {
+        sampleRows[sentId] = poolSampler(sentId, randgen);
+      }
+    });
+
+    int size = 0;
+    for (float[] rows : sampleRows)
+      size += rows.length;
+    float[] allSamples = new float[size];
+    size = 0;
+    for (float[] rows : sampleRows) {
+      System.arraycopy(rows, 0, allSamples, size, rows.length);
+      size += rows.length;
+    }
+    return allSamples;
+  }
+
+  /* Something done for each sentence, with the sentence's random number generator. */
+  private interface SentenceTask {
+    void run(int sentId, Random randgen);
+  }
+
+  /*
+   * Runs the task for each sentence, in parallel if there is more than one thread. Each sentence
+   * has its own random number generator, seeded from the optimizer's seed and the sentence, so
+   * that the samples don't depend on the number of threads or on the order the sentences are done
+   * in.
+   */
+  private void forEachSentence(final SentenceTask task) {
+    if (numThreads <= 1 || sentNum <= 1) {
+      for (int i = 0; i < sentNum; i++)
+        task.run(i, new Random(sentenceSeed(i)));
+      return;
+    }
+
+    ForkJoinPools.get(numThreads).invoke(new SentenceAction(task, 0, sentNum));
+  }
+
+  @SuppressWarnings("serial")
+  private class SentenceAction extends RecursiveAction {
+    private final SentenceTask task;
+    private final int from;
+    private final int to;
+
+    SentenceAction(SentenceTask task, int from, int to) {
+      this.task = task;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= 4) {
+        for (int i = from; i < to; i++)
+          task.run(i, new Random(sentenceSeed(i)));
+      } else {
+        int mid = (from + to) / 2;
+        invokeAll(new SentenceAction(task, from, mid), new SentenceAction(task, mid, to));
+      }
+    }
+  }
+
+  /* Mixes the seed and the sentence number (as in SplitMix64), so that nearby seeds differ. */
+  private long sentenceSeed(int sentId) {
+    long z = seed + (sentId + 1) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  private Vector<String> Sampler(int sentId, Random randgen) {
     int candCount = stats_hash[sentId].size();
     Vector<String> sampleVec = new Vector<String>();
-    HashMap<String, Double> candScore = new HashMap<String, Double>(); // metric(e.g BLEU) score of
-                                                                       // all candidates
 
     // extract all candidates to a string array to save time in computing BLEU score
     String[] cands = new String[candCount];
     Set<String> candSet = stats_hash[sentId].keySet();
-    HashMap<Integer, String> candMap = new HashMap<Integer, String>();
 
     int candId = 0;
     for (Iterator<String> it = candSet.iterator(); it.hasNext();) {
-      cands[candId] = it.next().toString();
-      candMap.put(candId, cands[candId]); // map an integer to each candidate
+      cands[candId] = it.next().toString(); // map an integer to each candidate
       candId++;
     }
-    candScore = compute_Score(sentId, cands); // compute BLEU for each candidate
+    double[] candScore = compute_Score(sentId, cands); // compute BLEU for each candidate
+
+    int label;
+    String[] feat_str_j1, feat_str_j2;
+    String j1Cand, j2Cand;
+    String featDiff, neg_featDiff;
+
+    for (int[] pair : selectPairs(candScore, randgen)) {
+      j1Cand = cands[pair[0]];
+      j2Cand = cands[pair[1]];
+
+      if (evalMetric.getToBeMinimized()) // if smaller metric score is better(like TER)
+        label = (candScore[pair[0]] - candScore[pair[1]]) < 0 ? 1 : -1;
+      else
+        // like BLEU
+        label = (candScore[pair[0]] - candScore[pair[1]]) > 0 ? 1 : -1;
+
+      feat_str_j1 = feat_hash[sentId].get(j1Cand).split("\\s+");
+      feat_str_j2 = feat_hash[sentId].get(j2Cand).split("\\s+");
+
+      featDiff = "";
+      neg_featDiff = "";
+
+      HashMap<String, String> feat_diff = new HashMap<String, String>();
+      String[] feat_info;
+
+      for (int i = 0; i < feat_str_j1.length; i++) {
+        feat_info = feat_str_j1[i].split("[:=]");
+        feat_diff.put(feat_info[0], feat_info[1]);
+      }
+
+      if (!trainMode.equals("3")) {
+        for (int i = 0; i < feat_str_j2.length; i++) {
+          feat_info = feat_str_j2[i].split("[:=]");
+
+          if (feat_diff.containsKey(feat_info[0]))
+            feat_diff.put( feat_info[0],
+                Double.toString(Double.parseDouble(feat_diff.get(feat_info[0]))-Double.parseDouble(feat_info[1])) );
+          else //only fired in the cand 2
+            feat_diff.put( feat_info[0], Double.toString(-1.0*Double.parseDouble(feat_info[1])));
+        }
+
+        for (String id: feat_diff.keySet()) {
+          featDiff += id + ":" + feat_diff.get(id) + " ";
+          neg_featDiff += id + ":" + -1.0*Double.parseDouble(feat_diff.get(id)) + " ";
+        }
+
+      } else {
+        int new_feat_id = 0;
+
+        for (int i = 0; i < feat_str_j2.length; i++) {
+          feat_info = feat_str_j2[i].split(":");
+          new_feat_id = Integer.parseInt(feat_info[0]) - regParamDim; // for mode 3, re-index
+          // the sparse feature
+          // to make it start from 1, so as to match
+          // the lambda vector
+
+          // only cares about sparse features
+          if (feat_diff.containsKey(feat_info[0]) && new_feat_id >= 1) //overlapping features
+            feat_diff.put(
+                feat_info[0],
+                Double.toString(Double.parseDouble(feat_diff.get(feat_info[0]))
+                    - Double.parseDouble(feat_info[1])));
+          else
+            // only firing in cand 2
+            feat_diff.put(feat_info[0],
+                Double.toString(-1.0 * Double.parseDouble(feat_info[1])));
+
+          for (String id: feat_diff.keySet()) {
+            new_feat_id = Integer.parseInt(id) - regParamDim;
+            if (new_feat_id >= 1) {
+              featDiff += new_feat_id + ":" + feat_diff.get(id) + " ";
+              neg_featDiff += new_feat_id + ":" + -1.0 * Double.parseDouble(feat_diff.get(id))
+                  + " ";
+            }
+          }
+        }
+      }
+
+      featDiff += label;
+      neg_featDiff += -label;
+
+      // System.out.println(featDiff);
+
+      // System.out.println(featDiff + " | " + candScore.get(j1Cand) + " " +
+      // candScore.get(j2Cand));
+      // System.out.println(neg_featDiff + " | " + acceptedPair.get(key));
+
+      sampleVec.add(featDiff);
+      sampleVec.add(neg_featDiff);
+    }
+
+    return sampleVec;
+  }
+
+  /*
+   * As Sampler(), for the candidates of the pool, returning the samples as rows of sampleWidth
+   * values: the label, then the differences between the features of the two candidates.
+   */
+  private float[] poolSampler(int sentId, Random randgen) {
+    int[] window = pool.window(sentId, firstIt);
+    float[] feats = pool.features(sentId);
+    int[] stats = pool.stats(sentId);
+    int numStats = pool.numStats();
+
+    double[] candScore = new double[window.length];
+    int[] statVal = new int[numStats];
+    for (int i = 0; i < window.length; i++) {
+      System.arraycopy(stats, window[i] * numStats, statVal, 0, numStats);
+      candScore[i] = evalMetric.score(statVal);
+    }
+
+    List<int[]> pairs = selectPairs(candScore, randgen);
+    float[] rows = new float[2 * pairs.size() * sampleWidth];
+    int row = 0;
+    for (int[] pair : pairs) {
+      int label;
+      if (evalMetric.getToBeMinimized()) // if smaller metric score is better(like TER)
+        label = (candScore[pair[0]] - candScore[pair[1]]) < 0 ? 1 : -1;
+      else
+        // like BLEU
+        label = (candScore[pair[0]] - candScore[pair[1]]) > 0 ? 1 : -1;
+
+      int j1 = window[pair[0]] * paramDim;
+      int j2 = window[pair[1]] * paramDim;
+      int neg = row + sampleWidth;
+      rows[row] = label;
+      rows[neg] = -label;
+      for (int f = 0; f < paramDim; f++) {
+        float diff = feats[j1 + f] - feats[j2 + f];
+        rows[row + 1 + f] = diff;
+        rows[neg + 1 + f] = -diff;
+      }
+      row = neg + sampleWidth;
+    }
+
+    return rows;
+  }
+
+  /*
+   * Converts dense samples to the strings that classifiers take, listing the features whose values
+   * differ between the two candidates by their indices.
+   */
+  private Vector<String> toStrings(float[] rows) {
+    Vector<String> sampleVec = new Vector<String>();
+    StringBuilder sample = new StringBuilder();
+    for (int row = 0; row < rows.length; row += sampleWidth) {
+      sample.setLength(0);
+      for (int f = 1; f < sampleWidth; f++)
+        if (rows[row + f] != 0.0f)
+          sample.append(f).append(':').append(rows[row + f]).append(' ');
+      sample.append((int) rows[row]);
+      sampleVec.add(sample.toString());
+    }
+    return sampleVec;
+  }
+
+  /*
+   * Samples pairs of candidates, given their metric scores: the pairs are drawn at random (Tau of
+   * them, or all pairs if there are fewer), accepted if their scores differ enough, and the Xi
+   * pairs with the largest differences are returned as {j1, j2}, without symmetric duplicates.
+   */
+  private List<int[]> selectPairs(double[] candScore, Random randgen) {
+    int candCount = candScore.length;
 
     // start to sample
     double scoreDiff;
@@ -268,11 +598,11 @@ public class Optimizer {
           j2 = randgen.nextInt(candCount);
 
         // accept or not?
-        scoreDiff = Math.abs(candScore.get(candMap.get(j1)) - candScore.get(candMap.get(j2)));
+        scoreDiff = Math.abs(candScore[j1] - candScore[j2]);
         probAccept = Alpha(scoreDiff);
         
-//        System.err.println("Diff: " + scoreDiff + " = " + candScore.get(candMap.get(j1)) + " - " 
-//            + candScore.get(candMap.get(j2)));
+//        System.err.println("Diff: " + scoreDiff + " = " + candScore[j1] + " - " 
+//            + candScore[j2]);
 
         accept = randgen.nextDouble() <= probAccept ? true : false;
 
@@ -283,7 +613,7 @@ public class Optimizer {
         for (int j = 0; j < candCount; j++) {
           if (j != i) {
             // accept or not?
-            scoreDiff = Math.abs(candScore.get(candMap.get(i)) - candScore.get(candMap.get(j)));
+            scoreDiff = Math.abs(candScore[i] - candScore[j]);
             probAccept = Alpha(scoreDiff);
 
             accept = randgen.nextDouble() <= probAccept ? true : false;
@@ -302,12 +632,9 @@ public class Optimizer {
     TreeMap<String, Double> acceptedPairSort = new TreeMap<String, Double>(comp);
     acceptedPairSort.putAll(acceptedPair);
 
+    List<int[]> pairs = new ArrayList<int[]>();
     int topCount = 0;
-    int label;
     String[] pair_str;
-    String[] feat_str_j1, feat_str_j2;
-    String j1Cand, j2Cand;
-    String featDiff, neg_featDiff;
     HashSet<String> added = new HashSet<String>(); // to avoid symmetric duplicate
 
     for (String key : acceptedPairSort.keySet()) {
@@ -317,90 +644,9 @@ public class Optimizer {
       // System.out.println(pair_str[0]+" "+pair_str[1]+" "+acceptedPair.get(key));
 
       if (!added.contains(key)) {
-        j1Cand = candMap.get(Integer.parseInt(pair_str[0]));
-        j2Cand = candMap.get(Integer.parseInt(pair_str[1]));
-
-        if (evalMetric.getToBeMinimized()) // if smaller metric score is better(like TER)
-          label = (candScore.get(j1Cand) - candScore.get(j2Cand)) < 0 ? 1 : -1;
-        else
-          // like BLEU
-          label = (candScore.get(j1Cand) - candScore.get(j2Cand)) > 0 ? 1 : -1;
+        pairs.add(new int[] { Integer.parseInt(pair_str[0]), Integer.parseInt(pair_str[1]) });
 
-        feat_str_j1 = feat_hash[sentId].get(j1Cand).split("\\s+");
-        feat_str_j2 = feat_hash[sentId].get(j2Cand).split("\\s+");
-
-        featDiff = "";
-        neg_featDiff = "";
-
-        HashMap<String, String> feat_diff = new HashMap<String, String>();
-        String[] feat_info;
-
-        for (int i = 0; i < feat_str_j1.length; i++) {
-          feat_info = feat_str_j1[i].split("[:=]");
-          feat_diff.put(feat_info[0], feat_info[1]);
-        }
-
-        if (!trainMode.equals("3")) {
-          for (int i = 0; i < feat_str_j2.length; i++) {
-            feat_info = feat_str_j2[i].split("[:=]");
-
-            if (feat_diff.containsKey(feat_info[0]))
-              feat_diff.put( feat_info[0],
-                  Double.toString(Double.parseDouble(feat_diff.get(feat_info[0]))-Double.parseDouble(feat_info[1])) );
-            else //only fired in the cand 2
-              feat_diff.put( feat_info[0], Double.toString(-1.0*Double.parseDouble(feat_info[1])));
-          }
-
-          for (String id: feat_diff.keySet()) {
-            featDiff += id + ":" + feat_diff.get(id) + " ";
-            neg_featDiff += id + ":" + -1.0*Double.parseDouble(feat_diff.get(id)) + " ";
-          }
-
-        } else {
-          int new_feat_id = 0;
-
-          for (int i = 0; i < feat_str_j2.length; i++) {
-            feat_info = feat_str_j2[i].split(":");
-            new_feat_id = Integer.parseInt(feat_info[0]) - regParamDim; // for mode 3, re-index
-            // the sparse feature
-            // to make it start from 1, so as to match
-            // the lambda vector
-
-            // only cares about sparse features
-            if (feat_diff.containsKey(feat_info[0]) && new_feat_id >= 1) //overlapping features
-              feat_diff.put(
-                  feat_info[0],
-                  Double.toString(Double.parseDouble(feat_diff.get(feat_info[0]))
-                      - Double.parseDouble(feat_info[1])));
-            else
-              // only firing in cand 2
-              feat_diff.put(feat_info[0],
-                  Double.toString(-1.0 * Double.parseDouble(feat_info[1])));
-
-            for (String id: feat_diff.keySet()) {
-              new_feat_id = Integer.parseInt(id) - regParamDim;
-              if (new_feat_id >= 1) {
-                featDiff += new_feat_id + ":" + feat_diff.get(id) + " ";
-                neg_featDiff += new_feat_id + ":" + -1.0 * Double.parseDouble(feat_diff.get(id))
-                    + " ";
-              }
-            }
-          }
-        }
-
-        featDiff += label;
-        neg_featDiff += -label;
-
-        // System.out.println(featDiff);
-
-        // System.out.println(featDiff + " | " + candScore.get(j1Cand) + " " +
-        // candScore.get(j2Cand));
-        // System.out.println(neg_featDiff + " | " + acceptedPair.get(key));
-
-        sampleVec.add(featDiff);
-        sampleVec.add(neg_featDiff);
-
-        // both (j1,j2) and (j2,j1) have been added to training set
+        // both (j1,j2) and (j2,j1) will be added to training set
         added.add(key);
         added.add(pair_str[1] + " " + pair_str[0]);
 
@@ -410,7 +656,7 @@ public class Optimizer {
 
     // System.out.println("Selected top "+topCount+ "pairs for training");
 
-    return sampleVec;
+    return pairs;
   }
 
   private double Alpha(double x) {
@@ -419,8 +665,8 @@ public class Optimizer {
   }
 
   // compute *sentence-level* metric score
-  private HashMap<String, Double> compute_Score(int sentId, String[] cands) {
-    HashMap<String, Double> candScore = new HashMap<String, Double>();
+  private double[] compute_Score(int sentId, String[] cands) {
+    double[] candScore = new double[cands.length];
     String statString;
     String[] statVal_str;
     int[] statVal = new int[evalMetric.get_suffStatsCount()];
@@ -435,7 +681,7 @@ public class Optimizer {
 
 //      System.err.println("Score: " + evalMetric.score(statVal));
       
-      candScore.put(cands[i], evalMetric.score(statVal));
+      candScore[i] = evalMetric.score(statVal);
     }
 
     return candScore;
@@ -538,12 +784,16 @@ public class Optimizer {
   private double[] normalizationOptions;
   private HashMap<String, String>[] feat_hash;
   private HashMap<String, String>[] stats_hash;
-  private Random randgen;
+  private CandidatePool pool; // used instead of the hash tables if not null
+  private int firstIt; // the first iteration whose candidates in the pool are used
+  private long seed;
+  private int numThreads = 1;
   private int paramDim; // this should be the dimension of parameters that are TRAINABLE
   // mode 1: paramDim = regular feat num
   // mode 2: paramDim = regular feat num + disc feat num
   // mode 3: paramDim = disc feat num
   // mode 4: paramDim = regular feat num + 1
+  private int sampleWidth; // values in each dense sample of the pool: the label, then paramDim feats
   private int regParamDim; // sparse feat dim - only used for mode 3
   private int sentNum;
   private String trainMode; // training mode
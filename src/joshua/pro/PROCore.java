@@ -17,6 +17,7 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,6 +31,10 @@ import java.util.zip.GZIPOutputStream;
 
 import joshua.decoder.Decoder;
 import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.Translation;
+import joshua.decoder.Translations;
+import joshua.decoder.ff.FeatureVector;
+import joshua.decoder.io.TranslationRequest;
 import joshua.metrics.EvaluationMetric;
 import joshua.util.StreamGobbler;
 import joshua.corpus.Vocabulary;
@@ -98,6 +103,15 @@ public class PROCore {
 
   private int numParamsInFile; // = THE NON-EMPTY LINE NUM IN THE PARAMS CONFIGURATION FILE - 1
 
+  private String[] paramNames;
+  // feature names, indexed from 1 (kept here since an embedded decoder may reset the vocabulary)
+
+  private HashMap<String, Integer> paramIndex;
+  // the index of each feature name in paramNames
+
+  private HashSet<String> unknownFeatures = new HashSet<String>();
+  // labeled features output by the decoder that aren't in the parameter file (see unknownFeature)
+
   private String discDefFile; // SPARSE(DISCRIMINATIVE) FEATURES DEF FILE
 
   private double[] sparseFeatWeights; // SPARSE FEATURE WEIGHTS
@@ -146,6 +160,9 @@ public class PROCore {
   private Decoder myDecoder;
   // COMMENT OUT if decoder is not Joshua
 
+  private CandidatePool candidatePool;
+  // the candidates output by myDecoder in all iterations, if it is used
+
   private String decoderCommand;
   // the command that runs the decoder; read from decoderCommandFileName
 
@@ -298,6 +315,8 @@ public class PROCore {
     numParamsInFile = countNonEmptyLines(paramsFileName) - 1;
 
     // START TO READ IN PARAMETER DEFINITION AND INITIALIZATION INFO
+    paramNames = new String[1 + numParamsInFile];
+    paramIndex = new HashMap<String, Integer>();
     try {
       // read parameter names
       BufferedReader inFile_names = new BufferedReader(new FileReader(paramsFileName));
@@ -310,9 +329,8 @@ public class PROCore {
           }
 
           // SAVE THE PARAMETER NAMES
-//          String paramName = (line.substring(0, line.indexOf("|||"))).trim();
-//          int id = Vocabulary.id(paramName);
-//          System.err.println(String.format("VOCAB(%s) = %d", paramName, id));
+          paramNames[c] = (line.substring(0, line.indexOf("|||"))).trim();
+          paramIndex.put(paramNames[c], c);
         }
       } else if (trainingMode.equals("2") || trainingMode.equals("3") || trainingMode.equals("4")) {
         for (int c = 1; c <= numParamsInFile; ++c) // REGULAR FEATURES + DISC
@@ -323,7 +341,9 @@ public class PROCore {
           }
 
           // SAVE THE PARAMETER NAMES
-          Vocabulary.id((line.substring(0, line.indexOf("|||"))).trim());
+          paramNames[c] = (line.substring(0, line.indexOf("|||"))).trim();
+          paramIndex.put(paramNames[c], c);
+          Vocabulary.id(paramNames[c]);
 
           if (c == numParamsInFile) // READ THE DISC DEF FILE
           {
@@ -453,7 +473,7 @@ public class PROCore {
       println("Number of features: " + numParams, 1);
       print("Feature names: {", 1);
       for (int c = 1; c <= numParamsInFile; ++c) {
-        print("\"" + Vocabulary.word(c) + "\"", 1);
+        print("\"" + paramNames[c] + "\"", 1);
         if (c < numParams)
           print(",", 1);
       }
@@ -493,7 +513,7 @@ public class PROCore {
       } else if (normalizationOptions[0] == 1) {
         println(
             "weights will be scaled so that the \""
-                + Vocabulary.word((int) normalizationOptions[1])
+                + paramNames[(int) normalizationOptions[1]]
                 + "\" weight has an absolute value of " + normalizationOptions[2] + ".", 1);
       } else if (normalizationOptions[0] == 2) {
         println("weights will be scaled so that the maximum absolute value is "
@@ -521,10 +541,33 @@ public class PROCore {
 
     // BY DEFAULT, LOAD JOSHUA DECODER
     if (decoderCommand == null && fakeFileNameTemplate == null) {
+      if (sourceFileName == null) {
+        println("A source file (-s) is needed to decode with the embedded Joshua decoder.");
+        System.exit(10);
+      }
+      if (!trainingMode.equals("1") || !nbestFormat.equals("dense")) {
+        println("The embedded Joshua decoder can only be used with dense features "
+            + "(training mode 1).");
+        System.exit(10);
+      }
+
       println("Loading Joshua decoder...", 1);
+      try {
+        joshuaConfiguration.readConfigFile(decoderConfigFileName + ".PRO.orig");
+      } catch (IOException e) {
+        System.err.println("IOException in PROCore.initialize(int): " + e.getMessage());
+        System.exit(99902);
+      }
+      // the n-best lists are read from the decoder's output, so it must be in the usual format
+      joshuaConfiguration.topN = sizeOfNBest;
+      joshuaConfiguration.use_unique_nbest = true;
+      joshuaConfiguration.outputFormat = "%i ||| %s ||| %f ||| %c";
+      joshuaConfiguration.sanityCheck();
       myDecoder = new Decoder(joshuaConfiguration, decoderConfigFileName + ".PRO.orig");
       println("...finished loading @ " + (new Date()), 1);
       println("");
+
+      candidatePool = new CandidatePool(numSentences, numParams, suffStatsCount);
     } else {
       myDecoder = null;
     }
@@ -685,7 +728,7 @@ public class PROCore {
     double[][][] featVal_array = new double[1 + numParams][][];
     // indexed by [param][sentence][candidate]
     featVal_array[0] = null; // param indexing starts at 1
-    for (int c = 1; c <= numParams; ++c) {
+    for (int c = 1; c <= numParams && candidatePool == null; ++c) {
       featVal_array[c] = new double[numSentences][];
       for (int i = 0; i < numSentences; ++i) {
         featVal_array[c][i] = new double[maxIndex[i] + 1];
@@ -727,27 +770,18 @@ public class PROCore {
         println("Redecoding using weight vector " + lambdaToString(lambda), 1);
       }
 
-      // GENERATE THE N-BEST FILE AFTER DECODING
-      String[] decRunResult = run_decoder(iteration); // iteration passed in case fake decoder will
-                                                      // be used
-      // [0] name of file to be processed
-      // [1] indicates how the output file was obtained:
-      // 1: external decoder
-      // 2: fake decoder
-      // 3: internal decoder
+      // YOU CAN CONSIDER ALL CANDIDATES FROM ITER 1, OR FROM ITER (iteration-prevIts) TO CURRENT
+      // ITERATION
+      int firstIt = Math.max(1, iteration - prevIts);
+      // i.e. only process candidates from the current iteration and candidates
+      // from up to prevIts previous iterations.
 
-      if (!decRunResult[1].equals("2")) {
-        println("...finished decoding @ " + (new Date()), 1);
+      if (candidatePool != null) {
+        // THE EMBEDDED DECODER'S CANDIDATES GO STRAIGHT INTO THE POOL
+        decodeIntoPool(iteration, firstIt);
+      } else {
+        decodeToTempFiles(iteration);
       }
-      // N-BEST WRITTEN TO DISK
-
-      checkFile(decRunResult[0]);
-
-      // --------------- END OF DECODING -----------------
-
-      println("Producing temp files for iteration " + iteration, 3);
-
-      produceTempFiles(decRunResult[0], iteration);
 
       // SAVE INTERMEDIDATE OUTPUT FILES
       // SAVE joshua.config.PRO.it?
@@ -764,30 +798,6 @@ public class PROCore {
           }
       }
 
-      // SAVE output.nest.PRO.it?
-      if (saveInterFiles == 2 || saveInterFiles == 3) { // make copy of intermediate decoder output
-                                                        // file...
-
-        if (!decRunResult[1].equals("2")) { // ...but only if no fake decoder
-          if (!decRunResult[0].endsWith(".gz")) {
-            if (!copyFile(decRunResult[0], decRunResult[0] + ".PRO.it" + iteration)) {
-              println("Warning: attempt to make copy of decoder output file (to create"
-                  + decRunResult[0] + ".PRO.it" + iteration + ") was unsuccessful!", 1);
-            }
-          } else {
-            String prefix = decRunResult[0].substring(0, decRunResult[0].length() - 3);
-            if (!copyFile(prefix + ".gz", prefix + ".PRO.it" + iteration + ".gz")) {
-              println("Warning: attempt to make copy of decoder output file (to create" + prefix
-                  + ".PRO.it" + iteration + ".gz" + ") was unsuccessful!", 1);
-            }
-          }
-
-          if (compressFiles == 1 && !decRunResult[0].endsWith(".gz")) {
-            gzipFile(decRunResult[0] + ".PRO.it" + iteration);
-          }
-        } // if (!fake)
-      }
-
       // ------------- END OF SAVING .PRO.it? FILES ---------------
 
       int[] candCount = new int[numSentences];
@@ -855,506 +865,399 @@ public class PROCore {
       // decoder; the "score" in initialScore refers to that
       // assigned by the evaluation metric)
 
-      // YOU CAN CONSIDER ALL CANDIDATES FROM ITER 1, OR FROM ITER (iteration-prevIts) TO CURRENT
-      // ITERATION
-      int firstIt = Math.max(1, iteration - prevIts);
-      // i.e. only process candidates from the current iteration and candidates
-      // from up to prevIts previous iterations.
-      println("Reading candidate translations from iterations " + firstIt + "-" + iteration, 1);
-      println("(and computing " + metricName
-          + " sufficient statistics for previously unseen candidates)", 1);
-      print("  Progress: ");
-
       int[] newCandidatesAdded = new int[1 + iteration];
       for (int it = 1; it <= iteration; ++it) {
         newCandidatesAdded[it] = 0;
       }
 
-      try {
-
-        // READ IN TEMP FILES FROM ALL PAST ITERATIONS
-        // 3 TYPES OF TEMP FILES:
-        // 1. OUTPUT HYPO AT ITER i
-        // 2. FEATURE VALUE OF EACH HYPO AT ITER i
-        // 3. SUFF STATS OF EACH HYPO AT ITER i
-
-        // each inFile corresponds to the output of an iteration
-        // (index 0 is not used; no corresponding index for the current iteration)
-        BufferedReader[] inFile_sents = new BufferedReader[iteration];
-        BufferedReader[] inFile_feats = new BufferedReader[iteration];
-        BufferedReader[] inFile_stats = new BufferedReader[iteration];
-
-        // TEMP FILE(ARRAY) FOR PREVIOUS ITERATIONS
-        for (int it = firstIt; it < iteration; ++it) {
-          InputStream inStream_sents, inStream_feats, inStream_stats;
-          if (compressFiles == 0) {
-            inStream_sents = new FileInputStream(tmpDirPrefix + "temp.sents.it" + it);
-            inStream_feats = new FileInputStream(tmpDirPrefix + "temp.feats.it" + it);
-            inStream_stats = new FileInputStream(tmpDirPrefix + "temp.stats.it" + it);
-          } else {
-            inStream_sents = new GZIPInputStream(new FileInputStream(tmpDirPrefix + "temp.sents.it"
-                + it + ".gz"));
-            inStream_feats = new GZIPInputStream(new FileInputStream(tmpDirPrefix + "temp.feats.it"
-                + it + ".gz"));
-            inStream_stats = new GZIPInputStream(new FileInputStream(tmpDirPrefix + "temp.stats.it"
-                + it + ".gz"));
-          }
-
-          inFile_sents[it] = new BufferedReader(new InputStreamReader(inStream_sents, "utf8"));
-          inFile_feats[it] = new BufferedReader(new InputStreamReader(inStream_feats, "utf8"));
-          inFile_stats[it] = new BufferedReader(new InputStreamReader(inStream_stats, "utf8"));
+      if (candidatePool != null) {
+        int totalCandidateCount = 0;
+        for (int i = 0; i < numSentences; ++i) {
+          totalCandidateCount += candidatePool.window(i, firstIt).length;
+          for (int it = firstIt; it <= iteration; ++it)
+            newCandidatesAdded[it] += candidatePool.countAdded(i, it, firstIt);
         }
 
-        InputStream inStream_sentsCurrIt, inStream_featsCurrIt, inStream_statsCurrIt;
-        // TEMP FILE FOR CURRENT ITERATION!
-        if (compressFiles == 0) {
-          inStream_sentsCurrIt = new FileInputStream(tmpDirPrefix + "temp.sents.it" + iteration);
-          inStream_featsCurrIt = new FileInputStream(tmpDirPrefix + "temp.feats.it" + iteration);
-        } else {
-          inStream_sentsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix
-              + "temp.sents.it" + iteration + ".gz"));
-          inStream_featsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix
-              + "temp.feats.it" + iteration + ".gz"));
-        }
-
-        BufferedReader inFile_sentsCurrIt = new BufferedReader(new InputStreamReader(
-            inStream_sentsCurrIt, "utf8"));
-        BufferedReader inFile_featsCurrIt = new BufferedReader(new InputStreamReader(
-            inStream_featsCurrIt, "utf8"));
-
-        BufferedReader inFile_statsCurrIt = null; // will only be used if statsCurrIt_exists below
-                                                  // is set to true
-        PrintWriter outFile_statsCurrIt = null; // will only be used if statsCurrIt_exists below is
-                                                // set to false
-
-        // JUST CHECK IF temp.stat.it.iteration EXISTS
-        boolean statsCurrIt_exists = false;
-
-        if (fileExists(tmpDirPrefix + "temp.stats.it" + iteration)) {
-          inStream_statsCurrIt = new FileInputStream(tmpDirPrefix + "temp.stats.it" + iteration);
-          inFile_statsCurrIt = new BufferedReader(new InputStreamReader(inStream_statsCurrIt,
-              "utf8"));
-          statsCurrIt_exists = true;
-          copyFile(tmpDirPrefix + "temp.stats.it" + iteration, tmpDirPrefix + "temp.stats.it"
-              + iteration + ".copy");
-        } else if (fileExists(tmpDirPrefix + "temp.stats.it" + iteration + ".gz")) {
-          inStream_statsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix
-              + "temp.stats.it" + iteration + ".gz"));
-          inFile_statsCurrIt = new BufferedReader(new InputStreamReader(inStream_statsCurrIt,
-              "utf8"));
-          statsCurrIt_exists = true;
-          copyFile(tmpDirPrefix + "temp.stats.it" + iteration + ".gz", tmpDirPrefix
-              + "temp.stats.it" + iteration + ".copy.gz");
-        } else {
-          outFile_statsCurrIt = new PrintWriter(tmpDirPrefix + "temp.stats.it" + iteration);
-        }
-
-        // OUTPUT THE 4^TH TEMP FILE: *.temp.stats.merged
-        PrintWriter outFile_statsMerged = new PrintWriter(tmpDirPrefix + "temp.stats.merged");
-        // write sufficient statistics from all the sentences
-        // from the output files into a single file
-        PrintWriter outFile_statsMergedKnown = new PrintWriter(tmpDirPrefix
-            + "temp.stats.mergedKnown");
-        // write sufficient statistics from all the sentences
-        // from the output files into a single file
-
-        // OUTPUT THE 5^TH 6^TH TEMP FILE, BUT WILL BE DELETED AT THE END OF THE FUNCTION
-        FileOutputStream outStream_unknownCands = new FileOutputStream(tmpDirPrefix
-            + "temp.currIt.unknownCands", false);
-        OutputStreamWriter outStreamWriter_unknownCands = new OutputStreamWriter(
-            outStream_unknownCands, "utf8");
-        BufferedWriter outFile_unknownCands = new BufferedWriter(outStreamWriter_unknownCands);
-
-        PrintWriter outFile_unknownIndices = new PrintWriter(tmpDirPrefix
-            + "temp.currIt.unknownIndices");
-
-        String sents_str, feats_str, stats_str;
-
-        // BUG: this assumes a candidate string cannot be produced for two
-        // different source sentences, which is not necessarily true
-        // (It's not actually a bug, but only because existingCandStats gets
-        // cleared before moving to the next source sentence.)
-        // FIX: should be made an array, indexed by i
-        HashMap<String, String> existingCandStats = new HashMap<String, String>();
-        // VERY IMPORTANT:
-        // A CANDIDATE X MAY APPEARED IN ITER 1, ITER 3
-        // BUT IF THE USER SPECIFIED TO CONSIDER ITERATIONS FROM ONLY ITER 2, THEN
-        // X IS NOT A "REPEATED" CANDIDATE IN ITER 3. THEREFORE WE WANT TO KEEP THE
-        // SUFF STATS FOR EACH CANDIDATE(TO SAVE COMPUTATION IN THE FUTURE)
-
-        // Stores precalculated sufficient statistics for candidates, in case
-        // the same candidate is seen again. (SS stored as a String.)
-        // Q: Why do we care? If we see the same candidate again, aren't we going
-        // to ignore it? So, why do we care about the SS of this repeat candidate?
-        // A: A "repeat" candidate may not be a repeat candidate in later
-        // iterations if the user specifies a value for prevMERTIterations
-        // that causes MERT to skip candidates from early iterations.
-
-        double[] currFeatVal = new double[1 + numParams];
-        String[] featVal_str;
+        println("Processed " + totalCandidateCount + " distinct candidates " + "(about "
+            + totalCandidateCount / numSentences + " per sentence):", 1);
+        for (int it = firstIt; it <= iteration; ++it) {
+          println("newCandidatesAdded[it=" + it + "] = " + newCandidatesAdded[it] + " (about "
+              + newCandidatesAdded[it] / numSentences + " per sentence)", 1);
+        }
 
-        int totalCandidateCount = 0;
+        println("", 1);
+      } else {
+        readTempFiles(iteration, firstIt, maxIndex, featVal_array, feat_hash, stats_hash,
+            candCount, lastUsedIndex, initialLambda, best1Score, best1Cand_suffStats,
+            newCandidatesAdded);
+      }
 
-        // NEW CANDIDATE SIZE FOR EACH SENTENCE
-        int[] sizeUnknown_currIt = new int[numSentences];
+      // N-BEST LIST CONVERGE
+      if (newCandidatesAdded[iteration] == 0) {
+        if (!oneModificationPerIteration) {
+          println("No new candidates added in this iteration; exiting PRO.", 1);
+          println("", 1);
+          println("---  PRO iteration #" + iteration + " ending @ " + (new Date()) + "  ---", 1);
+          println("", 1);
+          return null; // THIS MEANS THAT THE OLD VALUES SHOULD BE KEPT BY THE CALLER
+        } else {
+          println("Note: No new candidates added in this iteration.", 1);
+        }
+      }
 
-        for (int i = 0; i < numSentences; ++i) {
+      // FOR MODE 2&3: BOTH INITIAL/FINAL LAMBDA INCLUDE REGULAR+SPARSE FEATURE WEIGHTS(REGULAR
+      // FEATURE WEIGHTS NOT UPDATED IN MODE 3)
+      // FOR MODE 1&4: ONLY REGULAR FEATURE WEIGHTS ARE INCLUDED AND UPDATED
+      // THIS NEEDS TO BE HANDLED BY Optimizer, AND FOR MODE 3, 1-BEST IS COMPUTED ONLY ACCORDING TO
+      // DISC FEATURE WEIGHTS
 
-          for (int j = 1; j <= initsPerIt; ++j) {
-            best1Score[j][i] = NegInf; // 1-BEST SCORE FOR EACH SENTENCE AND FOR EACH CANDIDATE
-                                       // WEIGHT VECTOR
-          }
+      /*
+       * for( int v=1; v<initialLambda[1].length; v++ ) System.out.print(initialLambda[1][v]+" ");
+       * System.exit(0);
+       */
 
-          // PROCESS CANDIDATES FOR PREVIOUS ITERATIONS
-          // LOW EFFICIENCY? FOR EACH ITERATION, IT READS IN ALL PREVIOUS ITERATION OUTPUTS
-          // THEREFORE A LOT OF OVERLAPPING JOBS
-          // THIS IS AN EASY IMPLEMENTATION TO DEAL WITH THE SITUATION IN WHICH USER ONLY SPECIFIED
-          // "prevIt" AND HOPES TO CONSIDER ONLY THE PREVIOUS prevIt
-          // ITERATIONS, THEN FOR EACH ITERATION THE EXISTING CANDADITES WILL BE DIFFERENT
-          for (int it = firstIt; it < iteration; ++it) {
-            // Why up to but *excluding* iteration?
-            // Because the last iteration is handled a little differently, since
-            // the SS must be claculated (and the corresponding file created),
-            // which is not true for previous iterations.
-
-            for (int n = 0; n <= sizeOfNBest; ++n) {
-              // NOTE THAT IN ALL temp FILES, "||||||" IS A SEPARATOR BETWEEN 2 N-BEST LISTS
-
-              // Why up to and *including* sizeOfNBest?
-              // So that it would read the "||||||" separator even if there is
-              // a complete list of sizeOfNBest candidates.
-
-              // for the nth candidate for the ith sentence, read the sentence, feature values,
-              // and sufficient statistics from the various temp files
-
-              // READ IN ONE LINE OF temp.sent, temp.feat, temp.stats FROM ITERATION it
-              sents_str = inFile_sents[it].readLine();
-              feats_str = inFile_feats[it].readLine();
-              stats_str = inFile_stats[it].readLine();
-
-              if (sents_str.equals("||||||")) {
-                n = sizeOfNBest + 1; // MOVE ON TO THE NEXT N-BEST LIST
-              } else if (!existingCandStats.containsKey(sents_str)) // IF THIS CANDIDATE DOES NOT
-                                                                    // EXIST
-              {
-                outFile_statsMergedKnown.println(stats_str);
-
-                // SAVE FEATS & STATS
-                feat_hash[i].put(sents_str, feats_str);
-                stats_hash[i].put(sents_str, stats_str);
-
-                // EXTRACT FEATURE VALUE
-                featVal_str = feats_str.split("\\s+");
-
-                /*
-                 * Joshua now (September 2012) uses sparse features natively. We are thus
-                 * overloading the "dense" keyword here to support that format. However, this change
-                 * just maps labeled features to a dense representation; it would not efficiently
-                 * allow a true sparse feature representation similar to the other formats below.
-                 * 
-                 * "sparse" below is reserved for the sparse format Yuan originally implemented, in
-                 * which all the keys are integers (a la SVMlight).
-                 * 
-                 * The "dense" feature format supports both labeled features of the form
-                 * "key=value". These keys are mapped to dense positions based on a map that was
-                 * created when the params file was read in.
-                 */
-                if (nbestFormat.equals("dense")) // FOR MODE 1
-                {
-                  if (feats_str.indexOf('=') != -1) {
-                    for (String featurePair : featVal_str) {
-                      String[] pair = featurePair.split("=");
-                      String name = pair[0];
-                      Double value = Double.parseDouble(pair[1]);
-                      currFeatVal[Vocabulary.id(name)] = value;
-                    }
-                  } else {
-                    for (int c = 1; c <= numParams; ++c) {
-                      currFeatVal[c] = Double.parseDouble(featVal_str[c - 1]);
-                    }
-                  }
-                } else {
-                  for (int c = 1; c <= numParams; c++)
-                    currFeatVal[c] = 0.0;
-
-                  String[] feat_info;
-
-                  if (!trainingMode.equals("4")) {
-                    for (int c = 0; c < featVal_str.length; c++) {
-                      feat_info = featVal_str[c].split("[:=]");
-                      currFeatVal[Integer.parseInt(feat_info[0])] = Double
-                          .parseDouble(feat_info[1]); // INDEX STARTS FROM 1
-                    }
-                  } else // FOR MODE 4, NEED TO COMPUTE THE SUMMARY FEATURE VAL
-                  {
-                    double sumFeatVal = 0.0;
-                    int featId = 0;
-                    String updated_feat_str = "";
-
-                    for (int c = 0; c < featVal_str.length; c++) {
-                      feat_info = featVal_str[c].split("[:=]");
-                      featId = Integer.parseInt(feat_info[0]);
-
-                      if (1 <= featId && featId <= (numParamsInFile - 1)) // REGULAR FEATURE
-                      {
-                        currFeatVal[featId] = Double.parseDouble(feat_info[1]);
-                        updated_feat_str += (featId + ":" + feat_info[1] + " "); // FEATURE ID ORDER
-                                                                                 // DOESN'T MATTER
-                      } else
-                        sumFeatVal += Double.parseDouble(feat_info[1])
-                            * sparseFeatWeights[featId - numParamsInFile];
-                    }
-
-                    currFeatVal[numParamsInFile] = sumFeatVal;
-                    updated_feat_str += (numParamsInFile + ":" + sumFeatVal);
-
-                    feat_hash[i].put(sents_str, updated_feat_str); // UPDATE THE FEATURE HASH, NOW
-                                                                   // THE SPARSE FEATURES ARE
-                                                                   // TREATED AS ONE REGULAR FEATURE
-                  }
-                }
+      Vector<String> output = new Vector<String>();
+      double score = 0;
 
-                for (int j = 1; j <= initsPerIt; ++j) {
-                  double score = 0; // i.e. score assigned by decoder
+      Optimizer opt;
+      if (candidatePool != null)
+        opt = new Optimizer(seed + iteration, numSentences, output, initialLambda[1],
+            candidatePool, firstIt, score, evalMetric, Tau, Xi, metricDiff, normalizationOptions,
+            classifierAlg, classifierParams);
+      else
+        opt = new Optimizer(seed + iteration, numSentences, output, initialLambda[1], feat_hash,
+            stats_hash, score, evalMetric, Tau, Xi, metricDiff, normalizationOptions,
+            classifierAlg, classifierParams, trainingMode, numSparseParams, numParamsInFile,
+            nbestFormat);
+      opt.setNumThreads(numOptThreads);
 
-                  for (int c = 1; c <= numParams; ++c)
-                    score += initialLambda[j][c] * currFeatVal[c];
+      finalLambda[1] = opt.run_Optimizer(); // FOR MODE 3, THE REGULAR WEIGHTS ARE NOT UPDATED
 
-                  if (score > best1Score[j][i]) {
-                    best1Score[j][i] = score; // COMOPUTE 1-BEST MODEL SCORE USING j^th WEIGHT VEC
-                                              // CANDIDATE
-                    String[] tempStats = stats_str.split("\\s+");
-                    for (int s = 0; s < suffStatsCount; ++s)
-                      best1Cand_suffStats[j][i][s] = Integer.parseInt(tempStats[s]); // SUFF STAT s
-                                                                                     // OF SENT i,
-                                                                                     // WEIGHT VEC j
-                  }
-                } // for (j)
+      /*
+       * System.out.println(finalLambda[1].length); for( int i=0; i<finalLambda[1].length-1; i++ )
+       * System.out.println(finalLambda[1][i+1]);
+       */
 
-                // WRONG!!!
-                // SAVE SUFF STAT FOR ALL CANDIDATES
-                // String[] tempStats = stats_str.split("\\s+");
-                // for (int s = 0; s < suffStatsCount; ++s)
-                // allCand_suffStats[i][n][s] = Integer.parseInt(tempStats[s]);
+      for (int i = 0; i < output.size(); i++)
+        println(output.get(i));
 
-                existingCandStats.put(sents_str, stats_str);
+      // FIND OUT THE BEST WEIGHT VECTOR CANDIDATE
 
-                setFeats(featVal_array, i, lastUsedIndex, maxIndex, currFeatVal);
-                candCount[i] += 1;
+      int best_j = 1;
+      /*
+       * double bestFinalScore = finalScore[1]; for (int j = 2; j <= initsPerIt; ++j) { if
+       * (evalMetric.isBetter(finalScore[j],bestFinalScore)) { best_j = j; bestFinalScore =
+       * finalScore[j]; } }
+       * 
+       * if (initsPerIt > 1) { println("Best final lambda is lambda[j=" + best_j + "] " + "(" +
+       * metricName_display + ": " + f4.format(bestFinalScore) + ").",1); println("",1); }
+       * 
+       * FINAL_score = bestFinalScore;
+       */
 
-                newCandidatesAdded[it] += 1;
+      // CHECK IF ANY PARAMETER HAS BEEN UPDATED
+      boolean anyParamChanged = false;
+      boolean anyParamChangedSignificantly = false;
 
-              } // if unseen candidate
-            } // for (n)
-          } // for (it)
+      for (int c = 1; c <= numParams; ++c) {
+        if (finalLambda[best_j][c] != lambda[c]) {
+          anyParamChanged = true;
+        }
+        if (Math.abs(finalLambda[best_j][c] - lambda[c]) > stopSigValue) {
+          anyParamChangedSignificantly = true;
+        }
+      }
 
-          outFile_statsMergedKnown.println("||||||");
+      // System.arraycopy(finalLambda[best_j],1,lambda,1,numParams);
 
-          // ---------- END OF PROCESSING PREVIOUS ITERATIONS ----------
-          // ---------- NOW START PROCESSING NEW CANDIDATES ----------
+      println("---  PRO iteration #" + iteration + " ending @ " + (new Date()) + "  ---", 1);
+      println("", 1);
 
-          // now process the candidates of the current iteration
-          // now determine the new candidates of the current iteration
+      if (!anyParamChanged) {
+        println("No parameter value changed in this iteration; exiting PRO.", 1);
+        println("", 1);
+        break; // exit for (iteration) loop preemptively
+      }
 
-          /*
-           * remember: BufferedReader inFile_sentsCurrIt BufferedReader inFile_featsCurrIt
-           * PrintWriter outFile_statsCurrIt
-           */
+      // check if a lambda is outside its threshold range
+      for (int c = 1; c <= numParams; ++c) {
+        if (lambda[c] < minThValue[c] || lambda[c] > maxThValue[c]) {
+          println("Warning: after normalization, lambda[" + c + "]=" + f4.format(lambda[c])
+              + " is outside its critical value range.", 1);
+        }
+      }
 
-          String[] sentsCurrIt_currSrcSent = new String[sizeOfNBest + 1];
+      // was an early stopping criterion satisfied?
+      boolean critSatisfied = false;
+      if (!anyParamChangedSignificantly && stopSigValue >= 0) {
+        println("Note: No parameter value changed significantly " + "(i.e. by more than "
+            + stopSigValue + ") in this iteration.", 1);
+        critSatisfied = true;
+      }
 
-          Vector<String> unknownCands_V = new Vector<String>();
-          // which candidates (of the i'th source sentence) have not been seen before
-          // this iteration?
+      if (critSatisfied) {
+        ++earlyStop;
+        println("", 1);
+      } else {
+        earlyStop = 0;
+      }
 
-          for (int n = 0; n <= sizeOfNBest; ++n) {
-            // Why up to and *including* sizeOfNBest?
-            // So that it would read the "||||||" separator even if there is
-            // a complete list of sizeOfNBest candidates.
+      // if min number of iterations executed, investigate if early exit should happen
+      if (iteration >= minIts && earlyStop >= stopMinIts) {
+        println("Some early stopping criteria has been observed " + "in " + stopMinIts
+            + " consecutive iterations; exiting PRO.", 1);
+        println("", 1);
 
-            // for the nth candidate for the ith sentence, read the sentence,
-            // and store it in the sentsCurrIt_currSrcSent array
+        lambda = finalLambda[best_j]; // USE THE LATEST WEIGHT
+        break; // exit for (iteration) loop preemptively
+      }
 
-            sents_str = inFile_sentsCurrIt.readLine(); // READ ONE CANDIDATE FROM THE CURRENT
-                                                       // ITERATION
-            sentsCurrIt_currSrcSent[n] = sents_str; // Note: possibly "||||||"
+      // if max number of iterations executed, exit
+      if (iteration >= maxIts) {
+        println("Maximum number of PRO iterations reached; exiting PRO.", 1);
+        println("", 1);
 
-            if (sents_str.equals("||||||")) {
-              n = sizeOfNBest + 1;
-            } else if (!existingCandStats.containsKey(sents_str)) {
-              unknownCands_V.add(sents_str); // NEW CANDIDATE FROM THIS ITERATION
-              writeLine(sents_str, outFile_unknownCands);
-              outFile_unknownIndices.println(i); // INDEX OF THE NEW CANDIDATES
-              newCandidatesAdded[iteration] += 1;
-              existingCandStats.put(sents_str, "U"); // i.e. unknown
-              // we add sents_str to avoid duplicate entries in unknownCands_V
-            }
-          } // for (n)
+        lambda = finalLambda[best_j]; // USE THE LATEST WEIGHT
+        break; // exit for (iteration) loop
+      }
 
-          // ONLY COMPUTE SUFF STATS FOR NEW CANDIDATES
-          // now unknownCands_V has the candidates for which we need to calculate
-          // sufficient statistics (for the i'th source sentence)
-          int sizeUnknown = unknownCands_V.size();
-          sizeUnknown_currIt[i] = sizeUnknown;
+      // USE THE NEW WT VECTOR TO DECODE THE NEXT ITERATION(INTERPOLATION WITH PREVIOUS WT VECTOR)
+      for (int i = 1; i <= numParams; i++)
+        lambda[i] = interCoef * finalLambda[best_j][i] + (1 - interCoef) * lambda[i];
 
-          /*********************************************/
-          /*
-           * String[] unknownCands = new String[sizeUnknown]; unknownCands_V.toArray(unknownCands);
-           * int[] indices = new int[sizeUnknown]; for (int d = 0; d < sizeUnknown; ++d) {
-           * existingCandStats.remove(unknownCands[d]); // remove the (unknownCands[d],"U") entry
-           * from existingCandStats // (we had added it while constructing unknownCands_V to avoid
-           * duplicate entries) indices[d] = i; }
-           */
-          /*********************************************/
+      println("Next iteration will decode with lambda(after interpolation): "
+          + lambdaToString(lambda), 1);
+      println("", 1);
 
-          existingCandStats.clear();
+      // printMemoryUsage();
+      for (int i = 0; i < numSentences; ++i) {
+        suffStats_array[i].clear();
+      }
+      // cleanupMemory();
+      // println("",2);
 
-        } // for (i) EACH SENTENCE
+      retA[2] = 0; // i.e. this should NOT be the last iteration
+      done = true;
 
-        // ---------- END OF MERGING CANDIDATES STATS FROM PREVIOUS ITERATIONS AND FINDING NEW
-        // CANDIDATES ------------
+    } // while (!done) // NOTE: this "loop" will only be carried out once
 
-        /*
-         * int[][] newSuffStats = null; if (!statsCurrIt_exists && sizeUnknown > 0) { newSuffStats =
-         * evalMetric.suffStats(unknownCands, indices); }
-         */
+    // delete .temp.stats.merged file, since it is not needed in the next
+    // iteration (it will be recreated from scratch)
+    deleteFile(tmpDirPrefix + "temp.stats.merged");
 
-        outFile_statsMergedKnown.close();
-        outFile_unknownCands.close();
-        outFile_unknownIndices.close();
+    retA[0] = FINAL_score;
+    retA[1] = earlyStop;
+    return retA;
 
-        // WANT TO RE-OPEN ALL TEMP FILES TO GO FROM START AGAIN?
-        for (int it = firstIt; it < iteration; ++it) // PREVIOUS ITERATIONS TEMP FILES
-        {
-          inFile_sents[it].close();
-          inFile_stats[it].close();
+  } // run_single_iteration
 
-          InputStream inStream_sents, inStream_stats;
-          if (compressFiles == 0) {
-            inStream_sents = new FileInputStream(tmpDirPrefix + "temp.sents.it" + it);
-            inStream_stats = new FileInputStream(tmpDirPrefix + "temp.stats.it" + it);
-          } else {
-            inStream_sents = new GZIPInputStream(new FileInputStream(tmpDirPrefix + "temp.sents.it"
-                + it + ".gz"));
-            inStream_stats = new GZIPInputStream(new FileInputStream(tmpDirPrefix + "temp.stats.it"
-                + it + ".gz"));
-          }
+  /*
+   * Reads the candidates of iterations firstIt to iteration from the temp files, computing the
+   * sufficient statistics of those that haven't been seen before, and saves the features and
+   * statistics of each candidate in feat_hash and stats_hash.
+   */
+  private void readTempFiles(int iteration, int firstIt, int[] maxIndex,
+      double[][][] featVal_array, HashMap<String, String>[] feat_hash,
+      HashMap<String, String>[] stats_hash, int[] candCount, int[] lastUsedIndex,
+      double[][] initialLambda, double[][] best1Score, int[][][] best1Cand_suffStats,
+      int[] newCandidatesAdded) {
+    println("Reading candidate translations from iterations " + firstIt + "-" + iteration, 1);
+    println("(and computing " + metricName
+        + " sufficient statistics for previously unseen candidates)", 1);
+    print("  Progress: ");
 
-          inFile_sents[it] = new BufferedReader(new InputStreamReader(inStream_sents, "utf8"));
-          inFile_stats[it] = new BufferedReader(new InputStreamReader(inStream_stats, "utf8"));
-        }
+    try {
 
-        inFile_sentsCurrIt.close();
-        // CURRENT ITERATION TEMP FILES
+      // READ IN TEMP FILES FROM ALL PAST ITERATIONS
+      // 3 TYPES OF TEMP FILES:
+      // 1. OUTPUT HYPO AT ITER i
+      // 2. FEATURE VALUE OF EACH HYPO AT ITER i
+      // 3. SUFF STATS OF EACH HYPO AT ITER i
+
+      // each inFile corresponds to the output of an iteration
+      // (index 0 is not used; no corresponding index for the current iteration)
+      BufferedReader[] inFile_sents = new BufferedReader[iteration];
+      BufferedReader[] inFile_feats = new BufferedReader[iteration];
+      BufferedReader[] inFile_stats = new BufferedReader[iteration];
+
+      // TEMP FILE(ARRAY) FOR PREVIOUS ITERATIONS
+      for (int it = firstIt; it < iteration; ++it) {
+        InputStream inStream_sents, inStream_feats, inStream_stats;
         if (compressFiles == 0) {
-          inStream_sentsCurrIt = new FileInputStream(tmpDirPrefix + "temp.sents.it" + iteration);
+          inStream_sents = new FileInputStream(tmpDirPrefix + "temp.sents.it" + it);
+          inStream_feats = new FileInputStream(tmpDirPrefix + "temp.feats.it" + it);
+          inStream_stats = new FileInputStream(tmpDirPrefix + "temp.stats.it" + it);
         } else {
-          inStream_sentsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix
-              + "temp.sents.it" + iteration + ".gz"));
+          inStream_sents = new GZIPInputStream(new FileInputStream(tmpDirPrefix + "temp.sents.it"
+              + it + ".gz"));
+          inStream_feats = new GZIPInputStream(new FileInputStream(tmpDirPrefix + "temp.feats.it"
+              + it + ".gz"));
+          inStream_stats = new GZIPInputStream(new FileInputStream(tmpDirPrefix + "temp.stats.it"
+              + it + ".gz"));
         }
-        inFile_sentsCurrIt = new BufferedReader(new InputStreamReader(inStream_sentsCurrIt, "utf8"));
-
-        // calculate SS for unseen candidates and write them to file
-        FileInputStream inStream_statsCurrIt_unknown = null;
-        BufferedReader inFile_statsCurrIt_unknown = null;
 
-        if (!statsCurrIt_exists && newCandidatesAdded[iteration] > 0) {
-          // create the file...
-          evalMetric.createSuffStatsFile(tmpDirPrefix + "temp.currIt.unknownCands", tmpDirPrefix
-              + "temp.currIt.unknownIndices", tmpDirPrefix + "temp.stats.unknown", sizeOfNBest);
+        inFile_sents[it] = new BufferedReader(new InputStreamReader(inStream_sents, "utf8"));
+        inFile_feats[it] = new BufferedReader(new InputStreamReader(inStream_feats, "utf8"));
+        inFile_stats[it] = new BufferedReader(new InputStreamReader(inStream_stats, "utf8"));
+      }
 
-          // ...and open it
-          inStream_statsCurrIt_unknown = new FileInputStream(tmpDirPrefix + "temp.stats.unknown");
-          inFile_statsCurrIt_unknown = new BufferedReader(new InputStreamReader(
-              inStream_statsCurrIt_unknown, "utf8"));
-        }
+      InputStream inStream_sentsCurrIt, inStream_featsCurrIt, inStream_statsCurrIt;
+      // TEMP FILE FOR CURRENT ITERATION!
+      if (compressFiles == 0) {
+        inStream_sentsCurrIt = new FileInputStream(tmpDirPrefix + "temp.sents.it" + iteration);
+        inStream_featsCurrIt = new FileInputStream(tmpDirPrefix + "temp.feats.it" + iteration);
+      } else {
+        inStream_sentsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix
+            + "temp.sents.it" + iteration + ".gz"));
+        inStream_featsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix
+            + "temp.feats.it" + iteration + ".gz"));
+      }
+
+      BufferedReader inFile_sentsCurrIt = new BufferedReader(new InputStreamReader(
+          inStream_sentsCurrIt, "utf8"));
+      BufferedReader inFile_featsCurrIt = new BufferedReader(new InputStreamReader(
+          inStream_featsCurrIt, "utf8"));
+
+      BufferedReader inFile_statsCurrIt = null; // will only be used if statsCurrIt_exists below
+                                                // is set to true
+      PrintWriter outFile_statsCurrIt = null; // will only be used if statsCurrIt_exists below is
+                                              // set to false
+
+      // JUST CHECK IF temp.stat.it.iteration EXISTS
+      boolean statsCurrIt_exists = false;
+
+      if (fileExists(tmpDirPrefix + "temp.stats.it" + iteration)) {
+        inStream_statsCurrIt = new FileInputStream(tmpDirPrefix + "temp.stats.it" + iteration);
+        inFile_statsCurrIt = new BufferedReader(new InputStreamReader(inStream_statsCurrIt,
+            "utf8"));
+        statsCurrIt_exists = true;
+        copyFile(tmpDirPrefix + "temp.stats.it" + iteration, tmpDirPrefix + "temp.stats.it"
+            + iteration + ".copy");
+      } else if (fileExists(tmpDirPrefix + "temp.stats.it" + iteration + ".gz")) {
+        inStream_statsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix
+            + "temp.stats.it" + iteration + ".gz"));
+        inFile_statsCurrIt = new BufferedReader(new InputStreamReader(inStream_statsCurrIt,
+            "utf8"));
+        statsCurrIt_exists = true;
+        copyFile(tmpDirPrefix + "temp.stats.it" + iteration + ".gz", tmpDirPrefix
+            + "temp.stats.it" + iteration + ".copy.gz");
+      } else {
+        outFile_statsCurrIt = new PrintWriter(tmpDirPrefix + "temp.stats.it" + iteration);
+      }
+
+      // OUTPUT THE 4^TH TEMP FILE: *.temp.stats.merged
+      PrintWriter outFile_statsMerged = new PrintWriter(tmpDirPrefix + "temp.stats.merged");
+      // write sufficient statistics from all the sentences
+      // from the output files into a single file
+      PrintWriter outFile_statsMergedKnown = new PrintWriter(tmpDirPrefix
+          + "temp.stats.mergedKnown");
+      // write sufficient statistics from all the sentences
+      // from the output files into a single file
+
+      // OUTPUT THE 5^TH 6^TH TEMP FILE, BUT WILL BE DELETED AT THE END OF THE FUNCTION
+      FileOutputStream outStream_unknownCands = new FileOutputStream(tmpDirPrefix
+          + "temp.currIt.unknownCands", false);
+      OutputStreamWriter outStreamWriter_unknownCands = new OutputStreamWriter(
+          outStream_unknownCands, "utf8");
+      BufferedWriter outFile_unknownCands = new BufferedWriter(outStreamWriter_unknownCands);
+
+      PrintWriter outFile_unknownIndices = new PrintWriter(tmpDirPrefix
+          + "temp.currIt.unknownIndices");
+
+      String sents_str, feats_str, stats_str;
+
+      // BUG: this assumes a candidate string cannot be produced for two
+      // different source sentences, which is not necessarily true
+      // (It's not actually a bug, but only because existingCandStats gets
+      // cleared before moving to the next source sentence.)
+      // FIX: should be made an array, indexed by i
+      HashMap<String, String> existingCandStats = new HashMap<String, String>();
+      // VERY IMPORTANT:
+      // A CANDIDATE X MAY APPEARED IN ITER 1, ITER 3
+      // BUT IF THE USER SPECIFIED TO CONSIDER ITERATIONS FROM ONLY ITER 2, THEN
+      // X IS NOT A "REPEATED" CANDIDATE IN ITER 3. THEREFORE WE WANT TO KEEP THE
+      // SUFF STATS FOR EACH CANDIDATE(TO SAVE COMPUTATION IN THE FUTURE)
+
+      // Stores precalculated sufficient statistics for candidates, in case
+      // the same candidate is seen again. (SS stored as a String.)
+      // Q: Why do we care? If we see the same candidate again, aren't we going
+      // to ignore it? So, why do we care about the SS of this repeat candidate?
+      // A: A "repeat" candidate may not be a repeat candidate in later
+      // iterations if the user specifies a value for prevMERTIterations
+      // that causes MERT to skip candidates from early iterations.
+
+      double[] currFeatVal = new double[1 + numParams];
+      String[] featVal_str;
+
+      int totalCandidateCount = 0;
+
+      // NEW CANDIDATE SIZE FOR EACH SENTENCE
+      int[] sizeUnknown_currIt = new int[numSentences];
 
-        // OPEN mergedKnown file
-        // NEWLY CREATED BY THE BIG LOOP ABOVE
-        FileInputStream instream_statsMergedKnown = new FileInputStream(tmpDirPrefix
-            + "temp.stats.mergedKnown");
-        BufferedReader inFile_statsMergedKnown = new BufferedReader(new InputStreamReader(
-            instream_statsMergedKnown, "utf8"));
+      for (int i = 0; i < numSentences; ++i) {
 
-        for (int i = 0; i < numSentences; ++i) {
-          // reprocess candidates from previous iterations
-          for (int it = firstIt; it < iteration; ++it) {
-            for (int n = 0; n <= sizeOfNBest; ++n) {
-              sents_str = inFile_sents[it].readLine();
-              stats_str = inFile_stats[it].readLine();
-
-              if (sents_str.equals("||||||")) {
-                n = sizeOfNBest + 1;
-              } else if (!existingCandStats.containsKey(sents_str)) {
-                existingCandStats.put(sents_str, stats_str);
-              } // if unseen candidate
-            } // for (n)
-          } // for (it)
-
-          // copy relevant portion from mergedKnown to the merged file
-          String line_mergedKnown = inFile_statsMergedKnown.readLine();
-          while (!line_mergedKnown.equals("||||||")) {
-            outFile_statsMerged.println(line_mergedKnown);
-            line_mergedKnown = inFile_statsMergedKnown.readLine();
-          }
+        for (int j = 1; j <= initsPerIt; ++j) {
+          best1Score[j][i] = NegInf; // 1-BEST SCORE FOR EACH SENTENCE AND FOR EACH CANDIDATE
+                                     // WEIGHT VECTOR
+        }
 
-          int[] stats = new int[suffStatsCount];
+        // PROCESS CANDIDATES FOR PREVIOUS ITERATIONS
+        // LOW EFFICIENCY? FOR EACH ITERATION, IT READS IN ALL PREVIOUS ITERATION OUTPUTS
+        // THEREFORE A LOT OF OVERLAPPING JOBS
+        // THIS IS AN EASY IMPLEMENTATION TO DEAL WITH THE SITUATION IN WHICH USER ONLY SPECIFIED
+        // "prevIt" AND HOPES TO CONSIDER ONLY THE PREVIOUS prevIt
+        // ITERATIONS, THEN FOR EACH ITERATION THE EXISTING CANDADITES WILL BE DIFFERENT
+        for (int it = firstIt; it < iteration; ++it) {
+          // Why up to but *excluding* iteration?
+          // Because the last iteration is handled a little differently, since
+          // the SS must be claculated (and the corresponding file created),
+          // which is not true for previous iterations.
 
           for (int n = 0; n <= sizeOfNBest; ++n) {
-            sents_str = inFile_sentsCurrIt.readLine();
-            feats_str = inFile_featsCurrIt.readLine();
+            // NOTE THAT IN ALL temp FILES, "||||||" IS A SEPARATOR BETWEEN 2 N-BEST LISTS
 
-            if (sents_str.equals("||||||")) {
-              n = sizeOfNBest + 1;
-            } else if (!existingCandStats.containsKey(sents_str)) {
-
-              if (!statsCurrIt_exists) {
-                stats_str = inFile_statsCurrIt_unknown.readLine();
-
-                String[] temp_stats = stats_str.split("\\s+");
-                for (int s = 0; s < suffStatsCount; ++s) {
-                  stats[s] = Integer.parseInt(temp_stats[s]);
-                }
+            // Why up to and *including* sizeOfNBest?
+            // So that it would read the "||||||" separator even if there is
+            // a complete list of sizeOfNBest candidates.
 
-                outFile_statsCurrIt.println(stats_str);
-              } else {
-                stats_str = inFile_statsCurrIt.readLine();
+            // for the nth candidate for the ith sentence, read the sentence, feature values,
+            // and sufficient statistics from the various temp files
 
-                String[] temp_stats = stats_str.split("\\s+");
-                for (int s = 0; s < suffStatsCount; ++s) {
-                  stats[s] = Integer.parseInt(temp_stats[s]);
-                }
-              }
+            // READ IN ONE LINE OF temp.sent, temp.feat, temp.stats FROM ITERATION it
+            sents_str = inFile_sents[it].readLine();
+            feats_str = inFile_feats[it].readLine();
+            stats_str = inFile_stats[it].readLine();
 
-              outFile_statsMerged.println(stats_str);
+            if (sents_str.equals("||||||")) {
+              n = sizeOfNBest + 1; // MOVE ON TO THE NEXT N-BEST LIST
+            } else if (!existingCandStats.containsKey(sents_str)) // IF THIS CANDIDATE DOES NOT
+                                                                  // EXIST
+            {
+              outFile_statsMergedKnown.println(stats_str);
 
               // SAVE FEATS & STATS
-              // System.out.println(sents_str+" "+feats_str);
-
               feat_hash[i].put(sents_str, feats_str);
               stats_hash[i].put(sents_str, stats_str);
 
+              // EXTRACT FEATURE VALUE
               featVal_str = feats_str.split("\\s+");
 
               /*
-               * for (int c = 1; c <= numParams; ++c) { currFeatVal[c] =
-               * Double.parseDouble(featVal_str[c-1]); // print("fV[" + c + "]=" + currFeatVal[c] +
-               * " ",4); } // println("",4);
+               * Joshua now (September 2012) uses sparse features natively. We are thus
+               * overloading the "dense" keyword here to support that format. However, this change
+               * just maps labeled features to a dense representation; it would not efficiently
+               * allow a true sparse feature representation similar to the other formats below.
+               * 
+               * "sparse" below is reserved for the sparse format Yuan originally implemented, in
+               * which all the keys are integers (a la SVMlight).
+               * 
+               * The "dense" feature format supports both labeled features of the form
+               * "key=value". These keys are mapped to dense positions based on a map that was
+               * created when the params file was read in.
                */
-
-              if (nbestFormat.equals("dense")) {
-                if (feats_str.indexOf('=') != -1) {
-                  for (String featurePair : featVal_str) {
-                    String[] pair = featurePair.split("=");
-                    String name = pair[0];
-                    Double value = Double.parseDouble(pair[1]);
-                    currFeatVal[Vocabulary.id(name)] = value;
-                  }
-                } else {
-                  for (int c = 1; c <= numParams; ++c) {
-                    currFeatVal[c] = Double.parseDouble(featVal_str[c - 1]);
-                  }
-                }
+              if (nbestFormat.equals("dense")) // FOR MODE 1
+              {
+                feat_hash[i].put(sents_str, readDenseFeats(featVal_str, currFeatVal));
               } else {
                 for (int c = 1; c <= numParams; c++)
                   currFeatVal[c] = 0.0;
@@ -1363,11 +1266,9 @@ public class PROCore {
 
                 if (!trainingMode.equals("4")) {
                   for (int c = 0; c < featVal_str.length; c++) {
-                    feat_info = featVal_str[c].split(":");
-                    currFeatVal[Integer.parseInt(feat_info[0])] = Double.parseDouble(feat_info[1]); // INDEX
-                                                                                                    // STARTS
-                                                                                                    // FROM
-                                                                                                    // 1
+                    feat_info = featVal_str[c].split("[:=]");
+                    currFeatVal[Integer.parseInt(feat_info[0])] = Double
+                        .parseDouble(feat_info[1]); // INDEX STARTS FROM 1
                   }
                 } else // FOR MODE 4, NEED TO COMPUTE THE SUMMARY FEATURE VAL
                 {
@@ -1376,7 +1277,7 @@ public class PROCore {
                   String updated_feat_str = "";
 
                   for (int c = 0; c < featVal_str.length; c++) {
-                    feat_info = featVal_str[c].split(":");
+                    feat_info = featVal_str[c].split("[:=]");
                     featId = Integer.parseInt(feat_info[0]);
 
                     if (1 <= featId && featId <= (numParamsInFile - 1)) // REGULAR FEATURE
@@ -1391,279 +1292,402 @@ public class PROCore {
 
                   currFeatVal[numParamsInFile] = sumFeatVal;
                   updated_feat_str += (numParamsInFile + ":" + sumFeatVal);
-                  feat_hash[i].put(sents_str, updated_feat_str); // UPDATE THE FEATURE HASH, NOW THE
-                                                                 // SPARSE FEATURES ARE TREATED AS
-                                                                 // ONE REGULAR FEATURE
+
+                  feat_hash[i].put(sents_str, updated_feat_str); // UPDATE THE FEATURE HASH, NOW
+                                                                 // THE SPARSE FEATURES ARE
+                                                                 // TREATED AS ONE REGULAR FEATURE
                 }
               }
 
               for (int j = 1; j <= initsPerIt; ++j) {
                 double score = 0; // i.e. score assigned by decoder
-                for (int c = 1; c <= numParams; ++c) {
+
+                for (int c = 1; c <= numParams; ++c)
                   score += initialLambda[j][c] * currFeatVal[c];
-                }
+
                 if (score > best1Score[j][i]) {
-                  best1Score[j][i] = score;
+                  best1Score[j][i] = score; // COMOPUTE 1-BEST MODEL SCORE USING j^th WEIGHT VEC
+                                            // CANDIDATE
+                  String[] tempStats = stats_str.split("\\s+");
                   for (int s = 0; s < suffStatsCount; ++s)
-                    best1Cand_suffStats[j][i][s] = stats[s];
+                    best1Cand_suffStats[j][i][s] = Integer.parseInt(tempStats[s]); // SUFF STAT s
+                                                                                   // OF SENT i,
+                                                                                   // WEIGHT VEC j
                 }
               } // for (j)
 
               // WRONG!!!
               // SAVE SUFF STAT FOR ALL CANDIDATES
+              // String[] tempStats = stats_str.split("\\s+");
               // for (int s = 0; s < suffStatsCount; ++s)
-              // allCand_suffStats[i][n][s] = stats[s];
+              // allCand_suffStats[i][n][s] = Integer.parseInt(tempStats[s]);
 
               existingCandStats.put(sents_str, stats_str);
 
               setFeats(featVal_array, i, lastUsedIndex, maxIndex, currFeatVal);
               candCount[i] += 1;
 
-              // newCandidatesAdded[iteration] += 1;
-              // moved to code above detecting new candidates
-            } else {
-              if (statsCurrIt_exists)
-                inFile_statsCurrIt.readLine();
-              else {
-                // write SS to outFile_statsCurrIt
-                stats_str = existingCandStats.get(sents_str);
-                outFile_statsCurrIt.println(stats_str);
-              }
-            }
+              newCandidatesAdded[it] += 1;
 
+            } // if unseen candidate
           } // for (n)
+        } // for (it)
 
-          // now d = sizeUnknown_currIt[i] - 1
+        outFile_statsMergedKnown.println("||||||");
 
-          if (statsCurrIt_exists)
-            inFile_statsCurrIt.readLine();
-          else
-            outFile_statsCurrIt.println("||||||");
-
-          existingCandStats.clear();
-          totalCandidateCount += candCount[i];
-
-          // OUTPUT SENTENCE PROGRESS
-          if ((i + 1) % 500 == 0) {
-            print((i + 1) + "\n" + "            ", 1);
-          } else if ((i + 1) % 100 == 0) {
-            print("+", 1);
-          } else if ((i + 1) % 25 == 0) {
-            print(".", 1);
-          }
+        // ---------- END OF PROCESSING PREVIOUS ITERATIONS ----------
+        // ---------- NOW START PROCESSING NEW CANDIDATES ----------
+
+        // now process the candidates of the current iteration
+        // now determine the new candidates of the current iteration
+
+        /*
+         * remember: BufferedReader inFile_sentsCurrIt BufferedReader inFile_featsCurrIt
+         * PrintWriter outFile_statsCurrIt
+         */
 
-        } // for (i)
+        String[] sentsCurrIt_currSrcSent = new String[sizeOfNBest + 1];
+
+        Vector<String> unknownCands_V = new Vector<String>();
+        // which candidates (of the i'th source sentence) have not been seen before
+        // this iteration?
+
+        for (int n = 0; n <= sizeOfNBest; ++n) {
+          // Why up to and *including* sizeOfNBest?
+          // So that it would read the "||||||" separator even if there is
+          // a complete list of sizeOfNBest candidates.
+
+          // for the nth candidate for the ith sentence, read the sentence,
+          // and store it in the sentsCurrIt_currSrcSent array
+
+          sents_str = inFile_sentsCurrIt.readLine(); // READ ONE CANDIDATE FROM THE CURRENT
+                                                     // ITERATION
+          sentsCurrIt_currSrcSent[n] = sents_str; // Note: possibly "||||||"
+
+          if (sents_str.equals("||||||")) {
+            n = sizeOfNBest + 1;
+          } else if (!existingCandStats.containsKey(sents_str)) {
+            unknownCands_V.add(sents_str); // NEW CANDIDATE FROM THIS ITERATION
+            writeLine(sents_str, outFile_unknownCands);
+            outFile_unknownIndices.println(i); // INDEX OF THE NEW CANDIDATES
+            newCandidatesAdded[iteration] += 1;
+            existingCandStats.put(sents_str, "U"); // i.e. unknown
+            // we add sents_str to avoid duplicate entries in unknownCands_V
+          }
+        } // for (n)
 
-        outFile_statsMerged.close();
+        // ONLY COMPUTE SUFF STATS FOR NEW CANDIDATES
+        // now unknownCands_V has the candidates for which we need to calculate
+        // sufficient statistics (for the i'th source sentence)
+        int sizeUnknown = unknownCands_V.size();
+        sizeUnknown_currIt[i] = sizeUnknown;
 
-        // TESTING
+        /*********************************************/
         /*
-         * int total_sent = 0; for( int i=0; i<numSentences; i++ ) {
-         * System.out.println(feat_hash[i].size()+" "+candCount[i]); total_sent +=
-         * feat_hash[i].size(); feat_hash[i].clear(); }
-         * System.out.println("----------------total sent: "+total_sent); total_sent = 0; for( int
-         * i=0; i<numSentences; i++ ) { System.out.println(stats_hash[i].size()+" "+candCount[i]);
-         * total_sent += stats_hash[i].size(); stats_hash[i].clear(); }
-         * System.out.println("*****************total sent: "+total_sent);
+         * String[] unknownCands = new String[sizeUnknown]; unknownCands_V.toArray(unknownCands);
+         * int[] indices = new int[sizeUnknown]; for (int d = 0; d < sizeUnknown; ++d) {
+         * existingCandStats.remove(unknownCands[d]); // remove the (unknownCands[d],"U") entry
+         * from existingCandStats // (we had added it while constructing unknownCands_V to avoid
+         * duplicate entries) indices[d] = i; }
          */
+        /*********************************************/
 
-        // FINALIZING ACTIVITIES
-        println("", 1); // finish progress line
+        existingCandStats.clear();
 
-        for (int it = firstIt; it < iteration; ++it) {
-          inFile_sents[it].close();
-          inFile_feats[it].close();
-          inFile_stats[it].close();
-        }
+      } // for (i) EACH SENTENCE
 
-        inFile_sentsCurrIt.close();
-        inFile_featsCurrIt.close();
-        if (statsCurrIt_exists)
-          inFile_statsCurrIt.close();
-        else
-          outFile_statsCurrIt.close();
+      // ---------- END OF MERGING CANDIDATES STATS FROM PREVIOUS ITERATIONS AND FINDING NEW
+      // CANDIDATES ------------
 
-        if (compressFiles == 1 && !statsCurrIt_exists) {
-          gzipFile(tmpDirPrefix + "temp.stats.it" + iteration);
-        }
+      /*
+       * int[][] newSuffStats = null; if (!statsCurrIt_exists && sizeUnknown > 0) { newSuffStats =
+       * evalMetric.suffStats(unknownCands, indices); }
+       */
 
-        // CLEAR temp FILES
-        deleteFile(tmpDirPrefix + "temp.currIt.unknownCands");
-        deleteFile(tmpDirPrefix + "temp.currIt.unknownIndices");
-        deleteFile(tmpDirPrefix + "temp.stats.unknown");
-        deleteFile(tmpDirPrefix + "temp.stats.mergedKnown");
+      outFile_statsMergedKnown.close();
+      outFile_unknownCands.close();
+      outFile_unknownIndices.close();
 
-        // cleanupMemory();
+      // WANT TO RE-OPEN ALL TEMP FILES TO GO FROM START AGAIN?
+      for (int it = firstIt; it < iteration; ++it) // PREVIOUS ITERATIONS TEMP FILES
+      {
+        inFile_sents[it].close();
+        inFile_stats[it].close();
 
-        println("Processed " + totalCandidateCount + " distinct candidates " + "(about "
-            + totalCandidateCount / numSentences + " per sentence):", 1);
-        for (int it = firstIt; it <= iteration; ++it) {
-          println("newCandidatesAdded[it=" + it + "] = " + newCandidatesAdded[it] + " (about "
-              + newCandidatesAdded[it] / numSentences + " per sentence)", 1);
+        InputStream inStream_sents, inStream_stats;
+        if (compressFiles == 0) {
+          inStream_sents = new FileInputStream(tmpDirPrefix + "temp.sents.it" + it);
+          inStream_stats = new FileInputStream(tmpDirPrefix + "temp.stats.it" + it);
+        } else {
+          inStream_sents = new GZIPInputStream(new FileInputStream(tmpDirPrefix + "temp.sents.it"
+              + it + ".gz"));
+          inStream_stats = new GZIPInputStream(new FileInputStream(tmpDirPrefix + "temp.stats.it"
+              + it + ".gz"));
         }
 
-        println("", 1);
+        inFile_sents[it] = new BufferedReader(new InputStreamReader(inStream_sents, "utf8"));
+        inFile_stats[it] = new BufferedReader(new InputStreamReader(inStream_stats, "utf8"));
+      }
 
-      } catch (FileNotFoundException e) {
-        System.err.println("FileNotFoundException in PROCore.run_single_iteration(6): "
-            + e.getMessage());
-        System.exit(99901);
-      } catch (IOException e) {
-        System.err.println("IOException in PROCore.run_single_iteration(6): " + e.getMessage());
-        System.exit(99902);
+      inFile_sentsCurrIt.close();
+      // CURRENT ITERATION TEMP FILES
+      if (compressFiles == 0) {
+        inStream_sentsCurrIt = new FileInputStream(tmpDirPrefix + "temp.sents.it" + iteration);
+      } else {
+        inStream_sentsCurrIt = new GZIPInputStream(new FileInputStream(tmpDirPrefix
+            + "temp.sents.it" + iteration + ".gz"));
       }
+      inFile_sentsCurrIt = new BufferedReader(new InputStreamReader(inStream_sentsCurrIt, "utf8"));
 
-      // N-BEST LIST CONVERGE
-      if (newCandidatesAdded[iteration] == 0) {
-        if (!oneModificationPerIteration) {
-          println("No new candidates added in this iteration; exiting PRO.", 1);
-          println("", 1);
-          println("---  PRO iteration #" + iteration + " ending @ " + (new Date()) + "  ---", 1);
-          println("", 1);
-          return null; // THIS MEANS THAT THE OLD VALUES SHOULD BE KEPT BY THE CALLER
-        } else {
-          println("Note: No new candidates added in this iteration.", 1);
-        }
+      // calculate SS for unseen candidates and write them to file
+      FileInputStream inStream_statsCurrIt_unknown = null;
+      BufferedReader inFile_statsCurrIt_unknown = null;
+
+      if (!statsCurrIt_exists && newCandidatesAdded[iteration] > 0) {
+        // create the file...
+        evalMetric.createSuffStatsFile(tmpDirPrefix + "temp.currIt.unknownCands", tmpDirPrefix
+            + "temp.currIt.unknownIndices", tmpDirPrefix + "temp.stats.unknown", sizeOfNBest);
+
+        // ...and open it
+        inStream_statsCurrIt_unknown = new FileInputStream(tmpDirPrefix + "temp.stats.unknown");
+        inFile_statsCurrIt_unknown = new BufferedReader(new InputStreamReader(
+            inStream_statsCurrIt_unknown, "utf8"));
       }
 
-      // FOR MODE 2&3: BOTH INITIAL/FINAL LAMBDA INCLUDE REGULAR+SPARSE FEATURE WEIGHTS(REGULAR
-      // FEATURE WEIGHTS NOT UPDATED IN MODE 3)
-      // FOR MODE 1&4: ONLY REGULAR FEATURE WEIGHTS ARE INCLUDED AND UPDATED
-      // THIS NEEDS TO BE HANDLED BY Optimizer, AND FOR MODE 3, 1-BEST IS COMPUTED ONLY ACCORDING TO
-      // DISC FEATURE WEIGHTS
+      // OPEN mergedKnown file
+      // NEWLY CREATED BY THE BIG LOOP ABOVE
+      FileInputStream instream_statsMergedKnown = new FileInputStream(tmpDirPrefix
+          + "temp.stats.mergedKnown");
+      BufferedReader inFile_statsMergedKnown = new BufferedReader(new InputStreamReader(
+          instream_statsMergedKnown, "utf8"));
 
-      /*
-       * for( int v=1; v<initialLambda[1].length; v++ ) System.out.print(initialLambda[1][v]+" ");
-       * System.exit(0);
-       */
+      for (int i = 0; i < numSentences; ++i) {
+        // reprocess candidates from previous iterations
+        for (int it = firstIt; it < iteration; ++it) {
+          for (int n = 0; n <= sizeOfNBest; ++n) {
+            sents_str = inFile_sents[it].readLine();
+            stats_str = inFile_stats[it].readLine();
 
-      Vector<String> output = new Vector<String>();
-      double score = 0;
+            if (sents_str.equals("||||||")) {
+              n = sizeOfNBest + 1;
+            } else if (!existingCandStats.containsKey(sents_str)) {
+              existingCandStats.put(sents_str, stats_str);
+            } // if unseen candidate
+          } // for (n)
+        } // for (it)
 
-      Optimizer opt = new Optimizer(seed + iteration, numSentences, output, initialLambda[1],
-          feat_hash, stats_hash, score, evalMetric, Tau, Xi, metricDiff, normalizationOptions,
-          classifierAlg, classifierParams, trainingMode, numSparseParams, numParamsInFile,
-          nbestFormat);
+        // copy relevant portion from mergedKnown to the merged file
+        String line_mergedKnown = inFile_statsMergedKnown.readLine();
+        while (!line_mergedKnown.equals("||||||")) {
+          outFile_statsMerged.println(line_mergedKnown);
+          line_mergedKnown = inFile_statsMergedKnown.readLine();
+        }
 
-      finalLambda[1] = opt.run_Optimizer(); // FOR MODE 3, THE REGULAR WEIGHTS ARE NOT UPDATED
+        int[] stats = new int[suffStatsCount];
 
-      /*
-       * System.out.println(finalLambda[1].length); for( int i=0; i<finalLambda[1].length-1; i++ )
-       * System.out.println(finalLambda[1][i+1]);
-       */
+        for (int n = 0; n <= sizeOfNBest; ++n) {
+          sents_str = inFile_sentsCurrIt.readLine();
+          feats_str = inFile_featsCurrIt.readLine();
 
-      for (int i = 0; i < output.size(); i++)
-        println(output.get(i));
+          if (sents_str.equals("||||||")) {
+            n = sizeOfNBest + 1;
+          } else if (!existingCandStats.containsKey(sents_str)) {
 
-      // FIND OUT THE BEST WEIGHT VECTOR CANDIDATE
+            if (!statsCurrIt_exists) {
+              stats_str = inFile_statsCurrIt_unknown.readLine();
 
-      int best_j = 1;
-      /*
-       * double bestFinalScore = finalScore[1]; for (int j = 2; j <= initsPerIt; ++j) { if
-       * (evalMetric.isBetter(finalScore[j],bestFinalScore)) { best_j = j; bestFinalScore =
-       * finalScore[j]; } }
-       * 
-       * if (initsPerIt > 1) { println("Best final lambda is lambda[j=" + best_j + "] " + "(" +
-       * metricName_display + ": " + f4.format(bestFinalScore) + ").",1); println("",1); }
-       * 
-       * FINAL_score = bestFinalScore;
-       */
+              String[] temp_stats = stats_str.split("\\s+");
+              for (int s = 0; s < suffStatsCount; ++s) {
+                stats[s] = Integer.parseInt(temp_stats[s]);
+              }
 
-      // CHECK IF ANY PARAMETER HAS BEEN UPDATED
-      boolean anyParamChanged = false;
-      boolean anyParamChangedSignificantly = false;
+              outFile_statsCurrIt.println(stats_str);
+            } else {
+              stats_str = inFile_statsCurrIt.readLine();
 
-      for (int c = 1; c <= numParams; ++c) {
-        if (finalLambda[best_j][c] != lambda[c]) {
-          anyParamChanged = true;
-        }
-        if (Math.abs(finalLambda[best_j][c] - lambda[c]) > stopSigValue) {
-          anyParamChangedSignificantly = true;
-        }
-      }
+              String[] temp_stats = stats_str.split("\\s+");
+              for (int s = 0; s < suffStatsCount; ++s) {
+                stats[s] = Integer.parseInt(temp_stats[s]);
+              }
+            }
 
-      // System.arraycopy(finalLambda[best_j],1,lambda,1,numParams);
+            outFile_statsMerged.println(stats_str);
 
-      println("---  PRO iteration #" + iteration + " ending @ " + (new Date()) + "  ---", 1);
-      println("", 1);
+            // SAVE FEATS & STATS
+            // System.out.println(sents_str+" "+feats_str);
 
-      if (!anyParamChanged) {
-        println("No parameter value changed in this iteration; exiting PRO.", 1);
-        println("", 1);
-        break; // exit for (iteration) loop preemptively
-      }
+            feat_hash[i].put(sents_str, feats_str);
+            stats_hash[i].put(sents_str, stats_str);
 
-      // check if a lambda is outside its threshold range
-      for (int c = 1; c <= numParams; ++c) {
-        if (lambda[c] < minThValue[c] || lambda[c] > maxThValue[c]) {
-          println("Warning: after normalization, lambda[" + c + "]=" + f4.format(lambda[c])
-              + " is outside its critical value range.", 1);
+            featVal_str = feats_str.split("\\s+");
+
+            /*
+             * for (int c = 1; c <= numParams; ++c) { currFeatVal[c] =
+             * Double.parseDouble(featVal_str[c-1]); // print("fV[" + c + "]=" + currFeatVal[c] +
+             * " ",4); } // println("",4);
+             */
+
+            if (nbestFormat.equals("dense")) {
+              feat_hash[i].put(sents_str, readDenseFeats(featVal_str, currFeatVal));
+            } else {
+              for (int c = 1; c <= numParams; c++)
+                currFeatVal[c] = 0.0;
+
+              String[] feat_info;
+
+              if (!trainingMode.equals("4")) {
+                for (int c = 0; c < featVal_str.length; c++) {
+                  feat_info = featVal_str[c].split(":");
+                  currFeatVal[Integer.parseInt(feat_info[0])] = Double.parseDouble(feat_info[1]); // INDEX
+                                                                                                  // STARTS
+                                                                                                  // FROM
+                                                                                                  // 1
+                }
+              } else // FOR MODE 4, NEED TO COMPUTE THE SUMMARY FEATURE VAL
+              {
+                double sumFeatVal = 0.0;
+                int featId = 0;
+                String updated_feat_str = "";
+
+                for (int c = 0; c < featVal_str.length; c++) {
+                  feat_info = featVal_str[c].split(":");
+                  featId = Integer.parseInt(feat_info[0]);
+
+                  if (1 <= featId && featId <= (numParamsInFile - 1)) // REGULAR FEATURE
+                  {
+                    currFeatVal[featId] = Double.parseDouble(feat_info[1]);
+                    updated_feat_str += (featId + ":" + feat_info[1] + " "); // FEATURE ID ORDER
+                                                                             // DOESN'T MATTER
+                  } else
+                    sumFeatVal += Double.parseDouble(feat_info[1])
+                        * sparseFeatWeights[featId - numParamsInFile];
+                }
+
+                currFeatVal[numParamsInFile] = sumFeatVal;
+                updated_feat_str += (numParamsInFile + ":" + sumFeatVal);
+                feat_hash[i].put(sents_str, updated_feat_str); // UPDATE THE FEATURE HASH, NOW THE
+                                                               // SPARSE FEATURES ARE TREATED AS
+                                                               // ONE REGULAR FEATURE
+              }
+            }
+
+            for (int j = 1; j <= initsPerIt; ++j) {
+              double score = 0; // i.e. score assigned by decoder
+              for (int c = 1; c <= numParams; ++c) {
+                score += initialLambda[j][c] * currFeatVal[c];
+              }
+              if (score > best1Score[j][i]) {
+                best1Score[j][i] = score;
+                for (int s = 0; s < suffStatsCount; ++s)
+                  best1Cand_suffStats[j][i][s] = stats[s];
+              }
+            } // for (j)
+
+            // WRONG!!!
+            // SAVE SUFF STAT FOR ALL CANDIDATES
+            // for (int s = 0; s < suffStatsCount; ++s)
+            // allCand_suffStats[i][n][s] = stats[s];
+
+            existingCandStats.put(sents_str, stats_str);
+
+            setFeats(featVal_array, i, lastUsedIndex, maxIndex, currFeatVal);
+            candCount[i] += 1;
+
+            // newCandidatesAdded[iteration] += 1;
+            // moved to code above detecting new candidates
+          } else {
+            if (statsCurrIt_exists)
+              inFile_statsCurrIt.readLine();
+            else {
+              // write SS to outFile_statsCurrIt
+              stats_str = existingCandStats.get(sents_str);
+              outFile_statsCurrIt.println(stats_str);
+            }
+          }
+
+        } // for (n)
+
+        // now d = sizeUnknown_currIt[i] - 1
+
+        if (statsCurrIt_exists)
+          inFile_statsCurrIt.readLine();
+        else
+          outFile_statsCurrIt.println("||||||");
+
+        existingCandStats.clear();
+        totalCandidateCount += candCount[i];
+
+        // OUTPUT SENTENCE PROGRESS
+        if ((i + 1) % 500 == 0) {
+          print((i + 1) + "\n" + "            ", 1);
+        } else if ((i + 1) % 100 == 0) {
+          print("+", 1);
+        } else if ((i + 1) % 25 == 0) {
+          print(".", 1);
         }
-      }
 
-      // was an early stopping criterion satisfied?
-      boolean critSatisfied = false;
-      if (!anyParamChangedSignificantly && stopSigValue >= 0) {
-        println("Note: No parameter value changed significantly " + "(i.e. by more than "
-            + stopSigValue + ") in this iteration.", 1);
-        critSatisfied = true;
-      }
+      } // for (i)
 
-      if (critSatisfied) {
-        ++earlyStop;
-        println("", 1);
-      } else {
-        earlyStop = 0;
-      }
+      outFile_statsMerged.close();
 
-      // if min number of iterations executed, investigate if early exit should happen
-      if (iteration >= minIts && earlyStop >= stopMinIts) {
-        println("Some early stopping criteria has been observed " + "in " + stopMinIts
-            + " consecutive iterations; exiting PRO.", 1);
-        println("", 1);
+      // TESTING
+      /*
+       * int total_sent = 0; for( int i=0; i<numSentences; i++ ) {
+       * System.out.println(feat_hash[i].size()+" "+candCount[i]); total_sent +=
+       * feat_hash[i].size(); feat_hash[i].clear(); }
+       * System.out.println("----------------total sent: "+total_sent); total_sent = 0; for( int
+       * i=0; i<numSentences; i++ ) { System.out.println(stats_hash[i].size()+" "+candCount[i]);
+       * total_sent += stats_hash[i].size(); stats_hash[i].clear(); }
+       * System.out.println("*****************total sent: "+total_sent);
+       */
 
-        lambda = finalLambda[best_j]; // USE THE LATEST WEIGHT
-        break; // exit for (iteration) loop preemptively
+      // FINALIZING ACTIVITIES
+      println("", 1); // finish progress line
+
+      for (int it = firstIt; it < iteration; ++it) {
+        inFile_sents[it].close();
+        inFile_feats[it].close();
+        inFile_stats[it].close();
       }
 
-      // if max number of iterations executed, exit
-      if (iteration >= maxIts) {
-        println("Maximum number of PRO iterations reached; exiting PRO.", 1);
-        println("", 1);
+      inFile_sentsCurrIt.close();
+      inFile_featsCurrIt.close();
+      if (statsCurrIt_exists)
+        inFile_statsCurrIt.close();
+      else
+        outFile_statsCurrIt.close();
 
-        lambda = finalLambda[best_j]; // USE THE LATEST WEIGHT
-        break; // exit for (iteration) loop
+      if (compressFiles == 1 && !statsCurrIt_exists) {
+        gzipFile(tmpDirPrefix + "temp.stats.it" + iteration);
       }
 
-      // USE THE NEW WT VECTOR TO DECODE THE NEXT ITERATION(INTERPOLATION WITH PREVIOUS WT VECTOR)
-      for (int i = 1; i <= numParams; i++)
-        lambda[i] = interCoef * finalLambda[best_j][i] + (1 - interCoef) * lambda[i];
-
-      println("Next iteration will decode with lambda(after interpolation): "
-          + lambdaToString(lambda), 1);
-      println("", 1);
+      // CLEAR temp FILES
+      deleteFile(tmpDirPrefix + "temp.currIt.unknownCands");
+      deleteFile(tmpDirPrefix + "temp.currIt.unknownIndices");
+      deleteFile(tmpDirPrefix + "temp.stats.unknown");
+      deleteFile(tmpDirPrefix + "temp.stats.mergedKnown");
 
-      // printMemoryUsage();
-      for (int i = 0; i < numSentences; ++i) {
-        suffStats_array[i].clear();
-      }
       // cleanupMemory();
-      // println("",2);
-
-      retA[2] = 0; // i.e. this should NOT be the last iteration
-      done = true;
 
-    } // while (!done) // NOTE: this "loop" will only be carried out once
+      println("Processed " + totalCandidateCount + " distinct candidates " + "(about "
+          + totalCandidateCount / numSentences + " per sentence):", 1);
+      for (int it = firstIt; it <= iteration; ++it) {
+        println("newCandidatesAdded[it=" + it + "] = " + newCandidatesAdded[it] + " (about "
+            + newCandidatesAdded[it] / numSentences + " per sentence)", 1);
+      }
 
-    // delete .temp.stats.merged file, since it is not needed in the next
-    // iteration (it will be recreated from scratch)
-    deleteFile(tmpDirPrefix + "temp.stats.merged");
+      println("", 1);
 
-    retA[0] = FINAL_score;
-    retA[1] = earlyStop;
-    return retA;
+    } catch (FileNotFoundException e) {
+      System.err.println("FileNotFoundException in PROCore.run_single_iteration(6): "
+          + e.getMessage());
+      System.exit(99901);
+    } catch (IOException e) {
+      System.err.println("IOException in PROCore.run_single_iteration(6): " + e.getMessage());
+      System.exit(99902);
+    }
+  }
 
-  } // run_single_iteration
 
   private String lambdaToString(double[] lambdaA) {
     String retStr = "{";
@@ -1770,6 +1794,175 @@ public class PROCore {
     return retSA;
   }
 
+  /*
+   * Reads the features of a candidate in the dense n-best format into currFeatVal. They are either
+   * labeled ("name=value"), in which case features that aren't in the parameter file are left out
+   * (see unknownFeature()), or just the values, in the order of the parameter file. Returns the
+   * features that were given, as "index:value" pairs, since Optimizer and the classifiers name
+   * features by their index.
+   */
+  private String readDenseFeats(String[] featVal_str, double[] currFeatVal) {
+    StringBuilder feats = new StringBuilder();
+    if (featVal_str[0].indexOf('=') != -1) {
+      Arrays.fill(currFeatVal, 0.0);
+      for (String featurePair : featVal_str) {
+        int split = featurePair.lastIndexOf('=');
+        Integer c = paramIndex.get(featurePair.substring(0, split));
+        if (c != null) {
+          String value = featurePair.substring(split + 1);
+          currFeatVal[c] = Double.parseDouble(value);
+          feats.append(c).append(':').append(value).append(' ');
+        } else {
+          unknownFeature(featurePair.substring(0, split));
+        }
+      }
+    } else {
+      for (int c = 1; c <= numParams; ++c) {
+        currFeatVal[c] = Double.parseDouble(featVal_str[c - 1]);
+        feats.append(c).append(':').append(featVal_str[c - 1]).append(' ');
+      }
+    }
+    return feats.toString().trim();
+  }
+
+  /*
+   * Warns, the first time it is seen, about a labeled feature in the decoder's output that isn't in
+   * the parameter file. Its values are left out, so its weight is not tuned.
+   */
+  private synchronized void unknownFeature(String name) {
+    if (unknownFeatures.add(name))
+      println("Warning: feature \"" + name + "\" output by the decoder is not in the parameter "
+          + "file " + paramsFileName + "; its values will be ignored.", 1);
+  }
+
+  /*
+   * Runs the decoder (or reads the fake decoder's output) and writes the candidates of this
+   * iteration to the temp files.
+   */
+  private void decodeToTempFiles(int iteration) {
+    // GENERATE THE N-BEST FILE AFTER DECODING
+    String[] decRunResult = run_decoder(iteration); // iteration passed in case fake decoder will
+                                                    // be used
+    // [0] name of file to be processed
+    // [1] indicates how the output file was obtained:
+    // 1: external decoder
+    // 2: fake decoder
+    // 3: internal decoder
+
+    if (!decRunResult[1].equals("2")) {
+      println("...finished decoding @ " + (new Date()), 1);
+    }
+    // N-BEST WRITTEN TO DISK
+
+    checkFile(decRunResult[0]);
+
+    // --------------- END OF DECODING -----------------
+
+    println("Producing temp files for iteration " + iteration, 3);
+
+    produceTempFiles(decRunResult[0], iteration);
+
+    // SAVE output.nest.PRO.it?
+    if (saveInterFiles == 2 || saveInterFiles == 3) { // make copy of intermediate decoder output
+                                                      // file...
+
+      if (!decRunResult[1].equals("2")) { // ...but only if no fake decoder
+        if (!decRunResult[0].endsWith(".gz")) {
+          if (!copyFile(decRunResult[0], decRunResult[0] + ".PRO.it" + iteration)) {
+            println("Warning: attempt to make copy of decoder output file (to create"
+                + decRunResult[0] + ".PRO.it" + iteration + ") was unsuccessful!", 1);
+          }
+        } else {
+          String prefix = decRunResult[0].substring(0, decRunResult[0].length() - 3);
+          if (!copyFile(prefix + ".gz", prefix + ".PRO.it" + iteration + ".gz")) {
+            println("Warning: attempt to make copy of decoder output file (to create" + prefix
+                + ".PRO.it" + iteration + ".gz" + ") was unsuccessful!", 1);
+          }
+        }
+
+        if (compressFiles == 1 && !decRunResult[0].endsWith(".gz")) {
+          gzipFile(decRunResult[0] + ".PRO.it" + iteration);
+        }
+      } // if (!fake)
+    }
+  }
+
+  /*
+   * Decodes the source sentences with the embedded decoder and the current weights, adding the
+   * candidates of each sentence to the pool as soon as its n-best list is done, and computing the
+   * sufficient statistics of those that the pool doesn't have yet. The candidates are normalized as
+   * in produceTempFiles(). Features the decoder outputs that aren't in the parameter file aren't
+   * tuned, and are left out (see unknownFeature()).
+   */
+  private void decodeIntoPool(int iteration, int firstIt) {
+    println("Running embedded decoder...", 1);
+
+    FeatureVector weights = new FeatureVector();
+    for (int c = 1; c <= numParams; ++c)
+      weights.put(paramNames[c], (float) lambda[c]);
+
+    try {
+      InputStream inStream_source = new FileInputStream(sourceFileName);
+      Translations translations = myDecoder.decodeAll(new TranslationRequest(inStream_source,
+          joshuaConfiguration), weights);
+
+      float[] currFeatVal = new float[1 + numParams];
+      int numDone = 0;
+      Translation translation;
+      while ((translation = translations.next()) != null) {
+        int i = translation.id();
+
+        for (String line : translation.toString().split("\n")) {
+          // i ||| words of candidate translation . ||| feat-1=val feat-2=val ... ||| score
+          line = (line.substring(line.indexOf("|||") + 3)).trim();
+          String candidate_str = (line.substring(0, line.indexOf("|||"))).trim();
+          String feats_str = (line.substring(line.indexOf("|||") + 3)).trim();
+          int junk_i = feats_str.indexOf("|||");
+          if (junk_i >= 0) {
+            feats_str = (feats_str.substring(0, junk_i)).trim();
+          }
+
+          Arrays.fill(currFeatVal, 0.0f);
+          for (String featurePair : feats_str.split("\\s+")) {
+            int split = featurePair.lastIndexOf('=');
+            Integer c = (split > 0) ? paramIndex.get(featurePair.substring(0, split)) : null;
+            if (c != null)
+              currFeatVal[c] = Float.parseFloat(featurePair.substring(split + 1));
+            else if (split > 0)
+              unknownFeature(featurePair.substring(0, split));
+          }
+
+          candidate_str = normalize(candidate_str, textNormMethod);
+          int cand = candidatePool.add(i, candidate_str, currFeatVal, iteration, firstIt);
+          if (cand >= 0 && !candidatePool.hasStats(i, cand))
+            candidatePool.setStats(i, cand, evalMetric.suffStats(candidate_str, i));
+        }
+
+        // OUTPUT SENTENCE PROGRESS
+        ++numDone;
+        if (numDone % 500 == 0) {
+          print(numDone + "\n" + "            ", 1);
+        } else if (numDone % 100 == 0) {
+          print("+", 1);
+        } else if (numDone % 25 == 0) {
+          print(".", 1);
+        }
+      }
+      println("", 1);
+
+      inStream_source.close();
+    } catch (FileNotFoundException e) {
+      System.err.println("FileNotFoundException in PROCore.decodeIntoPool(int,int): "
+          + e.getMessage());
+      System.exit(99901);
+    } catch (IOException e) {
+      System.err.println("IOException in PROCore.decodeIntoPool(int,int): " + e.getMessage());
+      System.exit(99902);
+    }
+
+    println("...finished decoding @ " + (new Date()), 1);
+  }
+
   private void produceTempFiles(String nbestFileName, int iteration) {
     try {
       String sentsFileName = tmpDirPrefix + "temp.sents.it" + iteration;
@@ -1890,7 +2083,7 @@ public class PROCore {
         while (line != null) {
           int c_match = -1;
           for (int c = 1; c <= numParamsInFile; ++c) {
-            if (line.startsWith(Vocabulary.word(c) + " ")) {
+            if (line.startsWith(paramNames[c] + " ")) {
               c_match = c;
               break;
             }
@@ -1899,7 +2092,7 @@ public class PROCore {
           if (c_match == -1) {
             outFile.println(line);
           } else {
-            outFile.println(Vocabulary.word(c_match) + " " + params[c_match]);
+            outFile.println(paramNames[c_match] + " " + params[c_match]);
           }
 
           line = inFile.readLine();
@@ -1912,7 +2105,7 @@ public class PROCore {
         while (line != null) {
           int c_match = -1;
           for (int c = 1; c <= numParamsInFile; ++c) {
-            if (line.startsWith(Vocabulary.word(c) + " ")) {
+            if (line.startsWith(paramNames[c] + " ")) {
               c_match = c;
               break;
             }
@@ -1922,9 +2115,9 @@ public class PROCore {
             outFile.println(line);
           } else {
             if (c_match == numParamsInFile)
-              outFile.println(Vocabulary.word(c_match) + " " + 1.0); // DISC SUMMARY FEATURE WEIGHT
+              outFile.println(paramNames[c_match] + " " + 1.0); // DISC SUMMARY FEATURE WEIGHT
             else
-              outFile.println(Vocabulary.word(c_match) + " " + params[c_match]);
+              outFile.println(paramNames[c_match] + " " + params[c_match]);
           }
 
           line = inFile.readLine();
@@ -1993,7 +2186,7 @@ public class PROCore {
           lambda[c] = inFile_init.nextDouble();
           defaultLambda[c] = lambda[c];
         } else {
-          String[] discFeatFields = Vocabulary.word(numParamsInFile).split("\\s+");
+          String[] discFeatFields = paramNames[numParamsInFile].split("\\s+");
           discDefFile = discFeatFields[1];
 
           // READ DISC FEATURE WEIGHTS
@@ -2182,8 +2375,8 @@ public class PROCore {
       for (int i = 3; i < dummyA.length; ++i) { // in case parameter name has multiple words
         pName = pName + " " + dummyA[i];
       }
-      normalizationOptions[2] = Vocabulary.id(pName);
-      ;
+      Integer index = paramIndex.get(pName);
+      normalizationOptions[2] = (index == null) ? 0 : index;
 
       if (normalizationOptions[1] <= 0) {
         println("Value for the absval normalization method must be positive.");
@@ -2438,7 +2631,8 @@ public class PROCore {
       try {
         PrintWriter outFile_lambdas = new PrintWriter(finalLambdaFileName);
         for (int c = 1; c <= numParams; ++c) {
-          outFile_lambdas.println(Vocabulary.word(c) + " ||| " + lambda[c]);
+          String name = (c <= numParamsInFile) ? paramNames[c] : Integer.toString(c);
+          outFile_lambdas.println(name + " ||| " + lambda[c]);
         }
         outFile_lambdas.close();
 
@@ -0,0 +1,55 @@
+package joshua.server;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+import joshua.decoder.Decoder;
+
+/**
+ * Serves the decoder's metrics (see {@link joshua.decoder.metrics.DecoderMetrics}) on a port. Each
+ * connection is sent the current metrics as text and closed, so they can be read with netcat or
+ * scraped by anything that reads a socket. The server runs on a daemon thread, so it does not keep
+ * the decoder from exiting.
+ * 
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class MetricsServer extends Thread {
+  private static final Logger logger = Logger.getLogger(MetricsServer.class.getName());
+
+  private final Decoder decoder;
+  private final ServerSocket serverSocket;
+
+  public MetricsServer(Decoder decoder, int port) throws IOException {
+    super("metrics-server");
+    setDaemon(true);
+    this.decoder = decoder;
+    this.serverSocket = new ServerSocket(port);
+  }
+
+  @Override
+  public void run() {
+    logger.info(String.format("Serving metrics on port %d", serverSocket.getLocalPort()));
+    for (;;) {
+      Socket socket = null;
+      try {
+        socket = serverSocket.accept();
+        Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+        decoder.getMetrics().writeText(out);
+        out.close();
+      } catch (IOException e) {
+        logger.warning("Couldn't write the metrics: " + e);
+      } finally {
+        if (socket != null)
+          try {
+            socket.close();
+          } catch (IOException e) {
+            // ignore
+          }
+      }
+    }
+  }
+}
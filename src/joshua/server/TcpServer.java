@@ -2,6 +2,9 @@ package joshua.server;
 
 import java.net.*;
 import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
 
 import joshua.decoder.Decoder;
 import joshua.decoder.JoshuaConfiguration;
@@ -9,8 +12,15 @@ import joshua.decoder.JoshuaConfiguration;
 /**
  * TCP/IP server. Accepts newline-separated input sentences written to the socket, translates them
  * all, and writes the resulting translations back out to the socket.
+ * 
+ * Connections are handled on a pool of reused (or, with -virtual-threads, virtual) threads. At most
+ * server-threads connections are handled at once; the server stops accepting connections while
+ * that many are open, so that a burst of clients queues up in the socket backlog instead of each
+ * being given a thread.
  */
 public class TcpServer {
+  private static final Logger logger = Logger.getLogger(TcpServer.class.getName());
+
   private final JoshuaConfiguration joshuaConfiguration;
   private Decoder decoder;
   private int port;
@@ -29,19 +39,45 @@ public class TcpServer {
    */
   public void start() {
 
+    ExecutorService connections = Decoder.newHandlerPool(joshuaConfiguration, "tcp-connection");
+    final Semaphore openConnections = new Semaphore(joshuaConfiguration.server_threads);
+
     try {
       ServerSocket serverSocket = new ServerSocket(joshuaConfiguration.server_port);
       System.err.println(String.format("** TCP Server running and listening on port %d.", port));  
 
       boolean listening = true;
-      while (listening)
-        new TcpServerThread(serverSocket.accept(), decoder, joshuaConfiguration).start();
+      while (listening) {
+        openConnections.acquireUninterruptibly();
+        final Socket socket;
+        try {
+          socket = serverSocket.accept();
+        } catch (IOException e) {
+          openConnections.release();
+          throw e;
+        }
+
+        connections.execute(new Runnable() {
+          public void run() {
+            try {
+              new TcpServerThread(socket, decoder, joshuaConfiguration).run();
+            } finally {
+              openConnections.release();
+              logger.info(String.format(
+                  "Connection closed; %d sentences waiting, %d decoders busy, mean wait %.1f ms",
+                  decoder.getQueueDepth(), decoder.getBusyDecoders(), decoder.getMeanWaitTime()));
+            }
+          }
+        });
+      }
 
       serverSocket.close();
 
     } catch (IOException e) {
       System.err.println(String.format("Could not listen on port: %d.", joshuaConfiguration.server_port));
       System.exit(-1);
+    } finally {
+      connections.shutdown();
     }
   }
 }
@@ -14,9 +14,10 @@ import joshua.decoder.Translations;
 import joshua.decoder.io.TranslationRequest;
 
 /**
- * This class handles a concurrent request for translations from a newly opened socket.
+ * This class handles a concurrent request for translations from a newly opened socket. It is run on
+ * one of the TcpServer's connection threads.
  */
-public class TcpServerThread extends Thread {
+public class TcpServerThread implements Runnable {
   private final JoshuaConfiguration joshuaConfiguration;
   private Socket socket = null;
   private final Decoder decoder;
@@ -53,7 +54,7 @@ public class TcpServerThread extends Thread {
           break;
 
         try {
-          out.write(translation.toString());
+          translation.writeTo(out);
           out.flush();
         } catch (SocketException e) {
           System.err.println("* WARNING: Socket interrupted");
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.PriorityQueue;
@@ -16,6 +17,7 @@ import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import joshua.corpus.Vocabulary;
+import joshua.decoder.ff.tm.packed.PackedGrammar;
 import joshua.util.FormatUtils;
 import joshua.util.encoding.EncoderConfiguration;
 import joshua.util.encoding.FeatureTypeAnalyzer;
@@ -393,11 +395,11 @@ public class GrammarPacker {
     Queue<PackingTrie<TargetValue>> target_queue;
     Queue<PackingTrie<SourceValue>> source_queue;
 
-    // The number of bytes both written into the source stream and
+    // The number of ints both written into the source stream and
     // buffered in the source queue.
-    int source_position;
-    // The number of bytes written into the target stream.
-    int target_position;
+    long source_position;
+    // The number of ints written into the target stream.
+    long target_position;
 
     // Add trie root into queue, set target position to 0 and set cumulated
     // size to size of trie root.
@@ -415,7 +417,7 @@ public class GrammarPacker {
       // Pop top of queue.
       PackingTrie<TargetValue> node = target_queue.poll();
       // Register that this is where we're writing the node to.
-      node.address = target_position;
+      node.address = checkAddress(target_position);
       // Tell source nodes that we're writing to this position in the file.
       for (TargetValue tv : node.values)
         tv.parent.target = node.address;
@@ -435,7 +437,7 @@ public class GrammarPacker {
 
       current_level_size--;
       if (current_level_size == 0) {
-        target_lookup.add(target_position);
+        target_lookup.add(checkAddress(target_position));
         current_level_size = next_level_size;
         next_level_size = 0;
       }
@@ -449,7 +451,7 @@ public class GrammarPacker {
     source_queue = new LinkedList<PackingTrie<SourceValue>>();
     source_queue.add(source_trie);
     source_position = source_trie.size(true, false);
-    source_trie.address = target_position;
+    source_trie.address = checkAddress(target_position);
 
     // Ready data buffers for writing.
     feature_buffer.initialize();
@@ -468,7 +470,7 @@ public class GrammarPacker {
         // Enqueue child.
         source_queue.add(child);
         // Child's address will be at the current end of the queue.
-        child.address = source_position;
+        child.address = checkAddress(source_position);
         // Advance cumulated size by child's size.
         source_position += child.size(true, false);
         // Write the link.
@@ -507,6 +509,17 @@ public class GrammarPacker {
     return slice;
   }
 
+  /**
+   * Trie nodes are addressed by int indices into the source and target files, which can therefore
+   * each hold up to 2^31 ints (8 GB). This fails cleanly if a slice is larger than that.
+   */
+  private static int checkAddress(long position) {
+    if (position > Integer.MAX_VALUE)
+      throw new RuntimeException("Slice exceeds the maximum trie size of " + Integer.MAX_VALUE
+          + " ints; use a smaller slice size.");
+    return (int) position;
+  }
+
   public static void main(String[] args) throws IOException {
     String grammar_filename = null;
     String config_filename = null;
@@ -703,47 +716,68 @@ public class GrammarPacker {
     }
   }
 
+  /**
+   * Buffers the data blocks (features or alignments) of a slice in memory until they are written
+   * out in the order given by the source trie. Blocks are stored in a list of fixed-size chunks,
+   * none of them straddling two chunks, so that the amount of data is not limited by the size of a
+   * Java array; this is what used to make packing fail on large subtrees (e.g., all the rules
+   * starting with [X] in a big Hiero grammar), which can't be split across slices.
+   */
   abstract class PackingBuffer<T> {
-    private byte[] backing;
+    private ArrayList<ByteBuffer> chunks;
     protected ByteBuffer buffer;
 
-    protected ArrayList<Integer> memoryLookup;
-    protected int totalSize;
+    // For each block, its chunk (upper 32 bits) and offset within the chunk (lower 32 bits).
+    private long[] memoryLookup;
+    private int[] blockSizes;
+    private int numBlocks;
+    protected long totalSize;
     protected ArrayList<Integer> onDiskOrder;
 
     PackingBuffer() throws IOException {
+      chunks = new ArrayList<ByteBuffer>();
       allocate();
-      memoryLookup = new ArrayList<Integer>();
+      memoryLookup = new long[1024];
+      blockSizes = new int[1024];
+      numBlocks = 0;
       onDiskOrder = new ArrayList<Integer>();
       totalSize = 0;
     }
 
     abstract int add(T item);
 
-    // Allocate a reasonably-sized buffer for the feature data.
+    // Allocate a reasonably-sized chunk for the data.
     private void allocate() {
-      backing = new byte[SLICE_SIZE * DATA_SIZE_ESTIMATE];
-      buffer = ByteBuffer.wrap(backing);
-    }
-
-    // Reallocate the backing array and buffer, copies data over.
-    protected void reallocate() {
-      if (backing.length == Integer.MAX_VALUE)
-        return;
-      long attempted_length = backing.length * 2l;
-      int new_length;
-      // Detect overflow.
-      if (attempted_length >= Integer.MAX_VALUE)
-        new_length = Integer.MAX_VALUE;
-      else
-        new_length = (int) attempted_length;
-      byte[] new_backing = new byte[new_length];
-      System.arraycopy(backing, 0, new_backing, 0, backing.length);
-      int old_position = buffer.position();
-      ByteBuffer new_buffer = ByteBuffer.wrap(new_backing);
-      new_buffer.position(old_position);
-      buffer = new_buffer;
-      backing = new_backing;
+      buffer = ByteBuffer.allocate(SLICE_SIZE * DATA_SIZE_ESTIMATE);
+      chunks.add(buffer);
+    }
+
+    /**
+     * Makes sure the current chunk has room for a block of (at most) the given size, starting a new
+     * chunk if necessary.
+     */
+    protected void reserve(int size_estimate) {
+      if (size_estimate > PackedGrammar.MAX_BLOCK_SIZE)
+        throw new RuntimeException("Data block of " + size_estimate + " bytes exceeds the maximum of "
+            + PackedGrammar.MAX_BLOCK_SIZE);
+      if (buffer.remaining() <= size_estimate)
+        allocate();
+    }
+
+    /**
+     * Records the block written to the current chunk since the given position.
+     * 
+     * @return The index of the block.
+     */
+    protected int addBlock(int data_position) {
+      if (numBlocks == memoryLookup.length) {
+        memoryLookup = Arrays.copyOf(memoryLookup, 2 * numBlocks);
+        blockSizes = Arrays.copyOf(blockSizes, 2 * numBlocks);
+      }
+      memoryLookup[numBlocks] = ((long) (chunks.size() - 1) << 32) | data_position;
+      blockSizes[numBlocks] = buffer.position() - data_position;
+      totalSize += blockSizes[numBlocks];
+      return numBlocks++;
     }
 
     /**
@@ -773,48 +807,49 @@ public class GrammarPacker {
      */
     void flush(DataOutputStream out) throws IOException {
       writeHeader(out);
-      int size;
-      int block_address;
       for (int block_index : onDiskOrder) {
-        block_address = memoryLookup.get(block_index);
-        size = blockSize(block_index);
-        out.write(backing, block_address, size);
+        long address = memoryLookup[block_index];
+        ByteBuffer chunk = chunks.get((int) (address >>> 32));
+        out.write(chunk.array(), (int) address, blockSizes[block_index]);
       }
     }
 
     void clear() {
-      buffer.clear();
-      memoryLookup.clear();
+      ByteBuffer first = chunks.get(0);
+      first.clear();
+      chunks.clear();
+      chunks.add(first);
+      buffer = first;
+      numBlocks = 0;
+      totalSize = 0;
       onDiskOrder.clear();
     }
 
     boolean overflowing() {
-      return (buffer.position() >= DATA_SIZE_LIMIT);
+      return (totalSize >= DATA_SIZE_LIMIT);
     }
 
+    /**
+     * Writes the header locating the blocks, using long offsets (see PackedGrammar.BlockFile).
+     */
     private void writeHeader(DataOutputStream out) throws IOException {
       if (out.size() == 0) {
+        out.writeInt(PackedGrammar.LONG_OFFSETS);
         out.writeInt(onDiskOrder.size());
-        out.writeInt(totalSize);
-        int disk_position = headerSize();
+        out.writeLong(totalSize);
+        long disk_position = headerSize();
         for (int block_index : onDiskOrder) {
-          out.writeInt(disk_position);
-          disk_position += blockSize(block_index);
+          out.writeLong(disk_position);
+          disk_position += blockSizes[block_index];
         }
       } else {
         throw new RuntimeException("Got a used stream for header writing.");
       }
     }
 
-    private int headerSize() {
-      // One integer for each data block, plus number of blocks and total size.
-      return 4 * (onDiskOrder.size() + 2);
-    }
-
-    private int blockSize(int block_index) {
-      int block_address = memoryLookup.get(block_index);
-      return (block_index < memoryLookup.size() - 1 ? memoryLookup.get(block_index + 1) : totalSize)
-          - block_address;
+    private long headerSize() {
+      // The marker, the number of blocks, the total size, and the offset of each block.
+      return 4 + 4 + 8 + 8L * onDiskOrder.size();
     }
   }
 
@@ -835,15 +870,14 @@ public class GrammarPacker {
      * @return The index of the resulting data block.
      */
     int add(TreeMap<Integer, Float> features) {
-      int data_position = buffer.position();
-
       // Over-estimate how much room this addition will need: for each
       // feature (ID_SIZE for label, "upper bound" of 4 for the value), plus ID_SIZE for
-      // the number of features. If this won't fit, reallocate the buffer.
+      // the number of features. If this won't fit, start a new chunk.
       int size_estimate = (4 + EncoderConfiguration.ID_SIZE) * features.size()
           + EncoderConfiguration.ID_SIZE;
-      if (buffer.capacity() - buffer.position() <= size_estimate)
-        reallocate();
+      reserve(size_estimate);
+
+      int data_position = buffer.position();
 
       // Write features to buffer.
       idEncoder.write(buffer, features.size());
@@ -855,13 +889,8 @@ public class GrammarPacker {
           encoderConfig.encoder(k).write(buffer, v);
         }
       }
-      // Store position the block was written to.
-      memoryLookup.add(data_position);
-      // Update total size (in bytes).
-      totalSize = buffer.position();
-
-      // Return block index.
-      return memoryLookup.size() - 1;
+      // Store position the block was written to and return its index.
+      return addBlock(data_position);
     }
   }
 
@@ -878,21 +907,16 @@ public class GrammarPacker {
      * @return The index of the resulting data block.
      */
     int add(byte[] alignments) {
-      int data_position = buffer.position();
       int size_estimate = alignments.length + 1;
-      if (buffer.capacity() - buffer.position() <= size_estimate)
-        reallocate();
+      reserve(size_estimate);
 
+      int data_position = buffer.position();
       // Write alignment points to buffer.
       buffer.put((byte) (alignments.length / 2));
       buffer.put(alignments);
 
-      // Store position the block was written to.
-      memoryLookup.add(data_position);
-      // Update total size (in bytes).
-      totalSize = buffer.position();
-      // Return block index.
-      return memoryLookup.size() - 1;
+      // Store position the block was written to and return its index.
+      return addBlock(data_position);
     }
   }
 
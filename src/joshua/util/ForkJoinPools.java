@@ -0,0 +1,38 @@
+package joshua.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * The fork-join pools that parallel code in Joshua (chart expansion, k-best formatting, the PRO and
+ * MERT optimizers, TER scoring) runs its tasks in. There is one pool for each number of threads
+ * asked for, created the first time it is asked for, so every caller gets a pool of the size that
+ * its own configuration requests. Callers asking for the same number of threads share a pool; a
+ * fork-join pool runs tasks invoked from any number of threads, and its workers are daemon threads,
+ * so the pools need not be shut down.
+ */
+public class ForkJoinPools {
+
+  private static final Logger logger = Logger.getLogger(ForkJoinPools.class.getName());
+
+  private static final Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+  private ForkJoinPools() {
+  }
+
+  /**
+   * Returns the pool with the given number of threads, creating it if this is the first call for
+   * that number.
+   */
+  public static synchronized ForkJoinPool get(int numThreads) {
+    ForkJoinPool pool = pools.get(numThreads);
+    if (pool == null) {
+      logger.fine(String.format("Starting a pool of %d threads", numThreads));
+      pool = new ForkJoinPool(numThreads);
+      pools.put(numThreads, pool);
+    }
+    return pool;
+  }
+}
@@ -29,7 +29,7 @@ public class EncoderConfiguration {
   }
 
   public int getNumFeatures() {
-    return encoders.length;
+    return innerToOuter.length;
   }
   
   public void load(String file_name) throws IOException {
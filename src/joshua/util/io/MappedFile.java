@@ -0,0 +1,154 @@
+package joshua.util.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A file memory-mapped in segments, so that it can be larger than the 2 GB that a single
+ * MappedByteBuffer can address. Positions are longs.
+ *
+ * The file is mapped as consecutive segments of 2^segmentBits bytes, each of which is extended by
+ * <code>overlap</code> bytes into the next. A record of at most <code>overlap</code> bytes that
+ * starts within a segment can therefore be read entirely from that segment's buffer (see
+ * {@link #buffer(long)} and {@link #offset(long)}), without needing to handle records straddling
+ * two mappings.
+ *
+ * Ints can also be addressed by their index, i.e., in units of four bytes. Since segments are a
+ * multiple of four bytes long, an aligned int always lies within a single segment, which is also
+ * the segment it is written to (see {@link #putInt(long, int)}), so that writes to a read-write
+ * mapping are seen by subsequent reads.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class MappedFile {
+
+  /* The default segment size, 1 GB. */
+  public static final int SEGMENT_BITS = 30;
+
+  private final int segmentBits;
+  private final long segmentMask;
+  private final int intSegmentBits;
+  private final long intSegmentMask;
+
+  private final long size;
+  private final MappedByteBuffer[] segments;
+  private final IntBuffer[] intSegments;
+
+  public MappedFile(File file, MapMode mode, int overlap) throws IOException {
+    this(file, mode, overlap, SEGMENT_BITS);
+  }
+
+  /**
+   * @param file the file to map
+   * @param mode the mapping mode (the file is opened for writing only for MapMode.READ_WRITE)
+   * @param overlap the maximum size of the records that are read through {@link #buffer(long)}
+   * @param segmentBits the log2 of the segment size; must be at least 2 and at most 30
+   */
+  public MappedFile(File file, MapMode mode, int overlap, int segmentBits) throws IOException {
+    if (segmentBits < 2 || segmentBits > 30)
+      throw new IllegalArgumentException("Segment size must be between 2^2 and 2^30 bytes");
+    if ((long) overlap + (1L << segmentBits) > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Overlap of " + overlap + " bytes is too large");
+
+    this.segmentBits = segmentBits;
+    this.segmentMask = (1L << segmentBits) - 1;
+    this.intSegmentBits = segmentBits - 2;
+    this.intSegmentMask = (1L << intSegmentBits) - 1;
+
+    RandomAccessFile raf = new RandomAccessFile(file, (mode == MapMode.READ_WRITE) ? "rw" : "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      size = channel.size();
+
+      int num_segments = (int) ((size + segmentMask) >>> segmentBits);
+      segments = new MappedByteBuffer[num_segments];
+      intSegments = new IntBuffer[num_segments];
+      for (int i = 0; i < num_segments; i++) {
+        long start = (long) i << segmentBits;
+        long length = Math.min((1L << segmentBits) + overlap, size - start);
+        segments[i] = channel.map(mode, start, length);
+        intSegments[i] = segments[i].asIntBuffer();
+      }
+    } finally {
+      // The mappings remain valid after the channel is closed.
+      raf.close();
+    }
+  }
+
+  /**
+   * The size of the file in bytes.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Returns the int at the given index (the byte position divided by four).
+   */
+  public int getInt(long index) {
+    return intSegments[(int) (index >>> intSegmentBits)].get((int) (index & intSegmentMask));
+  }
+
+  /**
+   * Sets the int at the given index. Only permitted if the file was mapped read-write.
+   */
+  public void putInt(long index, int value) {
+    intSegments[(int) (index >>> intSegmentBits)].put((int) (index & intSegmentMask), value);
+  }
+
+  /**
+   * Returns the int at the given byte position, which needn't be aligned.
+   */
+  public int getIntAt(long position) {
+    return segments[(int) (position >>> segmentBits)].getInt((int) (position & segmentMask));
+  }
+
+  /**
+   * Returns the long at the given byte position, which needn't be aligned.
+   */
+  public long getLongAt(long position) {
+    return segments[(int) (position >>> segmentBits)].getLong((int) (position & segmentMask));
+  }
+
+  /**
+   * Sets the long at the given byte position, which must be a multiple of eight (so that, like an
+   * aligned int, it lies within a single segment). Only permitted if the file was mapped
+   * read-write.
+   */
+  public void putLongAt(long position, long value) {
+    segments[(int) (position >>> segmentBits)].putLong((int) (position & segmentMask), value);
+  }
+
+  public byte get(long position) {
+    return segments[(int) (position >>> segmentBits)].get((int) (position & segmentMask));
+  }
+
+  /**
+   * Returns the buffer containing the record at the given position. The record starts at
+   * {@link #offset(long)} within the buffer. Callers must use absolute reads only.
+   */
+  public ByteBuffer buffer(long position) {
+    return segments[(int) (position >>> segmentBits)];
+  }
+
+  /**
+   * Returns the offset of the given position within the buffer returned by {@link #buffer(long)}.
+   */
+  public int offset(long position) {
+    return (int) (position & segmentMask);
+  }
+
+  /**
+   * Reads the whole file into physical memory.
+   */
+  public void load() {
+    for (MappedByteBuffer segment : segments)
+      segment.load();
+  }
+}
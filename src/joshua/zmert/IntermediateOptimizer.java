@@ -1,19 +1,17 @@
 package joshua.zmert;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.Semaphore;
 
 import joshua.metrics.EvaluationMetric;
+import joshua.util.ForkJoinPools;
 
 public class IntermediateOptimizer implements Runnable {
   /* non-static data members */
@@ -28,12 +26,15 @@ public class IntermediateOptimizer implements Runnable {
   private double[] finalScore;
   private int[] candCount;
   private double[][][] featVal_array;
-  private ConcurrentHashMap<Integer, int[]>[] suffStats_array;
+  private int[][] suffStats_array;
+  // suffStats_array[i] has the sufficient statistics of the candidates of the ith sentence,
+  // suffStatsCount of them per candidate: those of the kth candidate start at k*suffStatsCount
 
   /* static data members */
   private final static DecimalFormat f4 = new DecimalFormat("###0.0000");
   private final static double NegInf = (-1.0 / 0.0);
   private final static double PosInf = (+1.0 / 0.0);
+  private final static int SENTENCES_PER_TASK = 16;
 
   private static int numSentences;
   private static int numDocuments;
@@ -51,14 +52,14 @@ public class IntermediateOptimizer implements Runnable {
   private static String metricName;
   private static String metricName_display;
   private static int suffStatsCount;
-  private static String tmpDirPrefix;
+  private static int numThreads;
   private static int verbosity;
 
   public static void set_MERTparams(int in_numSentences, int in_numDocuments,
       int[] in_docOfSentence, int[] in_docSubsetInfo, int in_numParams,
       double[] in_normalizationOptions, boolean[] in_isOptimizable, double[] in_minThValue,
       double[] in_maxThValue, boolean in_oneModificationPerIteration,
-      EvaluationMetric in_evalMetric, String in_tmpDirPrefix, int in_verbosity) {
+      EvaluationMetric in_evalMetric, int in_numThreads, int in_verbosity) {
     numSentences = in_numSentences;
     numDocuments = in_numDocuments;
     docOfSentence = in_docOfSentence;
@@ -81,14 +82,14 @@ public class IntermediateOptimizer implements Runnable {
     metricName_display = metricName;
     if (numDocuments > 1) metricName_display = "doc-level " + metricName;
     suffStatsCount = evalMetric.get_suffStatsCount();
-    tmpDirPrefix = in_tmpDirPrefix;
+    numThreads = in_numThreads;
     verbosity = in_verbosity;
   }
 
   public IntermediateOptimizer(int in_j, Semaphore in_blocker, Vector<String> in_threadOutput,
       double[] in_initialLambda, double[] in_finalLambda, int[][] in_best1Cand_suffStats,
       double[] in_finalScore, int[] in_candCount, double[][][] in_featVal_array,
-      ConcurrentHashMap<Integer, int[]>[] in_suffStats_array) {
+      int[][] in_suffStats_array) {
     j = in_j;
     blocker = in_blocker;
     threadOutput = in_threadOutput;
@@ -106,23 +107,51 @@ public class IntermediateOptimizer implements Runnable {
   // private TreeMap<Double,TreeMap> thresholdsForParam(int c, int[] candCount, double[][][]
   // featVal_array, double[] currLambda, TreeSet<Integer>[] indicesOfInterest)
   private void set_thresholdsForParam(TreeMap<Double, TreeMap<Integer, int[]>> thresholdsAll,
-      int c, double[] currLambda, TreeSet<Integer>[] indicesOfInterest) {
-    /*
-     * TreeMap[] thresholds = new TreeMap[numSentences]; // thresholds[i] stores thresholds for the
-     * cth parameter obtained by // processing the candidates of sentence i. It not only stores the
-     * // thresholds themselves, but also a triple of {i,from,to}, where from/to // are indices that
-     * characterize the 1-best switch at this threshold.
-     * 
-     * for (int i = 0; i < numSentences; ++i) { thresholds[i] = new TreeMap<Double,int[]>(); }
-     */
-
-    // TreeMap<Double,int[]> thresholds = new TreeMap<Double,int[]>();
-
+      int c, double[] currLambda) {
     // Find threshold points
     // TreeMap<Double,TreeMap> thresholdsAll = new TreeMap<Double,TreeMap>();
     thresholdsAll.clear();
 
-    for (int i = 0; i < numSentences; ++i) {
+    // The threshold points of each sentence only depend on the sentence's candidates, so the
+    // sentences are split across the threads, and the threshold points they find are merged as
+    // the threads finish. The result is the same as finding them one sentence at a time.
+    if (numThreads <= 1)
+      addThresholds(thresholdsAll, c, currLambda, 0, numSentences);
+    else
+      thresholdsAll.putAll(ForkJoinPools.get(numThreads).invoke(new ThresholdsTask(c, currLambda, 0, numSentences)));
+
+    // now thresholdsAll has the values for lambda_c at which score changes
+    // based on the candidates for *all* the sentences (that satisfy
+    // range constraints).
+    // Each lambda_c value maps to a Vector of th_info. An overwhelming majority
+    // of these Vectors are of size 1.
+
+    if (thresholdsAll.size() != 0) {
+      double smallest_th = thresholdsAll.firstKey();
+      double largest_th = thresholdsAll.lastKey();
+      println("# extracted thresholds: " + thresholdsAll.size(), 2);
+      println("Smallest extracted threshold: " + smallest_th, 2);
+      println("Largest extracted threshold: " + largest_th, 2);
+
+      if (maxThValue[c] != PosInf) {
+        thresholdsAll.put(maxThValue[c], null);
+      } else {
+        thresholdsAll.put((thresholdsAll.lastKey() + 0.1), null);
+      }
+    }
+
+    // return thresholdsAll;
+
+  } // TreeMap<Double,TreeMap> thresholdsForParam (int c)
+
+  /*
+   * Adds the threshold points for the cth parameter contributed by sentences [from, to) to
+   * thresholdsAll, which maps each threshold point to the {old_k, new_k} switches of the 1-best
+   * candidates of the sentences (by index) at that point.
+   */
+  private void addThresholds(TreeMap<Double, TreeMap<Integer, int[]>> thresholdsAll, int c,
+      double[] currLambda, int from, int to) {
+    for (int i = from; i < to; ++i) {
       // find threshold points contributed by ith sentence
 
       // println("Processing sentence #" + i,4);
@@ -233,8 +262,6 @@ public class IntermediateOptimizer implements Runnable {
       // being discarded anyway due to range constraints, thus saving us a little
       // bit of time.
 
-      int last_new_k = -1;
-
       while (currIndex != maxSlopeIndex) {
 
         if (currIndex < 0) break;
@@ -272,10 +299,6 @@ public class IntermediateOptimizer implements Runnable {
         if (nearestIntersectionPoint > minThValue[c] && nearestIntersectionPoint < maxThValue[c]) {
 
           int[] th_info = {currIndex, nearestIntersectingLineIndex};
-          last_new_k = nearestIntersectingLineIndex;
-
-          indicesOfInterest[i].add(currIndex); // old_k
-          // indicesOfInterest_all[i].add(currIndex); // old_k ***/
 
           if (!thresholdsAll.containsKey(nearestIntersectionPoint)) {
             TreeMap<Integer, int[]> A = new TreeMap<Integer, int[]>();
@@ -316,11 +339,6 @@ public class IntermediateOptimizer implements Runnable {
 
       } // end while (currIndex != maxSlopeIndex)
 
-      if (last_new_k != -1) {
-        indicesOfInterest[i].add(last_new_k); // last new_k
-        // indicesOfInterest_all[i].add(last_new_k); // last new_k ***/
-      }
-
       // println("cI=" + currIndex + "(=? " + maxSlopeIndex + " = mxSI)",4);
 
       // now thresholds has the values for lambda_c at which score changes
@@ -354,33 +372,52 @@ public class IntermediateOptimizer implements Runnable {
       // thresholds.clear();
 
     } // for (i)
+  }
 
-    // now thresholdsAll has the values for lambda_c at which score changes
-    // based on the candidates for *all* the sentences (that satisfy
-    // range constraints).
-    // Each lambda_c value maps to a Vector of th_info. An overwhelming majority
-    // of these Vectors are of size 1.
-
-    // indicesOfInterest[i] tells us which candidates for the ith sentence need
-    // to be read from the merged decoder output file.
+  /* Finds the threshold points of sentences [from, to), splitting them across the threads. */
+  @SuppressWarnings("serial")
+  private class ThresholdsTask extends RecursiveTask<TreeMap<Double, TreeMap<Integer, int[]>>> {
+    private final int c;
+    private final double[] currLambda;
+    private final int from;
+    private final int to;
+
+    ThresholdsTask(int c, double[] currLambda, int from, int to) {
+      this.c = c;
+      this.currLambda = currLambda;
+      this.from = from;
+      this.to = to;
+    }
 
-    if (thresholdsAll.size() != 0) {
-      double smallest_th = thresholdsAll.firstKey();
-      double largest_th = thresholdsAll.lastKey();
-      println("# extracted thresholds: " + thresholdsAll.size(), 2);
-      println("Smallest extracted threshold: " + smallest_th, 2);
-      println("Largest extracted threshold: " + largest_th, 2);
+    @Override
+    protected TreeMap<Double, TreeMap<Integer, int[]>> compute() {
+      if (to - from <= SENTENCES_PER_TASK) {
+        TreeMap<Double, TreeMap<Integer, int[]>> thresholds =
+            new TreeMap<Double, TreeMap<Integer, int[]>>();
+        addThresholds(thresholds, c, currLambda, from, to);
+        return thresholds;
+      }
 
-      if (maxThValue[c] != PosInf) {
-        thresholdsAll.put(maxThValue[c], null);
-      } else {
-        thresholdsAll.put((thresholdsAll.lastKey() + 0.1), null);
+      int mid = (from + to) / 2;
+      ThresholdsTask left = new ThresholdsTask(c, currLambda, from, mid);
+      ThresholdsTask right = new ThresholdsTask(c, currLambda, mid, to);
+      right.fork();
+      TreeMap<Double, TreeMap<Integer, int[]>> thresholds = left.compute();
+      TreeMap<Double, TreeMap<Integer, int[]>> rightThresholds = right.join();
+
+      // The two halves have different sentences, so when they share a threshold point, the
+      // sentences' switches at that point are simply put together.
+      for (Map.Entry<Double, TreeMap<Integer, int[]>> entry : rightThresholds.entrySet()) {
+        TreeMap<Integer, int[]> A = thresholds.get(entry.getKey());
+        if (A == null)
+          thresholds.put(entry.getKey(), entry.getValue());
+        else
+          A.putAll(entry.getValue());
       }
+      return thresholds;
     }
+  }
 
-    // return thresholdsAll;
-
-  } // TreeMap<Double,TreeMap> thresholdsForParam (int c)
 
   private double[] line_opt(TreeMap<Double, TreeMap<Integer, int[]>> thresholdsAll,
       int[] indexOfCurrBest, int c, double[] lambda) {
@@ -420,11 +457,6 @@ public class IntermediateOptimizer implements Runnable {
 
 
 
-    int[][] suffStats = new int[numSentences][suffStatsCount];
-    // suffStats[i][s] stores the contribution to the sth sufficient
-    // statistic from the candidate for the ith sentence (the candidate
-    // indicated by indexOfCurrBest[i]).
-
     int[][] suffStats_doc = new int[numDocuments][suffStatsCount];
     // suffStats_doc[doc][s] := SUM_i suffStats[i][s], over sentences in the doc'th document
     // i.e. treat each document as a mini corpus
@@ -438,12 +470,14 @@ public class IntermediateOptimizer implements Runnable {
       }
     }
 
-    // Now, set suffStats[][], and increment suffStats_doc[][]
+    // Now, increment suffStats_doc[][] by the stats of the candidates indicated by
+    // indexOfCurrBest[]
     for (int i = 0; i < numSentences; ++i) {
-      suffStats[i] = suffStats_array[i].get(indexOfCurrBest[i]);
+      int[] suffStats = suffStats_array[i];
+      int offset = indexOfCurrBest[i] * suffStatsCount;
 
       for (int s = 0; s < suffStatsCount; ++s) {
-        suffStats_doc[docOfSentence[i]][s] += suffStats[i][s];
+        suffStats_doc[docOfSentence[i]][s] += suffStats[offset + s];
       }
     }
 
@@ -481,16 +515,17 @@ public class IntermediateOptimizer implements Runnable {
         int old_k = th_info[0]; // should be equal to indexOfCurrBest[i]
         int new_k = th_info[1];
 
+        int[] suffStats = suffStats_array[i];
+        int offset = indexOfCurrBest[i] * suffStatsCount;
         for (int s = 0; s < suffStatsCount; ++s) {
-          suffStats_doc[docOf_i][s] -= suffStats[i][s]; // subtract stats for candidate old_k
+          suffStats_doc[docOf_i][s] -= suffStats[offset + s]; // subtract stats for candidate old_k
         }
 
         indexOfCurrBest[i] = new_k;
-        suffStats[i] = suffStats_array[i].get(indexOfCurrBest[i]); // update the SS for the i'th
-                                                                   // sentence
+        offset = new_k * suffStatsCount;
 
         for (int s = 0; s < suffStatsCount; ++s) {
-          suffStats_doc[docOf_i][s] += suffStats[i][s]; // add stats for candidate new_k
+          suffStats_doc[docOf_i][s] += suffStats[offset + s]; // add stats for candidate new_k
         }
 
       }
@@ -533,79 +568,6 @@ public class IntermediateOptimizer implements Runnable {
 
   } // double[] line_opt(int c)
 
-  private void set_suffStats_array(TreeSet<Integer>[] indicesOfInterest) {
-    int candsOfInterestCount = 0;
-    for (int i = 0; i < numSentences; ++i) {
-      candsOfInterestCount += indicesOfInterest[i].size();
-      // candsOfInterestCount_all += indicesOfInterest_all[i].size(); ****/
-    }
-    println("Processing merged stats file; extracting SS " + "for " + candsOfInterestCount
-        + " candidates of interest.", 2);
-    // println("(*_all: " + candsOfInterestCount_all + ")",2); *****/
-
-
-    try {
-
-      // process the merged sufficient statistics file, and read (and store) the
-      // stats for candidates of interest
-      BufferedReader inFile =
-          new BufferedReader(new FileReader(tmpDirPrefix + "temp.stats.merged"));
-      String candidate_suffStats;
-
-      for (int i = 0; i < numSentences; ++i) {
-        int numCandidates = candCount[i];
-
-        int currCand = 0;
-        Iterator<Integer> It = indicesOfInterest[i].iterator();
-
-        while (It.hasNext()) {
-          int nextIndex = It.next();
-
-          // skip candidates until you get to the nextIndex'th candidate
-          while (currCand < nextIndex) {
-            inFile.readLine();
-            ++currCand;
-          }
-
-          // now currCand == nextIndex, and the next line in inFile
-          // contains the sufficient statistics we want
-
-          candidate_suffStats = inFile.readLine();
-          ++currCand;
-
-          String[] suffStats_str = candidate_suffStats.split("\\s+");
-
-          int[] suffStats = new int[suffStatsCount];
-
-          for (int s = 0; s < suffStatsCount; ++s) {
-            suffStats[s] = Integer.parseInt(suffStats_str[s]);
-          }
-
-          suffStats_array[i].put(nextIndex, suffStats);
-
-        }
-
-        // skip the rest of ith sentence's candidates
-        while (currCand < numCandidates) {
-          inFile.readLine();
-          ++currCand;
-        }
-
-      } // for (i)
-
-      inFile.close();
-
-    } catch (FileNotFoundException e) {
-      System.err.println("FileNotFoundException in MertCore.initialize(int): " + e.getMessage());
-      System.exit(99901);
-    } catch (IOException e) {
-      System.err.println("IOException in MertCore.initialize(int): " + e.getMessage());
-      System.exit(99902);
-    }
-
-  } // set_suffStats_array(HashMap[] suffStats_array, TreeSet[] indicesOfInterest, Vector[]
-    // candidates)
-
   private double L_norm(double[] A, double pow) {
     // calculates the L-pow norm of A[]
     // NOTE: this calculation ignores A[0]
@@ -616,14 +578,23 @@ public class IntermediateOptimizer implements Runnable {
     return Math.pow(sum, 1 / pow);
   }
 
-  private int[] initial_indexOfCurrBest(double[] temp_lambda, TreeSet<Integer>[] indicesOfInterest) {
+  private int[] initial_indexOfCurrBest(double[] temp_lambda) {
     int[] indexOfCurrBest = new int[numSentences];
     // As we traverse lambda_c, indexOfCurrBest indicates which is the
     // current best candidate.
 
     // initialize indexOfCurrBest[]
+    if (numThreads <= 1)
+      set_indexOfCurrBest(indexOfCurrBest, temp_lambda, 0, numSentences);
+    else
+      ForkJoinPools.get(numThreads).invoke(new IndexOfCurrBestAction(indexOfCurrBest, temp_lambda, 0, numSentences));
 
-    for (int i = 0; i < numSentences; ++i) {
+    return indexOfCurrBest;
+
+  } // int[] initial_indexOfCurrBest (int c)
+
+  private void set_indexOfCurrBest(int[] indexOfCurrBest, double[] temp_lambda, int from, int to) {
+    for (int i = from; i < to; ++i) {
       int numCandidates = candCount[i];
 
       double max = NegInf;
@@ -641,18 +612,35 @@ public class IntermediateOptimizer implements Runnable {
       }
 
       indexOfCurrBest[i] = indexOfMax;
-
-      // if (useDisk == 2) {
-      // add indexOfCurrBest[i] to indicesOfInterest
-      indicesOfInterest[i].add(indexOfMax);
-      // indicesOfInterest_all[i].add(indexOfMax);
-      // }
-
     }
+  }
 
-    return indexOfCurrBest;
+  /* Finds the 1-best candidates of sentences [from, to), splitting them across the threads. */
+  @SuppressWarnings("serial")
+  private class IndexOfCurrBestAction extends RecursiveAction {
+    private final int[] indexOfCurrBest;
+    private final double[] temp_lambda;
+    private final int from;
+    private final int to;
+
+    IndexOfCurrBestAction(int[] indexOfCurrBest, double[] temp_lambda, int from, int to) {
+      this.indexOfCurrBest = indexOfCurrBest;
+      this.temp_lambda = temp_lambda;
+      this.from = from;
+      this.to = to;
+    }
 
-  } // int[] initial_indexOfCurrBest (int c)
+    @Override
+    protected void compute() {
+      if (to - from <= SENTENCES_PER_TASK) {
+        set_indexOfCurrBest(indexOfCurrBest, temp_lambda, from, to);
+      } else {
+        int mid = (from + to) / 2;
+        invokeAll(new IndexOfCurrBestAction(indexOfCurrBest, temp_lambda, from, mid),
+            new IndexOfCurrBestAction(indexOfCurrBest, temp_lambda, mid, to));
+      }
+    }
+  }
 
   private double[] bestParamToChange(TreeMap<Double, TreeMap<Integer, int[]>>[] thresholdsAll,
       int lastChanged_c, double[] currLambda) {
@@ -669,19 +657,6 @@ public class IntermediateOptimizer implements Runnable {
 
     // prep for line_opt
 
-    TreeSet<Integer>[] indicesOfInterest = null;
-    // indicesOfInterest[i] tells us which candidates for the ith sentence need
-    // to be read from the merged decoder output file.
-
-    // if (useDisk == 2) {
-    @SuppressWarnings("unchecked")
-    TreeSet<Integer>[] temp_TSA = new TreeSet[numSentences];
-    indicesOfInterest = temp_TSA;
-    for (int i = 0; i < numSentences; ++i) {
-      indicesOfInterest[i] = new TreeSet<Integer>();
-    }
-    // }
-
     int[][] indexOfCurrBest = new int[1 + numParams][numSentences];
 
     for (int c = 1; c <= numParams; ++c) {
@@ -692,7 +667,7 @@ public class IntermediateOptimizer implements Runnable {
           println("Investigating lambda[j=" + j + "][" + c + "]...", 2);
           // thresholdsAll[c] =
           // thresholdsForParam(c,candCount,featVal_array,currLambda,indicesOfInterest);
-          set_thresholdsForParam(thresholdsAll[c], c, currLambda, indicesOfInterest);
+          set_thresholdsForParam(thresholdsAll[c], c, currLambda);
         } else {
           println("Keeping thresholds for lambda[j=" + j + "][" + c + "] from previous step.", 2);
         }
@@ -715,7 +690,7 @@ public class IntermediateOptimizer implements Runnable {
             temp_lambda[c] = smallest_th - 0.05;
           }
 
-          indexOfCurrBest[c] = initial_indexOfCurrBest(temp_lambda, indicesOfInterest);
+          indexOfCurrBest[c] = initial_indexOfCurrBest(temp_lambda);
         }
       }
 
@@ -725,14 +700,6 @@ public class IntermediateOptimizer implements Runnable {
 
 
 
-    // if (useDisk == 2) {
-
-    set_suffStats_array(indicesOfInterest);
-
-    // } // if (useDisk == 2)
-
-
-
     for (int c = 1; c <= numParams; ++c) {
       // investigate currLambda[j][c]
 
@@ -755,20 +722,6 @@ public class IntermediateOptimizer implements Runnable {
 
 
 
-    // delete according to indicesOfInterest
-
-    // printMemoryUsage();
-
-    // if (useDisk == 2) {
-
-    for (int i = 0; i < numSentences; ++i) {
-
-      indicesOfInterest[i].clear();
-
-    }
-
-    // }
-
     // cleanupMemory();
     // printMemoryUsage();
     // println("",2);
@@ -24,7 +24,6 @@ import java.util.Random;
 import java.util.Scanner;
 import java.util.TreeSet;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
@@ -402,7 +401,7 @@ public class MertCore {
     // set static data members for the IntermediateOptimizer class
     IntermediateOptimizer.set_MERTparams(numSentences, numDocuments, docOfSentence, docSubsetInfo,
         numParams, normalizationOptions, isOptimizable, minThValue, maxThValue,
-        oneModificationPerIteration, evalMetric, tmpDirPrefix, verbosity);
+        oneModificationPerIteration, evalMetric, numOptThreads, verbosity);
 
 
 
@@ -696,12 +695,13 @@ public class MertCore {
 
       int[] candCount = new int[numSentences];
       int[] lastUsedIndex = new int[numSentences];
-      ConcurrentHashMap<Integer, int[]>[] suffStats_array = new ConcurrentHashMap[numSentences];
+      int[][] suffStats_array = new int[numSentences][];
+      // suffStats_array[i] has the sufficient statistics of the candidates of the ith sentence,
+      // suffStatsCount of them per candidate, in the same order as in featVal_array
       for (int i = 0; i < numSentences; ++i) {
         candCount[i] = 0;
         lastUsedIndex[i] = -1;
-        // suffStats_array[i].clear();
-        suffStats_array[i] = new ConcurrentHashMap<Integer, int[]>();
+        suffStats_array[i] = new int[0];
       }
 
       double[][] initialLambda = new double[1 + initsPerIt][1 + numParams];
@@ -821,9 +821,6 @@ public class MertCore {
           outFile_statsCurrIt = new PrintWriter(tmpDirPrefix + "temp.stats.it" + iteration);
         }
 
-        PrintWriter outFile_statsMerged = new PrintWriter(tmpDirPrefix + "temp.stats.merged");
-        // write sufficient statistics from all the sentences
-        // from the output files into a single file
         PrintWriter outFile_statsMergedKnown =
             new PrintWriter(tmpDirPrefix + "temp.stats.mergedKnown");
         // write sufficient statistics from all the sentences
@@ -1090,15 +1087,21 @@ public class MertCore {
             } // for (n)
           } // for (it)
 
-          // copy relevant portion from mergedKnown to the merged file
+          int[] stats = new int[suffStatsCount];
+
+          // copy relevant portion from mergedKnown to suffStats_array
+          int knownCount = 0;
           String line_mergedKnown = inFile_statsMergedKnown.readLine();
           while (!line_mergedKnown.equals("||||||")) {
-            outFile_statsMerged.println(line_mergedKnown);
+            String[] temp_stats = line_mergedKnown.split("\\s+");
+            for (int s = 0; s < suffStatsCount; ++s) {
+              stats[s] = Integer.parseInt(temp_stats[s]);
+            }
+            setSuffStats(suffStats_array, i, knownCount, stats);
+            ++knownCount;
             line_mergedKnown = inFile_statsMergedKnown.readLine();
           }
 
-          int[] stats = new int[suffStatsCount];
-
           for (int n = 0; n <= sizeOfNBest; ++n) {
             // Why up to and *including* sizeOfNBest?
             // So that it would read the "||||||" separator even if there is
@@ -1141,7 +1144,7 @@ public class MertCore {
                 }
               }
 
-              outFile_statsMerged.println(stats_str);
+              setSuffStats(suffStats_array, i, candCount[i], stats);
 
               featVal_str = feats_str.split("\\s+");
 
@@ -1219,8 +1222,6 @@ public class MertCore {
 
         } // for (i)
 
-        outFile_statsMerged.close();
-
 
 
         println("", 1); // finish progress line
@@ -1390,9 +1391,6 @@ public class MertCore {
       println("", 1);
 
       // printMemoryUsage();
-      for (int i = 0; i < numSentences; ++i) {
-        suffStats_array[i].clear();
-      }
       // cleanupMemory();
       // println("",2);
 
@@ -1403,10 +1401,6 @@ public class MertCore {
     } // while (!done) // NOTE: this "loop" will only be carried out once
 
 
-    // delete .temp.stats.merged file, since it is not needed in the next
-    // iteration (it will be recreated from scratch)
-    deleteFile(tmpDirPrefix + "temp.stats.merged");
-
     retA[0] = FINAL_score;
     retA[1] = earlyStop;
     return retA;
@@ -2948,6 +2942,15 @@ public class MertCore {
     lastUsedIndex[i] += 1;
   }
 
+  private void setSuffStats(int[][] suffStats_array, int i, int k, int[] stats) {
+    if ((k + 1) * suffStatsCount > suffStats_array[i].length) {
+      int[] temp = suffStats_array[i];
+      suffStats_array[i] = new int[(k + 1 + sizeOfNBest) * suffStatsCount];
+      System.arraycopy(temp, 0, suffStats_array[i], 0, temp.length);
+    }
+    System.arraycopy(stats, 0, suffStats_array[i], k * suffStatsCount, suffStatsCount);
+  }
+
   @SuppressWarnings("unused")
   private HashSet<Integer> indicesToDiscard(double[] slope, double[] offset) {
     // some lines can be eliminated: the ones that have a lower offset
@@ -0,0 +1,169 @@
+package joshua.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import joshua.decoder.Decoder;
+import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.chart_parser.Chart;
+import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.tm.Grammar;
+import joshua.decoder.hypergraph.HyperGraph;
+import joshua.decoder.segment_file.Sentence;
+import joshua.tools.GrammarPacker;
+import joshua.util.io.LineReader;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The models shared by the benchmarks: the grammar, language model, and input of the packed-grammar
+ * regression test (test/packed-grammar). The grammar is packed into a temporary directory when the
+ * trial starts, and BerkeleyLM is used in place of KenLM so that no native library is needed. The
+ * directory can be changed with -Djoshua.benchmark.models=DIR; it must have the same layout.
+ *
+ * Benchmarks that need a search space use the forests of the first NUM_FORESTS sentences, which are
+ * built once here, so that every benchmark sees the same tries, rules, and hypergraphs.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+@State(Scope.Benchmark)
+public class BenchmarkModels {
+
+  public static final String MODELS = System.getProperty("joshua.benchmark.models",
+      "test/packed-grammar");
+
+  /* The glue grammar that goes with the grammar (the regression test generates its own). */
+  public static final String GLUE = System.getProperty("joshua.benchmark.glue",
+      "test/bn-en/hiero/glue-grammar");
+
+  public static final int NUM_FORESTS = 10;
+
+  public JoshuaConfiguration joshuaConfiguration;
+  public Decoder decoder;
+  public List<FeatureFunction> featureFunctions;
+  public Grammar[] grammars;
+
+  public List<Sentence> sentences;
+  public List<HyperGraph> forests;
+
+  private File dir;
+
+  @Setup(Level.Trial)
+  public void load() throws IOException {
+    dir = File.createTempFile("joshua-benchmark", "");
+    if (!dir.delete() || !dir.mkdir())
+      throw new IOException("Couldn't create " + dir);
+
+    String packed = new File(dir, "grammar.packed").getPath();
+    new GrammarPacker(new File(MODELS, "grammar.gz").getPath(), null, packed, null, null, false)
+        .pack();
+
+    String configFile = writeConfig(packed);
+    joshuaConfiguration = new JoshuaConfiguration();
+    joshuaConfiguration.readConfigFile(configFile);
+    joshuaConfiguration.sanityCheck();
+    decoder = new Decoder(joshuaConfiguration, configFile);
+
+    featureFunctions = decoder.getFeatureFunctions();
+    grammars = decoder.getGrammars().toArray(new Grammar[0]);
+
+    sentences = new ArrayList<Sentence>();
+    LineReader input = new LineReader(new File(MODELS, "input.bn").getPath());
+    try {
+      for (String line : input)
+        sentences.add(new Sentence(line, sentences.size(), joshuaConfiguration));
+    } finally {
+      input.close();
+    }
+
+    forests = new ArrayList<HyperGraph>();
+    for (Sentence sentence : sentences) {
+      if (forests.size() == NUM_FORESTS)
+        break;
+      HyperGraph hg = parse(sentence);
+      if (hg != null)
+        forests.add(hg);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void cleanUp() {
+    decoder.cleanUp();
+    delete(dir);
+  }
+
+  /**
+   * Builds the chart for a sentence and returns its forest, or null if there is no parse.
+   */
+  public HyperGraph parse(Sentence sentence) {
+    Chart chart = new Chart(sentence, featureFunctions, Decoder.weights, grammars,
+        joshuaConfiguration.goal_symbol, joshuaConfiguration);
+    return chart.expand();
+  }
+
+  /*
+   * Writes the test's config file with the grammar and language model paths replaced, so that the
+   * benchmarks don't depend on the working directory of the forked JVM.
+   */
+  private String writeConfig(String packed) throws IOException {
+    File configFile = new File(dir, "joshua.config");
+    LineReader in = new LineReader(new File(MODELS, "joshua.config").getPath());
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(configFile),
+        "UTF-8"));
+    try {
+      for (String line : in) {
+        String[] tokens = line.trim().split("\\s+");
+        if (line.startsWith("lm ") && tokens.length == 8) {
+          out.println(String.format("lm = berkeleylm %s %s %s %s %s", tokens[3], tokens[4],
+              tokens[5], tokens[6], new File(MODELS, tokens[7]).getAbsolutePath()));
+        } else if (line.startsWith("tm ") && tokens[3].equals("glue")) {
+          out.println(String.format("tm = thrax glue %s %s", tokens[4],
+              new File(GLUE).getAbsolutePath()));
+        } else if (line.startsWith("tm ")) {
+          out.println(String.format("tm = packed %s %s %s", tokens[3], tokens[4], packed));
+        } else {
+          out.println(line);
+        }
+      }
+    } finally {
+      in.close();
+      out.close();
+    }
+    return configFile.getPath();
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        delete(child);
+    file.delete();
+  }
+
+  /**
+   * A Writer that discards its output, for timing k-best extraction without the cost of I/O.
+   */
+  public static class NullWriter extends Writer {
+    @Override
+    public void write(char[] buffer, int offset, int length) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package joshua.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import joshua.decoder.hypergraph.HyperGraph;
+import joshua.decoder.segment_file.Sentence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing: builds the chart of each of the first sentences of the input, which is dominated by
+ * Chart.completeSpan() (cube pruning and the feature functions it calls). Times are per sentence.
+ * The search options (pop limit, search strategy, cell beam) are those of the test's config file.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ChartBenchmark {
+
+  private BenchmarkModels models;
+  private List<Sentence> sentences;
+
+  @Setup
+  public void setUp(BenchmarkModels models) {
+    this.models = models;
+    this.sentences = models.sentences.subList(0, BenchmarkModels.NUM_FORESTS);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BenchmarkModels.NUM_FORESTS)
+  public void expand(Blackhole blackhole) {
+    for (Sentence sentence : sentences) {
+      HyperGraph hg = models.parse(sentence);
+      blackhole.consume(hg);
+    }
+  }
+}
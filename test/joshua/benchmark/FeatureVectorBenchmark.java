@@ -0,0 +1,85 @@
+package joshua.benchmark;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import joshua.decoder.Decoder;
+import joshua.decoder.ff.FeatureVector;
+import joshua.decoder.ff.tm.Rule;
+import joshua.decoder.hypergraph.ForestWalker;
+import joshua.decoder.hypergraph.HGNode;
+import joshua.decoder.hypergraph.HyperEdge;
+import joshua.decoder.hypergraph.HyperGraph;
+import joshua.decoder.hypergraph.WalkerFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * FeatureVector operations on the feature vectors of the rules used in the forests of the first
+ * sentences: the inner product with the decoder's weights, summing them, and copying them.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class FeatureVectorBenchmark {
+
+  private final List<FeatureVector> vectors = new ArrayList<FeatureVector>();
+
+  @Setup
+  public void setUp(BenchmarkModels models) {
+    final IdentityHashMap<Rule, Boolean> seen = new IdentityHashMap<Rule, Boolean>();
+    for (HyperGraph hg : models.forests) {
+      new ForestWalker().walk(hg.goalNode, new WalkerFunction() {
+        @Override
+        public void apply(HGNode node) {
+          if (node.getHyperEdges() == null)
+            return;
+          for (HyperEdge edge : node.getHyperEdges()) {
+            Rule rule = edge.getRule();
+            if (rule != null && seen.put(rule, true) == null)
+              vectors.add(rule.getFeatureVector());
+          }
+        }
+      });
+    }
+  }
+
+  @Benchmark
+  public float innerProduct() {
+    float score = 0.0f;
+    for (FeatureVector vector : vectors)
+      score += vector.innerProduct(Decoder.weights);
+    return score;
+  }
+
+  @Benchmark
+  public FeatureVector add() {
+    FeatureVector sum = new FeatureVector();
+    for (FeatureVector vector : vectors)
+      sum.add(vector);
+    return sum;
+  }
+
+  @Benchmark
+  public void copy(Blackhole blackhole) {
+    for (FeatureVector vector : vectors)
+      blackhole.consume(vector.clone());
+  }
+}
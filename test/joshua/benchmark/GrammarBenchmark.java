@@ -0,0 +1,99 @@
+package joshua.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import joshua.corpus.Vocabulary;
+import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.tm.Grammar;
+import joshua.decoder.ff.tm.Trie;
+import joshua.decoder.ff.tm.packed.PackedGrammar;
+import joshua.decoder.segment_file.Sentence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Lookups in the packed grammar's trie. match() follows every terminal path through the trie that
+ * starts in one of the input sentences, as the dot chart does for spans without nonterminals;
+ * getSortedRules() then asks each of the nodes reached for its rules, which are sorted once during
+ * setup, so that the benchmark measures the steady state of the decoder rather than the first
+ * sort.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class GrammarBenchmark {
+
+  private Trie root;
+  private List<FeatureFunction> featureFunctions;
+  private List<int[]> sentences;
+
+  // The trie nodes reached by match() that have rules
+  private List<Trie> nodes;
+
+  @Setup
+  public void setUp(BenchmarkModels models) {
+    for (Grammar grammar : models.grammars)
+      if (grammar instanceof PackedGrammar)
+        root = grammar.getTrieRoot();
+    if (root == null)
+      throw new RuntimeException("No packed grammar in " + BenchmarkModels.MODELS);
+    featureFunctions = models.featureFunctions;
+
+    sentences = new ArrayList<int[]>();
+    nodes = new ArrayList<Trie>();
+    for (Sentence sentence : models.sentences) {
+      int[] words = Vocabulary.addAll(sentence.source());
+      sentences.add(words);
+
+      for (int i = 0; i < words.length; i++) {
+        Trie node = root;
+        for (int j = i; j < words.length && node != null; j++) {
+          node = node.match(words[j]);
+          if (node != null && node.hasRules()) {
+            node.getRuleCollection().getSortedRules(featureFunctions);
+            nodes.add(node);
+          }
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public int match() {
+    int matched = 0;
+    for (int[] words : sentences) {
+      for (int i = 0; i < words.length; i++) {
+        Trie node = root;
+        for (int j = i; j < words.length && node != null; j++) {
+          node = node.match(words[j]);
+          if (node != null)
+            matched++;
+        }
+      }
+    }
+    return matched;
+  }
+
+  @Benchmark
+  public void getSortedRules(Blackhole blackhole) {
+    for (Trie node : nodes)
+      blackhole.consume(node.getRuleCollection().getSortedRules(featureFunctions));
+  }
+}
@@ -0,0 +1,68 @@
+package joshua.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import joshua.decoder.Decoder;
+import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.hypergraph.HyperGraph;
+import joshua.decoder.hypergraph.KBestExtractor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * k-best extraction from the forests of the first sentences, written in the output format of the
+ * test's config file to a writer that discards it. A new extractor is used for each forest, as in
+ * the decoder. Times are per sentence.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class KBestBenchmark {
+
+  @Param({ "1", "10", "100" })
+  public int topN;
+
+  private List<HyperGraph> forests;
+  private List<FeatureFunction> featureFunctions;
+  private JoshuaConfiguration joshuaConfiguration;
+  private BufferedWriter out;
+
+  @Setup
+  public void setUp(BenchmarkModels models) {
+    forests = models.forests;
+    featureFunctions = models.featureFunctions;
+    joshuaConfiguration = models.joshuaConfiguration;
+    out = new BufferedWriter(new BenchmarkModels.NullWriter());
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BenchmarkModels.NUM_FORESTS)
+  public void lazyKBestExtractOnHG() throws IOException {
+    for (HyperGraph hg : forests) {
+      KBestExtractor extractor = new KBestExtractor(hg.sentence, featureFunctions,
+          Decoder.weights, false, joshuaConfiguration);
+      extractor.lazyKBestExtractOnHG(hg, topN, out);
+    }
+    out.flush();
+  }
+}
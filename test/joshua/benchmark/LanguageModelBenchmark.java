@@ -0,0 +1,104 @@
+package joshua.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import joshua.decoder.Decoder;
+import joshua.decoder.chart_parser.SourcePath;
+import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.lm.LanguageModelFF;
+import joshua.decoder.ff.tm.Rule;
+import joshua.decoder.hypergraph.ForestWalker;
+import joshua.decoder.hypergraph.HGNode;
+import joshua.decoder.hypergraph.HyperEdge;
+import joshua.decoder.hypergraph.HyperGraph;
+import joshua.decoder.hypergraph.WalkerFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Language model transitions (LanguageModelFF.computeTransition(), through compute()), replayed
+ * over every edge of the forests of the first sentences, with the tail nodes and their n-gram
+ * states as the decoder found them. Caching follows the test's config file (lm-cache-size), which
+ * leaves it off.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class LanguageModelBenchmark {
+
+  /* An edge of one of the forests, with the arguments needed to score it again. */
+  private static class Transition {
+    Rule rule;
+    List<HGNode> tailNodes;
+    int i;
+    int j;
+    SourcePath sourcePath;
+    int sentID;
+  }
+
+  private LanguageModelFF lm;
+  private final List<Transition> transitions = new ArrayList<Transition>();
+  private FeatureFunction.ScoreAccumulator acc;
+
+  @Setup
+  public void setUp(BenchmarkModels models) {
+    for (FeatureFunction feature : models.featureFunctions)
+      if (feature instanceof LanguageModelFF)
+        lm = (LanguageModelFF) feature;
+    if (lm == null)
+      throw new RuntimeException("No language model in " + BenchmarkModels.MODELS);
+    acc = new FeatureFunction.ScoreAccumulator(Decoder.weights);
+
+    for (final HyperGraph hg : models.forests) {
+      new ForestWalker().walk(hg.goalNode, new WalkerFunction() {
+        @Override
+        public void apply(HGNode node) {
+          if (node.getHyperEdges() == null)
+            return;
+          for (HyperEdge edge : node.getHyperEdges()) {
+            if (edge.getRule() == null)
+              continue;
+            Transition transition = new Transition();
+            transition.rule = edge.getRule();
+            transition.tailNodes = edge.getTailNodes();
+            transition.i = node.i;
+            transition.j = node.j;
+            transition.sourcePath = edge.getSourcePath();
+            transition.sentID = hg.sentID();
+            transitions.add(transition);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Scores all the edges. The new states are consumed, so that they are not optimized away.
+   */
+  @Benchmark
+  public void compute(Blackhole blackhole) {
+    for (Transition transition : transitions) {
+      acc.reset();
+      blackhole.consume(lm.compute(transition.rule, transition.tailNodes, transition.i,
+          transition.j, transition.sourcePath, transition.sentID, acc));
+      blackhole.consume(acc.getScore());
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package joshua.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import joshua.corpus.Vocabulary;
+import joshua.decoder.segment_file.Sentence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Vocabulary lookups for the words of the input, all of which are in the vocabulary once the models
+ * are loaded: id() maps each word to its id, and word() maps the ids back.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class VocabularyBenchmark {
+
+  private String[] words;
+  private int[] ids;
+
+  @Setup
+  public void setUp(BenchmarkModels models) {
+    List<String> tokens = new ArrayList<String>();
+    for (Sentence sentence : models.sentences)
+      for (String token : sentence.source().split("\\s+"))
+        if (token.length() > 0)
+          tokens.add(token);
+
+    words = tokens.toArray(new String[0]);
+    ids = new int[words.length];
+    for (int k = 0; k < words.length; k++)
+      ids[k] = Vocabulary.id(words[k]);
+  }
+
+  @Benchmark
+  public int id() {
+    int sum = 0;
+    for (String word : words)
+      sum += Vocabulary.id(word);
+    return sum;
+  }
+
+  @Benchmark
+  public int word() {
+    int length = 0;
+    for (int id : ids)
+      length += Vocabulary.word(id).length();
+    return length;
+  }
+}
@@ -0,0 +1,105 @@
+package joshua.corpus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the static Vocabulary and its perfect hash.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class VocabularyTest {
+
+  @Test
+  public void perfectHash() {
+    int n = 50000;
+    String[] keys = new String[n];
+    int[] values = new int[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = "word" + i;
+      values[i] = (i % 2 == 0) ? i : -i;
+    }
+    PerfectHash table = new PerfectHash(keys, values);
+
+    for (int i = 0; i < n; i++)
+      Assert.assertEquals(table.get(keys[i]), values[i]);
+    Assert.assertEquals(table.get("word" + n), PerfectHash.NOT_FOUND);
+    Assert.assertEquals(table.get(""), PerfectHash.NOT_FOUND);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void perfectHashDuplicates() {
+    new PerfectHash(new String[] { "a", "b", "a" }, new int[] { 1, 2, 3 });
+  }
+
+  @Test
+  public void freezeWriteAndRead() throws IOException {
+    int the = Vocabulary.id("the");
+    int x = Vocabulary.id("[X]");
+    Assert.assertTrue(the > 0);
+    Assert.assertTrue(x < 0);
+    Assert.assertEquals(Vocabulary.id("the"), the);
+    Assert.assertEquals(Vocabulary.word(x), "[X]");
+
+    Vocabulary.freeze();
+    int size = Vocabulary.size();
+    the = Vocabulary.id("the");
+    x = Vocabulary.id("[X]");
+    Assert.assertEquals(Vocabulary.word(the), "the");
+    Assert.assertEquals(Vocabulary.word(x), "[X]");
+    Assert.assertTrue(x < 0);
+
+    // Words can still be added to a frozen vocabulary.
+    int cat = Vocabulary.id("cat");
+    Assert.assertEquals(cat, size);
+    Assert.assertEquals(Vocabulary.id("cat"), cat);
+
+    File file = File.createTempFile("vocabulary", null);
+    file.deleteOnExit();
+    Vocabulary.write(file.getPath());
+    Vocabulary.id("dog");
+    Assert.assertTrue(Vocabulary.read(file.getPath()));
+
+    Assert.assertEquals(Vocabulary.size(), size + 1);
+    Assert.assertEquals(Vocabulary.id("the"), the);
+    Assert.assertEquals(Vocabulary.id("[X]"), x);
+    Assert.assertEquals(Vocabulary.id("cat"), cat);
+    Assert.assertFalse(Vocabulary.hasId(size + 1));
+  }
+
+  @Test
+  public void concurrentIds() throws Exception {
+    final int num_words = 2000;
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+      for (int t = 0; t < 4; t++) {
+        results.add(pool.submit(new Callable<int[]>() {
+          public int[] call() {
+            int[] ids = new int[num_words];
+            for (int i = 0; i < num_words; i++)
+              ids[i] = Vocabulary.id("concurrent" + i);
+            return ids;
+          }
+        }));
+      }
+      int[] first = results.get(0).get();
+      for (Future<int[]> result : results)
+        Assert.assertTrue(Arrays.equals(result.get(), first));
+      for (int i = 0; i < num_words; i++)
+        Assert.assertEquals(Vocabulary.word(first[i]), "concurrent" + i);
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
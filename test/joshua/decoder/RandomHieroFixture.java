@@ -0,0 +1,168 @@
+package joshua.decoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import joshua.decoder.ff.StatefulFF;
+import joshua.decoder.ff.lm.mapped_lm.MappedLanguageModelBuilder;
+
+/**
+ * A small random Hiero model for decoding tests, written to temporary files: a grammar in which
+ * each source word has several translations and some rules reorder, a trigram language model
+ * (memory-mapped, so no native library is needed), and three input sentences of eight to ten
+ * words. It is ambiguous enough that every cell holds several items and the pop limit prunes.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class RandomHieroFixture {
+
+  private static final int SOURCE_WORDS = 12;
+  private static final int TARGET_WORDS = 24;
+
+  private static File config = null;
+  private static List<String> sentences = new ArrayList<String>();
+
+  /**
+   * Reads the configuration of the fixture.
+   */
+  public static JoshuaConfiguration configuration() throws IOException {
+    JoshuaConfiguration joshuaConfiguration = new JoshuaConfiguration();
+    joshuaConfiguration.readConfigFile(config().getPath());
+    return joshuaConfiguration;
+  }
+
+  /**
+   * Loads a decoder for the fixture with the given configuration.
+   */
+  public static Decoder decoder(JoshuaConfiguration joshuaConfiguration) throws IOException {
+    // Both are static, and would otherwise carry over from the previous decoder
+    StatefulFF.resetGlobalStateIndex();
+    Decoder.feature_names.clear();
+    return new Decoder(joshuaConfiguration, config().getPath());
+  }
+
+  /**
+   * The input sentences.
+   */
+  public static List<String> sentences() throws IOException {
+    config();
+    return sentences;
+  }
+
+  /**
+   * Returns the configuration file, writing it along with the grammars, language model and input
+   * the first time it is called.
+   */
+  public static synchronized File config() throws IOException {
+    if (config != null)
+      return config;
+
+    Random random = new Random(7);
+    File dir = File.createTempFile("chart-threads", "");
+    dir.delete();
+    dir.mkdir();
+    dir.deleteOnExit();
+
+    // Each source word has three translations, some pairs of words have phrasal ones, and some
+    // rules reorder their nonterminals around a word
+    File grammar = tempFile(dir, "grammar");
+    PrintStream out = new PrintStream(grammar, "UTF-8");
+    for (int s = 0; s < SOURCE_WORDS; s++) {
+      for (int k = 0; k < 3; k++)
+        out.println(String.format("[X] ||| s%d ||| %s ||| %s", s, target(random), costs(random)));
+      out.println(String.format("[X] ||| s%d s%d ||| %s %s ||| %s", s, random.nextInt(SOURCE_WORDS),
+          target(random), target(random), costs(random)));
+      out.println(String.format("[X] ||| [X,1] s%d [X,2] ||| [X,2] %s [X,1] ||| %s", s,
+          target(random), costs(random)));
+    }
+    out.println(String.format("[X] ||| [X,1] [X,2] ||| [X,2] [X,1] ||| %s", costs(random)));
+    out.close();
+
+    File glue = tempFile(dir, "glue");
+    out = new PrintStream(glue, "UTF-8");
+    out.println("[GOAL] ||| <s> ||| <s> ||| 0");
+    out.println("[GOAL] ||| [GOAL,1] [X,2] ||| [GOAL,1] [X,2] ||| -1");
+    out.println("[GOAL] ||| [GOAL,1] </s> ||| [GOAL,1] </s> ||| 0");
+    out.close();
+
+    File arpa = tempFile(dir, "lm.arpa");
+    out = new PrintStream(arpa, "UTF-8");
+    out.println("\\data\\");
+    out.println("ngram 1=" + (TARGET_WORDS + 2));
+    out.println("ngram 2=" + TARGET_WORDS * 3);
+    out.println("ngram 3=" + TARGET_WORDS * 2);
+    out.println();
+    out.println("\\1-grams:");
+    out.println(String.format("-99\t<s>\t%.4f", -random.nextFloat()));
+    out.println(String.format("%.4f\t</s>", -1 - random.nextFloat()));
+    for (int t = 0; t < TARGET_WORDS; t++)
+      out.println(String.format("%.4f\tt%d\t%.4f", -1 - random.nextFloat(), t, -random.nextFloat()));
+    out.println();
+    out.println("\\2-grams:");
+    for (int t = 0; t < TARGET_WORDS; t++) {
+      out.println(String.format("%.4f\tt%d t%d\t%.4f", -random.nextFloat(), t, t,
+          -random.nextFloat()));
+      out.println(String.format("%.4f\tt%d t%d\t%.4f", -random.nextFloat(), t,
+          (t + 1) % TARGET_WORDS, -random.nextFloat()));
+      out.println(String.format("%.4f\t<s> t%d\t%.4f", -random.nextFloat(), t, -random.nextFloat()));
+    }
+    out.println();
+    out.println("\\3-grams:");
+    for (int t = 0; t < TARGET_WORDS; t++) {
+      out.println(String.format("%.4f\tt%d t%d t%d", -random.nextFloat(), t, t,
+          (t + 1) % TARGET_WORDS));
+      out.println(String.format("%.4f\t<s> t%d t%d", -random.nextFloat(), t, t));
+    }
+    out.println();
+    out.println("\\end\\");
+    out.close();
+
+    File lm = tempFile(dir, "lm");
+    new MappedLanguageModelBuilder(arpa.getPath(), 16, 15).build(lm.getPath());
+
+    config = tempFile(dir, "joshua.config");
+    out = new PrintStream(config, "UTF-8");
+    out.println("lm = mapped 3 false false 100 " + lm.getPath());
+    out.println("tm = thrax pt 20 " + grammar.getPath());
+    out.println("tm = thrax glue -1 " + glue.getPath());
+    out.println("default_non_terminal = X");
+    out.println("goalSymbol = GOAL");
+    out.println("pop-limit = 20");
+    out.println("top-n = 20");
+    out.println("output-format = %i ||| %s ||| %f ||| %c");
+    out.println("feature-function = WordPenalty");
+    out.println("lm_0 1.0");
+    out.println("tm_pt_0 -1.0");
+    out.println("tm_pt_1 -0.5");
+    out.println("tm_glue_0 1.0");
+    out.println("WordPenalty -0.5");
+    out.close();
+
+    for (int i = 0; i < 3; i++) {
+      StringBuilder sentence = new StringBuilder("s" + random.nextInt(SOURCE_WORDS));
+      for (int j = 1; j < 8 + i; j++)
+        sentence.append(" s").append(random.nextInt(SOURCE_WORDS));
+      sentences.add(sentence.toString());
+    }
+
+    return config;
+  }
+
+  private static File tempFile(File dir, String name) {
+    File file = new File(dir, name);
+    file.deleteOnExit();
+    return file;
+  }
+
+  private static String target(Random random) {
+    return "t" + random.nextInt(TARGET_WORDS);
+  }
+
+  private static String costs(Random random) {
+    return String.format("%.6f %.6f", random.nextFloat() * 3, random.nextFloat() * 3);
+  }
+}
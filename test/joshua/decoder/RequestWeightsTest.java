@@ -0,0 +1,59 @@
+package joshua.decoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import joshua.decoder.ff.FeatureVector;
+import joshua.decoder.io.TranslationRequest;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for decoding requests with their own weights, on a {@link RandomHieroFixture}.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class RequestWeightsTest {
+
+  @Test
+  public void partialWeights() throws IOException {
+    JoshuaConfiguration joshuaConfiguration = RandomHieroFixture.configuration();
+    Decoder decoder = RandomHieroFixture.decoder(joshuaConfiguration);
+
+    List<String> full = decode(decoder, Decoder.weights, joshuaConfiguration);
+
+    // Weights for only some of the features: the rest keep the decoder's weights
+    FeatureVector partial = new FeatureVector();
+    partial.put("lm_0", Decoder.weights.get("lm_0"));
+    partial.put("WordPenalty", Decoder.weights.get("WordPenalty"));
+    Assert.assertEquals(decode(decoder, partial, joshuaConfiguration), full);
+
+    // The weights given are still used
+    partial.put("lm_0", 2 * Decoder.weights.get("lm_0"));
+    List<String> reweighted = decode(decoder, partial, joshuaConfiguration);
+    Assert.assertEquals(reweighted.size(), full.size());
+    Assert.assertFalse(reweighted.equals(full));
+
+    decoder.cleanUp();
+  }
+
+  /* Decodes the sentences of the fixture as one request with the given weights. */
+  private static List<String> decode(Decoder decoder, FeatureVector weights,
+      JoshuaConfiguration joshuaConfiguration) throws IOException {
+    StringBuilder input = new StringBuilder();
+    for (String sentence : RandomHieroFixture.sentences())
+      input.append(sentence).append("\n");
+    TranslationRequest request = new TranslationRequest(new ByteArrayInputStream(input.toString()
+        .getBytes("UTF-8")), joshuaConfiguration);
+
+    Translations translations = decoder.decodeAll(request, weights);
+    List<String> output = new ArrayList<String>();
+    for (Translation translation = translations.next(); translation != null; translation = translations
+        .next())
+      output.add(translation.toString());
+    return output;
+  }
+}
@@ -3,8 +3,12 @@ package joshua.decoder;
 import static org.testng.Assert.*;
 
 import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 
+import joshua.decoder.ff.FeatureFunction;
 import joshua.decoder.io.TranslationRequest;
+import joshua.decoder.segment_file.Sentence;
 
 import org.testng.annotations.Test;
 import org.testng.annotations.BeforeTest;
@@ -54,6 +58,37 @@ public class TranslationsTest {
     translations.next();
   }
 
+  /**
+   * Records the translations of a three-sentence request in the order 2, 0, 1, and returns them
+   * in the order they are given back by next().
+   */
+  private int[] reorder(boolean unordered) {
+    TranslationRequest request = new TranslationRequest(new ByteArrayInputStream(
+        "a\nb\nc\n".getBytes()), joshuaConfiguration);
+    Sentence[] sentences = new Sentence[3];
+    for (int i = 0; i < 3; i++)
+      sentences[i] = request.next();
+    assertNull(request.next());
+
+    Translations translations = new Translations(request, 3, unordered);
+    translations.finish();
+    for (int i : new int[] { 2, 0, 1 })
+      translations.record(new Translation(sentences[i], null, null,
+          new ArrayList<FeatureFunction>(), joshuaConfiguration));
+
+    int[] ids = new int[3];
+    for (int i = 0; i < 3; i++)
+      ids[i] = translations.next().id();
+    assertNull(translations.next());
+    return ids;
+  }
+
+  @Test
+  public void reorder() {
+    assertTrue(Arrays.equals(reorder(false), new int[] { 0, 1, 2 }));
+    assertTrue(Arrays.equals(reorder(true), new int[] { 2, 0, 1 }));
+  }
+
   @Test(enabled = false)
   public void record() {
     throw new RuntimeException("Test not implemented");
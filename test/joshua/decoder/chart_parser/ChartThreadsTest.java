@@ -0,0 +1,52 @@
+package joshua.decoder.chart_parser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import joshua.decoder.Decoder;
+import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.RandomHieroFixture;
+import joshua.decoder.segment_file.Sentence;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that expanding the cells of a chart in parallel (-chart-threads) finds the same 1-best and
+ * k-best translations as expanding them one at a time, on a {@link RandomHieroFixture}.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class ChartThreadsTest {
+
+  @Test
+  public void sameTranslations() throws IOException {
+    List<String> serial = decode(1);
+    List<String> parallel = decode(4);
+
+    Assert.assertEquals(parallel.size(), serial.size());
+    for (int i = 0; i < serial.size(); i++) {
+      // the k-best list, of which the first line is the 1-best
+      String[] serialLines = serial.get(i).split("\n");
+      String[] parallelLines = parallel.get(i).split("\n");
+      Assert.assertTrue(serialLines.length > 1);
+      Assert.assertEquals(parallelLines[0], serialLines[0]);
+      Assert.assertEquals(parallel.get(i), serial.get(i));
+    }
+  }
+
+  /* Decodes the fixture with the given number of chart threads, returning the k-best lists. */
+  private static List<String> decode(int chartThreads) throws IOException {
+    JoshuaConfiguration joshuaConfiguration = RandomHieroFixture.configuration();
+    joshuaConfiguration.chart_threads = chartThreads;
+
+    Decoder decoder = RandomHieroFixture.decoder(joshuaConfiguration);
+    List<String> sentences = RandomHieroFixture.sentences();
+    List<String> output = new ArrayList<String>();
+    for (int i = 0; i < sentences.size(); i++)
+      output.add(decoder.decode(new Sentence(sentences.get(i), i, joshuaConfiguration)).toString());
+    decoder.cleanUp();
+    return output;
+  }
+}
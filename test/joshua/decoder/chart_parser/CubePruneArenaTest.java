@@ -0,0 +1,84 @@
+package joshua.decoder.chart_parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import joshua.decoder.hypergraph.HGNode;
+import joshua.decoder.hypergraph.HyperEdge;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for CubePruneArena: the visited set, the growth of the rank and tail arrays, and that
+ * nothing a cell leaves in an arena is seen by the next cell once it has been reset.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class CubePruneArenaTest {
+
+  @Test
+  public void visitsEachStateOnce() {
+    CubePruneArena arena = new CubePruneArena();
+    // enough states for the visited set to grow several times
+    for (int n = 1; n <= 1000; n++)
+      Assert.assertTrue(arena.visit(newState(arena, n, 1, 2)));
+    for (int n = 1; n <= 1000; n++)
+      Assert.assertFalse(arena.visit(newState(arena, n, 1, 2)));
+    Assert.assertTrue(arena.visit(newState(arena, 1, 2, 1)));
+    Assert.assertTrue(arena.visit(newState(arena, 1, 1)));
+  }
+
+  @Test
+  public void keepsRanksWhenGrowing() {
+    CubePruneArena arena = new CubePruneArena();
+    List<CubePruneState> states = new ArrayList<CubePruneState>();
+    // three ranks each, more than the arrays start with
+    for (int n = 1; n <= 1000; n++)
+      states.add(newState(arena, n, n + 1, n + 2));
+
+    for (int n = 1; n <= 1000; n++) {
+      CubePruneState state = states.get(n - 1);
+      Assert.assertEquals(state.numRanks(), 3);
+      Assert.assertEquals(state.getRank(0), n);
+      Assert.assertEquals(state.getRank(1), n + 1);
+      Assert.assertEquals(state.getRank(2), n + 2);
+    }
+  }
+
+  @Test
+  public void resetForgetsTheCell() {
+    CubePruneArena arena = new CubePruneArena();
+    List<CubePruneState> states = new ArrayList<CubePruneState>();
+    HGNode tail = new HGNode(0, 1, 0, new ArrayList<HyperEdge>(), null, null);
+    for (int n = 1; n <= 300; n++) {
+      CubePruneState state = newState(arena, n, 1);
+      state.setTailNode(0, tail);
+      arena.visit(state);
+      arena.candidates.add(state);
+      states.add(state);
+    }
+    arena.cubeStates.addAll(states);
+    arena.reset();
+
+    Assert.assertTrue(arena.candidates.isEmpty());
+    Assert.assertTrue(arena.cubeStates.isEmpty());
+    for (HGNode node : arena.tails)
+      Assert.assertNull(node);
+
+    // The states are handed out again, and the states of the last cell are no longer visited
+    for (int n = 1; n <= 300; n++) {
+      CubePruneState state = newState(arena, n, 1);
+      Assert.assertTrue(state == states.get(n - 1));
+      Assert.assertTrue(arena.visit(state));
+    }
+  }
+
+  /* Returns a new state of the arena with the given ranks. */
+  private static CubePruneState newState(CubePruneArena arena, int... ranks) {
+    CubePruneState state = arena.newState(null, null, ranks.length - 1);
+    for (int k = 0; k < ranks.length; k++)
+      state.setRank(k, ranks[k]);
+    return state;
+  }
+}
@@ -0,0 +1,68 @@
+package joshua.decoder.chart_parser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import joshua.decoder.Decoder;
+import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.RandomHieroFixture;
+import joshua.decoder.segment_file.Sentence;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the search options of the chart (-search-strategy and -cell-beam), on a
+ * {@link RandomHieroFixture}.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class SearchStrategyTest {
+
+  /* The output of decoding the fixture, and the number of nodes that were added to the charts */
+  private static class Result {
+    final List<String> oneBest = new ArrayList<String>();
+    long nodes;
+  }
+
+  @Test
+  public void cubeGrowingFindsSameOneBest() throws IOException {
+    Result pruning = decode("cube-pruning", 1000, 0.0f);
+    Result growing = decode("cube-growing", 1000, 0.0f);
+    Assert.assertEquals(growing.oneBest, pruning.oneBest);
+  }
+
+  @Test
+  public void cellBeamRemovesItems() throws IOException {
+    Result unbounded = decode("cube-pruning", 0, 0.0f);
+
+    // Nothing falls outside a wide beam
+    Result wide = decode("cube-pruning", 0, 1000.0f);
+    Assert.assertEquals(wide.nodes, unbounded.nodes);
+    Assert.assertEquals(wide.oneBest, unbounded.oneBest);
+
+    // A narrow one stops the cells early, but still finds translations
+    Result narrow = decode("cube-pruning", 0, 0.5f);
+    Assert.assertTrue(narrow.nodes < unbounded.nodes);
+    Assert.assertEquals(narrow.oneBest.size(), unbounded.oneBest.size());
+  }
+
+  private static Result decode(String strategy, int popLimit, float beam) throws IOException {
+    JoshuaConfiguration joshuaConfiguration = RandomHieroFixture.configuration();
+    joshuaConfiguration.search_strategy = strategy;
+    joshuaConfiguration.pop_limit = popLimit;
+    joshuaConfiguration.cell_beam = beam;
+    joshuaConfiguration.topN = 1;
+
+    Decoder decoder = RandomHieroFixture.decoder(joshuaConfiguration);
+    List<String> sentences = RandomHieroFixture.sentences();
+    Result result = new Result();
+    for (int i = 0; i < sentences.size(); i++)
+      result.oneBest.add(decoder.decode(new Sentence(sentences.get(i), i, joshuaConfiguration))
+          .toString());
+    result.nodes = decoder.getMetrics().getNodesCreated();
+    decoder.cleanUp();
+    return result;
+  }
+}
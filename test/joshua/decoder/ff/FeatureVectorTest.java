@@ -0,0 +1,108 @@
+package joshua.decoder.ff;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import joshua.decoder.Decoder;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for FeatureVector.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class FeatureVectorTest {
+
+  @Test
+  public void parse() {
+    FeatureVector features = new FeatureVector("0.5  -1 Foo=2.0 3", "tm_test_");
+
+    Assert.assertEquals(features.size(), 4);
+    Assert.assertEquals(features.get("tm_test_0"), -0.5f);
+    Assert.assertEquals(features.get("tm_test_1"), 1.0f);
+    Assert.assertEquals(features.get("tm_test_2"), -3.0f);
+    Assert.assertEquals(features.get("Foo"), 2.0f);
+    Assert.assertTrue(FeatureMap.isDense(FeatureMap.id("tm_test_0")));
+    Assert.assertFalse(FeatureMap.isDense(FeatureMap.id("Foo")));
+  }
+
+  @Test
+  public void addAndSubtract() {
+    FeatureVector a = new FeatureVector("1 2", "tm_test_");
+    a.put("Sparse_a", 1.0f);
+
+    FeatureVector b = new FeatureVector("1", "tm_test_");
+    b.put("Sparse_a", 2.0f);
+    b.put("Sparse_b", 3.0f);
+
+    a.add(b);
+    Assert.assertEquals(a.size(), 4);
+    Assert.assertEquals(a.get("tm_test_0"), -2.0f);
+    Assert.assertEquals(a.get("tm_test_1"), -2.0f);
+    Assert.assertEquals(a.get("Sparse_a"), 3.0f);
+    Assert.assertEquals(a.get("Sparse_b"), 3.0f);
+
+    a.subtract(b);
+    Assert.assertEquals(a.get("tm_test_0"), -1.0f);
+    Assert.assertEquals(a.get("Sparse_a"), 1.0f);
+    Assert.assertEquals(a.get("Sparse_b"), 0.0f);
+  }
+
+  @Test
+  public void innerProduct() {
+    FeatureVector weights = new FeatureVector();
+    weights.put("tm_test_0", 2.0f);
+    weights.put("Sparse_a", 0.5f);
+
+    FeatureVector features = new FeatureVector("-1 -1", "tm_test_");
+    features.put("Sparse_a", 4.0f);
+    features.put("Sparse_c", 100.0f);
+
+    Assert.assertEquals(features.innerProduct(weights), 4.0f);
+    Assert.assertEquals(weights.innerProduct(features), 4.0f);
+  }
+
+  @Test
+  public void manySparseFeatures() {
+    FeatureVector features = new FeatureVector();
+    for (int i = 0; i < 1000; i++)
+      features.increment(FeatureMap.id("Sparse_" + i), i);
+    for (int i = 0; i < 1000; i++)
+      features.increment(FeatureMap.id("Sparse_" + i), i);
+
+    Assert.assertEquals(features.size(), 1000);
+    for (int i = 0; i < 1000; i++)
+      Assert.assertEquals(features.get("Sparse_" + i), 2.0f * i);
+  }
+
+  @Test
+  public void registersOnlyNamesInUse() {
+    int size = FeatureMap.size();
+    new FeatureVector("1 2 3", "tm_grow_");
+    new FeatureVector("1 2 3 4 5", "tm_grow_");
+    Assert.assertEquals(FeatureMap.size(), size + 5);
+    Assert.assertEquals(FeatureMap.name(FeatureMap.id("tm_grow_", 4)), "tm_grow_4");
+    Assert.assertEquals(FeatureMap.lookup("tm_grow_5"), -1);
+
+    // Printing a vector looks names up without registering them. The names printed are those of
+    // the decoder, which other tests may have loaded, so they are replaced for the test.
+    List<String> featureNames = new ArrayList<String>(Decoder.feature_names);
+    Decoder.feature_names.clear();
+    Decoder.feature_names.add("tm_print_0");
+    try {
+      Assert.assertEquals(new FeatureVector("1", "tm_grow_").toString(), "tm_print_0=0.000");
+      Assert.assertEquals(FeatureMap.lookup("tm_print_0"), -1);
+      Assert.assertEquals(FeatureMap.size(), size + 5);
+    } finally {
+      Decoder.feature_names.clear();
+      Decoder.feature_names.addAll(featureNames);
+    }
+  }
+
+  @Test(expectedExceptions = RuntimeException.class)
+  public void getAbsent() {
+    new FeatureVector().get("tm_test_never_set");
+  }
+}
@@ -0,0 +1,67 @@
+package joshua.decoder.ff.lm;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for NgramCache.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class NgramCacheTest {
+
+  @Test
+  public void lookups() {
+    NgramCache cache = new NgramCache(64, 3);
+
+    int[] words = { 7, 8, 9, 10 };
+    Assert.assertTrue(Float.isNaN(cache.get(words, 0, 3, 0)));
+    cache.put(words, 0, 3, 0, -1.5f);
+    cache.put(words, 1, 3, 0, -2.5f);
+    cache.put(words, 1, 2, 0, -3.5f);
+    cache.put(words, 1, 2, 1, -4.5f);
+
+    Assert.assertEquals(cache.get(new int[] { 7, 8, 9 }, 0, 3, 0), -1.5f);
+    Assert.assertEquals(cache.get(words, 1, 3, 0), -2.5f);
+    Assert.assertEquals(cache.get(words, 1, 2, 0), -3.5f);
+    Assert.assertEquals(cache.get(words, 1, 2, 1), -4.5f);
+    Assert.assertTrue(Float.isNaN(cache.get(words, 0, 2, 0)));
+    Assert.assertEquals(cache.getHits(), 4);
+    Assert.assertEquals(cache.getMisses(), 2);
+
+    Assert.assertEquals(cache.size(), 4);
+
+    // Replacing a score doesn't take another slot
+    cache.put(words, 0, 3, 0, -5.5f);
+    Assert.assertEquals(cache.get(words, 0, 3, 0), -5.5f);
+    Assert.assertEquals(cache.size(), 4);
+
+    cache.clear();
+    Assert.assertTrue(Float.isNaN(cache.get(words, 0, 3, 0)));
+    Assert.assertEquals(cache.size(), 0);
+  }
+
+  @Test
+  public void full() {
+    // More keys than slots: entries are replaced, but never confused
+    NgramCache cache = new NgramCache(16, 2);
+    int[] words = new int[2];
+    for (int i = 0; i < 1000; i++) {
+      words[0] = i;
+      words[1] = i * 7;
+      cache.put(words, 0, 2, 0, i);
+      Assert.assertEquals(cache.get(words, 0, 2, 0), (float) i);
+      Assert.assertTrue(cache.size() <= 12);
+    }
+    int found = 0;
+    for (int i = 0; i < 1000; i++) {
+      words[0] = i;
+      words[1] = i * 7;
+      float value = cache.get(words, 0, 2, 0);
+      Assert.assertTrue(Float.isNaN(value) || value == i);
+      if (!Float.isNaN(value))
+        found++;
+    }
+    Assert.assertTrue(found > 0 && found <= 12);
+  }
+}
@@ -0,0 +1,98 @@
+package joshua.decoder.ff.lm.kenlm.jni;
+
+import joshua.decoder.ff.lm.kenlm.jni.KenLM.RuleBatch;
+import joshua.decoder.ff.lm.kenlm.jni.KenLM.StateProbPair;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that scoring rules in a batch gives the same probabilities and states as scoring them one
+ * at a time. This needs libken with probRules() on the library path (-Djava.library.path=./lib),
+ * and is skipped otherwise.
+ */
+public class KenLMTest {
+
+  private static final String LM = "src/joshua/decoder/ff/lm/kenlm/lm/test.arpa";
+  private static final String[] WORDS = { "<s>", "looking", "on", "a", "little", "the", "screening",
+      "of", ".", "</s>" };
+
+  // Rules over the word ids (1-based positions in WORDS)
+  private static final long[][] RULES = { { 1, 2, 3 }, { 4, 5 }, { 6, 7, 8 }, { 9, 10 }, { 4 } };
+
+  @BeforeClass
+  public void checkLibrary() {
+    try {
+      if (!KenLM.batched)
+        throw new SkipException("libken has no probRules()");
+    } catch (LinkageError e) {
+      throw new SkipException("libken is not available: " + e);
+    }
+  }
+
+  private static KenLM load() {
+    KenLM lm = new KenLM(5, LM, false);
+    for (int i = 0; i < WORDS.length; i++)
+      lm.registerWord(WORDS[i], i + 1);
+    return lm;
+  }
+
+  @Test
+  public void batchedMatchesSingle() {
+    compare(true);
+  }
+
+  @Test
+  public void fallbackMatchesSingle() {
+    compare(false);
+  }
+
+  private void compare(boolean batched) {
+    boolean saved = KenLM.batched;
+    KenLM lm = load();
+    long pool = KenLM.createPool();
+    try {
+      KenLM.batched = batched;
+
+      // the rules over terminals
+      StateProbPair[] pairs = new StateProbPair[RULES.length];
+      for (int k = 0; k < RULES.length; k++)
+        pairs[k] = lm.probRule(RULES[k].clone(), pool);
+
+      RuleBatch batch = new RuleBatch();
+      for (long[] rule : RULES)
+        add(batch, rule);
+      lm.probRules(batch, pool);
+      Assert.assertEquals(batch.size(), RULES.length);
+      for (int k = 0; k < RULES.length; k++)
+        Assert.assertEquals(batch.getProb(k), pairs[k].prob);
+
+      // rules over nonterminals, whose states come from the first round
+      long[][] single = new long[RULES.length - 1][];
+      long[][] batchedRules = new long[RULES.length - 1][];
+      for (int k = 0; k < RULES.length - 1; k++) {
+        single[k] = new long[] { -pairs[k].state.getState(), 8, -pairs[k + 1].state.getState() };
+        batchedRules[k] = new long[] { -batch.getState(k), 8, -batch.getState(k + 1) };
+      }
+      batch.clear();
+      for (long[] rule : batchedRules)
+        add(batch, rule);
+      lm.probRules(batch, pool);
+      for (int k = 0; k < single.length; k++)
+        Assert.assertEquals(batch.getProb(k), lm.probRule(single[k], pool).prob);
+
+    } finally {
+      KenLM.batched = saved;
+      KenLM.destroyPool(pool);
+      lm.destroy();
+    }
+  }
+
+  private static void add(RuleBatch batch, long[] rule) {
+    batch.startRule(rule.length);
+    for (long word : rule)
+      batch.addWord(word);
+  }
+}
@@ -0,0 +1,99 @@
+package joshua.decoder.ff.lm.mapped_lm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import joshua.corpus.Vocabulary;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the memory-mapped language model, built from a small ARPA file that is missing
+ * the suffix ("b c") of one of its trigrams, as pruned models can be.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class MappedLanguageModelTest {
+
+  private static final float DELTA = 1e-5f;
+
+  private MappedLanguageModel build(boolean minimizing) throws IOException {
+    File arpa = File.createTempFile("mapped", ".arpa");
+    arpa.deleteOnExit();
+    PrintStream out = new PrintStream(arpa, "UTF-8");
+    out.println("\\data\\");
+    out.println("ngram 1=5");
+    out.println("ngram 2=3");
+    out.println("ngram 3=1");
+    out.println();
+    out.println("\\1-grams:");
+    out.println("-1.0\t<s>\t-0.5");
+    out.println("-1.5\t</s>");
+    out.println("-2.0\ta\t-0.25");
+    out.println("-2.5\tb\t-0.125");
+    out.println("-3.0\tc");
+    out.println();
+    out.println("\\2-grams:");
+    out.println("-0.75\t<s> a\t-0.0625");
+    out.println("-0.5\ta b\t-0.375");
+    out.println("-1.25\tb </s>");
+    out.println();
+    out.println("\\3-grams:");
+    out.println("-0.0625\ta b c");
+    out.println();
+    out.println("\\end\\");
+    out.close();
+
+    File mapped = File.createTempFile("mapped", ".lm");
+    mapped.deleteOnExit();
+    new MappedLanguageModelBuilder(arpa.getPath(), 16, 15).build(mapped.getPath());
+
+    MappedLanguageModel lm = new MappedLanguageModel(3, mapped.getPath(), minimizing);
+    Vocabulary.registerLanguageModel(lm);
+    return lm;
+  }
+
+  private static int[] ids(String ngram) {
+    String[] words = ngram.split(" ");
+    int[] ids = new int[words.length];
+    for (int i = 0; i < words.length; i++)
+      ids[i] = Vocabulary.id(words[i]);
+    return ids;
+  }
+
+  @Test
+  public void probabilities() throws IOException {
+    MappedLanguageModel lm = build(false);
+
+    Assert.assertEquals(lm.ngramLogProbability(ids("c"), 3), -3.0f, DELTA);
+    Assert.assertEquals(lm.ngramLogProbability(ids("a b"), 3), -0.5f, DELTA);
+    Assert.assertEquals(lm.ngramLogProbability(ids("<s> a b"), 3), -0.5f - 0.0625f, DELTA);
+    Assert.assertEquals(lm.ngramLogProbability(ids("c b </s>"), 3), -1.25f, DELTA);
+
+    // The trigram is found even though its suffix is not in the ARPA file
+    Assert.assertEquals(lm.ngramLogProbability(ids("a b c"), 3), -0.0625f, DELTA);
+    // The suffix itself backs off
+    Assert.assertEquals(lm.ngramLogProbability(ids("b c"), 3), -3.0f - 0.125f, DELTA);
+
+    // Unknown words (the backoff is lost to the floor)
+    Assert.assertEquals(lm.ngramLogProbability(ids("a zzz"), 3), -100.0f, DELTA);
+    Assert.assertEquals(lm.ngramLogProbability(ids("zzz a"), 3), -2.0f, DELTA);
+  }
+
+  @Test
+  public void rightState() throws IOException {
+    MappedLanguageModel lm = build(true);
+    Assert.assertTrue(lm.isMinimizing());
+
+    // "a b" starts a trigram
+    Assert.assertEquals(lm.rightStateLength(ids("a b")), 2);
+    // "c b" doesn't, but "b" has a backoff weight
+    Assert.assertEquals(lm.rightStateLength(ids("c b")), 1);
+    // "c" neither extends nor backs off
+    Assert.assertEquals(lm.rightStateLength(ids("b c")), 0);
+
+    Assert.assertEquals(build(false).rightStateLength(ids("b c")), 2);
+  }
+}
@@ -0,0 +1,80 @@
+package joshua.decoder.hypergraph;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import joshua.decoder.Decoder;
+import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.RandomHieroFixture;
+import joshua.decoder.segment_file.Sentence;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Checks k-best extraction on the forests of a {@link RandomHieroFixture}: that unique k-best
+ * lists, whose yields are compared by their hashes, contain the same strings as unique lists found
+ * by comparing strings, and that formatting k-best lists in parallel (-kbest-threads) writes
+ * exactly what formatting them one at a time does.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class KBestExtractorTest {
+
+  @Test
+  public void uniqueYieldsMatchUniqueStrings() throws IOException {
+    int topN = 50;
+    List<String> unique = decode(topN, true, 1);
+    List<String> all = decode(5000, false, 1);
+
+    for (int i = 0; i < unique.size(); i++) {
+      // The unique strings of the full list, in order of their best derivations
+      Set<String> strings = new LinkedHashSet<String>();
+      for (String line : all.get(i).split("\n"))
+        if (strings.size() < topN)
+          strings.add(field(line, 1));
+
+      List<String> hashed = new ArrayList<String>();
+      for (String line : unique.get(i).split("\n"))
+        hashed.add(field(line, 1));
+
+      Assert.assertTrue(hashed.size() > 1);
+      Assert.assertEquals(hashed, new ArrayList<String>(strings));
+    }
+  }
+
+  @Test
+  public void parallelFormattingMatchesSequential() throws IOException {
+    // More than one batch of derivations, the last of them partial
+    for (boolean unique : new boolean[] { false, true }) {
+      List<String> sequential = decode(150, unique, 1);
+      List<String> parallel = decode(150, unique, 4);
+      Assert.assertEquals(parallel, sequential);
+    }
+  }
+
+  /* Decodes the fixture, returning the k-best list of each sentence. */
+  private static List<String> decode(int topN, boolean unique, int kbestThreads)
+      throws IOException {
+    JoshuaConfiguration joshuaConfiguration = RandomHieroFixture.configuration();
+    joshuaConfiguration.topN = topN;
+    joshuaConfiguration.use_unique_nbest = unique;
+    joshuaConfiguration.kbest_threads = kbestThreads;
+
+    Decoder decoder = RandomHieroFixture.decoder(joshuaConfiguration);
+    List<String> sentences = RandomHieroFixture.sentences();
+    List<String> output = new ArrayList<String>();
+    for (int i = 0; i < sentences.size(); i++)
+      output.add(decoder.decode(new Sentence(sentences.get(i), i, joshuaConfiguration)).toString());
+    decoder.cleanUp();
+    return output;
+  }
+
+  /* Returns the given field of a k-best line. */
+  private static String field(String line, int i) {
+    return line.split(" \\|\\|\\| ")[i];
+  }
+}
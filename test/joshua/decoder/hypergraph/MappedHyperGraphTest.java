@@ -0,0 +1,83 @@
+package joshua.decoder.hypergraph;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import joshua.corpus.Vocabulary;
+import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.tm.BilingualRule;
+import joshua.decoder.ff.tm.Rule;
+import joshua.decoder.segment_file.Sentence;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for BinaryHyperGraphWriter and MappedHyperGraph.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class MappedHyperGraphTest {
+
+  @Test
+  public void roundTrip() throws Exception {
+    JoshuaConfiguration joshuaConfiguration = new JoshuaConfiguration();
+    int x = Vocabulary.id("[X]");
+    int goal = Vocabulary.id("[GOAL]");
+
+    // Two words, each translated by a terminal rule, and then swapped by a binary rule
+    Rule first = new BilingualRule(x, new int[] { Vocabulary.id("un") },
+        new int[] { Vocabulary.id("one") }, "", 0);
+    Rule second = new BilingualRule(x, new int[] { Vocabulary.id("deux") },
+        new int[] { Vocabulary.id("two") }, "", 0);
+    Rule swap = new BilingualRule(x, new int[] { x, x }, new int[] { -2, -1 }, "", 2);
+
+    HGNode un = new HGNode(0, 1, x, null, new HyperEdge(first, -1.0f, -1.0f, null, null), -1.0f);
+    HGNode deux = new HGNode(1, 2, x, null, new HyperEdge(second, -2.0f, -2.0f, null, null), -2.0f);
+    HGNode both = new HGNode(0, 2, x, null, new HyperEdge(swap, -3.5f, -0.5f,
+        Arrays.asList(un, deux), null), -3.5f);
+    HGNode goalNode = new HGNode(0, 3, goal, null, new HyperEdge(null, -3.5f, 0.0f,
+        Arrays.asList(both), null), -3.5f);
+    HyperGraph hg = new HyperGraph(goalNode, -1, -1, new Sentence("un deux", 7,
+        joshuaConfiguration));
+
+    File file = File.createTempFile("hypergraph", ".bin");
+    file.deleteOnExit();
+    BinaryHyperGraphWriter.write(hg, new ArrayList<FeatureFunction>(), file.getPath());
+
+    MappedHyperGraph mapped = new MappedHyperGraph(file.getPath());
+    Assert.assertEquals(mapped.sentID(), 7);
+    Assert.assertEquals(mapped.source(), "un deux");
+    Assert.assertEquals(mapped.getNumNodes(), 4);
+    Assert.assertEquals(mapped.getNumEdges(), 4);
+    Assert.assertEquals(mapped.getNumRules(), 3);
+
+    // The goal node is last, and tail nodes come before the nodes that use them
+    int top = mapped.getGoalNode();
+    Assert.assertEquals(mapped.getNodeLHS(top), "[GOAL]");
+    int goalEdge = mapped.getFirstEdge(top);
+    Assert.assertEquals(mapped.getEdgeRule(goalEdge), -1);
+    int swapNode = mapped.getTail(goalEdge, 0);
+    Assert.assertEquals(mapped.getNodeStart(swapNode), 0);
+    Assert.assertEquals(mapped.getNodeEnd(swapNode), 2);
+    int swapEdge = mapped.getBestEdge(swapNode);
+    Assert.assertEquals(mapped.getNumTails(swapEdge), 2);
+    Assert.assertTrue(mapped.getTail(swapEdge, 1) < swapNode);
+    Assert.assertEquals(mapped.getTransitionScore(swapEdge), -0.5f);
+    Assert.assertEquals(mapped.getBestDerivationScore(swapEdge), -3.5f);
+
+    Rule rule = mapped.getRule(mapped.getEdgeRule(swapEdge));
+    Assert.assertEquals(rule.getLHS(), x);
+    Assert.assertEquals(rule.getArity(), 2);
+    Assert.assertTrue(Arrays.equals(rule.getFrench(), new int[] { x, x }));
+    Assert.assertTrue(Arrays.equals(rule.getEnglish(), new int[] { -2, -1 }));
+
+    HyperGraph rebuilt = mapped.toHyperGraph(null, joshuaConfiguration);
+    Assert.assertEquals(rebuilt.bestScore(), -3.5f);
+    Assert.assertEquals(ViterbiExtractor.extractViterbiString(rebuilt.goalNode),
+        ViterbiExtractor.extractViterbiString(goalNode));
+  }
+}
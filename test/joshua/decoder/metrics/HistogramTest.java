@@ -0,0 +1,37 @@
+package joshua.decoder.metrics;
+
+import static org.testng.Assert.*;
+
+import org.testng.annotations.Test;
+
+public class HistogramTest {
+
+  @Test
+  public void bucketBounds() {
+    for (long value = 0; value < 100000; value++) {
+      int bucket = Histogram.bucket(value);
+      assertTrue(value <= Histogram.upperBound(bucket));
+      if (bucket > 0)
+        assertTrue(value > Histogram.upperBound(bucket - 1));
+    }
+    assertTrue(Histogram.bucket(Long.MAX_VALUE) < 256);
+  }
+
+  @Test
+  public void quantiles() {
+    Histogram histogram = new Histogram();
+    assertEquals(histogram.getQuantile(0.5), 0);
+
+    for (long value = 1; value <= 1000; value++)
+      histogram.record(value);
+    assertEquals(histogram.getCount(), 1000);
+    assertEquals(histogram.getSum(), 500500);
+    assertEquals(histogram.getMax(), 1000);
+    assertEquals(histogram.getQuantile(1.0), 1000);
+
+    long median = histogram.getQuantile(0.5);
+    assertTrue(median >= 500 && median <= 500 * 1.25, "median " + median);
+    long p99 = histogram.getQuantile(0.99);
+    assertTrue(p99 >= 990 && p99 <= 1000, "99th percentile " + p99);
+  }
+}
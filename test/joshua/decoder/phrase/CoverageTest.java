@@ -0,0 +1,84 @@
+package joshua.decoder.phrase;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import joshua.corpus.Span;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for Coverage, checked against a BitSet over the whole sentence.
+ *
+ * @author Matt Post <post@cs.jhu.edu>
+ */
+public class CoverageTest {
+
+  @Test
+  public void shortSentence() {
+    Coverage coverage = new Coverage(1);
+    coverage.Set(3, 5);
+    Assert.assertEquals(coverage.firstZero(), 1);
+    Assert.assertFalse(coverage.compatible(4, 6));
+    Assert.assertTrue(coverage.compatible(1, 3));
+    Assert.assertEquals(coverage.LeftOpen(6), 5);
+    Assert.assertEquals(coverage.RightOpen(2, 10), 3);
+
+    coverage.Set(1, 3);
+    Assert.assertEquals(coverage.firstZero(), 5);
+    Assert.assertEquals(coverage.RightOpen(6, 10), 10);
+  }
+
+  @Test
+  public void longSentence() {
+    Coverage coverage = new Coverage(1);
+    coverage.Set(100, 140);
+    Assert.assertEquals(coverage.firstZero(), 1);
+    Assert.assertTrue(coverage.compatible(1, 100));
+    Assert.assertFalse(coverage.compatible(60, 101));
+    Assert.assertEquals(coverage.LeftOpen(150), 140);
+    Assert.assertEquals(coverage.RightOpen(2, 200), 100);
+
+    Coverage other = coverage.or(new Span(1, 100));
+    Assert.assertEquals(other.firstZero(), 140);
+    Assert.assertEquals(coverage.firstZero(), 1);
+    Assert.assertEquals(other, new Coverage(140));
+    Assert.assertEquals(other.hashCode(), new Coverage(140).hashCode());
+  }
+
+  @Test
+  public void random() {
+    Random random = new Random(17);
+    for (int sentence = 0; sentence < 200; sentence++) {
+      int length = 2 + random.nextInt(300);
+      int window = 1 + random.nextInt(length);
+      Coverage coverage = new Coverage(1);
+      BitSet covered = new BitSet();
+      covered.set(0);
+
+      while (covered.nextClearBit(0) < length) {
+        int firstZero = covered.nextClearBit(0);
+        Assert.assertEquals(coverage.firstZero(), firstZero);
+
+        int begin = firstZero + random.nextInt(Math.min(window, length - firstZero));
+        int end = begin + 1 + random.nextInt(Math.min(8, length - begin));
+        boolean compatible = covered.nextSetBit(begin) == -1 || covered.nextSetBit(begin) >= end;
+        Assert.assertEquals(coverage.compatible(begin, end), compatible);
+        if (!compatible)
+          continue;
+
+        int left = covered.previousSetBit(begin) + 1;
+        int right = covered.nextSetBit(end) == -1 ? length : covered.nextSetBit(end);
+        Assert.assertEquals(coverage.LeftOpen(begin), Math.max(left, firstZero));
+        Assert.assertEquals(coverage.RightOpen(end, length), right);
+
+        Coverage next = coverage.or(new Span(begin, end));
+        Assert.assertEquals(next.firstZero(), coverage.firstZero() == begin ? covered.nextClearBit(end)
+            : firstZero);
+        coverage = next;
+        covered.set(begin, end);
+      }
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package joshua.metrics;
+
+import static org.testng.Assert.*;
+
+import org.testng.annotations.Test;
+
+public class TERTest {
+
+  private static TER ter(String[][] refs, String caseOption, String puncOption, String threads) {
+    EvaluationMetric.set_numSentences(refs.length);
+    EvaluationMetric.set_refsPerSen(refs[0].length);
+    EvaluationMetric.set_refSentences(refs);
+    return new TER(new String[] { caseOption, puncOption, "20", "50", "", threads });
+  }
+
+  private static int edits(String hyp, String ref) {
+    return ter(new String[][] { { ref } }, "case", "punc", "1").suffStats(hyp, 0)[0];
+  }
+
+  @Test
+  public void edits() {
+    assertEquals(edits("a b c d", "a b c d"), 0);
+    assertEquals(edits("a x c d", "a b c d"), 1);
+    assertEquals(edits("a b c d", "a c d"), 1);
+    assertEquals(edits("a c d", "a b c d"), 1);
+    assertEquals(edits("", "a b c"), 3);
+    assertEquals(edits("a b", ""), 2);
+  }
+
+  @Test
+  public void shifts() {
+    assertEquals(edits("c d a b", "a b c d"), 1);
+    // the example of Snover et al. (2006): a shift, two substitutions, and an insertion
+    assertEquals(
+        edits("this week the saudis denied information published in the new york times",
+            "saudi arabia denied this week information published in the american new york times"),
+        4);
+  }
+
+  @Test
+  public void normalization() {
+    TER ter = ter(new String[][] { { "The cat sat ." } }, "nocase", "nopunc", "1");
+    assertEquals(ter.suffStats("the cat , sat", 0), new int[] { 0, 3 });
+
+    ter = ter(new String[][] { { "The cat sat ." } }, "case", "punc", "1");
+    assertEquals(ter.suffStats("the cat sat", 0), new int[] { 2, 4 });
+  }
+
+  @Test
+  public void closestReference() {
+    TER ter = ter(new String[][] { { "a b c d e", "a b c" } }, "case", "punc", "1");
+    // the edits to the second reference, and the average reference length
+    assertEquals(ter.suffStats("a b c", 0), new int[] { 0, 4 });
+  }
+
+  @Test
+  public void threads() {
+    String[][] refs = new String[][] { { "a b c d" }, { "e f g" } };
+    String[] cands = new String[100];
+    int[] indices = new int[100];
+    for (int d = 0; d < cands.length; ++d) {
+      indices[d] = d % 2;
+      cands[d] = (d % 2 == 0) ? "c d a b" : "e x g h";
+    }
+
+    int[][] stats = ter(refs, "case", "punc", "4").suffStats(cands, indices);
+    for (int d = 0; d < cands.length; ++d)
+      assertEquals(stats[d], (d % 2 == 0) ? new int[] { 1, 4 } : new int[] { 2, 3 });
+  }
+}
@@ -0,0 +1,65 @@
+package joshua.pro;
+
+import static org.testng.Assert.*;
+
+import org.testng.annotations.Test;
+
+public class CandidatePoolTest {
+
+  private static float[] feats(float... values) {
+    float[] feats = new float[values.length + 1];
+    System.arraycopy(values, 0, feats, 1, values.length);
+    return feats;
+  }
+
+  @Test
+  public void deduplicates() {
+    CandidatePool pool = new CandidatePool(2, 2, 1);
+    assertEquals(pool.add(0, "a b", feats(1, 2), 1, 1), 0);
+    assertEquals(pool.add(0, "a c", feats(3, 4), 1, 1), 1);
+    assertEquals(pool.add(0, "a b", feats(5, 6), 1, 1), -1);
+    assertEquals(pool.add(1, "a b", feats(7, 8), 1, 1), 0);
+
+    assertEquals(pool.window(0, 1), new int[] { 0, 1 });
+    assertEquals(pool.window(1, 1), new int[] { 0 });
+    assertEquals(pool.candidate(0, 1), "a c");
+    assertEquals(pool.score(0, 0, new double[] { 0, 1, 10 }), 21.0, 1e-9);
+    assertEquals(pool.score(0, 1, new double[] { 0, 1, 10 }), 43.0, 1e-9);
+
+    pool.setStats(0, 1, new int[] { 9 });
+    assertTrue(pool.hasStats(0, 1));
+    assertFalse(pool.hasStats(0, 0));
+    assertEquals(pool.stats(0)[1], 9);
+  }
+
+  @Test
+  public void window() {
+    CandidatePool pool = new CandidatePool(1, 1, 1);
+    pool.add(0, "a", feats(1), 1, 1);
+    pool.add(0, "b", feats(2), 2, 1);
+    pool.setStats(0, 0, new int[] { 1 });
+
+    // Iteration 3 only looks back one iteration, so "a" is out of the window...
+    assertEquals(pool.window(0, 2), new int[] { 1 });
+    assertEquals(pool.add(0, "b", feats(2), 3, 2), -1);
+    // ...and comes back as a new candidate, with the statistics it had.
+    assertEquals(pool.add(0, "a", feats(3), 3, 2), 0);
+    assertTrue(pool.hasStats(0, 0));
+    assertEquals(pool.window(0, 2), new int[] { 0, 1 });
+    assertEquals(pool.countAdded(0, 3, 2), 1);
+    assertEquals(pool.countAdded(0, 2, 2), 1);
+    assertEquals(pool.score(0, 0, new double[] { 0, 1 }), 3.0, 1e-9);
+  }
+
+  @Test
+  public void grows() {
+    CandidatePool pool = new CandidatePool(1, 3, 2);
+    for (int c = 0; c < 1000; c++) {
+      assertEquals(pool.add(0, "cand " + c, feats(c, -c, 1), 1, 1), c);
+      pool.setStats(0, c, new int[] { c, 2 * c });
+    }
+    assertEquals(pool.window(0, 1).length, 1000);
+    assertEquals(pool.features(0)[999 * 3], 999.0f);
+    assertEquals(pool.stats(0)[999 * 2 + 1], 1998);
+  }
+}
@@ -0,0 +1,56 @@
+package joshua.pro;
+
+import static org.testng.Assert.*;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.testng.annotations.Test;
+
+public class ClassifierParallelPerceptronTest {
+
+  /* Pairs that are separated by weights with w[1] > w[2], as PRO samples them: x and -x. */
+  private static float[] samples(int numPairs) {
+    float[] rows = new float[numPairs * 2 * 3];
+    for (int n = 0; n < numPairs; n++) {
+      float x1 = 1 + n % 7;
+      float x2 = x1 - 1 - n % 3;
+      float[] row = { 1, x1, x2, -1, -x1, -x2 };
+      System.arraycopy(row, 0, rows, n * 6, 6);
+    }
+    return rows;
+  }
+
+  private static double[] train(int numThreads, String shards) {
+    ClassifierParallelPerceptron classifier = new ClassifierParallelPerceptron();
+    classifier.setClassifierParam(new String[] { "20", "0.5", "0.0", shards });
+    classifier.setNumThreads(numThreads);
+    return classifier.runClassifier(samples(100), 200, new double[] { 0, -1, 1 }, 2);
+  }
+
+  @Test
+  public void separates() {
+    double[] lambda = train(4, "4");
+    float[] rows = samples(100);
+    for (int n = 0; n < 200; n++) {
+      double score = lambda[1] * rows[n * 3 + 1] + lambda[2] * rows[n * 3 + 2];
+      assertTrue(score * rows[n * 3] > 0);
+    }
+  }
+
+  @Test
+  public void independentOfThreads() {
+    assertTrue(Arrays.equals(train(1, "4"), train(4, "4")));
+  }
+
+  @Test
+  public void readsStrings() {
+    Vector<String> samples = new Vector<String>();
+    samples.add("1:2 2:1 1");
+    samples.add("1:-2 2:-1 -1");
+    ClassifierParallelPerceptron classifier = new ClassifierParallelPerceptron();
+    classifier.setClassifierParam(new String[] { "20", "0.5", "0.0" });
+    double[] lambda = classifier.runClassifier(samples, new double[] { 0, -1, 0 }, 2);
+    assertTrue(2 * lambda[1] + lambda[2] > 0);
+  }
+}
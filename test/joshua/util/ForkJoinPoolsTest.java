@@ -0,0 +1,23 @@
+package joshua.util;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for ForkJoinPools.
+ */
+public class ForkJoinPoolsTest {
+
+  @Test
+  public void poolPerSize() {
+    ForkJoinPool two = ForkJoinPools.get(2);
+    ForkJoinPool three = ForkJoinPools.get(3);
+
+    Assert.assertEquals(two.getParallelism(), 2);
+    Assert.assertEquals(three.getParallelism(), 3);
+    Assert.assertTrue(ForkJoinPools.get(2) == two);
+    Assert.assertTrue(ForkJoinPools.get(3) == three);
+  }
+}